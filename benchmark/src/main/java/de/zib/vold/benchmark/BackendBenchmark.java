@@ -0,0 +1,128 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import de.zib.vold.backend.PartitionedDirectoryBackend;
+import de.zib.vold.common.Key;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Primitives of the partitioned directory backends.
+ *
+ * The backend is filled with keyCount keys spread over Fixtures.SCOPES scopes
+ * before measuring:
+ *
+ * - insert:        overwrite a random key
+ * - lookup:        lookup a random key
+ * - prefixlookup:  prefix lookup on the scope of a random key (keyCount / SCOPES results)
+ * - delete:        delete a random key and insert it again
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class BackendBenchmark
+{
+    @Param( { "babudb", "filesystem", "sstable" } )
+    public String backend;
+
+    @Param( { "1000", "10000" } )
+    public int keyCount;
+
+    private File root;
+    private PartitionedDirectoryBackend directory;
+
+    private List< List< String > > keys;
+    private List< List< String > > prefixes;
+    private List< List< String > > values;
+
+    @Setup
+    public void setup( )
+    {
+        root = Fixtures.createTempDir( "vold-backend" );
+        directory = Fixtures.openBackend( backend, root );
+
+        keys = new ArrayList< List< String > >( keyCount );
+        prefixes = new ArrayList< List< String > >( keyCount );
+        values = new ArrayList< List< String > >( keyCount );
+
+        for( int i = 0; i < keyCount; ++i )
+        {
+            Key key = Fixtures.key( i, 1 );
+
+            keys.add( Fixtures.directoryKey( key ) );
+            prefixes.add( Collections.singletonList( key.get_scope() ) );
+            values.add( Fixtures.value( i ) );
+
+            directory.insert( 0, keys.get( i ), values.get( i ) );
+        }
+    }
+
+    @TearDown
+    public void tearDown( )
+    {
+        directory.close();
+        Fixtures.delete( root );
+    }
+
+    @Benchmark
+    public void insert( Cursor cursor )
+    {
+        int i = cursor.next( keyCount );
+        directory.insert( 0, keys.get( i ), values.get( i ) );
+    }
+
+    @Benchmark
+    public List< String > lookup( Cursor cursor )
+    {
+        return directory.lookup( 0, keys.get( cursor.next( keyCount ) ) );
+    }
+
+    @Benchmark
+    public Map< List< String >, List< String > > prefixlookup( Cursor cursor )
+    {
+        // some backends consume the prefix list
+        return directory.prefixlookup( 0, new ArrayList< String >( prefixes.get( cursor.next( keyCount ) ) ) );
+    }
+
+    @Benchmark
+    public void delete( Cursor cursor )
+    {
+        int i = cursor.next( keyCount );
+        directory.delete( 0, keys.get( i ) );
+        directory.insert( 0, keys.get( i ), values.get( i ) );
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Run the benchmarks for several thread counts.
+ *
+ * JMH only takes one thread count per run. This runner accepts all
+ * arguments of JMH plus "-threads 1,2,4,8", running the selected benchmarks
+ * once for each given thread count. Without -threads, the benchmarks are
+ * run with 1 and 4 threads.
+ *
+ * Example:
+ *
+ *      buildr vold:benchmark:run JMH_ARGS="VolatileDirectoryBenchmark -threads 1,8 -p backend=sstable"
+ */
+public class BenchmarkRunner
+{
+    public static void main( String[] args )
+            throws CommandLineOptionException, RunnerException
+    {
+        String threads = "1,4";
+        List< String > jmhargs = new ArrayList< String >();
+
+        for( int i = 0; i < args.length; ++i )
+        {
+            if( "-threads".equals( args[ i ] ) && i + 1 < args.length )
+            {
+                threads = args[ ++i ];
+            }
+            else
+            {
+                jmhargs.add( args[ i ] );
+            }
+        }
+
+        CommandLineOptions options = new CommandLineOptions( jmhargs.toArray( new String[ jmhargs.size() ] ) );
+
+        for( String t: threads.split( "," ) )
+        {
+            new Runner( new OptionsBuilder()
+                    .parent( options )
+                    .threads( Integer.parseInt( t.trim() ) )
+                    .build() ).run();
+        }
+    }
+}
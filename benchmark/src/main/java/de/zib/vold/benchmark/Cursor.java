@@ -0,0 +1,51 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Per thread source of random key indices.
+ *
+ * Each benchmark thread gets its own generator with a distinct seed, so
+ * threads do not contend on the generator and runs are repeatable.
+ */
+@State( Scope.Thread )
+public class Cursor
+{
+    private static int seeds = 0;
+
+    private final Random random;
+
+    public Cursor( )
+    {
+        synchronized( Cursor.class )
+        {
+            random = new Random( ++seeds );
+        }
+    }
+
+    /**
+     * Get a random index in [0, n).
+     */
+    public int next( int n )
+    {
+        return random.nextInt( n );
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+
+import java.io.File;
+import java.util.Properties;
+
+/**
+ * A VolD node running in the same process.
+ *
+ * The node consists of a jetty server with the DispatcherServlet of VolD,
+ * configured by META-INF/loadgen-context.xml: a backend in a temporary
+ * directory, the volatile directory logic, a Frontend and the
+ * RESTController on "/" as well as the metrics on "/_metrics". There is no
+ * security filter and no Reaper.
+ *
+ * With workers, META-INF/loadgen-async.xml additionally sets up a thread
+ * pool, which processes the requests asynchronously.
+ */
+public class EmbeddedServer
+{
+    private final String backend;
+    private final int workers;
+
+    private File root;
+    private Server server;
+    private XmlWebApplicationContext context;
+
+    /**
+     * Construct an embedded server.
+     *
+     * @param backend   The backend to use, "filesystem" or "sstable".
+     * @param workers   The number of worker threads for asynchronous
+     *                  requests, 0 for synchronous requests.
+     */
+    public EmbeddedServer( String backend, int workers )
+    {
+        this.workers = workers;
+
+
+        if( "filesystem".equals( backend ) )
+        {
+            this.backend = "de.zib.vold.backend.FileSystemDirectory";
+        }
+        else if( "sstable".equals( backend ) )
+        {
+            this.backend = "de.zib.vold.backend.SSTableDirectory";
+        }
+        else
+        {
+            throw new IllegalArgumentException( "The embedded server supports the backends filesystem and sstable, but " + backend + " was given." );
+        }
+    }
+
+    /**
+     * Start the server on a free port of the loopback interface.
+     */
+    public void start( )
+            throws Exception
+    {
+        root = Fixtures.createTempDir( "vold-loadgen" );
+
+        Properties props = new Properties();
+        props.setProperty( "loadgen.backend", backend );
+        props.setProperty( "loadgen.root", root.getPath() );
+        props.setProperty( "loadgen.workers", String.valueOf( workers ) );
+
+        PropertyPlaceholderConfigurer configurer = new PropertyPlaceholderConfigurer();
+        configurer.setProperties( props );
+
+        context = new XmlWebApplicationContext();
+        if( workers > 0 )
+        {
+            // redefines the RESTController
+            context.setConfigLocations( new String[]{ "classpath:META-INF/loadgen-context.xml", "classpath:META-INF/loadgen-async.xml" } );
+        }
+        else
+        {
+            context.setConfigLocation( "classpath:META-INF/loadgen-context.xml" );
+        }
+        context.addBeanFactoryPostProcessor( configurer );
+
+        ServletContextHandler handler = new ServletContextHandler();
+        handler.setContextPath( "/" );
+        ServletHolder holder = new ServletHolder( new DispatcherServlet( context ) );
+        holder.setAsyncSupported( true );
+        handler.addServlet( holder, "/*" );
+
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost( "127.0.0.1" );
+        connector.setPort( 0 );
+
+        server = new Server();
+        server.setConnectors( new Connector[]{ connector } );
+        server.setHandler( handler );
+        server.start();
+    }
+
+    /**
+     * Get the base URL of the REST interface.
+     */
+    public String getURL( )
+    {
+        return "http://127.0.0.1:" + server.getConnectors()[ 0 ].getLocalPort() + "/";
+    }
+
+    /**
+     * Stop the server, close the backend and remove all of its data.
+     */
+    public void stop( )
+            throws Exception
+    {
+        server.stop();
+        context.close();
+        Fixtures.delete( root );
+    }
+}
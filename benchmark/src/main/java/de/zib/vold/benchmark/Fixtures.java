@@ -0,0 +1,166 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import de.zib.vold.backend.BabuDirectory;
+import de.zib.vold.backend.FileSystemDirectory;
+import de.zib.vold.backend.PartitionedDirectoryBackend;
+import de.zib.vold.backend.SSTableDirectory;
+import de.zib.vold.common.Key;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers shared by all benchmarks: creating backends in temporary
+ * directories and generating keys.
+ *
+ * Keys are generated as the Frontend would store them: scope, type, keyname
+ * and source. The keys are spread over a fixed number of scopes, thus prefix
+ * lookups on a scope return keyCount / SCOPES entries.
+ */
+final class Fixtures
+{
+    /**
+     * The number of scopes the generated keys are spread over.
+     */
+    static final int SCOPES = 16;
+
+    static final String SOURCE = "127.0.0.1";
+
+    private Fixtures( )
+    {
+    }
+
+    /**
+     * Create and open a backend in a new temporary directory.
+     *
+     * @param name  One of "babudb", "filesystem" or "sstable".
+     * @param root  The directory the backend stores its data in.
+     */
+    static PartitionedDirectoryBackend openBackend( String name, File root )
+    {
+        PartitionedDirectoryBackend backend;
+
+        if( "babudb".equals( name ) )
+        {
+            BabuDirectory babu = new BabuDirectory();
+            babu.setDir( new File( root, "db" ).getPath() + "/" );
+            babu.setLogDir( new File( root, "log" ).getPath() );
+            babu.setSync( "ASYNC" );
+            babu.setDatabaseName( "benchmark" );
+            babu.setEnc( "utf-8" );
+            backend = babu;
+        }
+        else if( "filesystem".equals( name ) )
+        {
+            backend = new FileSystemDirectory( root.getPath(), "utf-8" );
+        }
+        else if( "sstable".equals( name ) )
+        {
+            SSTableDirectory sstable = new SSTableDirectory();
+            sstable.setRootPath( root.getPath() );
+            sstable.setEnc( "utf-8" );
+            backend = sstable;
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Unknown backend " + name + ". Use babudb, filesystem or sstable." );
+        }
+
+        backend.open();
+        return backend;
+    }
+
+    /**
+     * Create a new, empty temporary directory.
+     */
+    static File createTempDir( String prefix )
+    {
+        try
+        {
+            File dir = File.createTempFile( prefix, "" );
+            if( ! dir.delete() || ! dir.mkdir() )
+            {
+                throw new IOException( "Could not create directory " + dir.getPath() );
+            }
+            return dir;
+        }
+        catch( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Delete a file or directory recursively.
+     */
+    static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if( null != children )
+        {
+            for( File child: children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Build the i-th key, located in scope depth levels below the root.
+     */
+    static Key key( int i, int depth )
+    {
+        return new Key( scope( i % SCOPES, depth ), "bench", "key" + i );
+    }
+
+    /**
+     * Build a scope of a certain depth, e.g. "/s3/l1/l2/" for depth 3.
+     */
+    static String scope( int s, int depth )
+    {
+        StringBuilder sb = new StringBuilder( "/s" ).append( s ).append( '/' );
+        for( int level = 1; level < depth; ++level )
+        {
+            sb.append( 'l' ).append( level ).append( '/' );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Build the key as stored in the volatile directory (including the source).
+     */
+    static List< String > directoryKey( Key key )
+    {
+        List< String > result = key._buildkey();
+        result.add( SOURCE );
+        return result;
+    }
+
+    /**
+     * Build a value list with one element.
+     */
+    static List< String > value( int i )
+    {
+        List< String > result = new ArrayList< String >( 1 );
+        result.add( "value" + i );
+        return result;
+    }
+}
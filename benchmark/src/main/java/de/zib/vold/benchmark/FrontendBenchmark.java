@@ -0,0 +1,120 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import de.zib.vold.backend.PartitionedDirectoryBackend;
+import de.zib.vold.common.Key;
+import de.zib.vold.frontend.Frontend;
+import de.zib.vold.volatilelogic.TimeSlice;
+import de.zib.vold.volatilelogic.VolatileDirectoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recursive scope lookups of the Frontend.
+ *
+ * All keyCount keys are stored in scopes directly below the root. Lookups
+ * are issued from scopes depth levels deep, so each lookup walks up
+ * depth - 1 empty scopes before it finds the key:
+ *
+ * - lookup:        lookup a random key
+ * - prefixLookup:  lookup all keys of a scope with names beginning with
+ *                  "key1" (using the "..." suffix)
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class FrontendBenchmark
+{
+    @Param( { "babudb", "sstable" } )
+    public String backend;
+
+    @Param( { "1000", "10000" } )
+    public int keyCount;
+
+    @Param( { "1", "4", "16" } )
+    public int depth;
+
+    private File root;
+    private PartitionedDirectoryBackend partitions;
+    private Frontend frontend;
+
+    private Key[] keys;
+    private Key[] prefixes;
+
+    @Setup
+    public void setup( )
+    {
+        root = Fixtures.createTempDir( "vold-frontend" );
+        partitions = Fixtures.openBackend( backend, root );
+
+        frontend = new Frontend();
+        frontend.setVolatileDirectory( new VolatileDirectoryImpl( partitions, new TimeSlice( 60 * 1000, 60 ) ) );
+        frontend.setRecursiveScopeLookups( true );
+        frontend.setPrefixLookupsAllowed( true );
+
+        keys = new Key[ keyCount ];
+        prefixes = new Key[ keyCount ];
+
+        long now = System.currentTimeMillis();
+        for( int i = 0; i < keyCount; ++i )
+        {
+            Set< String > value = new HashSet< String >( Fixtures.value( i ) );
+            frontend.insert( Fixtures.SOURCE, Fixtures.key( i, 1 ), value, now );
+
+            keys[ i ] = Fixtures.key( i, depth );
+            prefixes[ i ] = new Key( keys[ i ].get_scope(), "bench", "key1..." );
+        }
+    }
+
+    @TearDown
+    public void tearDown( )
+    {
+        partitions.close();
+        Fixtures.delete( root );
+    }
+
+    @Benchmark
+    public Map< Key, Set< String > > lookup( Cursor cursor )
+    {
+        return frontend.lookup( keys[ cursor.next( keyCount ) ] );
+    }
+
+    @Benchmark
+    public Map< Key, Set< String > > prefixLookup( Cursor cursor )
+    {
+        return frontend.lookup( prefixes[ cursor.next( keyCount ) ] );
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import de.zib.vold.common.Key;
+import de.zib.vold.common.URIKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of keys, as done for each key of a request.
+ *
+ * One operation handles keyCount keys:
+ *
+ * - construct:     new Key( scope, type, keyname ) (including normalization of the scope)
+ * - buildkey:      Key._buildkey(), as used for each access of the volatile directory
+ * - fromList:      Key.buildkey( list ), as used for each result of a lookup
+ * - toURIString:   URIKey.toURIString(), as used by the client
+ * - fromURIString: URIKey.fromURIString(), as used for each key of a REST request
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class KeyBenchmark
+{
+    @Param( { "1", "100", "10000" } )
+    public int keyCount;
+
+    @Param( { "1", "8" } )
+    public int depth;
+
+    private String[] scopes;
+    private Key[] keys;
+    private List< List< String > > lists;
+    private URIKey[] urikeys;
+    private String[] uris;
+
+    @Setup
+    public void setup( )
+    {
+        scopes = new String[ keyCount ];
+        keys = new Key[ keyCount ];
+        lists = new ArrayList< List< String > >( keyCount );
+        urikeys = new URIKey[ keyCount ];
+        uris = new String[ keyCount ];
+
+        for( int i = 0; i < keyCount; ++i )
+        {
+            keys[ i ] = Fixtures.key( i, depth );
+            scopes[ i ] = keys[ i ].get_scope();
+            lists.add( keys[ i ]._buildkey() );
+            urikeys[ i ] = new URIKey( Fixtures.SOURCE, keys[ i ].get_scope(), keys[ i ].get_type(), keys[ i ].get_keyname(), false, false, "utf-8" );
+            uris[ i ] = urikeys[ i ].toURIString();
+        }
+    }
+
+    @Benchmark
+    public void construct( Blackhole bh )
+    {
+        for( int i = 0; i < keyCount; ++i )
+        {
+            bh.consume( new Key( scopes[ i ], "bench", "key" ) );
+        }
+    }
+
+    @Benchmark
+    public void buildkey( Blackhole bh )
+    {
+        for( int i = 0; i < keyCount; ++i )
+        {
+            bh.consume( keys[ i ]._buildkey() );
+        }
+    }
+
+    @Benchmark
+    public void fromList( Blackhole bh )
+    {
+        for( int i = 0; i < keyCount; ++i )
+        {
+            bh.consume( Key.buildkey( lists.get( i ) ) );
+        }
+    }
+
+    @Benchmark
+    public void toURIString( Blackhole bh )
+    {
+        for( int i = 0; i < keyCount; ++i )
+        {
+            bh.consume( urikeys[ i ].toURIString() );
+        }
+    }
+
+    @Benchmark
+    public void fromURIString( Blackhole bh )
+    {
+        for( int i = 0; i < keyCount; ++i )
+        {
+            bh.consume( URIKey.fromURIString( uris[ i ], "utf-8" ) );
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import de.zib.vold.client.VolDClient;
+import de.zib.vold.common.Key;
+import de.zib.vold.metrics.LatencyHistogram;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for the REST interface of VolD.
+ *
+ * A number of client threads issue requests through VolDClient for a fixed
+ * time. Each request is drawn from a mix of
+ *
+ * - PUT:    insert keysPerRequest keys
+ * - POST:   refresh keysPerRequest keys
+ * - DELETE: delete keysPerRequest keys
+ * - GET:    lookup keysPerRequest keys or, with probability prefixRatio,
+ *           a prefix lookup ("key3...") in the scope of a random key
+ *
+ * on a key space of a fixed size. Each key lives in a scope whose depth is
+ * drawn from a distribution. All keys are inserted before the run starts.
+ * Without -url, the requests go to an EmbeddedServer in the same process.
+ *
+ * The result is the throughput and the latency quantiles p50, p99 and p999
+ * for each operation and for all requests.
+ *
+ * Options (defaults in parentheses):
+ *
+ *  -url <url>              run against a remote VolD instead of an embedded one
+ *  -backend <name>         backend of the embedded server: filesystem, sstable (sstable)
+ *  -workers <n>            worker threads of the embedded server for asynchronous
+ *                          requests, 0 handles requests on the container threads (0)
+ *  -threads <n>            client threads (4)
+ *  -duration <s>           measured seconds (30)
+ *  -warmup <s>             seconds before measuring starts (5)
+ *  -mix <op:weight,...>    request mix of put, post, delete and get (put:20,post:30,delete:5,get:45)
+ *  -keys <n>               keys per request (10)
+ *  -keyspace <n>           number of distinct keys (10000)
+ *  -depths <depth:weight>  distribution of scope depths (1:40,2:30,4:20,8:10)
+ *  -prefix <ratio>         fraction of GET requests being prefix lookups (0.1)
+ *
+ * Example:
+ *
+ *      buildr vold:benchmark:load LOAD_ARGS="-threads 8 -mix put:50,get:50 -keys 100"
+ *
+ * @note    VolDClient does not send the source of refreshed and deleted keys,
+ *          hence all keys are inserted without source too and the server
+ *          uses the address of the client as source.
+ */
+public class LoadGenerator
+{
+    private static final String[] OPERATIONS = { "PUT", "POST", "DELETE", "GET" };
+    private static final int PUT = 0;
+    private static final int POST = 1;
+    private static final int DELETE = 2;
+    private static final int GET = 3;
+
+    private String url = null;
+    private String backend = "sstable";
+    private int workers = 0;
+    private int threads = 4;
+    private int duration = 30;
+    private int warmup = 5;
+    private int[] mix = { 20, 30, 5, 45 };
+    private int keysPerRequest = 10;
+    private int keyspace = 10000;
+    private String depths = "1:40,2:30,4:20,8:10";
+    private double prefixRatio = 0.1;
+
+    private Key[] keys;
+    private VolDClient client;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[ OPERATIONS.length ];
+    private final AtomicLong[] errors = new AtomicLong[ OPERATIONS.length ];
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    private volatile long measureStart;
+    private volatile long measureEnd;
+
+    public LoadGenerator( )
+    {
+        for( int i = 0; i < OPERATIONS.length; ++i )
+        {
+            latencies[ i ] = new LatencyHistogram();
+            errors[ i ] = new AtomicLong( 0 );
+        }
+    }
+
+    public static void main( String[] args )
+            throws Exception
+    {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse( args );
+
+        EmbeddedServer server = null;
+        if( null == generator.url )
+        {
+            server = new EmbeddedServer( generator.backend, generator.workers );
+            server.start();
+            generator.url = server.getURL();
+        }
+
+        try
+        {
+            generator.run();
+            generator.report( System.out );
+        }
+        finally
+        {
+            if( null != server )
+            {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Parse the command line options.
+     */
+    void parse( String[] args )
+    {
+        for( int i = 0; i < args.length; i += 2 )
+        {
+            if( i + 1 >= args.length )
+            {
+                throw new IllegalArgumentException( "Option " + args[ i ] + " needs a value." );
+            }
+
+            String option = args[ i ];
+            String value = args[ i + 1 ];
+
+            if( "-url".equals( option ) )
+                url = value.endsWith( "/" ) ? value : value + "/";
+            else if( "-backend".equals( option ) )
+                backend = value;
+            else if( "-workers".equals( option ) )
+                workers = Integer.parseInt( value );
+            else if( "-threads".equals( option ) )
+                threads = Integer.parseInt( value );
+            else if( "-duration".equals( option ) )
+                duration = Integer.parseInt( value );
+            else if( "-warmup".equals( option ) )
+                warmup = Integer.parseInt( value );
+            else if( "-mix".equals( option ) )
+                mix = parseMix( value );
+            else if( "-keys".equals( option ) )
+                keysPerRequest = Integer.parseInt( value );
+            else if( "-keyspace".equals( option ) )
+                keyspace = Integer.parseInt( value );
+            else if( "-depths".equals( option ) )
+                depths = value;
+            else if( "-prefix".equals( option ) )
+                prefixRatio = Double.parseDouble( value );
+            else
+                throw new IllegalArgumentException( "Unknown option " + option + "." );
+        }
+
+        if( threads <= 0 || duration <= 0 || warmup < 0 || keysPerRequest <= 0 || keyspace < keysPerRequest || workers < 0 )
+        {
+            throw new IllegalArgumentException( "Threads, duration and keys per request need to be positive, workers must not be negative and the key space at least as large as the keys per request." );
+        }
+    }
+
+    /**
+     * Parse a request mix like "put:50,get:50".
+     */
+    private static int[] parseMix( String value )
+    {
+        int[] result = new int[ OPERATIONS.length ];
+
+        for( Map.Entry< String, Integer > entry: parseWeights( value ).entrySet() )
+        {
+            int op = -1;
+            for( int i = 0; i < OPERATIONS.length; ++i )
+            {
+                if( OPERATIONS[ i ].equalsIgnoreCase( entry.getKey() ) )
+                    op = i;
+            }
+
+            if( op < 0 )
+            {
+                throw new IllegalArgumentException( "Unknown operation " + entry.getKey() + " in request mix." );
+            }
+
+            result[ op ] = entry.getValue();
+        }
+
+        return result;
+    }
+
+    /**
+     * Parse a list of weights like "a:1,b:2".
+     */
+    private static Map< String, Integer > parseWeights( String value )
+    {
+        Map< String, Integer > result = new HashMap< String, Integer >();
+
+        for( String part: value.split( "," ) )
+        {
+            String[] pair = part.trim().split( ":" );
+            if( 2 != pair.length || Integer.parseInt( pair[ 1 ] ) < 0 )
+            {
+                throw new IllegalArgumentException( "Invalid weight " + part + ", expected <name>:<nonnegative weight>." );
+            }
+
+            result.put( pair[ 0 ], Integer.parseInt( pair[ 1 ] ) );
+        }
+
+        return result;
+    }
+
+    /**
+     * Draw an index according to a list of weights.
+     */
+    private static int draw( Random random, int[] weights )
+    {
+        int sum = 0;
+        for( int w: weights )
+            sum += w;
+
+        if( sum <= 0 )
+            throw new IllegalArgumentException( "At least one weight needs to be positive." );
+
+        int r = random.nextInt( sum );
+        for( int i = 0; i < weights.length; ++i )
+        {
+            r -= weights[ i ];
+            if( r < 0 )
+                return i;
+        }
+
+        return weights.length - 1;
+    }
+
+    /**
+     * Build the key space, insert all keys and run all client threads.
+     */
+    void run( )
+            throws InterruptedException
+    {
+        ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext( "classpath:META-INF/vold-client-context.xml" );
+        client = new VolDClient( context, url );
+
+        // build key space
+        {
+            Map< String, Integer > weights = parseWeights( depths );
+
+            int[] depth = new int[ weights.size() ];
+            int[] weight = new int[ weights.size() ];
+            {
+                int i = 0;
+                for( Map.Entry< String, Integer > entry: weights.entrySet() )
+                {
+                    depth[ i ] = Integer.parseInt( entry.getKey() );
+                    weight[ i ] = entry.getValue();
+                    ++i;
+                }
+            }
+
+            Random random = new Random( 0 );
+            keys = new Key[ keyspace ];
+            for( int i = 0; i < keyspace; ++i )
+            {
+                keys[ i ] = Fixtures.key( i, depth[ draw( random, weight ) ] );
+            }
+        }
+
+        // insert all keys
+        {
+            for( int i = 0; i < keyspace; i += keysPerRequest )
+            {
+                Map< Key, Set< String > > map = new HashMap< Key, Set< String > >();
+                for( int k = i; k < Math.min( i + keysPerRequest, keyspace ); ++k )
+                {
+                    map.put( keys[ k ], new HashSet< String >( Fixtures.value( k ) ) );
+                }
+                client.insert( null, map );
+            }
+        }
+
+        // run clients
+        {
+            measureStart = System.nanoTime() + warmup * 1000000000L;
+            measureEnd = measureStart + duration * 1000000000L;
+
+            List< Thread > workers = new ArrayList< Thread >();
+            for( int t = 0; t < threads; ++t )
+            {
+                Thread worker = new Worker( t );
+                worker.start();
+                workers.add( worker );
+            }
+
+            for( Thread worker: workers )
+            {
+                worker.join();
+            }
+        }
+
+        context.close();
+    }
+
+    /**
+     * Print the results.
+     */
+    void report( PrintStream out )
+    {
+        out.println( "VolD load: " + threads + " threads, " + duration + "s, " + keysPerRequest + " keys per request, "
+                + keyspace + " keys, scope depths " + depths + ", prefix ratio " + prefixRatio );
+        out.println( String.format( "%-8s %10s %8s %10s %10s %9s %9s %9s %9s",
+                    "op", "requests", "errors", "req/s", "keys/s", "p50[ms]", "p99[ms]", "p999[ms]", "max[ms]" ) );
+
+        for( int i = 0; i < OPERATIONS.length; ++i )
+        {
+            if( 0 < latencies[ i ].getCount() || 0 < errors[ i ].get() )
+            {
+                line( out, OPERATIONS[ i ], latencies[ i ], errors[ i ].get() );
+            }
+        }
+
+        long errorsum = 0;
+        for( AtomicLong e: errors )
+            errorsum += e.get();
+
+        line( out, "total", total, errorsum );
+    }
+
+    private void line( PrintStream out, String name, LatencyHistogram h, long errorcount )
+    {
+        double rate = ( double )h.getCount() / duration;
+
+        out.println( String.format( "%-8s %10d %8d %10.1f %10.1f %9.3f %9.3f %9.3f %9.3f",
+                    name, h.getCount(), errorcount, rate, rate * keysPerRequest,
+                    h.getQuantile( 0.5 ) / 1e6, h.getQuantile( 0.99 ) / 1e6, h.getQuantile( 0.999 ) / 1e6, h.getMax() / 1e6 ) );
+    }
+
+    /**
+     * A client thread issuing requests until the measurement ends.
+     */
+    private class Worker extends Thread
+    {
+        private final Random random;
+
+        public Worker( int id )
+        {
+            super( "LoadGenerator-" + id );
+            this.random = new Random( id + 1 );
+        }
+
+        @Override
+        public void run( )
+        {
+            long now;
+            while( ( now = System.nanoTime() ) < measureEnd )
+            {
+                int op = draw( random, mix );
+
+                try
+                {
+                    request( op );
+                }
+                catch( RuntimeException e )
+                {
+                    if( now >= measureStart )
+                    {
+                        errors[ op ].incrementAndGet();
+                    }
+                    continue;
+                }
+
+                if( now >= measureStart )
+                {
+                    long latency = System.nanoTime() - now;
+                    latencies[ op ].record( latency );
+                    total.record( latency );
+                }
+            }
+        }
+
+        private void request( int op )
+        {
+            switch( op )
+            {
+                case PUT:
+                {
+                    Map< Key, Set< String > > map = new HashMap< Key, Set< String > >();
+                    for( int i = 0; i < keysPerRequest; ++i )
+                    {
+                        int k = random.nextInt( keyspace );
+                        map.put( keys[ k ], new HashSet< String >( Fixtures.value( k ) ) );
+                    }
+                    client.insert( null, map );
+                    break;
+                }
+                case POST:
+                    client.refresh( null, pick() );
+                    break;
+                case DELETE:
+                    client.delete( null, pick() );
+                    break;
+                default:
+                    if( random.nextDouble() < prefixRatio )
+                    {
+                        Key k = keys[ random.nextInt( keyspace ) ];
+                        client.lookup( new Key( k.get_scope(), k.get_type(), "key" + random.nextInt( 10 ) + "..." ) );
+                    }
+                    else
+                    {
+                        client.lookup( pick() );
+                    }
+                    break;
+            }
+        }
+
+        private Set< Key > pick( )
+        {
+            Set< Key > result = new HashSet< Key >();
+            for( int i = 0; i < keysPerRequest; ++i )
+            {
+                result.add( keys[ random.nextInt( keyspace ) ] );
+            }
+            return result;
+        }
+    }
+}
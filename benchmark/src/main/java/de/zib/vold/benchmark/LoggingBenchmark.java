@@ -0,0 +1,113 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import de.zib.vold.common.Key;
+import de.zib.vold.frontend.Frontend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation caused by logging on the write path of a request.
+ *
+ * Each benchmark executes the trace statement of Frontend.insert once, using
+ * the logger of the Frontend with trace logging disabled (see
+ * log4j.properties of this project):
+ *
+ * - concatenated:  the message is built by string concatenation (the former
+ *                  style of VolD).
+ * - parameterized: a parameterized message without guard, as used for
+ *                  statements with at most two precomputed arguments.
+ * - guarded:       a parameterized message inside an isTraceEnabled guard,
+ *                  as used for statements whose arguments have to be
+ *                  computed (like key._buildkey()).
+ *
+ * Run with the GC profiler to see the allocation per request:
+ *
+ *      buildr vold:benchmark:run JMH_ARGS="LoggingBenchmark -prof gc"
+ *
+ * The reported gc.alloc.rate.norm of "guarded" is zero bytes per operation,
+ * while "concatenated" allocates the whole message.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class LoggingBenchmark
+{
+    private final Logger log = LoggerFactory.getLogger( Frontend.class );
+
+    private String source;
+    private Key key;
+    private Set< String > value;
+
+    @Setup
+    public void setup( )
+    {
+        if( log.isTraceEnabled() )
+        {
+            throw new IllegalStateException( "LoggingBenchmark needs trace logging of the Frontend to be disabled." );
+        }
+
+        source = "127.0.0.1";
+        key = new Key( "/benchmark/scope", "type", "keyname" );
+
+        value = new HashSet< String >();
+        value.add( "value1" );
+        value.add( "value2" );
+    }
+
+    @Benchmark
+    public void concatenated( Blackhole bh )
+    {
+        log.trace( "Insert: from source " + source + ": " + key._buildkey().toString() + " |--> " + value.toString()  );
+        bh.consume( key );
+    }
+
+    @Benchmark
+    public void parameterized( Blackhole bh )
+    {
+        log.trace( "Refresh: from source {}: {}", source, key );
+        bh.consume( key );
+    }
+
+    @Benchmark
+    public void guarded( Blackhole bh )
+    {
+        if( log.isTraceEnabled() )
+        {
+            log.trace( "Insert: from source {}: {} |--> {}", new Object[]{ source, key._buildkey(), value } );
+        }
+        bh.consume( key );
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import de.zib.vold.backend.PartitionedDirectoryBackend;
+import de.zib.vold.common.Key;
+import de.zib.vold.frontend.Reaper;
+import de.zib.vold.volatilelogic.TimeSlice;
+import de.zib.vold.volatilelogic.VolatileDirectoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sweeps of the Reaper over one timeslice.
+ *
+ * Before each sweep, keyCount keys are inserted with an outdated timestamp
+ * into the (only) timeslice. One operation is the sweep deleting all of
+ * them (with leases: expiring the one lease they are attached to), either
+ * at once by range requests (bulkExpiry) or key by key. The benchmark state
+ * is per thread, thus each thread sweeps its own directory.
+ *
+ * @note Filling the timeslice with a million keys takes much longer than
+ *       the sweep itself. Use "-p keyCount=1000000" to run that size only.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class ReaperBenchmark
+{
+    @Param( { "babudb", "sstable" } )
+    public String backend;
+
+    @Param( { "1000", "10000", "1000000" } )
+    public int keyCount;
+
+    @Param( { "false", "true" } )
+    public boolean leases;
+
+    @Param( { "false", "true" } )
+    public boolean bulkExpiry;
+
+    private File root;
+    private PartitionedDirectoryBackend partitions;
+    private VolatileDirectoryImpl directory;
+    private Reaper reaper;
+
+    private List< List< String > > keys;
+
+    @Setup( Level.Trial )
+    public void setup( )
+    {
+        root = Fixtures.createTempDir( "vold-reaper" );
+        partitions = Fixtures.openBackend( backend, root );
+
+        // one timeslice of one day: all keys end up in slice 0
+        directory = new VolatileDirectoryImpl( partitions, new TimeSlice( 24 * 60 * 60 * 1000, 1 ) );
+        directory.setLeases( leases );
+
+        reaper = new Reaper( directory, 1000 );
+        reaper.setBulkExpiry( bulkExpiry );
+
+        keys = new ArrayList< List< String > >( keyCount );
+        for( int i = 0; i < keyCount; ++i )
+        {
+            Key key = Fixtures.key( i, 1 );
+            keys.add( Fixtures.directoryKey( key ) );
+        }
+    }
+
+    @Setup( Level.Iteration )
+    public void fill( )
+    {
+        for( int i = 0; i < keyCount; ++i )
+        {
+            directory.insert( keys.get( i ), new HashSet< String >( Fixtures.value( i ) ), 0 );
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown( )
+    {
+        partitions.close();
+        Fixtures.delete( root );
+    }
+
+    @Benchmark
+    public int sweep( )
+    {
+        return reaper.reapTimeslice( 0 );
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import de.zib.vold.common.Key;
+import de.zib.vold.common.URIKey;
+import de.zib.vold.common.URIKeyParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing all keys of a REST request relative to the scope of the request.
+ *
+ * One operation handles a request with keyCount keys:
+ *
+ * - legacy: splitting with substrings, URLDecoder and normalization through
+ *           java.io.File and java.net.URI, as RESTController did before
+ * - parser: one URIKeyParser (the scope context) per request, as
+ *           RESTController does now
+ *
+ * The keys are written by URIKey.toURIString(), as the client does. With
+ * escaped, every second keyname contains characters which need to be
+ * percent-encoded.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class URIKeyBenchmark
+{
+    private static final String ENC = "utf-8";
+
+    @Param( { "10000" } )
+    public int keyCount;
+
+    @Param( { "1", "8" } )
+    public int depth;
+
+    @Param( { "false", "true" } )
+    public boolean escaped;
+
+    private final String base = "/group/project";
+    private String[] uris;
+
+    @Setup
+    public void setup( )
+    {
+        uris = new String[ keyCount ];
+
+        for( int i = 0; i < keyCount; ++i )
+        {
+            Key key = Fixtures.key( i, depth );
+            String keyname = escaped && 0 == i % 2 ? "key " + i + "/\u00fc" : key.get_keyname();
+
+            uris[ i ] = new URIKey( Fixtures.SOURCE, key.get_scope(), key.get_type(), keyname, false, false, ENC ).toURIString();
+        }
+    }
+
+    @Benchmark
+    public void legacy( Blackhole bh )
+        throws UnsupportedEncodingException
+    {
+        for( int i = 0; i < keyCount; ++i )
+        {
+            bh.consume( legacyParse( bh, base, uris[ i ] ) );
+        }
+    }
+
+    @Benchmark
+    public void parser( Blackhole bh )
+    {
+        URIKeyParser parser = new URIKeyParser( ENC, base );
+
+        for( int i = 0; i < keyCount; ++i )
+        {
+            bh.consume( parser.parse( uris[ i ] ).getKey() );
+        }
+    }
+
+    /**
+     * The former URIKey.fromURIString() followed by the scope correction
+     * of RESTController (keys in this benchmark have no operation suffix).
+     */
+    private static Key legacyParse( Blackhole bh, String base, String uri )
+        throws UnsupportedEncodingException
+    {
+        // get source
+        int slashindex = uri.indexOf( "/" );
+        if( slashindex > 0 )
+        {
+            bh.consume( URLDecoder.decode( uri.substring( 0, slashindex ), ENC ) );
+            uri = uri.substring( slashindex );
+        }
+
+        // get scope
+        String scope;
+        slashindex = uri.lastIndexOf( "/" );
+        if( -1 == slashindex )
+        {
+            scope = "/";
+        }
+        else
+        {
+            scope = uri.substring( 1, slashindex );
+            uri = uri.substring( slashindex+1 );
+        }
+
+        // get type
+        String type;
+        String[] splited = uri.split( ":", 2 );
+        if( 2 == splited.length )
+        {
+            type = splited[0];
+            uri = splited[1];
+        }
+        else
+        {
+            type = new String();
+        }
+
+        File path_correction = new File( base + "/" + URLDecoder.decode( scope, ENC ) );
+
+        return new Key(
+                path_correction.getPath(),
+                URLDecoder.decode( type, ENC ),
+                URLDecoder.decode( uri, ENC )
+                );
+    }
+}
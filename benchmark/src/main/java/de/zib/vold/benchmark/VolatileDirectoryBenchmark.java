@@ -0,0 +1,163 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.benchmark;
+
+import de.zib.vold.backend.PartitionedDirectoryBackend;
+import de.zib.vold.common.Key;
+import de.zib.vold.volatilelogic.DateMap;
+import de.zib.vold.volatilelogic.TimeSlice;
+import de.zib.vold.volatilelogic.VolatileDirectoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations of the volatile directory logic on top of a backend.
+ *
+ * The directory is filled with keyCount keys spread over Fixtures.SCOPES
+ * scopes before measuring:
+ *
+ * - insert:        insert a random key again (lookup of the old timeslice,
+ *                  three backend inserts)
+ * - refresh:       refresh a random key
+ * - lookup:        lookup a random key
+ * - prefixLookup:  prefix lookup on the scope of a random key (keyCount / SCOPES results)
+ * - refreshSource: refresh all keys (they share one source), which renews
+ *                  one lease instead of keyCount timestamps if leases are enabled
+ * - sliceLookup:   query the keys of the timeslice they were inserted in
+ *                  with their dates (all keys without leases), as done by the
+ *                  Reaper
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class VolatileDirectoryBenchmark
+{
+    @Param( { "babudb", "filesystem", "sstable" } )
+    public String backend;
+
+    @Param( { "1000", "10000" } )
+    public int keyCount;
+
+    @Param( { "false", "true" } )
+    public boolean leases;
+
+    @Param( { "false", "true" } )
+    public boolean fixedWidthTimes;
+
+    private File root;
+    private PartitionedDirectoryBackend partitions;
+    private VolatileDirectoryImpl directory;
+
+    private List< List< String > > keys;
+    private List< List< String > > prefixes;
+    private List< Set< String > > values;
+    private long slice;
+
+    @Setup
+    public void setup( )
+    {
+        root = Fixtures.createTempDir( "vold-volatile" );
+        partitions = Fixtures.openBackend( backend, root );
+        directory = new VolatileDirectoryImpl( partitions, new TimeSlice( 60 * 1000, 60 ) );
+        directory.setLeases( leases );
+        directory.setFixedWidthTimes( fixedWidthTimes );
+
+        keys = new ArrayList< List< String > >( keyCount );
+        prefixes = new ArrayList< List< String > >( keyCount );
+        values = new ArrayList< Set< String > >( keyCount );
+
+        long now = System.currentTimeMillis();
+        for( int i = 0; i < keyCount; ++i )
+        {
+            Key key = Fixtures.key( i, 1 );
+
+            keys.add( Fixtures.directoryKey( key ) );
+            prefixes.add( new ArrayList< String >() );
+            prefixes.get( i ).add( key.get_scope() );
+            values.add( new HashSet< String >( Fixtures.value( i ) ) );
+
+            directory.insert( keys.get( i ), values.get( i ), now );
+        }
+
+        slice = directory.getActualSlice();
+    }
+
+    @TearDown
+    public void tearDown( )
+    {
+        partitions.close();
+        Fixtures.delete( root );
+    }
+
+    @Benchmark
+    public void insert( Cursor cursor )
+    {
+        int i = cursor.next( keyCount );
+        directory.insert( keys.get( i ), values.get( i ), System.currentTimeMillis() );
+    }
+
+    @Benchmark
+    public void refresh( Cursor cursor )
+    {
+        directory.refresh( keys.get( cursor.next( keyCount ) ), System.currentTimeMillis() );
+    }
+
+    @Benchmark
+    public int refreshSource( )
+    {
+        return directory.refreshSource( Fixtures.SOURCE, System.currentTimeMillis() ).size();
+    }
+
+    @Benchmark
+    public DateMap sliceLookup( )
+    {
+        return directory.sliceLookup( slice );
+    }
+
+    @Benchmark
+    public Set< String > lookup( Cursor cursor )
+    {
+        return directory.lookup( keys.get( cursor.next( keyCount ) ) );
+    }
+
+    @Benchmark
+    public Map< List< String >, Set< String > > prefixLookup( Cursor cursor )
+    {
+        // some backends consume the prefix list
+        return directory.prefixLookup( new ArrayList< String >( prefixes.get( cursor.next( keyCount ) ) ) );
+    }
+}
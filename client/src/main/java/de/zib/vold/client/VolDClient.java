@@ -17,6 +17,7 @@ package de.zib.vold.client;
 
 import de.zib.vold.common.Key;
 import de.zib.vold.common.URIKey;
+import de.zib.vold.common.VoldException;
 import de.zib.vold.common.VoldInterface;
 import org.joda.time.DateTimeUtils;
 import org.slf4j.Logger;
@@ -328,6 +329,70 @@ public class VolDClient implements VoldInterface
     }
 
 
+    /**
+     * Refresh all keys of a source.
+     *
+     * @param source The source of the keys.
+     * @return The number of refreshed keys.
+     */
+    public int refreshSource( String source )
+    {
+        return refreshSource( source, DateTimeUtils.currentTimeMillis() );
+    }
+
+
+    /**
+     * Refresh all keys of a source.
+     *
+     * The remote VolD refreshes all keys it knows for that source, thus
+     * they do not need to be sent.
+     *
+     * @param source The source of the keys.
+     * @param timeStamp The timeStamp of this operation
+     * @return The number of refreshed keys.
+     */
+    public int refreshSource( String source, final long timeStamp )
+    {
+        // guard
+        {
+            log.trace( "RefreshSource: " + source );
+
+            checkState();
+
+            if( null == source )
+            {
+                throw new IllegalArgumentException( "null is no valid argument!" );
+            }
+        }
+
+        // get response from Server
+        Map< String, Object > response;
+        {
+            HttpHeaders requestHeaders = new HttpHeaders();
+            requestHeaders.add( "TIMESTAMP", String.valueOf( timeStamp ) );
+            requestHeaders.add( "REFRESH", "source" );
+            requestHeaders.add( "SOURCE", source );
+            HttpEntity< Map< String, String > > requestEntity =
+                    new HttpEntity< Map< String, String > >( null, requestHeaders );
+            response = post( buildURL( "", null ), requestEntity );
+        }
+
+        // evaluate response
+        {
+            Object refreshed = null == response ? null : response.get( "refreshed" );
+
+            try
+            {
+                return Integer.parseInt( String.valueOf( refreshed ) );
+            }
+            catch( NumberFormatException e )
+            {
+                throw new VoldException( "Could not refresh keys of source " + source + ": " + refreshed );
+            }
+        }
+    }
+
+
     /**
      * Delete a set of keys.
      *
@@ -399,6 +464,154 @@ public class VolDClient implements VoldInterface
     }
 
 
+    /**
+     * Insert, refresh and delete keys in one request.
+     *
+     * @param source The source of the keys.
+     * @param insert The keys to insert with their values (may be null).
+     * @param refresh The keys to refresh (may be null).
+     * @param delete The keys to delete (may be null).
+     * @return A map of all keys (in REST language) with "OK" or the error which occured for that key.
+     */
+    public Map< String, String > batch( String source, Map< Key, Set< String > > insert, Set< Key > refresh, Set< Key > delete )
+    {
+        return batch( source, insert, refresh, delete, DateTimeUtils.currentTimeMillis() );
+    }
+
+
+    /**
+     * Insert, refresh and delete keys in one request.
+     *
+     * The remote VolD executes all inserts, then all refreshs and then all
+     * deletes while holding its lock once.
+     *
+     * @param source The source of the keys.
+     * @param insert The keys to insert with their values (may be null).
+     * @param refresh The keys to refresh (may be null).
+     * @param delete The keys to delete (may be null).
+     * @param timeStamp The timeStamp of this operation
+     * @return A map of all keys (in REST language) with "OK" or the error which occured for that key.
+     */
+    public Map< String, String > batch( String source, Map< Key, Set< String > > insert, Set< Key > refresh, Set< Key > delete, final long timeStamp )
+    {
+        // guard
+        {
+            log.trace( "Batch: insert {}, refresh {}, delete {}", new Object[]{ insert, refresh, delete } );
+
+            checkState();
+        }
+
+        // build request body (all scopes are absolute)
+        MultiValueMap< String, String > request = new LinkedMultiValueMap< String, String >();
+        {
+            if( null != insert )
+            {
+                for( Map.Entry< Key, Set< String > > entry: insert.entrySet() )
+                {
+                    Key k = entry.getKey();
+                    String urikey = new URIKey( source, k.get_scope(), k.get_type(), k.get_keyname(), false, false, enc ).toURIString();
+
+                    request.put( urikey, new ArrayList< String >( entry.getValue() ) );
+                }
+            }
+
+            if( null != refresh )
+            {
+                for( Key k: refresh )
+                {
+                    String urikey = new URIKey( source, k.get_scope(), k.get_type(), k.get_keyname(), true, false, enc ).toURIString();
+
+                    request.put( urikey, new ArrayList< String >() );
+                }
+            }
+
+            if( null != delete )
+            {
+                for( Key k: delete )
+                {
+                    String urikey = new URIKey( source, k.get_scope(), k.get_type(), k.get_keyname(), false, true, enc ).toURIString();
+
+                    request.put( urikey, new ArrayList< String >() );
+                }
+            }
+
+            // nothing to do here?
+            if( 0 == request.size() )
+                return new HashMap< String, String >();
+        }
+
+        // get response from Server
+        Map< String, String > response;
+        {
+            HttpHeaders requestHeaders = new HttpHeaders();
+            requestHeaders.add( "TIMESTAMP", String.valueOf( timeStamp ) );
+            requestHeaders.add( "BATCH", "true" );
+            HttpEntity< MultiValueMap< String, String > > requestEntity =
+                    new HttpEntity< MultiValueMap< String, String > >( request, requestHeaders );
+            response = post( buildURL( "", null ), requestEntity );
+        }
+
+        return response;
+    }
+
+
+    /**
+     * Delete keys of several sources in one request.
+     *
+     * Each key is deleted with its own timeStamp, i.e. the remote VolD keeps
+     * the key, if it has been written after that time.
+     *
+     * @param deletions The keys to delete with their timeStamps by source.
+     * @return A map of all keys (in REST language) with "OK" or the error which occured for that key.
+     */
+    public Map< String, String > delete( Map< String, Map< Key, Long > > deletions )
+    {
+        // guard
+        {
+            log.trace( "Delete: {}", deletions );
+
+            checkState();
+
+            if( null == deletions )
+            {
+                throw new IllegalArgumentException( "null is no valid argument!" );
+            }
+        }
+
+        // build request body (all scopes are absolute, the values are the timeStamps)
+        MultiValueMap< String, String > request = new LinkedMultiValueMap< String, String >();
+        {
+            for( Map.Entry< String, Map< Key, Long > > source: deletions.entrySet() )
+            {
+                for( Map.Entry< Key, Long > entry: source.getValue().entrySet() )
+                {
+                    Key k = entry.getKey();
+                    String urikey = new URIKey( source.getKey(), k.get_scope(), k.get_type(), k.get_keyname(), false, true, enc ).toURIString();
+
+                    request.add( urikey, String.valueOf( entry.getValue() ) );
+                }
+            }
+
+            // nothing to do here?
+            if( 0 == request.size() )
+                return new HashMap< String, String >();
+        }
+
+        // get response from Server
+        Map< String, String > response;
+        {
+            HttpHeaders requestHeaders = new HttpHeaders();
+            requestHeaders.add( "TIMESTAMP", String.valueOf( DateTimeUtils.currentTimeMillis() ) );
+            requestHeaders.add( "BATCH", "true" );
+            HttpEntity< MultiValueMap< String, String > > requestEntity =
+                    new HttpEntity< MultiValueMap< String, String > >( request, requestHeaders );
+            response = post( buildURL( "", null ), requestEntity );
+        }
+
+        return response;
+    }
+
+
     /**
      * Query a set of keys.
      *
@@ -570,4 +783,21 @@ public class VolDClient implements VoldInterface
 
         return sb.toString();
     }
+
+
+    /**
+     * Post a request and get the map in the body of its response.
+     *
+     * The RestTemplate only converts the body to a raw Map, thus its values
+     * are taken to be of the type expected by the caller.
+     *
+     * @param url The URL to post to.
+     * @param requestEntity The headers and the body of the request.
+     * @return The map in the body of the response.
+     */
+    @SuppressWarnings( "unchecked" )
+    private < V > Map< String, V > post( String url, HttpEntity< ? > requestEntity )
+    {
+        return ( Map< String, V > )rest.exchange( url, HttpMethod.POST, requestEntity, Map.class ).getBody();
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.common;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable, array-backed key in the list format of the volatile logic.
+ *
+ * The volatile directory and its backends address entries by lists of
+ * strings, e.g. scope, type, keyname and source. A CompactKey holds these
+ * segments in an array and computes its hash code once, thus it is cheap to
+ * build, to hash and to compare. Since it is a List< String >, it can be
+ * passed to all internal interfaces without copying.
+ *
+ * hashCode() and equals() follow the contract of List, hence a CompactKey
+ * equals any other list with the same elements.
+ *
+ * @note        All modifying methods throw an UnsupportedOperationException.
+ *
+ * @see Key
+ */
+public final class CompactKey extends AbstractList< String > implements RandomAccess
+{
+    private final String[] segments;
+    private final int hash;
+
+    private CompactKey( String[] segments )
+    {
+        this.segments = segments;
+
+        int h = 1;
+        for( String s: segments )
+        {
+            h = 31 * h + ( null == s ? 0 : s.hashCode() );
+        }
+        this.hash = h;
+    }
+
+    /**
+     * Build the list of a key: scope, type and keyname.
+     */
+    public static CompactKey of( Key key )
+    {
+        return new CompactKey( new String[]{ key.get_scope(), key.get_type(), key.get_keyname() } );
+    }
+
+    /**
+     * Build the list of a key stored by a certain source: scope, type,
+     * keyname and source.
+     */
+    public static CompactKey of( Key key, String source )
+    {
+        return new CompactKey( new String[]{ key.get_scope(), key.get_type(), key.get_keyname(), source } );
+    }
+
+    /**
+     * Get a CompactKey with the elements of an arbitrary list.
+     *
+     * @return The list itself, if it is a CompactKey already, a copy otherwise.
+     */
+    public static CompactKey of( List< String > list )
+    {
+        if( list instanceof CompactKey )
+            return ( CompactKey )list;
+
+        return new CompactKey( list.toArray( new String[ list.size() ] ) );
+    }
+
+    @Override
+    public String get( int index )
+    {
+        return segments[ index ];
+    }
+
+    @Override
+    public int size( )
+    {
+        return segments.length;
+    }
+
+    @Override
+    public int hashCode( )
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals( Object obj )
+    {
+        if( this == obj )
+            return true;
+
+        if( obj instanceof CompactKey )
+        {
+            CompactKey other = ( CompactKey )obj;
+            return hash == other.hash && Arrays.equals( segments, other.segments );
+        }
+
+        return super.equals( obj );
+    }
+}
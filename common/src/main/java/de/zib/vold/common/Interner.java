@@ -0,0 +1,69 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A bounded cache of canonical string instances.
+ *
+ * Scopes repeat a lot: all keys of a request usually share few scopes, and
+ * so do the keys stored in the backends. Interning them lets equal scopes
+ * share one instance, which saves memory and lets equals() succeed on the
+ * identity check.
+ *
+ * Unlike String.intern(), the cache is bounded: when it holds MAX_SIZE
+ * strings, it is cleared and starts over.
+ */
+public final class Interner
+{
+    /**
+     * The maximal number of cached strings.
+     */
+    public static final int MAX_SIZE = 1 << 16;
+
+    private static final ConcurrentMap< String, String > cache = new ConcurrentHashMap< String, String >();
+
+    private Interner( )
+    {
+    }
+
+    /**
+     * Get the canonical instance of a string.
+     *
+     * @param s The string to intern (may be null).
+     * @return A string equal to s, which is the same instance for all equal
+     *         strings as long as the cache has not been cleared.
+     */
+    public static String intern( String s )
+    {
+        if( null == s )
+            return null;
+
+        String canonical = cache.get( s );
+        if( null != canonical )
+            return canonical;
+
+        if( cache.size() >= MAX_SIZE )
+        {
+            cache.clear();
+        }
+
+        canonical = cache.putIfAbsent( s, s );
+        return null == canonical ? s : canonical;
+    }
+}
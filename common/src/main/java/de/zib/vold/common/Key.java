@@ -17,7 +17,7 @@ package de.zib.vold.common;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -26,7 +26,11 @@ import java.util.List;
  * A Key is defined by a scope, a type and a keyname. The scope is any valid
  * UNIX-style path. The type and keyname are arbitrary strings.
  *
+ * Keys are immutable. Their scope is interned and their hash code is
+ * computed on construction.
+ *
  * @see URIKey
+ * @see CompactKey
  */
 public class Key
 {
@@ -40,43 +44,126 @@ public class Key
     public Key( String scope, String type, String keyname )
             throws IllegalArgumentException
     {
-        // normalize path
+        this( scope, type, keyname, false );
+    }
+
+    /**
+     * Construct a Key whose scope may already be normalized.
+     *
+     * @param scope The scope of the key.
+     * @param type The type of the key.
+     * @param keyname The name of the key.
+     * @param normalized Whether the scope has been normalized already (e.g.
+     *                   by the URIKeyParser or since it is taken from a
+     *                   stored key).
+     *
+     * @see URIKeyParser
+     */
+    Key( String scope, String type, String keyname, boolean normalized )
+            throws IllegalArgumentException
+    {
+        // normalize path (canonical scopes are taken as they are)
+        if( ! normalized && ! isCanonical( scope ) )
         {
-            URI uri;
-            try
+            scope = normalize( scope );
+        }
+
+        this.scope = Interner.intern( scope );
+        this.type = type;
+        this.keyname = keyname;
+
+        this.hash = this.scope.hashCode() +
+                463*( null == type ? 0 : type.hashCode() ) +
+                971*( null == keyname ? 0 : keyname.hashCode() );
+    }
+
+    /**
+     * Normalize a scope using java.net.URI.
+     *
+     * @param scope The scope to normalize.
+     * @return The normalized scope, beginning and ending with "/".
+     */
+    private static String normalize( String scope )
+            throws IllegalArgumentException
+    {
+        URI uri;
+        try
+        {
+            uri = new URI( scope );
+        }
+        catch( URISyntaxException e )
+        {
+            throw new IllegalArgumentException( "Scope (\"" + scope + "\") for a key must be a valid UNIX-Style path. " + e.getMessage() );
+        }
+
+        scope = new String( uri.normalize().getPath() );
+
+        // check for "/" at beginning and end (and add it if not present)
+        if( 0 == scope.length() )
+        {
+            scope = "/";
+        }
+        else
+        {
+            if( ! scope.substring( 0, 1 ).equals( "/" ) )
             {
-                uri = new URI( scope );
+                scope = "/" + scope;
             }
-            catch( URISyntaxException e )
+            if( ! scope.substring( scope.length()-1, scope.length() ).equals( "/" ) )
             {
-                throw new IllegalArgumentException( "Scope (\"" + scope + "\") for a key must be a valid UNIX-Style path. " + e.getMessage() );
+                scope = scope + "/";
             }
-
-            scope = new String( uri.normalize().getPath() );
         }
 
-        // check for "/" at beginning and end (and add it if not present)
+        return scope;
+    }
+
+    /**
+     * Check whether a scope is in its normalized form already.
+     *
+     * A scope is canonical, if it begins and ends with "/", contains no
+     * empty, "." or ".." segments and only consists of characters which
+     * are taken literally by java.net.URI (letters, digits, "-", "_", ".",
+     * "~" and "/"). Normalizing such a scope does not change it.
+     *
+     * @param scope The scope to check.
+     * @return true, iff the scope does not need to be normalized.
+     */
+    static boolean isCanonical( String scope )
+    {
+        int length = null == scope ? 0 : scope.length();
+
+        if( 0 == length || '/' != scope.charAt( 0 ) || '/' != scope.charAt( length-1 ) )
+            return false;
+
+        int segment = 0; // start of the actual segment
+        for( int i = 1; i < length; ++i )
         {
-            if( 0 == scope.length() )
+            char c = scope.charAt( i );
+
+            if( '/' == c )
             {
-                scope = "/";
+                int len = i - segment - 1;
+
+                // empty segment ("//"), "." or ".."
+                if( 0 == len )
+                    return false;
+                if( '.' == scope.charAt( segment+1 ) && ( 1 == len || ( 2 == len && '.' == scope.charAt( segment+2 ) ) ) )
+                    return false;
+
+                segment = i;
             }
-            else
+            else if( ! (
+                        ( c >= 'a' && c <= 'z' ) ||
+                        ( c >= 'A' && c <= 'Z' ) ||
+                        ( c >= '0' && c <= '9' ) ||
+                        '-' == c || '_' == c || '.' == c || '~' == c ) )
             {
-                if( ! scope.substring( 0, 1 ).equals( "/" ) )
-                {
-                    scope = "/" + scope;
-                }
-                if( ! scope.substring( scope.length()-1, scope.length() ).equals( "/" ) )
-                {
-                    scope = scope + "/";
-                }
+                return false;
             }
         }
 
-        this.scope = scope;
-        this.type = type;
-        this.keyname = keyname;
+        return true;
     }
 
     /**
@@ -116,7 +203,7 @@ public class Key
      */
     public String toString( )
     {
-        return this._buildkey().toString();
+        return CompactKey.of( this ).toString();
     }
 
     /**
@@ -133,7 +220,8 @@ public class Key
             throw new IllegalArgumentException( "Tried to build a key out of " + key.size() + " arguments. At leest three (scope, type, keyname) of them are necessary." );
         }
 
-        return new Key( key.get( 0 ), key.get( 1 ), key.get( 2 ) );
+        // keys in the volatilelogic format have been normalized on construction
+        return new Key( key.get( 0 ), key.get( 1 ), key.get( 2 ), true );
     }
 
     /**
@@ -143,7 +231,8 @@ public class Key
      */
     public List< String > _buildkey( )
     {
-        List< String > key = new LinkedList< String >();
+        // room for the source, which is usually added
+        List< String > key = new ArrayList< String >( 4 );
 
         key.add( scope );
         key.add( type );
@@ -168,7 +257,8 @@ public class Key
         {
             Key key = this.getClass().cast( obj );
             return (
-                    key.get_scope().equals( this.get_scope() ) &&
+                    key.hash == this.hash &&
+                            key.get_scope().equals( this.get_scope() ) &&
                             key.get_type().equals( this.get_type() ) &&
                             key.get_keyname().equals( this.get_keyname() )
             );
@@ -179,6 +269,17 @@ public class Key
         }
     }
 
+    /**
+     * Rebuild a deserialized key (e.g. by XStream), which lacks its hash
+     * code and interned scope.
+     *
+     * @return An equal key with its hash code set.
+     */
+    private Object readResolve( )
+    {
+        return new Key( scope, type, keyname, true );
+    }
+
     /**
      * Compute the hash code of this key.
      *
@@ -186,12 +287,14 @@ public class Key
      */
     public int hashCode( )
     {
-        return  get_scope().hashCode() +
-                463*get_type().hashCode() +
-                971*get_keyname().hashCode();
+        return hash;
     }
 
     private final String scope;
     private final String keyname;
     private final String type;
+    /**
+     * The hash code is not transferred, it is recomputed by readResolve.
+     */
+    private final transient int hash;
 }
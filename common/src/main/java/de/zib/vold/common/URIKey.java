@@ -16,7 +16,6 @@
 package de.zib.vold.common;
 
 import java.net.URLEncoder;
-import java.net.URLDecoder;
 
 import java.io.UnsupportedEncodingException;
 
@@ -60,6 +59,26 @@ public class URIKey
                 }
         }
 
+        /**
+         * Construct a URIKey from an already normalized Key.
+         *
+         * @see URIKeyParser
+         */
+        URIKey( String source, Key key, boolean refresh, boolean delete, String enc )
+        {
+                this.source = source;
+                this.key = key;
+                this.refresh = refresh;
+                this.delete = delete;
+
+                this.enc = enc;
+
+                if( true == refresh && true == delete )
+                {
+                        throw new IllegalArgumentException( "Cannot mark a URIKey with refresh and delete operation." );
+                }
+        }
+
         /**
          * Get the source of the key.
          *
@@ -98,6 +117,18 @@ public class URIKey
                 return delete;
         }
 
+        /**
+         * Get a copy of this URIKey marked with another operation.
+         *
+         * @param refresh Whether the copy is a refresh request.
+         * @param delete Whether the copy is a delete request.
+         * @return The marked copy.
+         */
+        public URIKey mark( boolean refresh, boolean delete )
+        {
+                return new URIKey( source, key, refresh, delete, enc );
+        }
+
         /**
          * Get the normalized key.
          *
@@ -141,102 +172,16 @@ public class URIKey
         /**
          * Build a URIKey from a normalized URIKey.
          *
+         * @note For many keys, reuse a URIKeyParser instead.
+         *
          * @param uri The normalized key to decode.
          * @param enc The encoding which had been used to encode/normalize the string.
          * @return The URIKey.
+         *
+         * @see URIKeyParser
          */
         public static URIKey fromURIString( String uri, String enc )
         {
-                String source;
-                String scope;
-                String type;
-                String keyname;
-
-                boolean refresh = false;
-                boolean delete = false;
-
-                // get source
-                {
-                        int slashindex = uri.indexOf( "/" );
-
-                        if( slashindex > 0 )
-                        {
-                                source = uri.substring( 0, slashindex );
-                                uri = uri.substring( slashindex );
-                        }
-                        else
-                        {
-                                source = null;
-                        }
-                }
-
-                // get scope
-                {
-                        int slashindex = uri.lastIndexOf( "/" );
-
-                        if( -1 == slashindex )
-                        {
-                                scope = "/";
-                        }
-                        else
-                        {
-                                scope = uri.substring( 1, slashindex );
-                                uri = uri.substring( slashindex+1 );
-                        }
-                }
-
-                // get type
-                {
-                        String[] splited = uri.split( ":", 2 );
-
-                        if( 2 == splited.length )
-                        {
-                                type = splited[0];
-                                uri = splited[1];
-                        }
-                        else if( 1 == splited.length )
-                        {
-                                type = new String();
-                        }
-                        else
-                        {
-                                throw new IllegalArgumentException( "Invalid format of URIString." );
-                        }
-                }
-
-                // get operation
-                {
-                        if( uri.endsWith( "<" ) )
-                        {
-                                refresh = true;
-                                uri = uri.substring( 0, uri.length()-1 );
-                        }
-                        else if( uri.endsWith( ">" ) )
-                        {
-                                delete = true;
-                                uri = uri.substring( 0, uri.length()-1 );
-                        }
-                }
-
-                // get keyname
-                {
-                        keyname = new String( uri );
-                }
-
-                try
-                {
-                        if( null != source )
-                                source = URLDecoder.decode( source, enc );
-                        scope = URLDecoder.decode( scope, enc );
-                        type = URLDecoder.decode( type, enc );
-                        keyname = URLDecoder.decode( keyname, enc );
-                }
-                catch( UnsupportedEncodingException e )
-                {
-                        throw new IllegalArgumentException( "Cannot convert key.", e );
-                }
-
-
-                return new URIKey( source, scope, type, keyname, refresh, delete, enc );
+                return new URIKeyParser( enc ).parse( uri );
         }
 }
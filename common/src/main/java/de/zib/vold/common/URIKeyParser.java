@@ -0,0 +1,463 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.common;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A single pass parser for keys in REST language.
+ *
+ * This parser reads the format written by URIKey.toURIString() directly
+ * from a CharSequence. Percent-decoding (and decoding of "+" to " " in
+ * form-encoded parts) and normalization of the scope are done while
+ * scanning, so that no intermediate substrings are built.
+ *
+ * A parser acts as scope context of one request: the scopes of all keys are
+ * relative to a base scope (e.g. the path of the request), which is
+ * normalized once on construction. Each scope of a key is resolved
+ * incrementally, starting from the normalized base. Since the keys of a
+ * request usually share few scopes, resolved scopes are memoized by their
+ * encoded form and interned, so that equal scopes share one instance.
+ *
+ * The scope is normalized like a UNIX-style path: empty and "." segments
+ * are dropped, ".." removes the preceding segment (but never climbs above
+ * "/") and the result begins and ends with "/". Escaped slashes ("%2F") are
+ * path separators, since URIKey.toURIString() escapes all slashes of the
+ * scope.
+ *
+ * @note                A parser keeps internal buffers and thus must not be
+ *                      shared between threads. It is cheap to construct,
+ *                      e.g. once per request.
+ *
+ * @see URIKey
+ * @see Key
+ * @see Interner
+ */
+public class URIKeyParser
+{
+        private final String enc;
+        private final Charset charset;
+
+        private final StringBuilder scope = new StringBuilder( 64 );
+        private final StringBuilder text = new StringBuilder( 64 );
+        private byte[] bytes = new byte[ 16 ];
+
+        /**
+         * Start of the actual segment in scope.
+         */
+        private int segment;
+
+        /**
+         * The normalized base scope.
+         */
+        private final String base;
+
+        /**
+         * The number of memoized scopes per parser (a power of two).
+         */
+        private static final int MEMO_SIZE = 64;
+
+        /**
+         * Memoized scopes: encoded scope of a key -> resolved scope.
+         */
+        private final String[] encoded = new String[ MEMO_SIZE ];
+        private final String[] resolved = new String[ MEMO_SIZE ];
+        private int memoized = 0;
+
+        /**
+         * Construct a parser for keys relative to "/".
+         *
+         * @param enc The encoding which had been used to encode the keys.
+         */
+        public URIKeyParser( String enc )
+        {
+                this( enc, null );
+        }
+
+        /**
+         * Construct a parser for keys relative to a base scope.
+         *
+         * @param enc The encoding which had been used to encode the keys.
+         * @param base The (percent-encoded) scope which the scopes of all
+         *             keys are relative to, or null for "/".
+         */
+        public URIKeyParser( String enc, CharSequence base )
+        {
+                this.enc = enc;
+
+                try
+                {
+                        this.charset = Charset.forName( enc );
+                }
+                catch( IllegalArgumentException e )
+                {
+                        throw new IllegalArgumentException( "Cannot convert key.", e );
+                }
+
+                // normalize base scope
+                {
+                        scope.append( '/' );
+                        segment = 1;
+
+                        if( null != base )
+                        {
+                                path( base, 0, base.length(), false );
+                                put( '/' );
+                        }
+
+                        this.base = Interner.intern( scope.toString() );
+                }
+        }
+
+        /**
+         * Get the normalized base scope.
+         *
+         * @return The scope which the scopes of all keys are relative to.
+         */
+        public String getBase( )
+        {
+                return base;
+        }
+
+        /**
+         * Parse a key in REST language.
+         *
+         * @param uri The key as written by URIKey.toURIString().
+         * @return The URIKey, whose scope is the normalized concatenation of
+         *         the base scope and the scope in uri.
+         *
+         * @throws IllegalArgumentException if uri contains an invalid escape sequence.
+         */
+        public URIKey parse( CharSequence uri )
+        {
+                final int length = uri.length();
+
+                String source = null;
+                int start = 0;
+
+                // get source
+                {
+                        int slash = indexOf( uri, '/', 0, length );
+
+                        if( slash > 0 )
+                        {
+                                source = decode( uri, 0, slash );
+                                start = slash;
+                        }
+                }
+
+                int last = lastIndexOf( uri, '/', start, length );
+
+                // get scope
+                String _scope = last > start ? resolve( uri, start, last ) : base;
+
+                int name = last + 1;
+                int end = length;
+
+                // get operation
+                boolean refresh = false;
+                boolean delete = false;
+                if( end > name )
+                {
+                        char c = uri.charAt( end-1 );
+
+                        if( '<' == c )
+                        {
+                                refresh = true;
+                                --end;
+                        }
+                        else if( '>' == c )
+                        {
+                                delete = true;
+                                --end;
+                        }
+                }
+
+                // get type and keyname
+                String type;
+                String keyname;
+                {
+                        int colon = indexOf( uri, ':', name, end );
+
+                        if( colon < 0 )
+                        {
+                                type = "";
+                                keyname = decode( uri, name, end );
+                        }
+                        else
+                        {
+                                type = decode( uri, name, colon );
+                                keyname = decode( uri, colon+1, end );
+                        }
+                }
+
+                return new URIKey( source, new Key( _scope, type, keyname, true ), refresh, delete, enc );
+        }
+
+        /**
+         * Resolve the encoded scope of a key against the base scope.
+         */
+        private String resolve( CharSequence s, int from, int to )
+        {
+                int hash = hash( s, from, to );
+                int slot = hash & ( MEMO_SIZE-1 );
+
+                // memoized?
+                for( int i = 0; i < MEMO_SIZE; ++i )
+                {
+                        String e = encoded[ slot ];
+
+                        if( null == e )
+                                break;
+                        if( equals( e, s, from, to ) )
+                                return resolved[ slot ];
+
+                        slot = ( slot+1 ) & ( MEMO_SIZE-1 );
+                }
+
+                // continue at the base scope
+                scope.setLength( 0 );
+                scope.append( base );
+                segment = base.length();
+
+                path( s, from, to, true );
+                put( '/' );
+
+                String result = Interner.intern( scope.toString() );
+
+                // memoize (keep the table at most half full)
+                {
+                        if( 2*memoized >= MEMO_SIZE )
+                        {
+                                Arrays.fill( encoded, null );
+                                memoized = 0;
+                                slot = hash & ( MEMO_SIZE-1 );
+                        }
+
+                        while( null != encoded[ slot ] )
+                        {
+                                slot = ( slot+1 ) & ( MEMO_SIZE-1 );
+                        }
+
+                        encoded[ slot ] = s.subSequence( from, to ).toString();
+                        resolved[ slot ] = result;
+                        ++memoized;
+                }
+
+                return result;
+        }
+
+        private static int hash( CharSequence s, int from, int to )
+        {
+                int h = 0;
+                for( int i = from; i < to; ++i )
+                {
+                        h = 31*h + s.charAt( i );
+                }
+                return h ^ ( h >>> 16 );
+        }
+
+        private static boolean equals( String e, CharSequence s, int from, int to )
+        {
+                if( e.length() != to - from )
+                        return false;
+
+                for( int i = 0; i < e.length(); ++i )
+                {
+                        if( e.charAt( i ) != s.charAt( from+i ) )
+                                return false;
+                }
+                return true;
+        }
+
+        /**
+         * Decode a form-encoded part of a key.
+         */
+        private String decode( CharSequence s, int from, int to )
+        {
+                // nothing to decode: just copy
+                {
+                        int i = from;
+                        while( i < to && '%' != s.charAt( i ) && '+' != s.charAt( i ) )
+                                ++i;
+
+                        if( i == to )
+                                return s.subSequence( from, to ).toString();
+                }
+
+                text.setLength( 0 );
+
+                for( int i = from; i < to; )
+                {
+                        char c = s.charAt( i );
+
+                        if( '%' == c )
+                        {
+                                i = unescape( s, i, to, false );
+                        }
+                        else
+                        {
+                                text.append( '+' == c ? ' ' : c );
+                                ++i;
+                        }
+                }
+
+                return text.toString();
+        }
+
+        /**
+         * Decode a part of a path and append it to the scope.
+         *
+         * @param plus Whether "+" is decoded to " " (form-encoding).
+         */
+        private void path( CharSequence s, int from, int to, boolean plus )
+        {
+                for( int i = from; i < to; )
+                {
+                        char c = s.charAt( i );
+
+                        if( '%' == c )
+                        {
+                                i = unescape( s, i, to, true );
+                        }
+                        else
+                        {
+                                put( plus && '+' == c ? ' ' : c );
+                                ++i;
+                        }
+                }
+        }
+
+        /**
+         * Decode a run of escape sequences.
+         *
+         * @param path Whether the decoded characters belong to the scope.
+         * @return The position right after the run.
+         */
+        private int unescape( CharSequence s, int i, int to, boolean path )
+        {
+                int n = 0;
+                boolean ascii = true;
+
+                while( i < to && '%' == s.charAt( i ) )
+                {
+                        if( i+2 >= to )
+                        {
+                                throw new IllegalArgumentException( "Incomplete escape sequence in key \"" + s + "\"." );
+                        }
+
+                        int hi = Character.digit( s.charAt( i+1 ), 16 );
+                        int lo = Character.digit( s.charAt( i+2 ), 16 );
+                        if( hi < 0 || lo < 0 )
+                        {
+                                throw new IllegalArgumentException( "Invalid escape sequence in key \"" + s + "\"." );
+                        }
+
+                        if( n == bytes.length )
+                        {
+                                byte[] grown = new byte[ 2*n ];
+                                System.arraycopy( bytes, 0, grown, 0, n );
+                                bytes = grown;
+                        }
+
+                        bytes[ n ] = ( byte )( ( hi << 4 ) | lo );
+                        ascii &= bytes[ n ] >= 0;
+                        ++n;
+
+                        i += 3;
+                }
+
+                if( ascii )
+                {
+                        for( int j = 0; j < n; ++j )
+                        {
+                                emit( ( char )bytes[ j ], path );
+                        }
+                }
+                else
+                {
+                        String decoded = new String( bytes, 0, n, charset );
+                        for( int j = 0; j < decoded.length(); ++j )
+                        {
+                                emit( decoded.charAt( j ), path );
+                        }
+                }
+
+                return i;
+        }
+
+        private void emit( char c, boolean path )
+        {
+                if( path )
+                        put( c );
+                else
+                        text.append( c );
+        }
+
+        /**
+         * Append a decoded character to the scope.
+         *
+         * A slash ends the actual segment, which is dropped if it is empty
+         * or ".", and removes the preceding segment if it is "..".
+         */
+        private void put( char c )
+        {
+                if( '/' != c )
+                {
+                        scope.append( c );
+                        return;
+                }
+
+                int len = scope.length() - segment;
+
+                if( 0 == len )
+                        return;
+
+                if( '.' == scope.charAt( segment ) && ( 1 == len || ( 2 == len && '.' == scope.charAt( segment+1 ) ) ) )
+                {
+                        if( 2 == len && segment > 1 )
+                        {
+                                segment = scope.lastIndexOf( "/", segment-2 ) + 1;
+                        }
+                        scope.setLength( segment );
+                        return;
+                }
+
+                scope.append( '/' );
+                segment = scope.length();
+        }
+
+        private static int indexOf( CharSequence s, char c, int from, int to )
+        {
+                for( int i = from; i < to; ++i )
+                {
+                        if( c == s.charAt( i ) )
+                                return i;
+                }
+                return -1;
+        }
+
+        private static int lastIndexOf( CharSequence s, char c, int from, int to )
+        {
+                for( int i = to-1; i >= from; --i )
+                {
+                        if( c == s.charAt( i ) )
+                                return i;
+                }
+                return -1;
+        }
+}
@@ -19,6 +19,7 @@ package de.zib.vold.backend;
 import de.zib.vold.common.VoldException;
 
 import java.util.Map.Entry;
+import java.util.Collection;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Map;
@@ -263,12 +264,12 @@ public class BabuDirectory implements PartitionedDirectoryBackend
 			}
 			catch( BabuDBException e )
 			{
-                                log.info( "BabuDirectory could not open database: " + e.getMessage() );
+                                log.info( "BabuDirectory could not open database: {}", e.getMessage() );
                                 log.info( "BabuDirectory will try to create it..." );
 
 				try
 				{
-					db = manager.createDatabase( dbname, 3 );
+					db = manager.createDatabase( dbname, 8 );
 				}
 				catch( BabuDBException e2 )
 				{
@@ -305,7 +306,7 @@ public class BabuDirectory implements PartitionedDirectoryBackend
 		}
 		catch( BabuDBException e )
 		{
-                        log.warn( "BabuDirectory could not shutdown: " + e.getMessage() );
+                        log.warn( "BabuDirectory could not shutdown: {}", e.getMessage() );
 			try
 			{
 				babudb.shutdown( false );
@@ -345,7 +346,10 @@ public class BabuDirectory implements PartitionedDirectoryBackend
         @Override
         public void insert( int partition, List< String > key, List< String > value )
 	{
-                log.trace( "Insert: " + partition + ":'" + key.toString() + "' -> '" + value.toString() + "'" );
+                if( log.isTraceEnabled() )
+                {
+                        log.trace( "Insert: {}:'{}' -> '{}'", new Object[]{ partition, key, value } );
+                }
 
                 // guard
                 {
@@ -384,7 +388,7 @@ public class BabuDirectory implements PartitionedDirectoryBackend
         @Override
         public void delete( int partition, List< String > key )
 	{
-                log.trace( "Delete: " + partition + ":'" + key.toString() + "'" );
+                log.trace( "Delete: {}:'{}'", partition, key );
 
                 byte[] _key;
 
@@ -424,7 +428,7 @@ public class BabuDirectory implements PartitionedDirectoryBackend
 	{
                 // guard
                 {
-                        log.trace( "PrefixLookup: " + partition + ":'" + prefix.toString() + "'" );
+                        log.trace( "PrefixLookup: {}:'{}'", partition, prefix );
 
                         if( ! isopen() )
                         {
@@ -464,6 +468,168 @@ public class BabuDirectory implements PartitionedDirectoryBackend
                 return map;
 	}
 
+	/**
+	 * Query the entries with all keys within a range.
+	 * 
+         * @param partition             The partition to search in.
+         * @param from                  The first key of the range.
+         * @param to                    The first key after the range.
+         * @return                      A map storing all results (mapping from a key to the set of values).
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public Map< List< String >, List< String > > rangelookup( int partition, List< String > from, List< String > to )
+	{
+                // guard
+                {
+                        log.trace( "RangeLookup: {}:'{}'-'{}'", new Object[]{ partition, from, to } );
+
+                        if( ! isopen() )
+                        {
+                                throw new VoldException( "Tried to operate on closed database." );
+                        }
+
+                        if( partition < 0 )
+                        {
+                                throw new IllegalArgumentException( "BabuDirectory only has nonnegative partitions, thus " + partition + " is an illegal argument." );
+                        }
+                        if( null == from || null == to )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                Map< List< String >, List< String > > map = new HashMap< List< String >, List< String > >();
+
+                Map< byte[], byte[] > _map;
+                _map = rangelookup( partition, _buildkey( from ), _buildkey( to ) );
+
+                // transform results from BabuDB
+		{
+                        for( Entry< byte[], byte[] > entry: _map.entrySet() )
+                        {
+                                if( null == entry.getKey() || null == entry.getValue() )
+                                {
+                                        throw new VoldException( "Internal error: got null key or value from BabuDB." );
+                                }
+                                map.put( buildkey( entry.getKey() ), buildkey( entry.getValue() ) );
+                        }
+		}
+
+                return map;
+	}
+
+	/**
+	 * Delete all keys within a range from a partition.
+         *
+         * All keys of the range are deleted by one insert group.
+         *
+         * @param partition             The partition to delete the keys from.
+         * @param from                  The first key of the range.
+         * @param to                    The first key after the range.
+	 * 
+         * @throws VoldException
+	 */
+        @Override
+        public void rangedelete( int partition, List< String > from, List< String > to )
+	{
+                log.trace( "RangeDelete: {}:'{}'-'{}'", new Object[]{ partition, from, to } );
+
+                // guard
+                {
+                        if( ! isopen() )
+                        {
+                                throw new VoldException( "Tried to operate on closed database." );
+                        }
+
+                        if( partition < 0 )
+                        {
+                                throw new IllegalArgumentException( "BabuDirectory only has nonnegative partitions, thus " + partition + " is an illegal argument." );
+                        }
+                        if( null == from || null == to )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                Map< byte[], byte[] > _map;
+                _map = rangelookup( partition, _buildkey( from ), _buildkey( to ) );
+
+                delete( partition, _map.keySet() );
+	}
+
+	/**
+	 * Delete a set of keys from a partition.
+         *
+         * All keys are deleted by one insert group, thus by one request to
+         * BabuDB.
+         *
+         * @param partition             The partition to delete the keys from.
+         * @param keys                  The keys to delete.
+	 * 
+         * @throws VoldException
+	 */
+        @Override
+        public void bulkdelete( int partition, Collection< List< String > > keys )
+	{
+                log.trace( "BulkDelete: {}:{} keys", partition, keys.size() );
+
+                // guard
+                {
+                        if( ! isopen() )
+                        {
+                                throw new VoldException( "Tried to operate on closed database." );
+                        }
+
+                        if( partition < 0 )
+                        {
+                                throw new IllegalArgumentException( "BabuDirectory only has nonnegative partitions, thus " + partition + " is an illegal argument." );
+                        }
+                }
+
+                List< byte[] > _keys = new LinkedList< byte[] >();
+
+                for( List< String > key: keys )
+                {
+                        _keys.add( _buildkey( key ) );
+                }
+
+                delete( partition, _keys );
+	}
+
+	/**
+	 * Delete a set of keys from a partition with one insert group.
+         *
+         * @param partition             The partition to delete the keys from.
+         * @param keys                  The keys to delete.
+         *
+         * @throws VoldException
+	 */
+	private void delete( int partition, Collection< byte[] > keys )
+	{
+                if( keys.isEmpty() )
+                {
+                        return;
+                }
+
+                DatabaseInsertGroup group = db.createInsertGroup();
+
+                for( byte[] _key: keys )
+                {
+                        group.addDelete( partition, _key );
+                }
+
+		try
+		{
+                        db.insert( group, null ).get();
+		}
+		catch( BabuDBException e )
+		{
+                        throw new VoldException( e );
+		}
+	}
+
 	/**
 	 * Insert the key-value pair in a partition.
          *
@@ -542,6 +708,49 @@ public class BabuDirectory implements PartitionedDirectoryBackend
                 return map;
 	}
 
+	/**
+	 * Query the values for all keys within a range in a partition.
+	 * 
+	 * The query will be performed synchronously.
+         *
+         * @param partition             The partition to search in.
+         * @param from                  The first key of the range.
+         * @param to                    The first key after the range.
+         * @return                      All found results, i.e. a map from all
+         *                              found keys to its values.
+         *
+         * @throws VoldException
+	 */
+	private Map< byte[], byte[] > rangelookup( int partition, byte[] from, byte[] to )
+	{
+                Map< byte[], byte[] > map = new HashMap< byte[], byte[] >();
+
+		// wait synchronously and return fill list
+		{
+			try
+			{
+                                DatabaseRequestResult< ResultSet< byte[], byte[] > > req;
+                                req = db.rangeLookup( partition, from, to, null );
+
+                                ResultSet< byte[], byte[] > res = req.get( );
+
+                                while( res.hasNext() )
+                                {
+                                        Entry< byte[], byte[] > entry = res.next();
+                                        map.put( entry.getKey(), entry.getValue() );
+                                }
+
+                                res.free();
+			}
+			catch( BabuDBException e )
+			{
+                                throw new VoldException( e );
+			}
+		}
+
+                return map;
+	}
+
 	/**
 	 * Query the values for a key in a partition.
          *
@@ -558,7 +767,7 @@ public class BabuDirectory implements PartitionedDirectoryBackend
 	{
                 // guard
                 {
-                        log.trace( "Lookup: " + partition + ":'" + key.toString() + "'" );
+                        log.trace( "Lookup: {}:'{}'", partition, key );
 
                         if( ! isopen() )
                         {
@@ -28,7 +28,9 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -223,7 +225,10 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
         {
                 // guard
                 {
-                        log.trace( "Insert: " + partition + ":'" + key.toString() + "' -> '" + value.toString() + "'" );
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "Insert: {}:'{}' -> '{}'", new Object[]{ partition, key, value } );
+                        }
 
                         if( ! isopen() )
                         {
@@ -267,7 +272,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
                                         throw new VoldException( "Error on insertion of value " + filename + " for key " + key.toString() + "(" + path + ").", e );
                                 }
 
-                                log.debug( "Creating value '" + filepath + "'" );
+                                log.debug( "Creating value '{}'", filepath );
                                 File f = new File( filepath );
 
                                 try
@@ -295,7 +300,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
         {
                 // guard
                 {
-                        log.trace( "Delete: " + partition + ":'" + key.toString() + "'" );
+                        log.trace( "Delete: {}:'{}'", partition, key );
 
                         if( ! isopen() )
                         {
@@ -313,7 +318,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
 
                         if( ! f.exists() )
                         {
-                                log.warn( "FileSystemDirectory tried to delete nonexistent " + f.getAbsolutePath() );
+                                log.warn( "FileSystemDirectory tried to delete nonexistent {}", f.getAbsolutePath() );
                                 return;
                         }
 
@@ -356,7 +361,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
         {
                 // guard
                 {
-                        log.trace( "Lookup: " + partition + ":'" + key.toString() + "'" );
+                        log.trace( "Lookup: {}:'{}'", partition, key );
 
                         if( ! isopen() )
                         {
@@ -386,7 +391,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
                                 }
                                 catch( VoldException e )
                                 {
-                                        log.warn( "Skipping file " + file.getName() + " while looking for " + key.toString() + ", since an error occured: " + e.getMessage() );
+                                        log.warn( "Skipping file {} while looking for {}, since an error occured: {}", new Object[]{ file.getName(), key, e.getMessage() } );
                                 }
                         }
                 }
@@ -398,7 +403,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
                         return null;
                 }
 
-                log.trace( " results: " + result.toString() );
+                log.trace( " results: {}", result );
                 return result;
         }
 
@@ -416,7 +421,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
         {
                 // guard
                 {
-                        log.trace( "PrefixLookup: " + partition + ":" + key.toString() );
+                        log.trace( "PrefixLookup: {}:{}", partition, key );
 
                         if( ! isopen() )
                         {
@@ -426,7 +431,10 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
 
                 Map< List< String >, List< String > > result = new HashMap< List< String >, List< String > >();
 
-                String prefix = _builddir( key.remove( key.size()-1 ) );
+                // the last element is the prefix, all others are directories
+                // (the given list may be immutable)
+                String prefix = _builddir( key.get( key.size()-1 ) );
+                key = key.subList( 0, key.size()-1 );
 
                 List< String > d = _get_partition_dir( partition, key );
 
@@ -453,7 +461,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
                                 }
                                 catch( VoldException e )
                                 {
-                                        log.warn( "Skipping directory " + path + "/" + file.getName() + ", since an error occured: " + e.getMessage() );
+                                        log.warn( "Skipping directory {}/{}, since an error occured: {}", new Object[]{ path, file.getName(), e.getMessage() } );
                                 }
                         }
                         else
@@ -464,15 +472,123 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
                                 }
                                 catch( VoldException e )
                                 {
-                                        log.warn( "Skipping file " + file.getName() + " in recursive listing, since it has no valid format: " + e.getMessage() );
+                                        log.warn( "Skipping file {} in recursive listing, since it has no valid format: {}", file.getName(), e.getMessage() );
                                 }
                         }
                 }
 
-                log.trace( " results: " + result.toString() );
+                log.trace( " results: {}", result );
                 return result;
         }
 
+	/**
+	 * Query the entries with all keys within a range.
+         *
+         * All entries below the longest common prefix of both keys are listed
+         * and filtered by the range.
+         *
+         * @param partition             The partition to search in.
+         * @param from                  The first key of the range.
+         * @param to                    The first key after the range.
+         * @return                      A map storing all results (mapping from a key to the set of values).
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public Map< List< String >, List< String > > rangelookup( int partition, List< String > from, List< String > to )
+        {
+                // guard
+                {
+                        log.trace( "RangeLookup: {}:{}-{}", new Object[]{ partition, from, to } );
+
+                        if( ! isopen() )
+                        {
+                                throw new VoldException( "Tried to operate on closed database." );
+                        }
+                }
+
+                // list the whole directory of the common prefix
+                List< String > prefix = new LinkedList< String >();
+                {
+                        for( int i = 0; i < from.size() && i < to.size() && from.get( i ).equals( to.get( i ) ); ++i )
+                        {
+                                prefix.add( from.get( i ) );
+                        }
+                        prefix.add( "" );
+                }
+
+                Map< List< String >, List< String > > result = prefixlookup( partition, prefix );
+
+                for( Iterator< List< String > > it = result.keySet().iterator(); it.hasNext(); )
+                {
+                        List< String > key = it.next();
+
+                        if( compare( key, from ) < 0 || compare( key, to ) >= 0 )
+                        {
+                                it.remove();
+                        }
+                }
+
+                return result;
+        }
+
+	/**
+	 * Delete all keys within a range from a partition.
+         *
+         * @param partition             The partition to delete the keys from.
+         * @param from                  The first key of the range.
+         * @param to                    The first key after the range.
+	 * 
+         * @throws VoldException
+	 */
+        @Override
+        public void rangedelete( int partition, List< String > from, List< String > to )
+        {
+                log.trace( "RangeDelete: {}:'{}'-'{}'", new Object[]{ partition, from, to } );
+
+                for( List< String > key: rangelookup( partition, from, to ).keySet() )
+                {
+                        delete( partition, key );
+                }
+        }
+
+	/**
+	 * Delete a set of keys from a partition.
+         *
+         * @param partition             The partition to delete the keys from.
+         * @param keys                  The keys to delete.
+	 * 
+         * @throws VoldException
+	 */
+        @Override
+        public void bulkdelete( int partition, Collection< List< String > > keys )
+        {
+                for( List< String > key: keys )
+                {
+                        delete( partition, key );
+                }
+        }
+
+        /**
+         * Compare two keys element by element.
+         *
+         * A key is less than all keys it is a prefix of.
+         */
+        private static int compare( List< String > a, List< String > b )
+        {
+                Iterator< String > i = a.iterator();
+                Iterator< String > j = b.iterator();
+
+                while( i.hasNext() && j.hasNext() )
+                {
+                        int diff = i.next().compareTo( j.next() );
+                        if( 0 != diff )
+                                return diff;
+                }
+
+                return i.hasNext() ? 1 : ( j.hasNext() ? -1 : 0 );
+        }
+
         /**
          * Recursively add all keys with its values to the map.
          */
@@ -496,7 +612,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
                                 }
                                 catch( VoldException e )
                                 {
-                                        log.warn( "Skipping directory " + file.getName() + " in recursive listing, since it has no valid format: " + e.getMessage() );
+                                        log.warn( "Skipping directory {} in recursive listing, since it has no valid format: {}", file.getName(), e.getMessage() );
                                 }
 
                                 recursive_add( k, dir + "/" + file.getName(), map );
@@ -509,7 +625,7 @@ public class FileSystemDirectory implements PartitionedDirectoryBackend
                                 }
                                 catch( VoldException e )
                                 {
-                                        log.warn( "Skipping file " + file.getName() + " in recursive listing, since it has no valid format: " + e.getMessage() );
+                                        log.warn( "Skipping file {} in recursive listing, since it has no valid format: {}", file.getName(), e.getMessage() );
                                 }
                         }
                 }
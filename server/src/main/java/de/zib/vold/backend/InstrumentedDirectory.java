@@ -0,0 +1,177 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.backend;
+
+import de.zib.vold.metrics.LatencyHistogram;
+import de.zib.vold.metrics.MetricsRegistry;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Proxy for PartitionedDirectory recording the latency of all requests.
+ *
+ * The histograms are labeled with the class name of the proxied backend,
+ * thus each kind of backend can be observed separately.
+ *
+ * @see PartitionedDirectory
+ * @see MetricsRegistry
+ */
+public class InstrumentedDirectory implements PartitionedDirectory
+{
+        private final PartitionedDirectory backend;
+
+        private final LatencyHistogram insertLatency;
+        private final LatencyHistogram deleteLatency;
+        private final LatencyHistogram lookupLatency;
+        private final LatencyHistogram prefixlookupLatency;
+        private final LatencyHistogram rangelookupLatency;
+        private final LatencyHistogram rangedeleteLatency;
+        private final LatencyHistogram bulkdeleteLatency;
+
+        /**
+         * Construct a proxy for a backend.
+         *
+         * @param backend       The backend to delegate all requests to.
+         */
+        public InstrumentedDirectory( PartitionedDirectory backend )
+        {
+                if( null == backend )
+                {
+                        throw new IllegalArgumentException( "InstrumentedDirectory needs a backend, but null has been given!" );
+                }
+
+                this.backend = backend;
+
+                MetricsRegistry registry = MetricsRegistry.getDefault();
+                String name = backend.getClass().getSimpleName();
+
+                insertLatency = registry.histogram( "vold_backend_insert_seconds", "Latency of inserts into a backend partition.", "backend", name );
+                deleteLatency = registry.histogram( "vold_backend_delete_seconds", "Latency of deletes from a backend partition.", "backend", name );
+                lookupLatency = registry.histogram( "vold_backend_lookup_seconds", "Latency of lookups in a backend partition.", "backend", name );
+                prefixlookupLatency = registry.histogram( "vold_backend_prefixlookup_seconds", "Latency of prefix lookups in a backend partition.", "backend", name );
+                rangelookupLatency = registry.histogram( "vold_backend_rangelookup_seconds", "Latency of range lookups in a backend partition.", "backend", name );
+                rangedeleteLatency = registry.histogram( "vold_backend_rangedelete_seconds", "Latency of range deletes from a backend partition.", "backend", name );
+                bulkdeleteLatency = registry.histogram( "vold_backend_bulkdelete_seconds", "Latency of bulk deletes from a backend partition.", "backend", name );
+        }
+
+        /**
+         * Get the proxied backend.
+         */
+        public PartitionedDirectory getBackend( )
+        {
+                return backend;
+        }
+
+        @Override
+        public void insert( int partition, List< String > key, List< String > value )
+        {
+                final long start = System.nanoTime();
+                try
+                {
+                        backend.insert( partition, key, value );
+                }
+                finally
+                {
+                        insertLatency.recordSince( start );
+                }
+        }
+
+        @Override
+        public void delete( int partition, List< String > key )
+        {
+                final long start = System.nanoTime();
+                try
+                {
+                        backend.delete( partition, key );
+                }
+                finally
+                {
+                        deleteLatency.recordSince( start );
+                }
+        }
+
+        @Override
+        public List< String > lookup( int partition, List< String > key )
+        {
+                final long start = System.nanoTime();
+                try
+                {
+                        return backend.lookup( partition, key );
+                }
+                finally
+                {
+                        lookupLatency.recordSince( start );
+                }
+        }
+
+        @Override
+        public Map< List< String >, List< String > > prefixlookup( int partition, List< String > prefix )
+        {
+                final long start = System.nanoTime();
+                try
+                {
+                        return backend.prefixlookup( partition, prefix );
+                }
+                finally
+                {
+                        prefixlookupLatency.recordSince( start );
+                }
+        }
+
+        @Override
+        public Map< List< String >, List< String > > rangelookup( int partition, List< String > from, List< String > to )
+        {
+                final long start = System.nanoTime();
+                try
+                {
+                        return backend.rangelookup( partition, from, to );
+                }
+                finally
+                {
+                        rangelookupLatency.recordSince( start );
+                }
+        }
+
+        @Override
+        public void rangedelete( int partition, List< String > from, List< String > to )
+        {
+                final long start = System.nanoTime();
+                try
+                {
+                        backend.rangedelete( partition, from, to );
+                }
+                finally
+                {
+                        rangedeleteLatency.recordSince( start );
+                }
+        }
+
+        @Override
+        public void bulkdelete( int partition, Collection< List< String > > keys )
+        {
+                final long start = System.nanoTime();
+                try
+                {
+                        backend.bulkdelete( partition, keys );
+                }
+                finally
+                {
+                        bulkdeleteLatency.recordSince( start );
+                }
+        }
+}
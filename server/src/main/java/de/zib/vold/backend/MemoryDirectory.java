@@ -0,0 +1,452 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.backend;
+
+import de.zib.vold.common.VoldException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Implementation of PartitionedDirectoryBackend holding all keys in memory.
+ *
+ * Like in SSTableDirectory, a directory is transformed to a string by joining
+ * its parts with a null character as delimiter, thus prefix and range
+ * lookups have the same semantics. Each partition is a sorted concurrent map.
+ *
+ * All keys are lost on close. Thus, this backend is meant for followers
+ * applying the changes of another VolD node (see ChangeFeedFollower), which
+ * start over with a snapshot of that node.
+ *
+ * @see PartitionedDirectoryBackend
+ * @see SSTableDirectory
+ * @see de.zib.vold.replication.ChangeFeedFollower
+ */
+public class MemoryDirectory implements PartitionedDirectoryBackend
+{
+        protected final Logger log = LoggerFactory.getLogger( this.getClass() );
+
+        private static final char DELIMITER = '\0';
+
+        private final Map< Integer, ConcurrentNavigableMap< String, List< String > > > partitions =
+                new ConcurrentHashMap< Integer, ConcurrentNavigableMap< String, List< String > > >();
+
+        private volatile boolean opened = false;
+
+        /**
+         * Open the database.
+         *
+         * @note                The annotation PostConstruct is used by the
+         *                      spring framework to call this method right
+         *                      after all properties have been set.
+         */
+        @Override
+        @PostConstruct
+        public void open( )
+        {
+                if( isopen() )
+                {
+                        log.warn( "Tried to open MemoryDirectory while it had already been opened!" );
+                        return;
+                }
+
+                opened = true;
+                log.info( "MemoryDirectory opened." );
+        }
+
+        /**
+         * Close the database and drop all keys.
+         *
+         * @note                The annotation PreDestroy is used by the
+         *                      spring framework to call this method right
+         *                      before it will be destroyed.
+         */
+        @Override
+        @PreDestroy
+        public void close( )
+        {
+                if( ! isopen() )
+                {
+                        log.warn( "Tried to close database while it wasn't open." );
+                        return;
+                }
+
+                opened = false;
+                partitions.clear();
+
+                log.info( "MemoryDirectory closed." );
+        }
+
+        /**
+         * Query the state of the database.
+         *
+         * @return true iff the database is open.
+         */
+        @Override
+        public boolean isopen( )
+        {
+                return opened;
+        }
+
+	/**
+	 * Insert a key with its set of values into a partition.
+	 *
+         * @note                Already existing keys will be overwritten.
+         *
+         * @param partition     The partition to store the key in.
+         * @param key           The key to store.
+         * @param value         The values to store.
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public void insert( int partition, List< String > key, List< String > value )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "Insert: {}:'{}' -> '{}'", new Object[]{ partition, key, value } );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == key )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                        if( null == value )
+                        {
+                                throw new IllegalArgumentException( "null is no valid value! Use delete instead, to delete the key!" );
+                        }
+                }
+
+                getPartition( partition ).put( _buildkey( key ), Collections.unmodifiableList( new ArrayList< String >( value ) ) );
+        }
+
+	/**
+	 * Delete the key and its values from a partition.
+         *
+         * @param partition             The partition to delete the key from.
+         * @param key                   The key to delete.
+	 *
+         * @throws VoldException
+	 */
+        @Override
+        public void delete( int partition, List< String > key )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "Delete: {}:'{}'", partition, key );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == key )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                getPartition( partition ).remove( _buildkey( key ) );
+        }
+
+	/**
+	 * Query the values for a key in a partition.
+         *
+         * @param partition             The partition to search in.
+         * @param key                   The key to search for.
+         * @return                      null if the key was not found and its set of values otherwise.
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public List< String > lookup( int partition, List< String > key )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "Lookup: {}:'{}'", partition, key );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == key )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                List< String > value = getPartition( partition ).get( _buildkey( key ) );
+
+                return null == value ? null : new ArrayList< String >( value );
+        }
+
+	/**
+	 * Query the entries with all keys beginning with a prefix.
+	 *
+         * @param partition             The partition to search in.
+         * @param prefix                The prefix of the keys to search for.
+         * @return                      A map storing all results (mapping from a key to the set of values).
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public Map< List< String >, List< String > > prefixlookup( int partition, List< String > prefix )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "PrefixLookup: {}:'{}'", partition, prefix );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == prefix )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                Map< List< String >, List< String > > map = new HashMap< List< String >, List< String > >();
+                String _prefix = _buildkey( prefix );
+
+                for( Map.Entry< String, List< String > > entry: getPartition( partition ).tailMap( _prefix ).entrySet() )
+                {
+                        if( ! entry.getKey().startsWith( _prefix ) )
+                                break;
+
+                        map.put( buildkey( entry.getKey() ), new ArrayList< String >( entry.getValue() ) );
+                }
+
+                return map;
+        }
+
+	/**
+	 * Query the entries with all keys within a range.
+	 *
+         * @param partition             The partition to search in.
+         * @param from                  The first key of the range.
+         * @param to                    The first key after the range.
+         * @return                      A map storing all results (mapping from a key to the set of values).
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public Map< List< String >, List< String > > rangelookup( int partition, List< String > from, List< String > to )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "RangeLookup: {}:'{}'-'{}'", new Object[]{ partition, from, to } );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == from || null == to )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                Map< List< String >, List< String > > map = new HashMap< List< String >, List< String > >();
+
+                for( Map.Entry< String, List< String > > entry: range( partition, from, to ).entrySet() )
+                {
+                        map.put( buildkey( entry.getKey() ), new ArrayList< String >( entry.getValue() ) );
+                }
+
+                return map;
+        }
+
+	/**
+	 * Delete all keys within a range from a partition.
+         *
+         * @param partition             The partition to delete the keys from.
+         * @param from                  The first key of the range.
+         * @param to                    The first key after the range.
+	 *
+         * @throws VoldException
+	 */
+        @Override
+        public void rangedelete( int partition, List< String > from, List< String > to )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "RangeDelete: {}:'{}'-'{}'", new Object[]{ partition, from, to } );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == from || null == to )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                range( partition, from, to ).clear();
+        }
+
+	/**
+	 * Delete a set of keys from a partition.
+         *
+         * @param partition             The partition to delete the keys from.
+         * @param keys                  The keys to delete.
+	 *
+         * @throws VoldException
+	 */
+        @Override
+        public void bulkdelete( int partition, Collection< List< String > > keys )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "BulkDelete: {}:{} keys", partition, keys.size() );
+                        }
+
+                        checkOpen( partition );
+                }
+
+                ConcurrentNavigableMap< String, List< String > > p = getPartition( partition );
+
+                for( List< String > key: keys )
+                {
+                        p.remove( _buildkey( key ) );
+                }
+        }
+
+        /**
+         * Internal guard for all read and write requests.
+         */
+        private void checkOpen( int partition )
+        {
+                if( ! isopen() )
+                {
+                        throw new VoldException( "Tried to operate on closed database." );
+                }
+
+                if( partition < 0 )
+                {
+                        throw new IllegalArgumentException( "Negative partitions are not allowed, but partition=" + partition + " has been given!" );
+                }
+        }
+
+        /**
+         * Get a partition, creating it if necessary.
+         */
+        private ConcurrentNavigableMap< String, List< String > > getPartition( int partition )
+        {
+                ConcurrentNavigableMap< String, List< String > > p = partitions.get( partition );
+
+                if( null == p )
+                {
+                        synchronized( partitions )
+                        {
+                                p = partitions.get( partition );
+
+                                if( null == p )
+                                {
+                                        p = new ConcurrentSkipListMap< String, List< String > >();
+                                        partitions.put( partition, p );
+                                }
+                        }
+                }
+
+                return p;
+        }
+
+        /**
+         * Get the view of all keys of a partition within a range.
+         */
+        private ConcurrentNavigableMap< String, List< String > > range( int partition, List< String > from, List< String > to )
+        {
+                String _from = _buildkey( from );
+                String _to = _buildkey( to );
+
+                if( _from.compareTo( _to ) >= 0 )
+                {
+                        return new ConcurrentSkipListMap< String, List< String > >();
+                }
+
+                return getPartition( partition ).subMap( _from, true, _to, false );
+        }
+
+        /**
+         * Convert a directory (interface language) to a string (backend language).
+         *
+         * @param l             The directory to transform to lower level.
+         * @return              The string joined by null characters.
+         **/
+        private static String _buildkey( List< String > l )
+        {
+                StringBuilder result = new StringBuilder();
+
+                boolean first = true;
+                for( String s: l )
+                {
+                        if( ! first )
+                        {
+                                result.append( DELIMITER );
+                        }
+                        result.append( s );
+                        first = false;
+                }
+
+                return result.toString();
+        }
+
+        /**
+         * Convert a string (backend language) to a directory (interface language).
+         *
+         * @param _key          The key to transform to higher level.
+         * @return              The directory.
+         **/
+        private static List< String > buildkey( String _key )
+        {
+                List< String > result = new ArrayList< String >();
+
+                int offset = 0;
+                for( int i = 0; i <= _key.length(); ++i )
+                {
+                        if( i == _key.length() || DELIMITER == _key.charAt( i ) )
+                        {
+                                result.add( _key.substring( offset, i ) );
+                                offset = i+1;
+                        }
+                }
+
+                return result;
+        }
+}
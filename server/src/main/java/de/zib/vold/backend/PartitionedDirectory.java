@@ -16,6 +16,7 @@
 
 package de.zib.vold.backend;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -79,4 +80,39 @@ public interface PartitionedDirectory
          * @param prefix        The prefix of the keys to query in the partition.
          */
         Map< List< String >, List< String > > prefixlookup( int partition, List< String > prefix );
+
+        /**
+         * Query the contents of all keys within a range.
+         *
+         * Keys are compared element by element, while a key is less than all
+         * keys it is a prefix of.
+         *
+         * @note The range contains the key from but not the key to.
+         *
+         * @param partition     The partition to store the value in.
+         * @param from          The first key of the range.
+         * @param to            The first key after the range.
+         */
+        Map< List< String >, List< String > > rangelookup( int partition, List< String > from, List< String > to );
+
+        /**
+         * Delete all keys within a range.
+         *
+         * @note The range contains the key from but not the key to.
+         *
+         * @param partition     The partition to store the value in.
+         * @param from          The first key of the range.
+         * @param to            The first key after the range.
+         *
+         * @see rangelookup
+         */
+        void rangedelete( int partition, List< String > from, List< String > to );
+
+        /**
+         * Delete a set of keys at once.
+         *
+         * @param partition     The partition to store the value in.
+         * @param keys          The keys to delete in the partition.
+         */
+        void bulkdelete( int partition, Collection< List< String > > keys );
 }
@@ -27,6 +27,7 @@ package de.zib.vold.backend;
  * @see PartitionedDirectory
  * @see BabuDirectory
  * @see FileSystemDirectory
+ * @see SSTableDirectory
  * @see LoggerDirectory
  *
  * @author Jörg Bachmann
@@ -0,0 +1,609 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable, memory-mapped sorted string table.
+ *
+ * An SSTable stores byte array keys in ascending (unsigned, lexicographic)
+ * order together with their values. A value may also be a tombstone, marking
+ * the key as deleted for all older tables.
+ *
+ * The file is split into blocks of roughly the same size. For each block, its
+ * first key and its offset is kept in memory, thus a lookup is a binary search
+ * on the block index followed by a sequential scan of one block. Prefix
+ * and range lookups start the same way and scan sequentially until the prefix
+ * does not match anymore or the end of the range has been reached. Keys are
+ * compared directly on the mapped file and only matching entries are copied.
+ *
+ * The file layout is:
+ * - all entries: [int keylength][key][int valuelength or -1][value]
+ * - the block index: [int keylength][first key of block][long offset of block]
+ * - the footer: [long offset of index][int number of blocks][long number of entries]
+ *   [long base sequence][int version][int magic]
+ *
+ * All offsets are 64 bit and the file is mapped in chunks of CHUNK_SIZE
+ * bytes, thus a table may grow beyond 2 GiB. Only a single key or value is
+ * limited to 2 GiB, and the block index of a table is kept in memory.
+ *
+ * A table written by a merge supersedes all tables with a sequence number
+ * from its base sequence up to its own one. For a flushed memtable, the base
+ * sequence is its own sequence number.
+ *
+ * @see SSTableDirectory
+ */
+class SSTable
+{
+        /**
+         * The value representing a deleted key.
+         *
+         * @note        Tombstones are compared by identity, not by content.
+         */
+        static final byte[] TOMBSTONE = new byte[0];
+
+        /**
+         * Unsigned lexicographic order of byte arrays, as used in all tables.
+         */
+        static final Comparator< byte[] > COMPARATOR = new Comparator< byte[] >()
+        {
+                public int compare( byte[] a, byte[] b )
+                {
+                        int n = Math.min( a.length, b.length );
+                        for( int i = 0; i < n; ++i )
+                        {
+                                int diff = ( a[ i ] & 0xff ) - ( b[ i ] & 0xff );
+                                if( 0 != diff )
+                                        return diff;
+                        }
+                        return a.length - b.length;
+                }
+        };
+
+        private static final int MAGIC = 0x564f4c44;
+        private static final int VERSION = 2;
+        private static final int FOOTER_SIZE = 36;
+
+        /**
+         * The size of the chunks a table is mapped in.
+         */
+        static final int CHUNK_SIZE = 1 << 30;
+
+        /**
+         * Each chunk is mapped with this many bytes of the next one, thus
+         * numbers never cross the end of a chunk.
+         */
+        private static final int CHUNK_OVERLAP = 8;
+
+        private final File file;
+        private final long sequence;
+        private final long base;
+        private final long entries;
+
+        private final int chunkSize;
+        private final MappedByteBuffer[] chunks;
+        private final long dataEnd;
+        private final byte[][] blockKeys;
+        private final long[] blockOffsets;
+
+        /**
+         * Construct an SSTable from an already mapped file.
+         */
+        private SSTable( File file, long sequence, MappedByteBuffer[] chunks, int chunkSize, long size )
+                throws IOException
+        {
+                this.file = file;
+                this.sequence = sequence;
+                this.chunks = chunks;
+                this.chunkSize = chunkSize;
+
+                if( size < FOOTER_SIZE || MAGIC != getInt( size - 4 ) )
+                {
+                        throw new IOException( "File " + file.getPath() + " is no valid SSTable." );
+                }
+                if( VERSION != getInt( size - 8 ) )
+                {
+                        throw new IOException( "File " + file.getPath() + " has been written by an incompatible version of VolD." );
+                }
+
+                this.dataEnd = getLong( size - FOOTER_SIZE );
+                int blocks = getInt( size - FOOTER_SIZE + 8 );
+                this.entries = getLong( size - FOOTER_SIZE + 12 );
+                this.base = getLong( size - FOOTER_SIZE + 20 );
+
+                if( dataEnd < 0 || dataEnd > size - FOOTER_SIZE || blocks < 0 )
+                {
+                        throw new IOException( "File " + file.getPath() + " has a corrupt footer." );
+                }
+
+                // load block index
+                {
+                        blockKeys = new byte[ blocks ][];
+                        blockOffsets = new long[ blocks ];
+
+                        long pos = dataEnd;
+                        for( int i = 0; i < blocks; ++i )
+                        {
+                                int len = getInt( pos );
+                                blockKeys[ i ] = copy( pos + 4, len );
+                                blockOffsets[ i ] = getLong( pos + 4 + len );
+                                pos += 12 + len;
+                        }
+                }
+        }
+
+        /**
+         * Open an existing SSTable.
+         *
+         * @param file          The file holding the table.
+         * @param sequence      The sequence number of the table (higher means newer).
+         * @return              The opened table.
+         */
+        static SSTable open( File file, long sequence )
+                throws IOException
+        {
+                return open( file, sequence, CHUNK_SIZE );
+        }
+
+        /**
+         * Open an existing SSTable, mapped in chunks of a certain size.
+         *
+         * @param file          The file holding the table.
+         * @param sequence      The sequence number of the table (higher means newer).
+         * @param chunkSize     The size of the mapped chunks.
+         * @return              The opened table.
+         */
+        static SSTable open( File file, long sequence, int chunkSize )
+                throws IOException
+        {
+                RandomAccessFile raf = new RandomAccessFile( file, "r" );
+                try
+                {
+                        FileChannel channel = raf.getChannel();
+                        long size = channel.size();
+
+                        MappedByteBuffer[] chunks = new MappedByteBuffer[ ( int )( ( size + chunkSize - 1 ) / chunkSize ) ];
+                        for( int i = 0; i < chunks.length; ++i )
+                        {
+                                long start = ( long )i * chunkSize;
+                                chunks[ i ] = channel.map( FileChannel.MapMode.READ_ONLY, start,
+                                        Math.min( chunkSize + CHUNK_OVERLAP, size - start ) );
+                        }
+
+                        return new SSTable( file, sequence, chunks, chunkSize, size );
+                }
+                finally
+                {
+                        // the mapping stays valid after closing the channel
+                        raf.close();
+                }
+        }
+
+        /**
+         * Write a new SSTable and open it.
+         *
+         * The table is written to a temporary file first, which is renamed when
+         * all data has been synced to disk.
+         *
+         * @param file          The file to store the table in.
+         * @param sequence      The sequence number of the new table.
+         * @param base          The lowest sequence number of all tables
+         *                      superseded by the new one.
+         * @param entries       The entries in ascending key order.
+         * @param blockSize     The minimal size of one block in bytes.
+         * @return              The opened table.
+         */
+        static SSTable write( File file, long sequence, long base, Iterator< Map.Entry< byte[], byte[] > > entries, int blockSize )
+                throws IOException
+        {
+                File tmp = new File( file.getPath() + ".tmp" );
+
+                FileOutputStream fos = new FileOutputStream( tmp );
+                try
+                {
+                        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fos, 64 * 1024 ) );
+
+                        List< byte[] > keys = new ArrayList< byte[] >();
+                        List< Long > offsets = new ArrayList< Long >();
+
+                        long offset = 0;
+                        long blockStart = 0;
+                        long count = 0;
+
+                        while( entries.hasNext() )
+                        {
+                                Map.Entry< byte[], byte[] > entry = entries.next();
+                                byte[] key = entry.getKey();
+                                byte[] value = entry.getValue();
+
+                                if( keys.isEmpty() || offset - blockStart >= blockSize )
+                                {
+                                        keys.add( key );
+                                        offsets.add( offset );
+                                        blockStart = offset;
+                                }
+
+                                out.writeInt( key.length );
+                                out.write( key );
+                                if( TOMBSTONE == value )
+                                {
+                                        out.writeInt( -1 );
+                                        offset += 8 + key.length;
+                                }
+                                else
+                                {
+                                        out.writeInt( value.length );
+                                        out.write( value );
+                                        offset += 8 + key.length + value.length;
+                                }
+
+                                ++count;
+                        }
+
+                        // write block index
+                        for( int i = 0; i < keys.size(); ++i )
+                        {
+                                out.writeInt( keys.get( i ).length );
+                                out.write( keys.get( i ) );
+                                out.writeLong( offsets.get( i ) );
+                        }
+
+                        // write footer
+                        out.writeLong( offset );
+                        out.writeInt( keys.size() );
+                        out.writeLong( count );
+                        out.writeLong( base );
+                        out.writeInt( VERSION );
+                        out.writeInt( MAGIC );
+
+                        out.flush();
+                        fos.getFD().sync();
+                }
+                finally
+                {
+                        fos.close();
+                }
+
+                if( ! tmp.renameTo( file ) )
+                {
+                        throw new IOException( "Could not rename " + tmp.getPath() + " to " + file.getPath() + "." );
+                }
+
+                return open( file, sequence );
+        }
+
+        /**
+         * Get the file this table is stored in.
+         */
+        File getFile( )
+        {
+                return file;
+        }
+
+        /**
+         * Get the sequence number of this table.
+         */
+        long getSequence( )
+        {
+                return sequence;
+        }
+
+        /**
+         * Get the lowest sequence number of all tables superseded by this table.
+         */
+        long getBase( )
+        {
+                return base;
+        }
+
+        /**
+         * Check whether this table supersedes another table.
+         *
+         * @return true, if the other table has been merged into this one.
+         */
+        boolean supersedes( SSTable other )
+        {
+                return other.sequence >= base && other.sequence < sequence;
+        }
+
+        /**
+         * Get the number of entries (including tombstones) of this table.
+         */
+        long size( )
+        {
+                return entries;
+        }
+
+        /**
+         * Query the value of a key.
+         *
+         * @param key           The key to search for.
+         * @return              null if the key is not in this table, TOMBSTONE
+         *                      if it has been deleted, and its value otherwise.
+         */
+        byte[] lookup( byte[] key )
+        {
+                int block = findBlock( key );
+                if( block < 0 )
+                        return null;
+
+                long end = block + 1 < blockOffsets.length ? blockOffsets[ block + 1 ] : dataEnd;
+
+                for( long pos = blockOffsets[ block ]; pos < end; pos = next( pos ) )
+                {
+                        int len = getInt( pos );
+                        int cmp = compare( pos + 4, len, key );
+
+                        if( 0 == cmp )
+                                return value( pos );
+                        if( cmp > 0 )
+                                break;
+                }
+
+                return null;
+        }
+
+        /**
+         * Collect all entries with a certain prefix.
+         *
+         * Entries already contained in the map are not overwritten. Hence,
+         * when scanning from the newest to the oldest table, the map holds the
+         * most recent value (or tombstone) for each key.
+         *
+         * @param prefix        The prefix of all keys to collect.
+         * @param map           The map to add all found entries to.
+         */
+        void scan( byte[] prefix, Map< byte[], byte[] > map )
+        {
+                int block = findBlock( prefix );
+                long pos = blockOffsets.length == 0 ? dataEnd : blockOffsets[ Math.max( block, 0 ) ];
+
+                for( ; pos < dataEnd; pos = next( pos ) )
+                {
+                        int len = getInt( pos );
+
+                        if( startsWith( pos + 4, len, prefix ) )
+                        {
+                                byte[] key = copy( pos + 4, len );
+                                if( ! map.containsKey( key ) )
+                                {
+                                        map.put( key, value( pos ) );
+                                }
+                        }
+                        else if( compare( pos + 4, len, prefix ) > 0 )
+                        {
+                                break;
+                        }
+                }
+        }
+
+        /**
+         * Collect all entries within a range.
+         *
+         * Like scan( prefix, map ), entries already contained in the map are
+         * not overwritten.
+         *
+         * @param from          The first key of the range.
+         * @param to            The first key after the range.
+         * @param map           The map to add all found entries to.
+         */
+        void scan( byte[] from, byte[] to, Map< byte[], byte[] > map )
+        {
+                int block = findBlock( from );
+                long pos = blockOffsets.length == 0 ? dataEnd : blockOffsets[ Math.max( block, 0 ) ];
+
+                for( ; pos < dataEnd; pos = next( pos ) )
+                {
+                        int len = getInt( pos );
+
+                        if( compare( pos + 4, len, to ) >= 0 )
+                        {
+                                break;
+                        }
+                        else if( compare( pos + 4, len, from ) >= 0 )
+                        {
+                                byte[] key = copy( pos + 4, len );
+                                if( ! map.containsKey( key ) )
+                                {
+                                        map.put( key, value( pos ) );
+                                }
+                        }
+                }
+        }
+
+        /**
+         * Iterate over all entries of this table in ascending key order.
+         */
+        Iterator< Map.Entry< byte[], byte[] > > iterator( )
+        {
+                return new Iterator< Map.Entry< byte[], byte[] > >()
+                {
+                        private long pos = 0;
+
+                        public boolean hasNext( )
+                        {
+                                return pos < dataEnd;
+                        }
+
+                        public Map.Entry< byte[], byte[] > next( )
+                        {
+                                if( ! hasNext() )
+                                        throw new NoSuchElementException();
+
+                                int len = getInt( pos );
+                                Map.Entry< byte[], byte[] > entry =
+                                        new AbstractMap.SimpleImmutableEntry< byte[], byte[] >( copy( pos + 4, len ), value( pos ) );
+                                pos = SSTable.this.next( pos );
+
+                                return entry;
+                        }
+
+                        public void remove( )
+                        {
+                                throw new UnsupportedOperationException();
+                        }
+                };
+        }
+
+        /**
+         * Find the last block whose first key is not greater than key.
+         *
+         * @return The index of the block or -1, if key is smaller than all keys.
+         */
+        private int findBlock( byte[] key )
+        {
+                int lo = 0;
+                int hi = blockKeys.length - 1;
+                int found = -1;
+
+                while( lo <= hi )
+                {
+                        int mid = ( lo + hi ) >>> 1;
+
+                        if( COMPARATOR.compare( blockKeys[ mid ], key ) <= 0 )
+                        {
+                                found = mid;
+                                lo = mid + 1;
+                        }
+                        else
+                        {
+                                hi = mid - 1;
+                        }
+                }
+
+                return found;
+        }
+
+        /**
+         * Get the position of the entry following the one at pos.
+         */
+        private long next( long pos )
+        {
+                int keylen = getInt( pos );
+                int vallen = getInt( pos + 4 + keylen );
+
+                return pos + 8 + keylen + Math.max( vallen, 0 );
+        }
+
+        /**
+         * Copy the value of the entry at pos.
+         */
+        private byte[] value( long pos )
+        {
+                int keylen = getInt( pos );
+                int vallen = getInt( pos + 4 + keylen );
+
+                if( vallen < 0 )
+                        return TOMBSTONE;
+
+                return copy( pos + 8 + keylen, vallen );
+        }
+
+        /**
+         * Read a byte of the mapped file.
+         */
+        private byte get( long pos )
+        {
+                return chunks[ ( int )( pos / chunkSize ) ].get( ( int )( pos % chunkSize ) );
+        }
+
+        /**
+         * Read an int of the mapped file.
+         */
+        private int getInt( long pos )
+        {
+                return chunks[ ( int )( pos / chunkSize ) ].getInt( ( int )( pos % chunkSize ) );
+        }
+
+        /**
+         * Read a long of the mapped file.
+         */
+        private long getLong( long pos )
+        {
+                return chunks[ ( int )( pos / chunkSize ) ].getLong( ( int )( pos % chunkSize ) );
+        }
+
+        /**
+         * Copy a range of the mapped file, which may span several chunks.
+         */
+        private byte[] copy( long pos, int len )
+        {
+                byte[] result = new byte[ len ];
+
+                int done = 0;
+                while( done < len )
+                {
+                        long at = pos + done;
+                        int offset = ( int )( at % chunkSize );
+                        int n = Math.min( len - done, chunkSize - offset );
+
+                        ByteBuffer view = chunks[ ( int )( at / chunkSize ) ].duplicate();
+                        view.position( offset );
+                        view.get( result, done, n );
+
+                        done += n;
+                }
+
+                return result;
+        }
+
+        /**
+         * Compare a key in the mapped file with a byte array without copying it.
+         */
+        private int compare( long pos, int len, byte[] key )
+        {
+                int n = Math.min( len, key.length );
+                for( int i = 0; i < n; ++i )
+                {
+                        int diff = ( get( pos + i ) & 0xff ) - ( key[ i ] & 0xff );
+                        if( 0 != diff )
+                                return diff;
+                }
+                return len - key.length;
+        }
+
+        /**
+         * Check whether a key in the mapped file starts with prefix.
+         */
+        private boolean startsWith( long pos, int len, byte[] prefix )
+        {
+                if( len < prefix.length )
+                        return false;
+
+                for( int i = 0; i < prefix.length; ++i )
+                {
+                        if( get( pos + i ) != prefix[ i ] )
+                                return false;
+                }
+                return true;
+        }
+}
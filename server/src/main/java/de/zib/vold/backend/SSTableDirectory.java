@@ -0,0 +1,1683 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.backend;
+
+import de.zib.vold.common.VoldException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implementation of PartitionedDirectoryBackend based on sorted string tables.
+ *
+ * Like in BabuDirectory, a directory is transformed to a byte array by joining
+ * its parts with a null byte as delimiter. The same is done for the values.
+ *
+ * Each partition consists of a small mutable memtable and a set of immutable,
+ * memory-mapped SSTables. All writes go to the memtable and are appended to a
+ * log file belonging to that memtable. When the memtable exceeds its maximum
+ * size, it will be written to a new SSTable by a background thread and its log
+ * will be deleted afterwards. The memtables of a partition are flushed strictly
+ * in the order they have been filled. A failed flush is retried after
+ * flushRetryDelay ms, and the partition refuses write requests as soon as its
+ * active memtable is full, until the flush succeeds. When a partition holds
+ * too many SSTables, they will be merged to a single one in background, too.
+ *
+ * A lookup queries the memtables and tables from the newest to the oldest one
+ * by their sequence numbers. A prefix lookup is a binary search on the block
+ * index of each table followed by a sequential scan (see SSTable).
+ *
+ * On open, all SSTables of all partitions are mapped and each remaining log
+ * file is written to a table under its own sequence number.
+ *
+ * A merged table is stored under the sequence number of the newest merged
+ * table and records the lowest merged sequence number. Since this is done by
+ * one rename, a merge is committed atomically: if the older tables are still
+ * on disk after a crash, they are recognized as superseded and removed on
+ * open. Hence, tombstones dropped by a merge never let older values return.
+ *
+ * @see PartitionedDirectoryBackend
+ * @see SSTable
+ * @see BabuDirectory
+ */
+public class SSTableDirectory implements PartitionedDirectoryBackend
+{
+        protected final Logger log = LoggerFactory.getLogger( this.getClass() );
+
+        private static final String TABLE_SUFFIX = ".sst";
+        private static final String LOG_SUFFIX = ".log";
+
+        private static final byte OP_INSERT = 1;
+        private static final byte OP_DELETE = 2;
+
+        private String rootPath;
+        private String enc = "utf-8";
+        private long memtableSize = 4 * 1024 * 1024;
+        private int blockSize = 4096;
+        private int mergeThreshold = 4;
+        private boolean syncLog = false;
+        private long flushRetryDelay = 1000;
+
+        private File root;
+        private boolean opened;
+
+        private final Map< Integer, Partition > partitions = new ConcurrentHashMap< Integer, Partition >();
+        private final AtomicLong sequence = new AtomicLong( 0 );
+        private ScheduledExecutorService worker;
+
+        /**
+         * Construct a SSTableDirectory with all necessary informations.
+         *
+         * @note                This constructor will not open the interface. This still has to be done
+         *                      using the open method.
+         *
+         * @param path          The root directory where to store the tables.
+         * @param enc           The encoding which will be used.
+         */
+        public SSTableDirectory( String path, String enc )
+        {
+                this.rootPath = path;
+                this.enc = enc;
+                this.opened = false;
+        }
+
+        /**
+         * Construct a SSTableDirectory without initialization.
+         */
+        public SSTableDirectory( )
+        {
+                this.rootPath = null;
+                this.opened = false;
+        }
+
+        /**
+         * Set the root directory where to store the tables.
+         *
+         * @note                This is an essential property. It only takes
+         *                      effect on the next open.
+         */
+        public void setRootPath( String rootPath )
+        {
+                this.rootPath = rootPath;
+        }
+
+        /**
+         * Set the encoding.
+         *
+         * @note                Changing the encoding of an existing database
+         *                      is a dangerous operation!
+         */
+        public void setEnc( String enc )
+        {
+                this.enc = enc;
+        }
+
+        /**
+         * Set the size in bytes a memtable may reach before it will be written to an SSTable.
+         */
+        public void setMemtableSize( long memtableSize )
+        {
+                if( memtableSize <= 0 )
+                {
+                        throw new IllegalArgumentException( "Positive values expected for the memtable size." );
+                }
+
+                this.memtableSize = memtableSize;
+        }
+
+        /**
+         * Set the size of a block in bytes, i.e. the granularity of the block index.
+         */
+        public void setBlockSize( int blockSize )
+        {
+                if( blockSize <= 0 )
+                {
+                        throw new IllegalArgumentException( "Positive values expected for the block size." );
+                }
+
+                this.blockSize = blockSize;
+        }
+
+        /**
+         * Set the number of SSTables per partition which triggers a merge.
+         */
+        public void setMergeThreshold( int mergeThreshold )
+        {
+                if( mergeThreshold < 2 )
+                {
+                        throw new IllegalArgumentException( "At least two tables are necessary for a merge." );
+                }
+
+                this.mergeThreshold = mergeThreshold;
+        }
+
+        /**
+         * Sync the log file on each write request.
+         *
+         * Without syncing, write requests are lost when the system crashes
+         * (similar to the ASYNC mode of BabuDB).
+         */
+        public void setSyncLog( boolean syncLog )
+        {
+                this.syncLog = syncLog;
+        }
+
+        /**
+         * Set the time in ms to wait before a failed flush of a memtable is retried.
+         */
+        public void setFlushRetryDelay( long flushRetryDelay )
+        {
+                if( flushRetryDelay <= 0 )
+                {
+                        throw new IllegalArgumentException( "Positive values expected for the flush retry delay." );
+                }
+
+                this.flushRetryDelay = flushRetryDelay;
+        }
+
+        /**
+         * Internal method which acts as part of the guard of all public methods.
+         */
+        public void checkState( )
+        {
+                if( null == rootPath )
+                {
+                        throw new IllegalStateException( "Tried to operate on SSTableDirectory while it had not been initialized yet. Set the rootPath before!" );
+                }
+        }
+
+        /**
+         * Open the database.
+         *
+         * Partitions holding too many tables are merged in background.
+         *
+         * @note                The annotation PostConstruct is used by the
+         *                      spring framework to call this method right
+         *                      after all properties have been set.
+         */
+        @Override
+        @PostConstruct
+        public synchronized void open( )
+        {
+                // guard
+                {
+                        checkState();
+
+                        if( isopen() )
+                        {
+                                log.warn( "SSTableDirectory: tried to open database twice!" );
+                                return;
+                        }
+                }
+
+                root = new File( rootPath );
+                if( ! root.isDirectory() && ! root.mkdirs() )
+                {
+                        root = null;
+                        throw new VoldException( "Directory could not be opened: " + rootPath + " is no directory!" );
+                }
+
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+                {
+                        public Thread newThread( Runnable r )
+                        {
+                                Thread t = new Thread( r, "SSTableDirectory-worker" );
+                                t.setDaemon( true );
+                                return t;
+                        }
+                } );
+                // retries of failed flushes are dropped on close, their logs stay on disk
+                executor.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+                worker = executor;
+
+                // load all partitions
+                {
+                        List< File > dirs = new ArrayList< File >();
+                        long maxseq = 0;
+
+                        for( File dir: root.listFiles() )
+                        {
+                                if( ! dir.isDirectory() || ! dir.getName().matches( "[0-9]+" ) )
+                                {
+                                        log.warn( "Skipping unknown file {} in SSTableDirectory.", dir.getPath() );
+                                        continue;
+                                }
+
+                                dirs.add( dir );
+                                maxseq = Math.max( maxseq, maxSequence( dir ) );
+                        }
+
+                        sequence.set( maxseq );
+
+                        for( File dir: dirs )
+                        {
+                                Partition p = new Partition( dir );
+                                p.load();
+                                partitions.put( Integer.valueOf( dir.getName() ), p );
+                        }
+                }
+
+                opened = true;
+                log.info( "SSTableDirectory opened." );
+        }
+
+        /**
+         * Close the database.
+         *
+         * All pending flushes and merges will be finished. The memtables are
+         * not written to SSTables, but their logs will be written to SSTables
+         * on the next open.
+         *
+         * @note                The annotation PreDestroy is used by the
+         *                      spring framework to call this method right
+         *                      before it will be destroyed.
+         */
+        @Override
+        @PreDestroy
+        public synchronized void close( )
+        {
+                if( ! isopen() )
+                {
+                        log.warn( "Tried to close database while it wasn't open." );
+                        return;
+                }
+
+                opened = false;
+
+                worker.shutdown();
+                try
+                {
+                        if( ! worker.awaitTermination( 60, TimeUnit.SECONDS ) )
+                        {
+                                log.warn( "SSTableDirectory: background tasks did not finish in time." );
+                        }
+                }
+                catch( InterruptedException e )
+                {
+                        log.warn( "SSTableDirectory: interrupted while waiting for background tasks: {}", e.getMessage() );
+                }
+
+                for( Partition p: partitions.values() )
+                {
+                        p.close();
+                }
+                partitions.clear();
+
+                root = null;
+                log.info( "SSTableDirectory closed." );
+        }
+
+        /**
+         * Query the state of the database.
+         *
+         * @return true iff the database is open.
+         */
+        @Override
+        public boolean isopen( )
+        {
+                return opened;
+        }
+
+	/**
+	 * Insert a key with its set of values into a partition.
+	 *
+         * @note                Already existing keys will be overwritten.
+         *
+         * @param partition     The partition to store the key in.
+         * @param key           The key to store.
+         * @param value         The values to store.
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public void insert( int partition, List< String > key, List< String > value )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "Insert: {}:'{}' -> '{}'", new Object[]{ partition, key, value } );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == key )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                        if( null == value )
+                        {
+                                throw new IllegalArgumentException( "null is no valid value! Use delete instead, to delete the key!" );
+                        }
+                }
+
+                getPartition( partition ).write( _buildkey( key ), _buildkey( value ) );
+        }
+
+	/**
+	 * Delete the key and its values from a partition.
+         *
+         * @param partition             The partition to delete the key from.
+         * @param key                   The key to delete.
+	 *
+         * @throws VoldException
+	 */
+        @Override
+        public void delete( int partition, List< String > key )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "Delete: {}:'{}'", partition, key );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == key )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                getPartition( partition ).write( _buildkey( key ), SSTable.TOMBSTONE );
+        }
+
+	/**
+	 * Query the values for a key in a partition.
+         *
+         * @param partition             The partition to search in.
+         * @param key                   The key to search for.
+         * @return                      null if the key was not found and its set of values otherwise.
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public List< String > lookup( int partition, List< String > key )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "Lookup: {}:'{}'", partition, key );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == key )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                Partition p = partitions.get( partition );
+                if( null == p )
+                        return null;
+
+                byte[] value = p.lookup( _buildkey( key ) );
+                if( null == value || SSTable.TOMBSTONE == value )
+                        return null;
+
+                return buildkey( value );
+        }
+
+	/**
+	 * Query the entries with all keys beginning with a prefix.
+	 *
+         * @param partition             The partition to search in.
+         * @param prefix                The prefix of the keys to search for.
+         * @return                      A map storing all results (mapping from a key to the set of values).
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public Map< List< String >, List< String > > prefixlookup( int partition, List< String > prefix )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "PrefixLookup: {}:'{}'", partition, prefix );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == prefix )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                Map< List< String >, List< String > > map = new HashMap< List< String >, List< String > >();
+
+                Partition p = partitions.get( partition );
+                if( null == p )
+                        return map;
+
+                for( Map.Entry< byte[], byte[] > entry: p.scan( _buildkey( prefix ) ).entrySet() )
+                {
+                        if( SSTable.TOMBSTONE != entry.getValue() )
+                        {
+                                map.put( buildkey( entry.getKey() ), buildkey( entry.getValue() ) );
+                        }
+                }
+
+                return map;
+        }
+
+	/**
+	 * Query the entries with all keys within a range.
+	 *
+         * @param partition             The partition to search in.
+         * @param from                  The first key of the range.
+         * @param to                    The first key after the range.
+         * @return                      A map storing all results (mapping from a key to the set of values).
+         *
+         * @throws VoldException
+	 */
+        @Override
+        public Map< List< String >, List< String > > rangelookup( int partition, List< String > from, List< String > to )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "RangeLookup: {}:'{}'-'{}'", new Object[]{ partition, from, to } );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == from || null == to )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                Map< List< String >, List< String > > map = new HashMap< List< String >, List< String > >();
+
+                Partition p = partitions.get( partition );
+                if( null == p )
+                        return map;
+
+                for( Map.Entry< byte[], byte[] > entry: p.scan( _buildkey( from ), _buildkey( to ) ).entrySet() )
+                {
+                        if( SSTable.TOMBSTONE != entry.getValue() )
+                        {
+                                map.put( buildkey( entry.getKey() ), buildkey( entry.getValue() ) );
+                        }
+                }
+
+                return map;
+        }
+
+	/**
+	 * Delete all keys within a range from a partition.
+         *
+         * The tombstones of all keys of the range are written at once.
+         *
+         * @param partition             The partition to delete the keys from.
+         * @param from                  The first key of the range.
+         * @param to                    The first key after the range.
+	 *
+         * @throws VoldException
+	 */
+        @Override
+        public void rangedelete( int partition, List< String > from, List< String > to )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "RangeDelete: {}:'{}'-'{}'", new Object[]{ partition, from, to } );
+                        }
+
+                        checkOpen( partition );
+
+                        if( null == from || null == to )
+                        {
+                                throw new IllegalArgumentException( "null is no valid key!" );
+                        }
+                }
+
+                Partition p = partitions.get( partition );
+                if( null == p )
+                        return;
+
+                List< byte[] > keys = new ArrayList< byte[] >();
+
+                for( Map.Entry< byte[], byte[] > entry: p.scan( _buildkey( from ), _buildkey( to ) ).entrySet() )
+                {
+                        if( SSTable.TOMBSTONE != entry.getValue() )
+                        {
+                                keys.add( entry.getKey() );
+                        }
+                }
+
+                p.delete( keys );
+        }
+
+	/**
+	 * Delete a set of keys from a partition.
+         *
+         * The tombstones of all keys are written at once.
+         *
+         * @param partition             The partition to delete the keys from.
+         * @param keys                  The keys to delete.
+	 *
+         * @throws VoldException
+	 */
+        @Override
+        public void bulkdelete( int partition, Collection< List< String > > keys )
+        {
+                // guard
+                {
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "BulkDelete: {}:{} keys", partition, keys.size() );
+                        }
+
+                        checkOpen( partition );
+                }
+
+                List< byte[] > _keys = new ArrayList< byte[] >( keys.size() );
+
+                for( List< String > key: keys )
+                {
+                        _keys.add( _buildkey( key ) );
+                }
+
+                getPartition( partition ).delete( _keys );
+        }
+
+        /**
+         * Internal guard for all read and write requests.
+         */
+        private void checkOpen( int partition )
+        {
+                if( ! isopen() )
+                {
+                        throw new VoldException( "Tried to operate on closed database." );
+                }
+
+                if( partition < 0 )
+                {
+                        throw new IllegalArgumentException( "SSTableDirectory only has nonnegative partitions, thus " + partition + " is an illegal argument." );
+                }
+        }
+
+        /**
+         * Get a partition and create it if necessary.
+         */
+        private Partition getPartition( int partition )
+        {
+                Partition p = partitions.get( partition );
+                if( null != p )
+                        return p;
+
+                synchronized( partitions )
+                {
+                        p = partitions.get( partition );
+                        if( null == p )
+                        {
+                                p = new Partition( new File( root, String.valueOf( partition ) ) );
+                                p.load();
+                                partitions.put( partition, p );
+                        }
+                }
+
+                return p;
+        }
+
+        /**
+         * Get the highest sequence number of all tables and logs in a directory.
+         */
+        private static long maxSequence( File dir )
+        {
+                long max = 0;
+
+                for( File f: dir.listFiles() )
+                {
+                        long seq = sequenceOf( f );
+                        if( seq > max )
+                                max = seq;
+                }
+
+                return max;
+        }
+
+        /**
+         * Extract the sequence number out of a table or log file name.
+         *
+         * @return The sequence number or -1 for all other files.
+         */
+        private static long sequenceOf( File f )
+        {
+                String name = f.getName();
+                int dot = name.indexOf( '.' );
+
+                if( dot <= 0 )
+                        return -1;
+
+                String suffix = name.substring( dot );
+                if( ! suffix.equals( TABLE_SUFFIX ) && ! suffix.equals( LOG_SUFFIX ) )
+                        return -1;
+
+                try
+                {
+                        return Long.parseLong( name.substring( 0, dot ) );
+                }
+                catch( NumberFormatException e )
+                {
+                        return -1;
+                }
+        }
+
+        /**
+         * A mutable, sorted in-memory table together with its log.
+         */
+        private class Memtable
+        {
+                final long sequence;
+                final ConcurrentSkipListMap< byte[], byte[] > map =
+                        new ConcurrentSkipListMap< byte[], byte[] >( SSTable.COMPARATOR );
+                final File logfile;
+
+                private long size = 0;
+                private FileOutputStream logStream;
+                private DataOutputStream out;
+
+                Memtable( File dir, long sequence )
+                {
+                        this.sequence = sequence;
+                        this.logfile = new File( dir, sequence + LOG_SUFFIX );
+                }
+
+                /**
+                 * Replay an existing log into this memtable.
+                 */
+                void replay( )
+                {
+                        if( ! logfile.exists() )
+                                return;
+
+                        int replayed = 0;
+
+                        try
+                        {
+                                DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( logfile ) ) );
+                                try
+                                {
+                                        while( true )
+                                        {
+                                                byte op;
+                                                try
+                                                {
+                                                        op = in.readByte();
+                                                }
+                                                catch( EOFException e )
+                                                {
+                                                        break;
+                                                }
+
+                                                byte[] key = new byte[ in.readInt() ];
+                                                in.readFully( key );
+
+                                                if( OP_INSERT == op )
+                                                {
+                                                        byte[] value = new byte[ in.readInt() ];
+                                                        in.readFully( value );
+                                                        put( key, value );
+                                                }
+                                                else
+                                                {
+                                                        put( key, SSTable.TOMBSTONE );
+                                                }
+
+                                                ++replayed;
+                                        }
+                                }
+                                finally
+                                {
+                                        in.close();
+                                }
+                        }
+                        catch( EOFException e )
+                        {
+                                log.warn( "Log {} ends with an incomplete entry. Skipping it...", logfile.getPath() );
+                        }
+                        catch( IOException e )
+                        {
+                                throw new VoldException( "Could not replay log " + logfile.getPath() + ".", e );
+                        }
+
+                        log.info( "Replayed {} entries from log {}.", replayed, logfile.getPath() );
+                }
+
+                /**
+                 * Append an entry to the log and insert it into the memtable.
+                 */
+                void append( byte[] key, byte[] value )
+                        throws IOException
+                {
+                        write( key, value );
+                        sync();
+                }
+
+                /**
+                 * Append an entry to the log buffer and insert it into the memtable.
+                 *
+                 * @note The entry is not durable before sync() has been called.
+                 */
+                void write( byte[] key, byte[] value )
+                        throws IOException
+                {
+                        if( null == out )
+                        {
+                                logStream = new FileOutputStream( logfile, true );
+                                out = new DataOutputStream( new BufferedOutputStream( logStream ) );
+                        }
+
+                        if( SSTable.TOMBSTONE == value )
+                        {
+                                out.writeByte( OP_DELETE );
+                                out.writeInt( key.length );
+                                out.write( key );
+                        }
+                        else
+                        {
+                                out.writeByte( OP_INSERT );
+                                out.writeInt( key.length );
+                                out.write( key );
+                                out.writeInt( value.length );
+                                out.write( value );
+                        }
+
+                        put( key, value );
+                }
+
+                /**
+                 * Flush all appended entries to the log.
+                 */
+                void sync( )
+                        throws IOException
+                {
+                        if( null == out )
+                                return;
+
+                        out.flush();
+                        if( syncLog )
+                        {
+                                logStream.getFD().sync();
+                        }
+                }
+
+                private void put( byte[] key, byte[] value )
+                {
+                        map.put( key, value );
+                        size += key.length + value.length + 32;
+                }
+
+                long size( )
+                {
+                        return size;
+                }
+
+                /**
+                 * Close the log.
+                 */
+                void closeLog( )
+                {
+                        if( null == out )
+                                return;
+
+                        try
+                        {
+                                out.close();
+                        }
+                        catch( IOException e )
+                        {
+                                log.warn( "Could not close log {}: {}", logfile.getPath(), e.getMessage() );
+                        }
+
+                        out = null;
+                        logStream = null;
+                }
+        }
+
+        /**
+         * One partition consisting of memtables and SSTables.
+         *
+         * Writes are serialized on the partition. Reads are lock free: the
+         * memtables and the tables are read from the newest to the oldest by
+         * their sequence numbers, while a flush first publishes the new table
+         * and removes the flushed memtable afterwards.
+         *
+         * Since the memtables are flushed in order, all tables are older than
+         * the memtables not flushed yet. Thus, merged tables are always the
+         * oldest ones of the partition.
+         */
+        private class Partition
+        {
+                private final File dir;
+
+                private volatile Memtable active;
+                private final List< Memtable > flushing = new CopyOnWriteArrayList< Memtable >();
+                private volatile List< SSTable > tables = Collections.emptyList();
+                private boolean merging = false;
+                private volatile boolean stalled = false;
+                private boolean flushScheduled = false;
+
+                Partition( File dir )
+                {
+                        this.dir = dir;
+                }
+
+                /**
+                 * Map all tables and replay all logs of this partition.
+                 */
+                void load( )
+                {
+                        if( ! dir.isDirectory() && ! dir.mkdirs() )
+                        {
+                                throw new VoldException( "Could not create partition directory " + dir.getPath() + "." );
+                        }
+
+                        List< SSTable > loaded = new ArrayList< SSTable >();
+                        List< Long > logs = new ArrayList< Long >();
+
+                        for( File f: dir.listFiles() )
+                        {
+                                long seq = sequenceOf( f );
+
+                                if( f.getName().endsWith( ".tmp" ) )
+                                {
+                                        log.warn( "Removing incomplete table {}.", f.getPath() );
+                                        f.delete();
+                                }
+                                else if( seq < 0 )
+                                {
+                                        continue;
+                                }
+                                else if( f.getName().endsWith( TABLE_SUFFIX ) )
+                                {
+                                        try
+                                        {
+                                                loaded.add( SSTable.open( f, seq ) );
+                                        }
+                                        catch( IOException e )
+                                        {
+                                                throw new VoldException( "Could not open table " + f.getPath() + ".", e );
+                                        }
+                                }
+                                else
+                                {
+                                        logs.add( seq );
+                                }
+                        }
+
+                        // write each log to a table of its own sequence number
+                        for( Long seq: logs )
+                        {
+                                SSTable table = recover( seq, loaded );
+
+                                if( null != table )
+                                        loaded.add( table );
+                        }
+
+                        // newest table first
+                        Collections.sort( loaded, new Comparator< SSTable >()
+                        {
+                                public int compare( SSTable a, SSTable b )
+                                {
+                                        return Long.valueOf( b.getSequence() ).compareTo( a.getSequence() );
+                                }
+                        } );
+
+                        // remove tables left over by an interrupted merge
+                        {
+                                List< SSTable > current = new ArrayList< SSTable >( loaded.size() );
+
+                                for( SSTable table: loaded )
+                                {
+                                        if( superseded( table, current ) )
+                                        {
+                                                log.warn( "Removing table {}, which has been merged already.", table.getFile().getPath() );
+                                                table.getFile().delete();
+                                        }
+                                        else
+                                        {
+                                                current.add( table );
+                                        }
+                                }
+
+                                loaded = current;
+                        }
+
+                        tables = Collections.unmodifiableList( loaded );
+                        active = new Memtable( dir, sequence.incrementAndGet() );
+
+                        // continue merges not done before closing
+                        scheduleMerge();
+                }
+
+                /**
+                 * Write the log of a memtable not flushed before closing to a table.
+                 *
+                 * @param seq The sequence number of the log.
+                 * @param loaded The tables of the partition.
+                 * @return The new table or null, if the log held nothing new.
+                 */
+                private SSTable recover( long seq, List< SSTable > loaded )
+                {
+                        Memtable old = new Memtable( dir, seq );
+
+                        // flushed (and maybe merged) already, but the log has not been deleted
+                        for( SSTable table: loaded )
+                        {
+                                if( table.getSequence() == seq || ( table.getBase() <= seq && seq < table.getSequence() ) )
+                                {
+                                        old.logfile.delete();
+                                        return null;
+                                }
+                        }
+
+                        old.replay();
+
+                        SSTable table = null;
+                        if( ! old.map.isEmpty() )
+                        {
+                                try
+                                {
+                                        table = SSTable.write( new File( dir, seq + TABLE_SUFFIX ), seq, seq, old.map.entrySet().iterator(), blockSize );
+                                }
+                                catch( IOException e )
+                                {
+                                        throw new VoldException( "Could not write log " + old.logfile.getPath() + " to a table.", e );
+                                }
+                        }
+
+                        old.logfile.delete();
+                        return table;
+                }
+
+                /**
+                 * Refuse a write request while the flushes fail and the
+                 * active memtable is full.
+                 */
+                private void checkWritable( )
+                {
+                        if( stalled && active.size() >= memtableSize )
+                        {
+                                throw new VoldException( "Could not flush the memtables of partition " + dir.getName() + ". Refusing write requests until a flush succeeds." );
+                        }
+                }
+
+                /**
+                 * Write a value (or tombstone) for a key.
+                 */
+                synchronized void write( byte[] key, byte[] value )
+                {
+                        checkWritable();
+
+                        try
+                        {
+                                active.append( key, value );
+                        }
+                        catch( IOException e )
+                        {
+                                throw new VoldException( "Could not write log " + active.logfile.getPath() + ".", e );
+                        }
+
+                        if( active.size() >= memtableSize && ! stalled )
+                        {
+                                rotate();
+                        }
+                }
+
+                /**
+                 * Write tombstones for a set of keys.
+                 *
+                 * The log is flushed once for all keys.
+                 */
+                synchronized void delete( List< byte[] > keys )
+                {
+                        if( keys.isEmpty() )
+                                return;
+
+                        checkWritable();
+
+                        try
+                        {
+                                for( byte[] key: keys )
+                                {
+                                        active.write( key, SSTable.TOMBSTONE );
+                                }
+                                active.sync();
+                        }
+                        catch( IOException e )
+                        {
+                                throw new VoldException( "Could not write log " + active.logfile.getPath() + ".", e );
+                        }
+
+                        if( active.size() >= memtableSize && ! stalled )
+                        {
+                                rotate();
+                        }
+                }
+
+                /**
+                 * Replace the active memtable and schedule a flush of the old one.
+                 */
+                private void rotate( )
+                {
+                        final Memtable old = active;
+                        old.closeLog();
+
+                        flushing.add( 0, old );
+                        active = new Memtable( dir, sequence.incrementAndGet() );
+
+                        scheduleFlush( 0 );
+                }
+
+                /**
+                 * Schedule a flush of all memtables, unless one is pending.
+                 *
+                 * @param delay The time in ms to wait before flushing.
+                 */
+                private synchronized void scheduleFlush( long delay )
+                {
+                        if( flushScheduled )
+                                return;
+
+                        flushScheduled = true;
+
+                        try
+                        {
+                                worker.schedule( new Runnable()
+                                {
+                                        public void run( )
+                                        {
+                                                flushAll();
+                                        }
+                                }, delay, TimeUnit.MILLISECONDS );
+                        }
+                        // closing, the logs are written to tables on the next open
+                        catch( RejectedExecutionException e )
+                        {
+                                flushScheduled = false;
+                        }
+                }
+
+                /**
+                 * Flush the memtables from the oldest to the newest one.
+                 *
+                 * If a flush fails, the remaining memtables are flushed after
+                 * flushRetryDelay ms, thus a newer memtable is never flushed
+                 * before an older one.
+                 */
+                private void flushAll( )
+                {
+                        synchronized( this )
+                        {
+                                flushScheduled = false;
+                        }
+
+                        while( ! flushing.isEmpty() )
+                        {
+                                if( ! flush( flushing.get( flushing.size() - 1 ) ) )
+                                {
+                                        stalled = true;
+                                        scheduleFlush( flushRetryDelay );
+                                        return;
+                                }
+
+                                stalled = false;
+                        }
+                }
+
+                /**
+                 * Write a memtable to a new SSTable.
+                 *
+                 * @return false, if the memtable could not be written.
+                 */
+                private boolean flush( Memtable mem )
+                {
+                        SSTable table;
+                        try
+                        {
+                                table = SSTable.write(
+                                        new File( dir, mem.sequence + TABLE_SUFFIX ),
+                                        mem.sequence,
+                                        mem.sequence,
+                                        mem.map.entrySet().iterator(),
+                                        blockSize );
+                        }
+                        catch( IOException e )
+                        {
+                                log.error( "Could not flush memtable of partition {}, retrying in {} ms: {}", new Object[]{ dir.getName(), flushRetryDelay, e.getMessage() } );
+                                return false;
+                        }
+
+                        synchronized( this )
+                        {
+                                List< SSTable > l = new ArrayList< SSTable >( tables.size() + 1 );
+                                l.add( table );
+                                l.addAll( tables );
+                                tables = Collections.unmodifiableList( l );
+
+                                flushing.remove( mem );
+                        }
+
+                        mem.logfile.delete();
+
+                        if( log.isDebugEnabled() )
+                        {
+                                log.debug( "Flushed {} entries of partition {} to {}.", new Object[]{ mem.map.size(), dir.getName(), table.getFile().getName() } );
+                        }
+
+                        scheduleMerge();
+                        return true;
+                }
+
+                /**
+                 * Schedule a merge if the partition holds too many tables.
+                 */
+                private synchronized void scheduleMerge( )
+                {
+                        if( merging || tables.size() < mergeThreshold )
+                                return;
+
+                        merging = true;
+
+                        try
+                        {
+                                worker.execute( new Runnable()
+                                {
+                                        public void run( )
+                                        {
+                                                try
+                                                {
+                                                        // take all tables flushed until now
+                                                        merge( tables );
+                                                }
+                                                finally
+                                                {
+                                                        synchronized( Partition.this )
+                                                        {
+                                                                merging = false;
+                                                        }
+                                                }
+                                        }
+                                } );
+                        }
+                        // closing, the tables are merged after the next open
+                        catch( RejectedExecutionException e )
+                        {
+                                merging = false;
+                        }
+                }
+
+                /**
+                 * Merge a set of tables into one.
+                 *
+                 * Since the merged tables are always the oldest ones of the
+                 * partition, tombstones can be dropped. The merged table
+                 * replaces the newest one of the merged tables and supersedes
+                 * all others, even if they cannot be deleted before a crash.
+                 */
+                private void merge( List< SSTable > merge )
+                {
+                        long seq = merge.get( 0 ).getSequence();
+                        long base = merge.get( merge.size() - 1 ).getBase();
+
+                        SSTable merged;
+                        try
+                        {
+                                merged = SSTable.write( new File( dir, seq + TABLE_SUFFIX ), seq, base, new MergeIterator( merge ), blockSize );
+                        }
+                        catch( IOException e )
+                        {
+                                log.error( "Could not merge tables of partition {}: {}", dir.getName(), e.getMessage() );
+                                return;
+                        }
+
+                        synchronized( this )
+                        {
+                                List< SSTable > l = new ArrayList< SSTable >( tables );
+                                l.removeAll( merge );
+                                l.add( merged );
+                                tables = Collections.unmodifiableList( l );
+                        }
+
+                        // readers still holding the old tables keep their mappings
+                        for( SSTable t: merge )
+                        {
+                                if( t.getSequence() != seq )
+                                        t.getFile().delete();
+                        }
+
+                        if( log.isDebugEnabled() )
+                        {
+                                log.debug( "Merged {} tables of partition {} into {} entries.", new Object[]{ merge.size(), dir.getName(), merged.size() } );
+                        }
+                }
+
+                /**
+                 * Read the memtables and tables from the newest to the oldest one.
+                 *
+                 * The memtables are taken before the tables. Thus, a memtable
+                 * flushed meanwhile is read twice at most, but never missed.
+                 */
+                private void read( Reader reader )
+                {
+                        if( reader.read( active ) )
+                                return;
+
+                        List< Memtable > mems = new ArrayList< Memtable >( flushing );
+                        List< SSTable > tabs = tables;
+
+                        int i = 0;
+                        int j = 0;
+                        while( i < mems.size() || j < tabs.size() )
+                        {
+                                boolean done;
+
+                                if( j == tabs.size() || ( i < mems.size() && mems.get( i ).sequence > tabs.get( j ).getSequence() ) )
+                                {
+                                        done = reader.read( mems.get( i++ ) );
+                                }
+                                else
+                                {
+                                        done = reader.read( tabs.get( j++ ) );
+                                }
+
+                                if( done )
+                                        return;
+                        }
+                }
+
+                /**
+                 * Query the most recent value of a key.
+                 */
+                byte[] lookup( final byte[] key )
+                {
+                        final byte[][] found = new byte[ 1 ][];
+
+                        read( new Reader()
+                        {
+                                boolean read( Memtable mem )
+                                {
+                                        found[ 0 ] = mem.map.get( key );
+                                        return null != found[ 0 ];
+                                }
+
+                                boolean read( SSTable table )
+                                {
+                                        found[ 0 ] = table.lookup( key );
+                                        return null != found[ 0 ];
+                                }
+                        } );
+
+                        return found[ 0 ];
+                }
+
+                /**
+                 * Collect the most recent values of all keys beginning with prefix.
+                 */
+                Map< byte[], byte[] > scan( final byte[] prefix )
+                {
+                        final Map< byte[], byte[] > result = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+
+                        read( new Reader()
+                        {
+                                boolean read( Memtable mem )
+                                {
+                                        scan( mem, prefix, result );
+                                        return false;
+                                }
+
+                                boolean read( SSTable table )
+                                {
+                                        table.scan( prefix, result );
+                                        return false;
+                                }
+                        } );
+
+                        return result;
+                }
+
+                /**
+                 * Collect the most recent values of all keys within a range.
+                 */
+                Map< byte[], byte[] > scan( final byte[] from, final byte[] to )
+                {
+                        final Map< byte[], byte[] > result = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+
+                        if( SSTable.COMPARATOR.compare( from, to ) >= 0 )
+                                return result;
+
+                        read( new Reader()
+                        {
+                                boolean read( Memtable mem )
+                                {
+                                        scan( mem, from, to, result );
+                                        return false;
+                                }
+
+                                boolean read( SSTable table )
+                                {
+                                        table.scan( from, to, result );
+                                        return false;
+                                }
+                        } );
+
+                        return result;
+                }
+
+                private void scan( Memtable mem, byte[] from, byte[] to, Map< byte[], byte[] > result )
+                {
+                        for( Map.Entry< byte[], byte[] > entry: mem.map.subMap( from, to ).entrySet() )
+                        {
+                                if( ! result.containsKey( entry.getKey() ) )
+                                {
+                                        result.put( entry.getKey(), entry.getValue() );
+                                }
+                        }
+                }
+
+                private void scan( Memtable mem, byte[] prefix, Map< byte[], byte[] > result )
+                {
+                        for( Map.Entry< byte[], byte[] > entry: mem.map.tailMap( prefix ).entrySet() )
+                        {
+                                byte[] key = entry.getKey();
+
+                                if( ! startsWith( key, prefix ) )
+                                        break;
+
+                                if( ! result.containsKey( key ) )
+                                {
+                                        result.put( key, entry.getValue() );
+                                }
+                        }
+                }
+
+                void close( )
+                {
+                        active.closeLog();
+                }
+        }
+
+        /**
+         * Reads a memtable or table of a partition.
+         *
+         * @see Partition#read
+         */
+        private static abstract class Reader
+        {
+                /**
+                 * @return true, if no older memtable or table has to be read.
+                 */
+                abstract boolean read( Memtable mem );
+
+                /**
+                 * @return true, if no older memtable or table has to be read.
+                 */
+                abstract boolean read( SSTable table );
+        }
+
+        /**
+         * Check whether a table has been merged into one of a list of tables.
+         */
+        private static boolean superseded( SSTable table, List< SSTable > tables )
+        {
+                for( SSTable t: tables )
+                {
+                        if( t.supersedes( table ) )
+                                return true;
+                }
+                return false;
+        }
+
+        /**
+         * Check whether a byte array starts with prefix.
+         */
+        private static boolean startsWith( byte[] key, byte[] prefix )
+        {
+                if( key.length < prefix.length )
+                        return false;
+
+                for( int i = 0; i < prefix.length; ++i )
+                {
+                        if( key[ i ] != prefix[ i ] )
+                                return false;
+                }
+                return true;
+        }
+
+        /**
+         * Merge several tables (given from newest to oldest) in key order.
+         *
+         * For equal keys, the entry of the newest table wins. Tombstones are
+         * skipped.
+         */
+        private static class MergeIterator implements Iterator< Map.Entry< byte[], byte[] > >
+        {
+                private final PriorityQueue< Cursor > queue;
+                private Map.Entry< byte[], byte[] > next;
+
+                MergeIterator( List< SSTable > tables )
+                {
+                        queue = new PriorityQueue< Cursor >( Math.max( tables.size(), 1 ), new Comparator< Cursor >()
+                        {
+                                public int compare( Cursor a, Cursor b )
+                                {
+                                        int cmp = SSTable.COMPARATOR.compare( a.current.getKey(), b.current.getKey() );
+                                        if( 0 != cmp )
+                                                return cmp;
+
+                                        // newer tables first
+                                        return a.age - b.age;
+                                }
+                        } );
+
+                        for( int i = 0; i < tables.size(); ++i )
+                        {
+                                Cursor c = new Cursor( tables.get( i ).iterator(), i );
+                                if( c.advance() )
+                                        queue.add( c );
+                        }
+
+                        advance();
+                }
+
+                private void advance( )
+                {
+                        next = null;
+
+                        while( null == next && ! queue.isEmpty() )
+                        {
+                                Cursor c = queue.poll();
+                                Map.Entry< byte[], byte[] > entry = c.current;
+
+                                // skip older versions of the same key
+                                while( ! queue.isEmpty() &&
+                                       0 == SSTable.COMPARATOR.compare( queue.peek().current.getKey(), entry.getKey() ) )
+                                {
+                                        Cursor older = queue.poll();
+                                        if( older.advance() )
+                                                queue.add( older );
+                                }
+
+                                if( c.advance() )
+                                        queue.add( c );
+
+                                if( SSTable.TOMBSTONE != entry.getValue() )
+                                        next = entry;
+                        }
+                }
+
+                public boolean hasNext( )
+                {
+                        return null != next;
+                }
+
+                public Map.Entry< byte[], byte[] > next( )
+                {
+                        if( null == next )
+                                throw new NoSuchElementException();
+
+                        Map.Entry< byte[], byte[] > result = next;
+                        advance();
+                        return result;
+                }
+
+                public void remove( )
+                {
+                        throw new UnsupportedOperationException();
+                }
+
+                private static class Cursor
+                {
+                        final Iterator< Map.Entry< byte[], byte[] > > it;
+                        final int age;
+                        Map.Entry< byte[], byte[] > current;
+
+                        Cursor( Iterator< Map.Entry< byte[], byte[] > > it, int age )
+                        {
+                                this.it = it;
+                                this.age = age;
+                        }
+
+                        boolean advance( )
+                        {
+                                current = it.hasNext() ? it.next() : null;
+                                return null != current;
+                        }
+                }
+        }
+
+        /**
+         * Convert a directory (interface language) to a byte array (backend language).
+         *
+         * @param l             The directory to transform to lower level.
+         * @return              The byte array joined by null bytes.
+         *
+         * @throws VoldException
+         **/
+        private byte[] _buildkey( List< String > l )
+        {
+                if( l.isEmpty() )
+                        return new byte[0];
+
+                byte[][] parts = new byte[ l.size() ][];
+                int size = l.size() - 1;
+
+                int i = 0;
+                for( String s: l )
+                {
+                        try
+                        {
+                                parts[ i ] = s.getBytes( enc );
+                        }
+                        catch( UnsupportedEncodingException e )
+                        {
+                                throw new VoldException( e );
+                        }
+                        size += parts[ i ].length;
+                        ++i;
+                }
+
+                byte[] result = new byte[ size ];
+                int offset = 0;
+                for( i = 0; i < parts.length; ++i )
+                {
+                        if( i > 0 )
+                        {
+                                result[ offset++ ] = 0;
+                        }
+                        System.arraycopy( parts[ i ], 0, result, offset, parts[ i ].length );
+                        offset += parts[ i ].length;
+                }
+
+                return result;
+        }
+
+        /**
+         * Convert a byte array (backend language) to a directory (interface language).
+         *
+         * @param _key          The key to transform to higher level.
+         * @return              The directory.
+         *
+         * @throws VoldException
+         **/
+        private List< String > buildkey( byte[] _key )
+        {
+                List< String > result = new LinkedList< String >();
+
+                int offset = 0;
+                for( int i = 0; i <= _key.length; ++i )
+                {
+                        if( i == _key.length || 0 == _key[ i ] )
+                        {
+                                try
+                                {
+                                        result.add( new String( _key, offset, i - offset, enc ) );
+                                }
+                                catch( UnsupportedEncodingException e )
+                                {
+                                        throw new VoldException( e );
+                                }
+
+                                offset = i+1;
+                        }
+                }
+
+                return result;
+        }
+}
@@ -18,6 +18,7 @@ package de.zib.vold.backend;
 
 import de.zib.vold.common.VoldException;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -214,7 +215,10 @@ public class WriteLogger implements PartitionedDirectoryBackend
     {
         // guard
         {
-            log.trace( "Insert: " + partition + ":'" + key.toString() + "' -> '" + value.toString() + "'" );
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "Insert: {}:'{}' -> '{}'", new Object[]{ partition, key, value } );
+            }
 
             checkState();
 
@@ -248,7 +252,7 @@ public class WriteLogger implements PartitionedDirectoryBackend
     {
         // guard
         {
-            log.trace( "Delete: " + key.toString() + "'" );
+            log.trace( "Delete: {}:'{}'", partition, key );
 
             checkState();
 
@@ -277,7 +281,7 @@ public class WriteLogger implements PartitionedDirectoryBackend
     {
         // guard
         {
-            log.trace( "Lookup: " + partition + ":'" + key.toString() + "'" );
+            log.trace( "Lookup: {}:'{}'", partition, key );
         }
 
         throw new NotSupportedException( "WriteLogger does not have the ability to lookup. It's a write-only backend!" );
@@ -291,9 +295,71 @@ public class WriteLogger implements PartitionedDirectoryBackend
     {
         // guard
         {
-            log.trace( "PrefixLookup: " + partition + ":'" + key.toString() + "'" );
+            log.trace( "PrefixLookup: {}:'{}'", partition, key );
+        }
+
+        throw new NotSupportedException( "WriteLogger does not have the ability to lookup. It's a write-only backend!" );
+    }
+
+    /**
+     * Not implemented.
+     */
+    @Override
+    public Map< List< String >, List< String > > rangelookup( int partition, List< String > from, List< String > to )
+    {
+        // guard
+        {
+            log.trace( "RangeLookup: {}:'{}'-'{}'", new Object[]{ partition, from, to } );
         }
 
         throw new NotSupportedException( "WriteLogger does not have the ability to lookup. It's a write-only backend!" );
     }
+
+    /**
+     * Log a range deletion.
+     *
+     * @throws VoldException
+     */
+    @Override
+    public void rangedelete( int partition, List< String > from, List< String > to )
+    {
+        // guard
+        {
+            log.trace( "RangeDelete: {}:'{}'-'{}'", new Object[]{ partition, from, to } );
+
+            checkState();
+
+            if( ! this.isopen() )
+            {
+                throw new VoldException( "Tried to operate on WriteLogger while it had not been initialized yet. Open it first!" );
+            }
+        }
+
+        try
+        {
+            out.write( "RANGEDELETE: " + from.toString() + " - " + to.toString() );
+            out.newLine();
+        }
+        catch( IOException e )
+        {
+            throw new VoldException( e );
+        }
+    }
+
+    /**
+     * Log a request for a delete of each key.
+     *
+     * @param partition             The partition to delete the keys from.
+     * @param keys                  The keys to delete.
+     *
+     * @throws VoldException
+     */
+    @Override
+    public void bulkdelete( int partition, Collection< List< String > > keys )
+    {
+        for( List< String > key: keys )
+        {
+            delete( partition, key );
+        }
+    }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.frontend;
+
+import de.zib.vold.common.Key;
+import de.zib.vold.metrics.TopK;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Samples the requests of a Frontend to find hot keys and scopes.
+ *
+ * One of sampleRate requests is counted, separately for lookups and write
+ * requests, per key and per scope (see TopK). Prefix lookups are counted per
+ * prefix with the number of keys found (their fan-out), which is also kept
+ * in a histogram of powers of two. All reported counts are scaled by the
+ * sample rate, thus they estimate the real number of requests.
+ *
+ * @see Frontend
+ * @see de.zib.vold.userInterface.HotKeysController
+ */
+public class AccessSampler
+{
+    // fan-outs up to 2^30 keys
+    private static final int BUCKETS = 32;
+
+    private int sampleRate = 16;
+    private int size = 20;
+    private int width = 2048;
+
+    // requests seen per kind, thus the kinds are sampled independently
+    private final AtomicLong lookups = new AtomicLong( 0 );
+    private final AtomicLong writes = new AtomicLong( 0 );
+    private final AtomicLong prefixLookups = new AtomicLong( 0 );
+    private final AtomicLongArray fanOuts = new AtomicLongArray( BUCKETS );
+
+    private volatile TopK lookupKeys;
+    private volatile TopK lookupScopes;
+    private volatile TopK writeKeys;
+    private volatile TopK writeScopes;
+    private volatile TopK prefixes;
+
+    /**
+     * Construct a sampler with default properties.
+     */
+    public AccessSampler( )
+    {
+        clear();
+    }
+
+    /**
+     * Set the rate of requests counted, e.g. 16 for one of 16 requests.
+     */
+    public void setSampleRate( int sampleRate )
+    {
+        if( sampleRate < 1 )
+        {
+            throw new IllegalArgumentException( "The sample rate must be positive, but sampleRate=" + sampleRate + " has been given!" );
+        }
+
+        this.sampleRate = sampleRate;
+    }
+
+    public int getSampleRate( )
+    {
+        return sampleRate;
+    }
+
+    /**
+     * Set the number of hot keys and scopes to keep.
+     *
+     * @note        This property only takes effect on the next clear.
+     */
+    public void setSize( int size )
+    {
+        if( size < 1 )
+        {
+            throw new IllegalArgumentException( "The size must be positive, but size=" + size + " has been given!" );
+        }
+
+        this.size = size;
+    }
+
+    public int getSize( )
+    {
+        return size;
+    }
+
+    /**
+     * Set the width of the sketches, which bounds the error of the counts.
+     *
+     * @note        This property only takes effect on the next clear.
+     */
+    public void setWidth( int width )
+    {
+        if( width < 1 )
+        {
+            throw new IllegalArgumentException( "The width must be positive, but width=" + width + " has been given!" );
+        }
+
+        this.width = width;
+    }
+
+    public int getWidth( )
+    {
+        return width;
+    }
+
+    /**
+     * Forget all samples.
+     */
+    public synchronized void clear( )
+    {
+        lookupKeys = new TopK( size, width );
+        lookupScopes = new TopK( size, width );
+        writeKeys = new TopK( size, width );
+        writeScopes = new TopK( size, width );
+        prefixes = new TopK( size, width );
+
+        for( int i = 0; i < BUCKETS; ++i )
+        {
+            fanOuts.set( i, 0 );
+        }
+    }
+
+    /**
+     * Count a lookup of a key.
+     */
+    public void lookup( Key key )
+    {
+        if( ! sample( lookups ) )
+            return;
+
+        lookupKeys.add( name( key ), 1 );
+        lookupScopes.add( key.get_scope(), 1 );
+    }
+
+    /**
+     * Count a write request on a key.
+     */
+    public void write( Key key )
+    {
+        if( ! sample( writes ) )
+            return;
+
+        writeKeys.add( name( key ), 1 );
+        writeScopes.add( key.get_scope(), 1 );
+    }
+
+    /**
+     * Count the keys found by a prefix lookup.
+     *
+     * @param prefix The prefix looked up.
+     * @param found The number of keys found.
+     */
+    public void prefixLookup( Key prefix, int found )
+    {
+        if( ! sample( prefixLookups ) )
+            return;
+
+        prefixes.add( name( prefix ), found );
+        fanOuts.incrementAndGet( bucket( found ) );
+    }
+
+    /**
+     * Write a report of all samples.
+     *
+     * @param out The writer to write the report to.
+     * @param limit The maximum number of keys or scopes per list.
+     */
+    public void write( Writer out, int limit )
+            throws IOException
+    {
+        final long rate = sampleRate;
+
+        out.write( "# estimated counts, sampled at 1/" + rate + "\n" );
+
+        write( out, "lookup_keys", lookupKeys, rate, limit );
+        write( out, "lookup_scopes", lookupScopes, rate, limit );
+        write( out, "write_keys", writeKeys, rate, limit );
+        write( out, "write_scopes", writeScopes, rate, limit );
+        write( out, "prefix_fanout_keys", prefixes, rate, limit );
+
+        out.write( "prefix_fanout_histogram\n" );
+        for( int i = 0; i < BUCKETS; ++i )
+        {
+            long count = fanOuts.get( i );
+
+            if( 0 != count )
+            {
+                out.write( "  <=" + ( 0 == i ? 0 : ( 1L << ( i - 1 ) ) ) + " " + count * rate + "\n" );
+            }
+        }
+    }
+
+    private static void write( Writer out, String title, TopK topk, long rate, int limit )
+            throws IOException
+    {
+        List< Map.Entry< String, Long > > top = topk.top();
+
+        out.write( title + " total " + topk.total() * rate + "\n" );
+
+        for( int i = 0; i < top.size() && i < limit; ++i )
+        {
+            out.write( "  " + top.get( i ).getKey() + " " + top.get( i ).getValue() * rate + "\n" );
+        }
+    }
+
+    /**
+     * Decide whether to count this request.
+     *
+     * @param requests The number of requests of this kind.
+     */
+    private boolean sample( AtomicLong requests )
+    {
+        return 1 == sampleRate || 0 == requests.incrementAndGet() % sampleRate;
+    }
+
+    /**
+     * Get the bucket of a fan-out: 0 for none, i for up to 2^(i-1) keys.
+     */
+    private static int bucket( int found )
+    {
+        if( found <= 0 )
+            return 0;
+
+        int bucket = 33 - Integer.numberOfLeadingZeros( found - 1 );
+
+        return Math.min( bucket, BUCKETS - 1 );
+    }
+
+    /**
+     * Get the name of a key as used in URIs (scope, type and keyname).
+     */
+    private static String name( Key key )
+    {
+        return key.get_scope() + key.get_type() + ":" + key.get_keyname();
+    }
+}
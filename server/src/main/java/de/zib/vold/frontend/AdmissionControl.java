@@ -0,0 +1,321 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.frontend;
+
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.Gauge;
+import de.zib.vold.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Rejects requests of a Frontend early when a source or the node is overloaded.
+ *
+ * Each source owns a token bucket, refilled with rate tokens per second up to
+ * burst tokens. Each operation of a write request takes one token of its
+ * source. A request is rejected if the bucket of its source is empty. A
+ * request larger than the bucket is admitted when the bucket is full, and
+ * the source has to wait until the tokens are paid back.
+ *
+ * Additionally, at most maxConcurrentRequests requests (including lookups)
+ * may be processed or wait for the lock of the Frontend at once. Requests
+ * exceeding this limit are rejected right away instead of queueing up.
+ *
+ * Rejected requests fail with an AdmissionException, which is answered with
+ * 429 (Too Many Requests) by the REST interface.
+ *
+ * @note        The buckets of at most maxSources sources are kept. When this
+ *              limit is reached, the bucket of the least recently charged
+ *              source is dropped, thus this source starts with a full
+ *              bucket again.
+ *
+ * @see Frontend
+ * @see AdmissionException
+ */
+public class AdmissionControl
+{
+    protected final Logger log = LoggerFactory.getLogger( this.getClass() );
+
+    private final Counter admitted = MetricsRegistry.getDefault().counter(
+            "vold_admission_admitted_total", "Number of requests admitted by the admission control." );
+    private final Counter rateRejected = MetricsRegistry.getDefault().counter(
+            "vold_admission_rejected_total", "Number of requests rejected by the admission control.", "reason", "rate" );
+    private final Counter concurrencyRejected = MetricsRegistry.getDefault().counter(
+            "vold_admission_rejected_total", "Number of requests rejected by the admission control.", "reason", "concurrency" );
+
+    private double rate = 0;
+    private double burst = 0;
+    private int maxSources = 10000;
+    private int maxConcurrentRequests = 0;
+
+    // access ordered, guarded by itself
+    private final Map< String, Bucket > buckets = new LinkedHashMap< String, Bucket >( 16, 0.75f, true )
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry< String, Bucket > eldest )
+        {
+            return size() > maxSources;
+        }
+    };
+    private Semaphore slots = null;
+
+    /**
+     * Construct an admission control admitting all requests.
+     */
+    public AdmissionControl( )
+    {
+        MetricsRegistry.getDefault().gauge( "vold_admission_sources",
+                "Number of sources with a token bucket.", new Gauge()
+                {
+                    public long value( )
+                    {
+                        synchronized( buckets )
+                        {
+                            return buckets.size();
+                        }
+                    }
+                } );
+        MetricsRegistry.getDefault().gauge( "vold_admission_concurrent_requests",
+                "Number of admitted requests in progress.", new Gauge()
+                {
+                    public long value( )
+                    {
+                        Semaphore s = slots;
+                        return null == s ? 0 : maxConcurrentRequests - s.availablePermits();
+                    }
+                } );
+    }
+
+    /**
+     * Set the number of operations per second allowed for each source.
+     *
+     * @param rate The rate or 0, to not limit the sources.
+     */
+    public void setRate( double rate )
+    {
+        if( rate < 0 )
+        {
+            throw new IllegalArgumentException( "The rate must not be negative, but rate=" + rate + " has been given!" );
+        }
+
+        this.rate = rate;
+        clear();
+    }
+
+    public double getRate( )
+    {
+        return rate;
+    }
+
+    /**
+     * Set the number of operations a source may send at once.
+     *
+     * @param burst The size of the buckets or 0, to use one second of the rate.
+     */
+    public void setBurst( double burst )
+    {
+        if( burst < 0 )
+        {
+            throw new IllegalArgumentException( "The burst must not be negative, but burst=" + burst + " has been given!" );
+        }
+
+        this.burst = burst;
+        clear();
+    }
+
+    public double getBurst( )
+    {
+        return burst;
+    }
+
+    /**
+     * Set the number of sources to keep buckets for.
+     *
+     * @note        A smaller limit takes effect with the next new source.
+     */
+    public void setMaxSources( int maxSources )
+    {
+        if( maxSources < 1 )
+        {
+            throw new IllegalArgumentException( "The number of sources must be positive, but maxSources=" + maxSources + " has been given!" );
+        }
+
+        this.maxSources = maxSources;
+    }
+
+    public int getMaxSources( )
+    {
+        return maxSources;
+    }
+
+    /**
+     * Set the number of requests processed at once.
+     *
+     * @note        This property must not be changed while requests are in
+     *              progress.
+     *
+     * @param maxConcurrentRequests The limit or 0, to not limit requests.
+     */
+    public synchronized void setMaxConcurrentRequests( int maxConcurrentRequests )
+    {
+        if( maxConcurrentRequests < 0 )
+        {
+            throw new IllegalArgumentException( "The number of requests must not be negative, but maxConcurrentRequests=" + maxConcurrentRequests + " has been given!" );
+        }
+
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.slots = 0 == maxConcurrentRequests ? null : new Semaphore( maxConcurrentRequests );
+    }
+
+    public int getMaxConcurrentRequests( )
+    {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Admit a request.
+     *
+     * Each admitted request has to be released when it is done.
+     *
+     * @param source The source to charge or null, to charge no source.
+     * @param operations The number of operations of the request.
+     *
+     * @throws AdmissionException if the request is rejected.
+     *
+     * @see release
+     */
+    public void admit( String source, int operations )
+    {
+        Semaphore s = slots;
+        if( null != s && ! s.tryAcquire() )
+        {
+            concurrencyRejected.inc();
+            throw new AdmissionException( "Too many concurrent requests (" + maxConcurrentRequests + ")." );
+        }
+
+        if( null != source && rate > 0 && operations > 0 )
+        {
+            if( ! bucket( source ).take( operations ) )
+            {
+                if( null != s )
+                {
+                    s.release();
+                }
+
+                rateRejected.inc();
+                throw new AdmissionException( "Source " + source + " exceeded its rate of " + rate + " operations per second." );
+            }
+        }
+
+        admitted.inc();
+    }
+
+    /**
+     * Release an admitted request.
+     *
+     * @see admit
+     */
+    public void release( )
+    {
+        Semaphore s = slots;
+        if( null != s )
+        {
+            s.release();
+        }
+    }
+
+    /**
+     * Get the bucket of a source, creating it if necessary.
+     *
+     * A new bucket evicts the one of the least recently charged source, if
+     * maxSources is exceeded.
+     */
+    private Bucket bucket( String source )
+    {
+        synchronized( buckets )
+        {
+            Bucket bucket = buckets.get( source );
+
+            if( null == bucket )
+            {
+                bucket = new Bucket( rate, 0 == burst ? rate : burst );
+                buckets.put( source, bucket );
+            }
+
+            return bucket;
+        }
+    }
+
+    /**
+     * Drop the buckets of all sources.
+     */
+    private void clear( )
+    {
+        synchronized( buckets )
+        {
+            buckets.clear();
+        }
+    }
+
+    /**
+     * The token bucket of one source.
+     */
+    private static final class Bucket
+    {
+        private final double rate;
+        private final double size;
+
+        private double tokens;
+        private long refilled;
+
+        Bucket( double rate, double size )
+        {
+            this.rate = rate;
+            this.size = size;
+            this.tokens = size;
+            this.refilled = System.nanoTime();
+        }
+
+        /**
+         * Take tokens, if there are enough (or the bucket is full).
+         */
+        synchronized boolean take( int n )
+        {
+            refill( System.nanoTime() );
+
+            if( tokens < Math.min( n, size ) )
+                return false;
+
+            tokens -= n;
+            return true;
+        }
+
+        private void refill( long now )
+        {
+            if( now <= refilled )
+                return;
+
+            tokens = Math.min( size, tokens + ( now - refilled ) * rate / 1e9 );
+            refilled = now;
+        }
+    }
+}
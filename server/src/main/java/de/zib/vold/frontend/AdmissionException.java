@@ -0,0 +1,49 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.frontend;
+
+import de.zib.vold.common.VoldException;
+
+/**
+ * The Exception which will be thrown on requests rejected by the admission
+ * control.
+ *
+ * @see AdmissionControl
+ */
+public class AdmissionException extends VoldException
+{
+        static final long serialVersionUID = 1;
+
+        public AdmissionException( )
+        {
+                super();
+        }
+
+        public AdmissionException( String message )
+        {
+                super( message );
+        }
+
+        public AdmissionException( String message, Throwable cause )
+        {
+                super( message, cause );
+        }
+
+        public AdmissionException( Throwable cause )
+        {
+                super( cause );
+        }
+}
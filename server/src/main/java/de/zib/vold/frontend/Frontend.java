@@ -16,16 +16,22 @@
 
 package de.zib.vold.frontend;
 
+import de.zib.vold.common.CompactKey;
 import de.zib.vold.common.Key;
+import de.zib.vold.common.URIKey;
 import de.zib.vold.common.VoldException;
+import de.zib.vold.metrics.LatencyHistogram;
+import de.zib.vold.metrics.MetricsRegistry;
 import de.zib.vold.volatilelogic.VolatileDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -43,15 +49,33 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class Frontend
 {
     private static final Logger log = LoggerFactory.getLogger( Frontend.class );
-    private final ReentrantReadWriteLock rwlock;
+    private ReadWriteLock rwlock;
 
     private VolatileDirectory volatileDirectory;
+    private AccessSampler sampler;
+    private AdmissionControl admission;
+
+    private final LatencyHistogram insertLatency = MetricsRegistry.getDefault().histogram(
+            "vold_frontend_insert_seconds", "Latency of inserts in the frontend, including waiting for the lock." );
+    private final LatencyHistogram refreshLatency = MetricsRegistry.getDefault().histogram(
+            "vold_frontend_refresh_seconds", "Latency of refreshs in the frontend, including waiting for the lock." );
+    private final LatencyHistogram deleteLatency = MetricsRegistry.getDefault().histogram(
+            "vold_frontend_delete_seconds", "Latency of deletes in the frontend, including waiting for the lock." );
+    private final LatencyHistogram lookupLatency = MetricsRegistry.getDefault().histogram(
+            "vold_frontend_lookup_seconds", "Latency of (recursive) lookups in the frontend, including waiting for the lock." );
+    private final LatencyHistogram refreshSourceLatency = MetricsRegistry.getDefault().histogram(
+            "vold_frontend_refreshsource_seconds", "Latency of refreshing all keys of a source in the frontend, including waiting for the lock." );
+    private final LatencyHistogram batchLatency = MetricsRegistry.getDefault().histogram(
+            "vold_frontend_batch_seconds", "Latency of batches in the frontend, including waiting for the lock." );
+    private final LatencyHistogram writeLockWait = MetricsRegistry.getDefault().histogram(
+            "vold_frontend_write_lock_wait_seconds", "Time spent waiting for the write lock of the frontend." );
 
     final String scopeDelimiter = "/";
 
     // properties
     private boolean recursiveScopeLookups;
     private boolean prefixLookupsAllowed;
+    private boolean readOnly;
 
     /**
      * Construct an uninitialized Frontend.
@@ -59,12 +83,15 @@ public class Frontend
     public Frontend( )
     {
         this.volatileDirectory = null;
+        this.sampler = null;
+        this.admission = null;
 
         this.rwlock = new ReentrantReadWriteLock( true );
 
         // properties
         setRecursiveScopeLookups( true );
         setPrefixLookupsAllowed( true );
+        setReadOnly( false );
     }
 
     /**
@@ -75,6 +102,54 @@ public class Frontend
         this.volatileDirectory = volatileDirectory;
     }
 
+    /**
+     * Set the sampler counting the requests per key and scope.
+     *
+     * @param sampler The sampler or null, to count nothing.
+     */
+    public void setSampler( AccessSampler sampler )
+    {
+        this.sampler = sampler;
+    }
+
+    public AccessSampler getSampler( )
+    {
+        return this.sampler;
+    }
+
+    /**
+     * Set the admission control rejecting requests on overload.
+     *
+     * @param admission The admission control or null, to admit all requests.
+     */
+    public void setAdmission( AdmissionControl admission )
+    {
+        this.admission = admission;
+    }
+
+    public AdmissionControl getAdmission( )
+    {
+        return this.admission;
+    }
+
+    /**
+     * Set the lock serializing the requests on the volatile directory.
+     *
+     * Lookups hold its read lock, all other requests its write lock. Other
+     * components accessing the volatile directory behind the frontend (e.g.
+     * the repairs of replicas or the change feed) have to share this lock.
+     * By default, the frontend uses a fair lock of its own.
+     */
+    public void setLock( ReadWriteLock lock )
+    {
+        this.rwlock = lock;
+    }
+
+    public ReadWriteLock getLock( )
+    {
+        return this.rwlock;
+    }
+
     /**
      * Are recursive scope lookups enabled?
      */
@@ -114,6 +189,25 @@ public class Frontend
         this.prefixLookupsAllowed = prefixLookupsAllowed;
     }
 
+    /**
+     * Are write requests rejected?
+     */
+    public boolean getReadOnly( )
+    {
+        return this.readOnly;
+    }
+
+    /**
+     * Enable/disable the read-only mode.
+     *
+     * In read-only mode, all write requests fail, e.g. on a follower whose
+     * directory is written by a ChangeFeedFollower only.
+     */
+    public void setReadOnly( boolean readOnly )
+    {
+        this.readOnly = readOnly;
+    }
+
     /**
      * Internal method which acts as part of the guard of all public methods.
      */
@@ -125,6 +219,37 @@ public class Frontend
         }
     }
 
+    /**
+     * Internal method which acts as part of the guard of all write requests.
+     */
+    protected void checkWritable( )
+    {
+        if( readOnly )
+        {
+            throw new VoldException( "This VolD node is read-only. Send write requests to its primary!" );
+        }
+    }
+
+    /**
+     * Admit a request by the admission control, if set.
+     *
+     * @throws AdmissionException if the request is rejected.
+     */
+    private void admit( String source, int operations )
+    {
+        if( null != admission )
+            admission.admit( source, operations );
+    }
+
+    /**
+     * Release an admitted request.
+     */
+    private void release( )
+    {
+        if( null != admission )
+            admission.release();
+    }
+
     /**
      * Prepare key for (prefix-) lookup.
      *
@@ -160,23 +285,35 @@ public class Frontend
     {
         // guard
         {
-            log.trace( "Insert: from source " + source + ": " + key._buildkey().toString() + " |--> " + value.toString()  );
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "Insert: from source {}: {} |--> {}", new Object[]{ source, key, value } );
+            }
 
             checkState();
+            checkWritable();
         }
 
+        if( null != sampler )
+            sampler.write( key );
+
+        final List< String > _key = CompactKey.of( key, source );
+
+        admit( source, 1 );
+
+        final long start = System.nanoTime();
         try
         {
             rwlock.writeLock().lock();
-
-            List< String > _key = key._buildkey();
-            _key.add( source );
+            writeLockWait.recordSince( start );
 
             volatileDirectory.insert( _key, value, timeStamp );
         }
         finally
         {
             rwlock.writeLock().unlock();
+            release();
+            insertLatency.recordSince( start );
         }
     }
 
@@ -191,23 +328,70 @@ public class Frontend
     {
         // guard
         {
-            log.trace( "Refresh: from source " + source + ": " + key._buildkey().toString()  );
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "Refresh: from source {}: {}", source, key );
+            }
 
             checkState();
+            checkWritable();
         }
 
+        if( null != sampler )
+            sampler.write( key );
+
+        final List< String > _key = CompactKey.of( key, source );
+
+        admit( source, 1 );
+
+        final long start = System.nanoTime();
         try
         {
             rwlock.writeLock().lock();
-
-            List< String > _key = key._buildkey();
-            _key.add( source );
+            writeLockWait.recordSince( start );
 
             volatileDirectory.refresh( _key, timeStamp );
         }
         finally
         {
             rwlock.writeLock().unlock();
+            release();
+            refreshLatency.recordSince( start );
+        }
+    }
+
+    /**
+     * Refresh all keys of a source.
+     *
+     * @param source The source for which the timestamps of all keys should be updated.
+     * @param timeStamp     The timeStamp of operation.
+     * @return The number of refreshed keys.
+     */
+    public int refreshSource( String source, final long timeStamp )
+    {
+        // guard
+        {
+            log.trace( "RefreshSource: {}", source );
+
+            checkState();
+            checkWritable();
+        }
+
+        admit( source, 1 );
+
+        final long start = System.nanoTime();
+        try
+        {
+            rwlock.writeLock().lock();
+            writeLockWait.recordSince( start );
+
+            return volatileDirectory.refreshSource( source, timeStamp ).size();
+        }
+        finally
+        {
+            rwlock.writeLock().unlock();
+            release();
+            refreshSourceLatency.recordSince( start );
         }
     }
 
@@ -221,24 +405,184 @@ public class Frontend
     {
         // guard
         {
-            log.trace( "Delete: from source " + source + ": " + key._buildkey().toString() );
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "Delete: from source {}: {}", source, key );
+            }
 
             checkState();
+            checkWritable();
         }
 
+        if( null != sampler )
+            sampler.write( key );
+
+        final List< String > _key = CompactKey.of( key, source );
+
+        admit( source, 1 );
+
+        final long start = System.nanoTime();
         try
         {
             rwlock.writeLock().lock();
-
-            List< String > _key = key._buildkey();
-            _key.add( source );
+            writeLockWait.recordSince( start );
 
             volatileDirectory.delete( _key );
         }
         finally
         {
             rwlock.writeLock().unlock();
+            release();
+            deleteLatency.recordSince( start );
+        }
+    }
+
+    /**
+     * Delete a key, unless it has been written after a given time.
+     *
+     * @param source The source for which the key should be deleted.
+     * @param key The key to delete.
+     * @param timeStamp The timeStamp of the deletion.
+     */
+    public void delete( String source, Key key, final long timeStamp )
+    {
+        // guard
+        {
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "Delete: from source {}: {}", source, key );
+            }
+
+            checkState();
+            checkWritable();
+        }
+
+        if( null != sampler )
+            sampler.write( key );
+
+        final List< String > _key = CompactKey.of( key, source );
+
+        admit( source, 1 );
+
+        final long start = System.nanoTime();
+        try
+        {
+            rwlock.writeLock().lock();
+            writeLockWait.recordSince( start );
+
+            volatileDirectory.delete( _key, timeStamp );
+        }
+        finally
+        {
+            rwlock.writeLock().unlock();
+            release();
+            deleteLatency.recordSince( start );
+        }
+    }
+
+    /**
+     * Insert, refresh and delete several keys at once.
+     *
+     * All operations are executed in the given order while holding the
+     * lock once. The operation for a key is given by its flags: a refresh
+     * or delete if the respective flag is set, an insert of the associated
+     * values otherwise. A failed operation does not abort the batch.
+     *
+     * A delete may carry its own timeStamp as its only value, e.g. when
+     * replicating deletions of several times at once.
+     *
+     * @param source The source of all keys which do not name their own source.
+     * @param operations The keys to operate on with the values to insert.
+     * @param timeStamp The timeStamp of all operations without their own.
+     * @return The keys of all failed operations with their errors.
+     *
+     * @throws AdmissionException if the batch is rejected as a whole. All
+     *         operations are charged to the given source.
+     */
+    public Map< URIKey, VoldException > batch( String source, Map< URIKey, Set< String > > operations, final long timeStamp )
+    {
+        // guard
+        {
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "Batch: from source {}: {} operations", source, operations.size() );
+            }
+
+            checkState();
+        }
+
+        Map< URIKey, VoldException > errors = new HashMap< URIKey, VoldException >();
+
+        // fail all operations on a read-only frontend
+        try
+        {
+            checkWritable();
+        }
+        catch( VoldException e )
+        {
+            for( URIKey k: operations.keySet() )
+            {
+                errors.put( k, e );
+            }
+
+            return errors;
+        }
+
+        // build keys before locking
+        List< List< String > > keys = new ArrayList< List< String > >( operations.size() );
+        {
+            for( URIKey k: operations.keySet() )
+            {
+                keys.add( CompactKey.of( k.getKey(), null == k.getSource() ? source : k.getSource() ) );
+
+                if( null != sampler )
+                    sampler.write( k.getKey() );
+            }
+        }
+
+        admit( source, operations.size() );
+
+        final long start = System.nanoTime();
+        try
+        {
+            rwlock.writeLock().lock();
+            writeLockWait.recordSince( start );
+
+            int i = 0;
+            for( Map.Entry< URIKey, Set< String > > entry: operations.entrySet() )
+            {
+                URIKey k = entry.getKey();
+                List< String > _key = keys.get( i++ );
+
+                try
+                {
+                    if( k.isRefresh() )
+                    {
+                        volatileDirectory.refresh( _key, timeStamp );
+                    }
+                    else if( k.isDelete() )
+                    {
+                        volatileDirectory.delete( _key, deletion_time( entry.getValue(), timeStamp ) );
+                    }
+                    else
+                    {
+                        volatileDirectory.insert( _key, entry.getValue(), timeStamp );
+                    }
+                }
+                catch( VoldException e )
+                {
+                    errors.put( k, e );
+                }
+            }
+        }
+        finally
+        {
+            rwlock.writeLock().unlock();
+            release();
+            batchLatency.recordSince( start );
         }
+
+        return errors;
     }
 
     /**
@@ -256,11 +600,17 @@ public class Frontend
 
         // guard
         {
-            log.trace( "Lookup: " + key.toString() );
+            log.trace( "Lookup: {}", key );
 
             checkState();
         }
 
+        if( null != sampler )
+            sampler.lookup( key );
+
+        admit( null, 0 );
+
+        final long start = System.nanoTime();
         try
         {
             rwlock.readLock().lock();
@@ -278,7 +628,7 @@ public class Frontend
                     }
                     catch( VoldException e )
                     {
-                        log.error( "Error in recursive lookup for key " + key._buildkey().toString() + " (actual scope: " + scope + ") - simply skipping: " + e.getMessage() );
+                        log.error( "Error in recursive lookup for key {} (actual scope: {}) - simply skipping: {}", new Object[]{ key, scope, e.getMessage() } );
                         found_exception = e;
                         continue;
                     }
@@ -307,6 +657,31 @@ public class Frontend
         finally
         {
             rwlock.readLock().unlock();
+            release();
+            lookupLatency.recordSince( start );
+        }
+    }
+
+    /**
+     * Get the timeStamp of a delete operation of a batch.
+     *
+     * @param values The values of the operation.
+     * @param timeStamp The timeStamp of the batch.
+     * @return The timeStamp given as only value or the one of the batch.
+     */
+    private long deletion_time( Set< String > values, long timeStamp )
+    {
+        if( null == values || 1 != values.size() )
+            return timeStamp;
+
+        try
+        {
+            return Long.parseLong( values.iterator().next() );
+        }
+        // values of deletions have been ignored before
+        catch( NumberFormatException e )
+        {
+            return timeStamp;
         }
     }
 
@@ -355,20 +730,21 @@ public class Frontend
 
                 try
                 {
-                    _result = volatileDirectory.prefixLookup( key._buildkey() );
+                    _result = volatileDirectory.prefixLookup( CompactKey.of( key ) );
                 }
                 catch( VoldException e )
                 {
-                    throw new VoldException( "In Frontend.scopeLookup( " + key._buildkey().toString() + "): ", e );
+                    throw new VoldException( "In Frontend.scopeLookup( " + key.toString() + "): ", e );
                 }
+
+                if( null != sampler )
+                    sampler.prefixLookup( key, null == _result ? 0 : _result.size() );
             }
             else
             {
-                List< String > _key = key._buildkey();
-
                 // add another empty directory to just make a prefix lookup for
                 // this key but different hosts
-                _key.add( new String() );
+                List< String > _key = CompactKey.of( key, "" );
 
                 try
                 {
@@ -392,7 +768,7 @@ public class Frontend
                 }
                 catch( IllegalArgumentException e )
                 {
-                    log.error( "Internal Error: simply skipping invalid key in backend: " + entry.getKey().toString() );
+                    log.error( "Internal Error: simply skipping invalid key in backend: {}", entry.getKey() );
                     continue;
                 }
 
@@ -17,6 +17,10 @@
 package de.zib.vold.frontend;
 
 import de.zib.vold.common.VoldException;
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.LatencyHistogram;
+import de.zib.vold.metrics.MetricsRegistry;
+import de.zib.vold.volatilelogic.DateMap;
 import de.zib.vold.volatilelogic.SlicedDirectory;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
@@ -25,8 +29,9 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 /**
  * GarbageCollector for VolD.
@@ -34,6 +39,20 @@ import java.util.Map;
  * The Reaper deletes keys which are older than a certain time to live (TTL).
  * The TTL is a soft limit. Hence, a key may exist longer than the TTL but never
  * twice as much.
+ *
+ * By default (bulkExpiry), all expired keys of a timeslice are deleted at
+ * once by the directory, i.e. by range requests on the backend. Otherwise,
+ * all keys of the timeslice are queried and deleted one by one.
+ *
+ * Leases are reaped the same way. Expiring a lease deletes all keys attached
+ * to it at once.
+ *
+ * If the number of slices decreases at runtime, the slices which are not
+ * used anymore are retired: after each actual slice, one of them is swept
+ * key by key until it is empty.
+ *
+ * @note        Retired slices are only known while the Reaper is running. When
+ *              restarting with fewer slices, keys in the other slices are lost.
  */
 public class Reaper extends Thread
 {
@@ -43,9 +62,28 @@ public class Reaper extends Thread
     private long ttl;
     private SlicedDirectory directory;
     private long idle = 100;
+    private boolean bulkExpiry = true;
+
+    // slices not in use anymore which may still hold keys
+    private final NavigableSet< Long > retired = new TreeSet< Long >();
+    private long knownSlices = -1;
+    private long lastRetired = -1;
 
     protected final Logger log = LoggerFactory.getLogger( this.getClass() );
 
+    private final LatencyHistogram sweepLatency = MetricsRegistry.getDefault().histogram(
+            "vold_reaper_sweep_seconds", "Time needed by the reaper to sweep one timeslice." );
+    private final Counter reaped = MetricsRegistry.getDefault().counter(
+            "vold_reaper_reaped_total", "Number of keys deleted by the reaper." );
+    private final Counter reapFailures = MetricsRegistry.getDefault().counter(
+            "vold_reaper_failures_total", "Number of keys the reaper failed to delete." );
+    private final Counter expiredLeases = MetricsRegistry.getDefault().counter(
+            "vold_reaper_leases_expired_total", "Number of leases expired by the reaper." );
+    private final Counter drainedSlices = MetricsRegistry.getDefault().counter(
+            "vold_reaper_retired_slices_drained_total", "Number of retired timeslices swept empty by the reaper." );
+    private final Counter droppedTombstones = MetricsRegistry.getDefault().counter(
+            "vold_reaper_tombstones_dropped_total", "Number of tombstones dropped by the reaper." );
+
     /**
      * Construct an initialized Reaper.
      *
@@ -102,6 +140,25 @@ public class Reaper extends Thread
         this.ttl = ttl;
     }
 
+    /**
+     * Enable or disable the bulk expiry of keys.
+     *
+     * @param bulkExpiry Whether all expired keys of a timeslice should be
+     *                   deleted at once instead of key by key.
+     */
+    public void setBulkExpiry( boolean bulkExpiry )
+    {
+        this.bulkExpiry = bulkExpiry;
+    }
+
+    /**
+     * Check whether the bulk expiry of keys is enabled.
+     */
+    public boolean getBulkExpiry( )
+    {
+        return bulkExpiry;
+    }
+
     /**
      * Set the directory the Reaper should work on.
      */
@@ -136,7 +193,7 @@ public class Reaper extends Thread
         }
         catch( InterruptedException e )
         {
-            log.warn( "Could not wait for Reaper to stop: " + e.getMessage() );
+            log.warn( "Could not wait for Reaper to stop: {}", e.getMessage() );
         }
     }
 
@@ -168,6 +225,24 @@ public class Reaper extends Thread
         reap();
     }
 
+    /**
+     * Reap one timeslice in the calling thread.
+     *
+     * @note        The background thread does not need to run for this.
+     *
+     * @param timeslice     The timeslice to reap.
+     * @return              The number of deleted keys.
+     */
+    public int reapTimeslice( long timeslice )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return new ReaperWorker( directory, timeslice, ttl, bulkExpiry ).reap_timeslice( timeslice );
+    }
+
     /**
      * Work until the run flag is set to false.
      */
@@ -183,10 +258,15 @@ public class Reaper extends Thread
 
         while( run )
         {
+            retire_slices( directory.getNumberOfSlices() );
+
             long actslice = directory.getActualSlice();
-            ReaperWorker worker = new ReaperWorker( directory, actslice, ttl );
+            ReaperWorker worker = new ReaperWorker( directory, actslice, ttl, bulkExpiry );
 
-            log.trace( "Reaping timeslice " + actslice + "..." );
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "Reaping timeslice {}...", actslice );
+            }
 
             // start thread on reap_timeslice
             {
@@ -205,7 +285,7 @@ public class Reaper extends Thread
             catch( InterruptedException e )
             {
                 // Log message, but keep working
-                log.error( "Interrupted during sleep for one timeslice: " + e.getMessage() );
+                log.error( "Interrupted during sleep for one timeslice: {}", e.getMessage() );
             }
 
             // wait for reap to finish
@@ -216,14 +296,104 @@ public class Reaper extends Thread
                 }
                 catch( InterruptedException e )
                 {
-                    log.error( "Interrupted while waiting for ReaperWorker on timeslice " + actslice + ": " + e.getMessage() );
+                    log.error( "Interrupted while waiting for ReaperWorker on timeslice {}: {}", actslice, e.getMessage() );
+                }
+            }
+
+            // sweep one of the retired slices
+            {
+                if( ! retired.isEmpty() )
+                {
+                    sweep_retired_slice();
                 }
             }
+
+            expire_tombstones();
         }
 
         log.info( "Reaper finished working." );
     }
 
+    /**
+     * Drop all tombstones older than the TTL.
+     *
+     * A write request dated before a dropped tombstone would have been
+     * expired in the meantime anyway.
+     */
+    private void expire_tombstones( )
+    {
+        try
+        {
+            droppedTombstones.add( directory.expireTombstones( DateTimeUtils.currentTimeMillis() - ttl ) );
+        }
+        catch( VoldException e )
+        {
+            log.error( "Could not expire tombstones. Reason: {}", e.getMessage() );
+        }
+    }
+
+    /**
+     * Update the set of retired slices.
+     *
+     * When the number of slices decreased, all slices above are retired.
+     * When it increased, retired slices are in use again.
+     *
+     * @param slices        The actual number of slices.
+     */
+    private void retire_slices( long slices )
+    {
+        if( knownSlices > slices )
+        {
+            log.info( "Number of timeslices decreased from {} to {}. Retiring the slices above.", knownSlices, slices );
+
+            for( long slice = slices; slice < knownSlices; ++slice )
+            {
+                retired.add( slice );
+            }
+        }
+
+        retired.headSet( slices ).clear();
+
+        knownSlices = slices;
+    }
+
+    /**
+     * Sweep the next retired slice in the calling thread.
+     *
+     * The slices are swept round robin. A slice is not retired anymore, when
+     * it is empty after the sweep.
+     */
+    private void sweep_retired_slice( )
+    {
+        Long slice = retired.higher( lastRetired );
+        if( null == slice )
+        {
+            slice = retired.first();
+        }
+        lastRetired = slice;
+
+        // sweep key by key to count the remaining keys
+        ReaperWorker worker = new ReaperWorker( directory, slice, ttl, false );
+
+        try
+        {
+            worker.reap_timeslice( slice );
+        }
+        catch( VoldException e )
+        {
+            log.error( e.getMessage() );
+            return;
+        }
+
+        if( 0 == worker.remaining )
+        {
+            log.info( "Retired timeslice {} is empty now.", slice );
+
+            retired.remove( slice );
+            drainedSlices.inc();
+        }
+    }
+
     /**
      * The Worker class for the reaper.
      *
@@ -234,8 +404,13 @@ public class Reaper extends Thread
         private SlicedDirectory directory;
         private long timeslice;
         private long ttl;
+        private boolean bulk;
 
-        public ReaperWorker( SlicedDirectory directory, long timeslice, long TTL )
+        // number of keys and leases left in the timeslice after reaping
+        // (unknown keys are not counted on bulk expiry)
+        private int remaining = 0;
+
+        public ReaperWorker( SlicedDirectory directory, long timeslice, long TTL, boolean bulk )
         {
             if( null == directory )
             {
@@ -249,11 +424,15 @@ public class Reaper extends Thread
             this.directory = directory;
             this.timeslice = timeslice;
             this.ttl = TTL;
+            this.bulk = bulk;
         }
 
         public void run( )
         {
-            log.trace( "ReaperWorker starting on timeslice " + String.valueOf( timeslice ) + "..." );
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "ReaperWorker starting on timeslice {}...", timeslice );
+            }
 
             try
             {
@@ -266,9 +445,12 @@ public class Reaper extends Thread
             }
         }
 
-        private void reap_timeslice( long timeslice )
+        private int reap_timeslice( long timeslice )
         {
-            log.trace( "ReapTimeslice: " + timeslice );
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "ReapTimeslice: {}", timeslice );
+            }
 
             // guard
             {
@@ -278,35 +460,115 @@ public class Reaper extends Thread
                 }
             }
 
-            Map< List< String >, DateTime > map = directory.sliceLookup( timeslice );
+            final long start = System.nanoTime();
 
             DateTime now = new DateTime( DateTimeUtils.currentTimeMillis() );
 
             int deleted = 0;
-            for( Map.Entry< List< String >, DateTime > entry: map.entrySet() )
+            remaining = 0;
+
+            // expire all keys which are too old at once
+            if( bulk )
+            {
+                try
+                {
+                    deleted += directory.expire( timeslice, now.getMillis() - ttl ).size();
+                }
+                catch( VoldException e )
+                {
+                    log.error( "Could not expire keys of timeslice {}. Reason: {}", timeslice, e.getMessage() );
+                    reapFailures.inc();
+                }
+            }
+            else
+            {
+                deleted += reap_keys( timeslice, now );
+            }
+
+            // expire all leases which are too old
+            {
+                Map< String, DateTime > leases = directory.leaseLookup( timeslice );
+                remaining += leases.size();
+
+                for( Map.Entry< String, DateTime > entry: leases.entrySet() )
+                {
+                    if( entry.getValue().plus( ttl ).isBefore( now ) )
+                    {
+                        if( log.isDebugEnabled() )
+                        {
+                            log.debug( "Expiring lease of source {} with date of birth: {}.", entry.getKey(), entry.getValue() );
+                        }
+
+                        try
+                        {
+                            deleted += directory.expireLease( entry.getKey(), now.getMillis() - ttl ).size();
+                            expiredLeases.inc();
+                            --remaining;
+                        }
+                        catch( VoldException e )
+                        {
+                            log.error( "Could not expire lease of source {}. Reason: {}", entry.getKey(), e.getMessage() );
+                            reapFailures.inc();
+                            continue;
+                        }
+                    }
+                }
+            }
+
+            reaped.add( deleted );
+            sweepLatency.recordSince( start );
+
+            if( deleted > 0 )
+            {
+                if( log.isDebugEnabled() )
+                {
+                    log.debug( "Reaper deleted {} key(s) in timeslice {}.", deleted, timeslice );
+                }
+            }
+
+            return deleted;
+        }
+
+        /**
+         * Reap all keys of a timeslice which are too old one by one.
+         *
+         * @return The number of deleted keys.
+         */
+        private int reap_keys( long timeslice, DateTime now )
+        {
+            DateMap map = directory.sliceLookup( timeslice );
+
+            // all keys born before the deadline are too old
+            final long deadline = now.getMillis() - ttl;
+
+            int deleted = 0;
+            remaining += map.size();
+            for( int i = 0; i < map.size(); ++i )
             {
                 // reap the element if it is too old
-                if( entry.getValue().plus( ttl ).isBefore( now ) )
+                if( map.date( i ) < deadline )
                 {
-                    log.debug( "Reaping key " + entry.getKey().toString() + " with date of birth: " + entry.getValue() + "." );
+                    if( log.isDebugEnabled() )
+                    {
+                        log.debug( "Reaping key {} with date of birth: {}.", map.key( i ), new DateTime( map.date( i ) ) );
+                    }
 
                     try
                     {
-                        directory.delete( entry.getKey() );
+                        directory.delete( map.key( i ) );
                         ++deleted;
+                        --remaining;
                     }
                     catch( VoldException e )
                     {
-                        log.error( "Could not reap key " + entry.getKey().toString() + ". Reason: " + e.getMessage() );
+                        log.error( "Could not reap key {}. Reason: {}", map.key( i ), e.getMessage() );
+                        reapFailures.inc();
                         continue;
                     }
                 }
             }
 
-            if( deleted > 0 )
-            {
-                log.debug( "Reaper deleted " + String.valueOf( deleted ) + " key(s) in timeslice " + timeslice + "." );
-            }
+            return deleted;
         }
 
     }
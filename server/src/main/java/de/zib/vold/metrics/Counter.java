@@ -0,0 +1,54 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing counter.
+ *
+ * @see MetricsRegistry
+ */
+public class Counter
+{
+    private final AtomicLong value = new AtomicLong( 0 );
+
+    /**
+     * Increment the counter by one.
+     */
+    public void inc( )
+    {
+        value.incrementAndGet();
+    }
+
+    /**
+     * Increment the counter by a given amount.
+     *
+     * @param n The amount to add (should not be negative).
+     */
+    public void add( long n )
+    {
+        value.addAndGet( n );
+    }
+
+    /**
+     * Get the actual value of the counter.
+     */
+    public long get( )
+    {
+        return value.get();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with logarithmic buckets.
+ *
+ * Like an HDR histogram, each power of two is split into a fixed number of
+ * linear sub buckets, thus each recorded value is exact up to a relative error
+ * of about 6%, independent of its magnitude. Recording a value is a handful of
+ * bit operations and one atomic increment.
+ *
+ * All values are given in nanoseconds.
+ *
+ * @see MetricsRegistry
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = ( 64 - SUB_BITS ) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong( 0 );
+    private final AtomicLong sum = new AtomicLong( 0 );
+    private final AtomicLong max = new AtomicLong( 0 );
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos The latency in nanoseconds. Negative values are counted as zero.
+     */
+    public void record( long nanos )
+    {
+        if( nanos < 0 )
+            nanos = 0;
+
+        counts.incrementAndGet( bucket( nanos ) );
+        count.incrementAndGet();
+        sum.addAndGet( nanos );
+
+        long m = max.get();
+        while( nanos > m && ! max.compareAndSet( m, nanos ) )
+        {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Record the time passed since a start time taken from System.nanoTime().
+     *
+     * @param start The start time in nanoseconds.
+     */
+    public void recordSince( long start )
+    {
+        record( System.nanoTime() - start );
+    }
+
+    /**
+     * Get the number of recorded values.
+     */
+    public long getCount( )
+    {
+        return count.get();
+    }
+
+    /**
+     * Get the sum of all recorded values in nanoseconds.
+     */
+    public long getSum( )
+    {
+        return sum.get();
+    }
+
+    /**
+     * Get the largest recorded value in nanoseconds.
+     */
+    public long getMax( )
+    {
+        return max.get();
+    }
+
+    /**
+     * Get a quantile of all recorded values.
+     *
+     * @note        Since values are recorded concurrently, the result is only
+     *              an approximation of a consistent snapshot.
+     *
+     * @param q The quantile (between 0 and 1).
+     * @return The highest value equivalent to the bucket of that quantile,
+     *         or zero if nothing has been recorded yet.
+     */
+    public long getQuantile( double q )
+    {
+        if( q < 0 || q > 1 )
+        {
+            throw new IllegalArgumentException( "Quantiles must be between 0 and 1, but " + q + " has been given." );
+        }
+
+        long[] snapshot = new long[ BUCKETS ];
+        long total = 0;
+        for( int i = 0; i < BUCKETS; ++i )
+        {
+            snapshot[ i ] = counts.get( i );
+            total += snapshot[ i ];
+        }
+
+        if( 0 == total )
+            return 0;
+
+        long rank = Math.max( 1, ( long )Math.ceil( q * total ) );
+        long seen = 0;
+        for( int i = 0; i < BUCKETS; ++i )
+        {
+            seen += snapshot[ i ];
+            if( seen >= rank )
+            {
+                return Math.min( upperBound( i ), getMax() );
+            }
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Get the bucket of a nonnegative value.
+     */
+    static int bucket( long value )
+    {
+        if( value < SUB_BUCKETS )
+            return ( int )value;
+
+        int msb = 63 - Long.numberOfLeadingZeros( value );
+        int shift = msb - SUB_BITS;
+        int mantissa = ( int )( value >>> shift );
+
+        return ( shift + 1 ) * SUB_BUCKETS + ( mantissa - SUB_BUCKETS );
+    }
+
+    /**
+     * Get the highest value which falls into a bucket.
+     */
+    static long upperBound( int bucket )
+    {
+        if( bucket < SUB_BUCKETS )
+            return bucket;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+
+        return ( ( mantissa + 1 ) << shift ) - 1;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Registry of all metrics of a VolD instance.
+ *
+ * Metrics are identified by their name and an optional set of labels. Asking
+ * twice for the same metric returns the same instance, thus different
+ * components may share a metric. The metrics can be exported in the text
+ * format of Prometheus, whereas latency histograms are exported as summaries
+ * (in seconds).
+ *
+ * All components register their metrics in the default registry on
+ * construction. Recording values is lock free, only registration and export
+ * are synchronized.
+ *
+ * @see LatencyHistogram
+ * @see Counter
+ * @see Gauge
+ * @see de.zib.vold.userInterface.MetricsController
+ */
+public class MetricsRegistry
+{
+    private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final Map< String, Family > families = new TreeMap< String, Family >();
+
+    /**
+     * Get the registry shared by all components.
+     */
+    public static MetricsRegistry getDefault( )
+    {
+        return defaultRegistry;
+    }
+
+    /**
+     * Get or create a latency histogram.
+     *
+     * @param name The name of the metric.
+     * @param help A short description of the metric.
+     * @param labels Pairs of label names and values.
+     * @return The histogram.
+     */
+    public LatencyHistogram histogram( String name, String help, String... labels )
+    {
+        return ( LatencyHistogram )register( name, help, "summary", labels, new LatencyHistogram() );
+    }
+
+    /**
+     * Get or create a counter.
+     *
+     * @param name The name of the metric (should end with _total).
+     * @param help A short description of the metric.
+     * @param labels Pairs of label names and values.
+     * @return The counter.
+     */
+    public Counter counter( String name, String help, String... labels )
+    {
+        return ( Counter )register( name, help, "counter", labels, new Counter() );
+    }
+
+    /**
+     * Register a gauge.
+     *
+     * @note        Registering another gauge with the same name and labels
+     *              replaces the former one.
+     *
+     * @param name The name of the metric.
+     * @param help A short description of the metric.
+     * @param gauge The gauge to sample on export.
+     * @param labels Pairs of label names and values.
+     */
+    public synchronized void gauge( String name, String help, Gauge gauge, String... labels )
+    {
+        family( name, help, "gauge" ).metrics.put( labels( labels ), gauge );
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format.
+     *
+     * @param out The writer to write the metrics to.
+     */
+    public synchronized void write( Writer out )
+            throws IOException
+    {
+        for( Map.Entry< String, Family > entry: families.entrySet() )
+        {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+
+            out.write( "# HELP " + name + " " + family.help + "\n" );
+            out.write( "# TYPE " + name + " " + family.type + "\n" );
+
+            for( Map.Entry< String, Object > m: family.metrics.entrySet() )
+            {
+                String labels = m.getKey();
+                Object metric = m.getValue();
+
+                if( metric instanceof LatencyHistogram )
+                {
+                    LatencyHistogram h = ( LatencyHistogram )metric;
+
+                    for( double q: QUANTILES )
+                    {
+                        String quantile = "quantile=\"" + q + "\"";
+                        out.write( name + "{" + ( labels.length() > 0 ? labels + "," : "" ) + quantile + "} " + seconds( h.getQuantile( q ) ) + "\n" );
+                    }
+                    out.write( name + "_sum" + braces( labels ) + " " + seconds( h.getSum() ) + "\n" );
+                    out.write( name + "_count" + braces( labels ) + " " + h.getCount() + "\n" );
+                }
+                else if( metric instanceof Counter )
+                {
+                    out.write( name + braces( labels ) + " " + ( ( Counter )metric ).get() + "\n" );
+                }
+                else if( metric instanceof Gauge )
+                {
+                    out.write( name + braces( labels ) + " " + ( ( Gauge )metric ).value() + "\n" );
+                }
+            }
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Register a metric if no metric with the same name and labels exists yet.
+     *
+     * @return The registered metric.
+     */
+    private synchronized Object register( String name, String help, String type, String[] labels, Object metric )
+    {
+        Family family = family( name, help, type );
+        String l = labels( labels );
+
+        Object existing = family.metrics.get( l );
+        if( null != existing )
+            return existing;
+
+        family.metrics.put( l, metric );
+        return metric;
+    }
+
+    private Family family( String name, String help, String type )
+    {
+        Family family = families.get( name );
+
+        if( null == family )
+        {
+            family = new Family( help, type );
+            families.put( name, family );
+        }
+        else if( ! family.type.equals( type ) )
+        {
+            throw new IllegalArgumentException( "Metric " + name + " has already been registered as " + family.type + "." );
+        }
+
+        return family;
+    }
+
+    /**
+     * Format pairs of label names and values.
+     */
+    private static String labels( String[] labels )
+    {
+        if( 0 != labels.length % 2 )
+        {
+            throw new IllegalArgumentException( "Labels must be given as pairs of names and values." );
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < labels.length; i += 2 )
+        {
+            if( i > 0 )
+                sb.append( ',' );
+
+            sb.append( labels[ i ] ).append( "=\"" );
+            sb.append( labels[ i+1 ].replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" ) );
+            sb.append( '"' );
+        }
+
+        return sb.toString();
+    }
+
+    private static String braces( String labels )
+    {
+        return labels.length() > 0 ? "{" + labels + "}" : "";
+    }
+
+    private static String seconds( long nanos )
+    {
+        return String.valueOf( nanos / 1e9 );
+    }
+
+    /**
+     * All metrics sharing the same name.
+     */
+    private static class Family
+    {
+        final String help;
+        final String type;
+        final Map< String, Object > metrics = new TreeMap< String, Object >();
+
+        Family( String help, String type )
+        {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.metrics;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate counts of the most frequent items of a stream.
+ *
+ * The counts of all items are estimated by a count-min sketch of fixed size:
+ * each item is counted in one cell of each row, chosen by a hash of the
+ * item, and its estimate is the minimum of these cells. Estimates are never
+ * too low and too high by at most 2/width of the total with high
+ * probability.
+ *
+ * Only the k items with the largest estimates are kept by name. An item
+ * replaces the smallest of them as soon as its estimate exceeds it. Since
+ * estimates only grow, the smallest estimate is cached and the candidates
+ * are only scanned if it is exceeded.
+ */
+public class TopK
+{
+    private static final int DEPTH = 4;
+
+    private final int k;
+    private final long[][] sketch;
+    private final int mask;
+
+    private final Map< String, Long > top;
+    private long minimum = 0;
+    private long total = 0;
+
+    /**
+     * Construct an empty TopK.
+     *
+     * @param k The number of items to keep.
+     * @param width The number of cells per row (rounded up to a power of two).
+     */
+    public TopK( int k, int width )
+    {
+        if( k < 1 || width < 1 )
+        {
+            throw new IllegalArgumentException( "TopK needs positive k and width, but k=" + k + " and width=" + width + " have been given!" );
+        }
+
+        int cells = Integer.highestOneBit( width );
+        if( cells < width )
+            cells <<= 1;
+
+        this.k = k;
+        this.sketch = new long[ DEPTH ][ cells ];
+        this.mask = cells - 1;
+        this.top = new HashMap< String, Long >( 2 * k );
+    }
+
+    /**
+     * Count an item.
+     *
+     * @param item The item to count.
+     * @param n The weight of this occurrence.
+     */
+    public synchronized void add( String item, long n )
+    {
+        total += n;
+
+        // update the sketch and get the estimate
+        long estimate = Long.MAX_VALUE;
+        {
+            int h1 = mix( item.hashCode() );
+            int h2 = mix( h1 ) | 1;
+
+            for( int row = 0; row < DEPTH; ++row )
+            {
+                long[] cells = sketch[ row ];
+                int cell = ( h1 + row * h2 ) & mask;
+
+                cells[ cell ] += n;
+                estimate = Math.min( estimate, cells[ cell ] );
+            }
+        }
+
+        if( top.containsKey( item ) || top.size() < k )
+        {
+            top.put( item, estimate );
+
+            if( top.size() == k )
+                minimum = min_entry().getValue();
+
+            return;
+        }
+
+        if( estimate <= minimum )
+            return;
+
+        // replace the smallest candidate
+        {
+            Map.Entry< String, Long > smallest = min_entry();
+
+            if( estimate > smallest.getValue() )
+            {
+                top.remove( smallest.getKey() );
+                top.put( item, estimate );
+            }
+
+            minimum = min_entry().getValue();
+        }
+    }
+
+    /**
+     * Get the kept items ordered by their estimates, largest first.
+     */
+    public synchronized List< Map.Entry< String, Long > > top( )
+    {
+        List< Map.Entry< String, Long > > result = new ArrayList< Map.Entry< String, Long > >( top.size() );
+
+        for( Map.Entry< String, Long > entry: top.entrySet() )
+        {
+            result.add( new AbstractMap.SimpleImmutableEntry< String, Long >( entry ) );
+        }
+
+        Collections.sort( result, new Comparator< Map.Entry< String, Long > >()
+        {
+            public int compare( Map.Entry< String, Long > a, Map.Entry< String, Long > b )
+            {
+                return b.getValue().compareTo( a.getValue() );
+            }
+        } );
+
+        return result;
+    }
+
+    /**
+     * Get the estimated count of an item.
+     */
+    public synchronized long estimate( String item )
+    {
+        int h1 = mix( item.hashCode() );
+        int h2 = mix( h1 ) | 1;
+
+        long estimate = Long.MAX_VALUE;
+        for( int row = 0; row < DEPTH; ++row )
+        {
+            estimate = Math.min( estimate, sketch[ row ][ ( h1 + row * h2 ) & mask ] );
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Get the sum of all weights counted.
+     */
+    public synchronized long total( )
+    {
+        return total;
+    }
+
+    /**
+     * Forget all items.
+     */
+    public synchronized void clear( )
+    {
+        for( long[] cells: sketch )
+        {
+            Arrays.fill( cells, 0 );
+        }
+
+        top.clear();
+        minimum = 0;
+        total = 0;
+    }
+
+    private Map.Entry< String, Long > min_entry( )
+    {
+        Map.Entry< String, Long > smallest = null;
+
+        for( Map.Entry< String, Long > entry: top.entrySet() )
+        {
+            if( null == smallest || entry.getValue() < smallest.getValue() )
+                smallest = entry;
+        }
+
+        return smallest;
+    }
+
+    private static int mix( int h )
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return h;
+    }
+}
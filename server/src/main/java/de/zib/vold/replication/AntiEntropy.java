@@ -0,0 +1,513 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.replication;
+
+import de.zib.vold.common.VoldException;
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.LatencyHistogram;
+import de.zib.vold.metrics.MetricsRegistry;
+import de.zib.vold.volatilelogic.DatedValues;
+import de.zib.vold.volatilelogic.LeafDigests;
+import de.zib.vold.volatilelogic.VolatileDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Background process synchronizing replicas by leaf digests.
+ *
+ * Replicas missing write requests (e.g. while being restarted) never
+ * converge on their own. The AntiEntropy process periodically compares the
+ * directory with each of its replicas and repairs the differences.
+ *
+ * For each configured prefix (e.g. a scope), both sides hash their keys
+ * into 2^depth leaf digests themselves and only the digests are compared,
+ * thus equal parts of the key space are skipped without exchanging their
+ * keys. The keys of differing leaves are queried in batches of
+ * leavesPerLookup leaves. Within them, the keys with different values are
+ * looked up with their dates and the newest values are written to the
+ * other side (last writer wins). Hence, a round holds the digests and the
+ * keys of one batch of leaves instead of all keys of both sides.
+ *
+ * The cost of a round is bounded by keysPerSecond, the number of keys
+ * hashed per second, and by maxRepairs, the number of keys repaired per
+ * round.
+ *
+ * The directory is read under the read lock and the keys are repaired
+ * under the write lock of the frontend (see setLock), thus the process does
+ * not interfere with its requests.
+ *
+ * @note        Without tombstones, deletions leave no trace, thus a key
+ *              deleted on one side while the other side missed the deletion
+ *              is copied back.
+ *
+ * @see de.zib.vold.volatilelogic.ReplicatedVolatileDirectory
+ */
+public class AntiEntropy extends Thread
+{
+    protected final Logger log = LoggerFactory.getLogger( this.getClass() );
+
+    private final LatencyHistogram roundLatency = MetricsRegistry.getDefault().histogram(
+            "vold_antientropy_round_seconds", "Time needed to synchronize all replicas once." );
+    private final Counter differingLeaves = MetricsRegistry.getDefault().counter(
+            "vold_antientropy_differing_leaves_total", "Number of hash tree leaves found to differ between replicas." );
+    private final Counter repaired = MetricsRegistry.getDefault().counter(
+            "vold_antientropy_repaired_total", "Number of keys repaired by anti-entropy." );
+
+    private volatile boolean run = false;
+
+    private VolatileDirectory directory = null;
+    private List< VolatileDirectory > replicas = Collections.emptyList();
+    private List< List< String > > prefixes = Collections.singletonList( Collections.singletonList( "" ) );
+    private long interval = 60000;
+    private int depth = 10;
+    private int leavesPerLookup = 64;
+    private long keysPerSecond = 0;
+    private int maxRepairs = 10000;
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Construct an uninitialized AntiEntropy process.
+     */
+    public AntiEntropy( )
+    {
+        super( "AntiEntropy" );
+        setDaemon( true );
+    }
+
+    /**
+     * Construct an initialized AntiEntropy process.
+     *
+     * @param directory The directory to compare the replicas with.
+     * @param replicas The replicas to synchronize.
+     */
+    public AntiEntropy( VolatileDirectory directory, List< VolatileDirectory > replicas )
+    {
+        this();
+
+        setDirectory( directory );
+        setReplicas( replicas );
+    }
+
+    /**
+     * Internal method which acts as part of the guard of all public methods.
+     */
+    protected void checkState( )
+    {
+        if( null == directory )
+        {
+            throw new IllegalStateException( "AntiEntropy cannot work while it had not been initialized properly yet. You first need to set a directory!" );
+        }
+    }
+
+    /**
+     * Set the directory all replicas are compared with.
+     */
+    public void setDirectory( VolatileDirectory directory )
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Set the replicas to synchronize with the directory.
+     */
+    public void setReplicas( List< VolatileDirectory > replicas )
+    {
+        this.replicas = new ArrayList< VolatileDirectory >( replicas );
+    }
+
+    /**
+     * Set the lock of the frontend using the directory.
+     *
+     * If no lock is set, the process only synchronizes with itself.
+     *
+     * @see de.zib.vold.frontend.Frontend#setLock
+     */
+    public void setLock( ReadWriteLock lock )
+    {
+        this.lock = lock;
+    }
+
+    /**
+     * Set the prefixes of the key space to synchronize.
+     *
+     * The leaf digests are computed and compared per prefix.
+     *
+     * @param prefixes The prefixes, e.g. the scopes. By default, the whole
+     *                 key space is synchronized at once.
+     */
+    public void setPrefixes( List< List< String > > prefixes )
+    {
+        this.prefixes = new ArrayList< List< String > >( prefixes );
+    }
+
+    /**
+     * Set the time to wait between two rounds.
+     *
+     * @param interval The time in milliseconds.
+     */
+    public void setInterval( long interval )
+    {
+        if( interval <= 0 )
+        {
+            throw new IllegalArgumentException( "AntiEntropy needs a positive interval, but interval=" + interval + " has been given!" );
+        }
+
+        this.interval = interval;
+    }
+
+    public long getInterval( )
+    {
+        return interval;
+    }
+
+    /**
+     * Set the depth of the leaf digests.
+     *
+     * More leaves narrow the differences down to fewer keys, but cost more
+     * memory and comparisons.
+     *
+     * @param depth The depth, i.e. the keys are hashed into 2^depth leaves.
+     */
+    public void setDepth( int depth )
+    {
+        if( depth < 0 || depth > LeafDigests.MAX_DEPTH )
+        {
+            throw new IllegalArgumentException( "The depth of the leaf digests must be between 0 and " + LeafDigests.MAX_DEPTH + ", but depth=" + depth + " has been given!" );
+        }
+
+        this.depth = depth;
+    }
+
+    public int getDepth( )
+    {
+        return depth;
+    }
+
+    /**
+     * Set the number of differing leaves whose keys are queried at once.
+     *
+     * Each side holds about keys * leavesPerLookup / 2^depth keys per
+     * query, thus this bounds the memory of a round together with the depth.
+     *
+     * @param leavesPerLookup The number of leaves per query.
+     */
+    public void setLeavesPerLookup( int leavesPerLookup )
+    {
+        if( leavesPerLookup <= 0 )
+        {
+            throw new IllegalArgumentException( "AntiEntropy needs a positive number of leaves per lookup, but leavesPerLookup=" + leavesPerLookup + " has been given!" );
+        }
+
+        this.leavesPerLookup = leavesPerLookup;
+    }
+
+    public int getLeavesPerLookup( )
+    {
+        return leavesPerLookup;
+    }
+
+    /**
+     * Limit the number of keys hashed per second.
+     *
+     * @param keysPerSecond The maximal rate, 0 for no limit.
+     */
+    public void setKeysPerSecond( long keysPerSecond )
+    {
+        this.keysPerSecond = keysPerSecond;
+    }
+
+    public long getKeysPerSecond( )
+    {
+        return keysPerSecond;
+    }
+
+    /**
+     * Limit the number of keys repaired per round.
+     */
+    public void setMaxRepairs( int maxRepairs )
+    {
+        this.maxRepairs = maxRepairs;
+    }
+
+    public int getMaxRepairs( )
+    {
+        return maxRepairs;
+    }
+
+    /**
+     * Start the process in background.
+     */
+    @PostConstruct
+    public synchronized void start_service( )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( ! run )
+        {
+            log.info( "AntiEntropy starting..." );
+
+            run = true;
+            start();
+        }
+    }
+
+    /**
+     * Stop the process running in background.
+     */
+    @PreDestroy
+    public void stop_service( )
+    {
+        run = false;
+        interrupt();
+
+        try
+        {
+            join();
+            log.info( "AntiEntropy stopped." );
+        }
+        catch( InterruptedException e )
+        {
+            log.warn( "Could not wait for AntiEntropy to stop: {}", e.getMessage() );
+        }
+    }
+
+    /**
+     * Synchronize the replicas until the process is stopped.
+     */
+    @Override
+    public void run( )
+    {
+        while( run )
+        {
+            try
+            {
+                sleep( interval );
+            }
+            catch( InterruptedException e )
+            {
+                continue;
+            }
+
+            try
+            {
+                synchronize();
+            }
+            catch( VoldException e )
+            {
+                log.error( "AntiEntropy round failed: {}", e.getMessage() );
+            }
+        }
+    }
+
+    /**
+     * Synchronize all replicas once in the calling thread.
+     *
+     * @note        The background thread does not need to run for this.
+     *
+     * @return      The number of repaired keys.
+     */
+    public int synchronize( )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        final long start = System.nanoTime();
+        try
+        {
+            int repairs = 0;
+
+            for( VolatileDirectory replica: replicas )
+            {
+                for( List< String > prefix: prefixes )
+                {
+                    repairs += synchronize( replica, prefix, maxRepairs - repairs );
+
+                    if( repairs >= maxRepairs )
+                    {
+                        log.info( "AntiEntropy reached the maximal number of {} repairs in this round.", maxRepairs );
+                        return repairs;
+                    }
+                }
+            }
+
+            if( 0 < repairs )
+            {
+                log.info( "AntiEntropy repaired {} keys.", repairs );
+            }
+
+            return repairs;
+        }
+        finally
+        {
+            roundLatency.recordSince( start );
+        }
+    }
+
+    /**
+     * Synchronize the keys of a prefix between the directory and a replica.
+     *
+     * @return The number of repaired keys.
+     */
+    private int synchronize( VolatileDirectory replica, List< String > prefix, int budget )
+    {
+        LeafDigests local;
+        lock.readLock().lock();
+        try
+        {
+            local = directory.digest( prefix, depth );
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        pace( local.size() );
+
+        LeafDigests remote = replica.digest( prefix, depth );
+        pace( remote.size() );
+
+        List< Integer > leaves = local.diff( remote );
+
+        if( leaves.isEmpty() )
+            return 0;
+
+        log.debug( "AntiEntropy found {} differing leaves for prefix {}.", leaves.size(), prefix );
+        differingLeaves.add( leaves.size() );
+
+        int repairs = 0;
+
+        for( int i = 0; i < leaves.size(); i += leavesPerLookup )
+        {
+            Set< Integer > batch = new HashSet< Integer >( leaves.subList( i, Math.min( i + leavesPerLookup, leaves.size() ) ) );
+
+            Map< List< String >, Set< String > > a;
+            lock.readLock().lock();
+            try
+            {
+                a = directory.leafLookup( prefix, depth, batch );
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+            Map< List< String >, Set< String > > b = replica.leafLookup( prefix, depth, batch );
+
+            Set< List< String > > keys = new HashSet< List< String > >( a.keySet() );
+            keys.addAll( b.keySet() );
+
+            for( List< String > key: keys )
+            {
+                Set< String > values = a.get( key );
+
+                if( null != values && values.equals( b.get( key ) ) )
+                    continue;
+
+                if( repairs >= budget )
+                    return repairs;
+
+                if( repair( key, replica ) )
+                    ++repairs;
+            }
+        }
+
+        return repairs;
+    }
+
+    /**
+     * Write dated values of a key, or its deletion, to a directory.
+     */
+    private static void copy( List< String > key, DatedValues newest, VolatileDirectory to )
+    {
+        if( newest.isDeleted() )
+        {
+            to.delete( key, newest.date() );
+        }
+        else
+        {
+            to.insert( key, newest.values(), newest.date() );
+        }
+    }
+
+    /**
+     * Write the newest values of a key to the side holding older ones.
+     *
+     * The key is compared and repaired under the write lock.
+     *
+     * @return true, if one side has been repaired.
+     */
+    private boolean repair( List< String > key, VolatileDirectory replica )
+    {
+        lock.writeLock().lock();
+        try
+        {
+            DatedValues a = directory.lookupDated( key );
+            DatedValues b = replica.lookupDated( key );
+
+            if( null != a && a.isNewerThan( b ) )
+            {
+                copy( key, a, replica );
+            }
+            else if( null != b && b.isNewerThan( a ) )
+            {
+                copy( key, b, directory );
+            }
+            else
+            {
+                return false;
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        repaired.inc();
+        return true;
+    }
+
+    /**
+     * Sleep as long as hashing a number of keys may take at keysPerSecond.
+     */
+    private void pace( int keys )
+    {
+        if( keysPerSecond <= 0 )
+            return;
+
+        try
+        {
+            sleep( keys * 1000L / keysPerSecond );
+        }
+        catch( InterruptedException e )
+        {
+            interrupt();
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.replication;
+
+import de.zib.vold.common.VoldException;
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.Gauge;
+import de.zib.vold.metrics.MetricsRegistry;
+import de.zib.vold.volatilelogic.SimpleDirectory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Replicator keeping the latest write requests for followers.
+ *
+ * Instead of forwarding each write request synchronously, all requests are
+ * appended to a ring of fixed capacity and numbered by a sequence. Followers
+ * poll the changes after the last sequence they know (see read), e.g.
+ * through a long-lived stream of the ChangeFeedController, and apply them to
+ * their own directories.
+ *
+ * A follower falling behind by more than the capacity cannot continue and
+ * has to start over with a snapshot. Since the sequence starts again after a
+ * restart, each feed has a random epoch, which the followers have to check.
+ *
+ * @see de.zib.vold.userInterface.ChangeFeedController
+ * @see ChangeFeedFollower
+ * @see de.zib.vold.volatilelogic.VolatileDirectoryImpl
+ */
+public class ChangeFeed implements Replicator
+{
+    /**
+     * The operations of a change.
+     *
+     * A DROP is a deletion without a timeStamp, e.g. by an expired lease.
+     */
+    public enum Operation
+    {
+        INSERT, REFRESH, DELETE, DROP
+    }
+
+    private final Counter appended = MetricsRegistry.getDefault().counter(
+            "vold_changefeed_changes_total", "Number of write requests appended to the change feed." );
+
+    private final String epoch = UUID.randomUUID().toString();
+
+    private Change[] ring = new Change[ 65536 ];
+
+    // the sequence of the last change
+    private long sequence = 0;
+
+    /**
+     * Construct an empty ChangeFeed.
+     */
+    public ChangeFeed( )
+    {
+        MetricsRegistry.getDefault().gauge( "vold_changefeed_sequence",
+                "Sequence of the last change appended to the change feed.", new Gauge()
+                {
+                    public long value( )
+                    {
+                        return getSequence();
+                    }
+                } );
+    }
+
+    /**
+     * Set the number of changes kept for followers.
+     *
+     * @note        Changing the capacity drops all kept changes, thus all
+     *              followers have to start over.
+     */
+    public synchronized void setCapacity( int capacity )
+    {
+        if( capacity < 1 )
+        {
+            throw new IllegalArgumentException( "The capacity must be positive, but capacity=" + capacity + " has been given!" );
+        }
+
+        this.ring = new Change[ capacity ];
+        this.sequence = 0;
+    }
+
+    public synchronized int getCapacity( )
+    {
+        return ring.length;
+    }
+
+    /**
+     * Get the epoch of this feed, which changes on each restart.
+     */
+    public String getEpoch( )
+    {
+        return epoch;
+    }
+
+    /**
+     * Get the sequence of the last change.
+     */
+    public synchronized long getSequence( )
+    {
+        return sequence;
+    }
+
+    /**
+     * Check whether all changes after a sequence are still kept.
+     */
+    public synchronized boolean isAvailable( long after )
+    {
+        return after >= 0 && after <= sequence && after >= sequence - ring.length;
+    }
+
+    /**
+     * Get the changes after a sequence.
+     *
+     * Waits for the next change, if there is none yet.
+     *
+     * @param after         The sequence of the last change known.
+     * @param max           The maximum number of changes to return.
+     * @param timeout       The time in milliseconds to wait for the next change.
+     * @return The changes in the order of their sequence (empty on timeout) or
+     *         null, if the changes after that sequence are not kept anymore.
+     */
+    public synchronized List< Change > read( long after, int max, long timeout )
+            throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        while( after == sequence )
+        {
+            long left = deadline - System.currentTimeMillis();
+
+            if( left <= 0 )
+                return Collections.emptyList();
+
+            wait( left );
+        }
+
+        if( ! isAvailable( after ) )
+            return null;
+
+        int count = ( int )Math.min( max, sequence - after );
+        List< Change > result = new ArrayList< Change >( count );
+
+        for( long i = after + 1; i <= after + count; ++i )
+        {
+            result.add( ring[ ( int )( i % ring.length ) ] );
+        }
+
+        return result;
+    }
+
+    /**
+     * Append a change and wake up all waiting readers.
+     */
+    private synchronized void append( Operation operation, List< String > key, Set< String > value, long timeStamp )
+    {
+        ++sequence;
+        ring[ ( int )( sequence % ring.length ) ] = new Change( sequence, operation, key, value, timeStamp );
+        appended.inc();
+
+        notifyAll();
+    }
+
+    @Override
+    public void insert( List< String > key, Set< String > value, long timeStamp )
+    {
+        append( Operation.INSERT, key, value, timeStamp );
+    }
+
+    @Override
+    public void refresh( List< String > key, long timeStamp )
+    {
+        append( Operation.REFRESH, key, null, timeStamp );
+    }
+
+    @Override
+    public void delete( List< String > key )
+    {
+        append( Operation.DROP, key, null, 0 );
+    }
+
+    @Override
+    public void delete( List< String > key, long timeStamp )
+    {
+        append( Operation.DELETE, key, null, timeStamp );
+    }
+
+    /**
+     * A write request kept in the feed.
+     *
+     * On the wire, a change is one line of URL-encoded fields, separated by
+     * blanks:
+     * <operation> <sequence> <timeStamp> <size of key> <key...> <values...>
+     */
+    public static final class Change
+    {
+        private static final String ENC = "utf-8";
+
+        private final long sequence;
+        private final Operation operation;
+        private final List< String > key;
+        private final Set< String > value;
+        private final long timeStamp;
+
+        public Change( long sequence, Operation operation, List< String > key, Set< String > value, long timeStamp )
+        {
+            this.sequence = sequence;
+            this.operation = operation;
+            this.key = Collections.unmodifiableList( new ArrayList< String >( key ) );
+            this.value = null == value ? null : Collections.unmodifiableSet( new HashSet< String >( value ) );
+            this.timeStamp = timeStamp;
+        }
+
+        public long getSequence( )
+        {
+            return sequence;
+        }
+
+        public Operation getOperation( )
+        {
+            return operation;
+        }
+
+        public List< String > getKey( )
+        {
+            return key;
+        }
+
+        /**
+         * Get the values of an insert (null otherwise).
+         */
+        public Set< String > getValue( )
+        {
+            return value;
+        }
+
+        public long getTimeStamp( )
+        {
+            return timeStamp;
+        }
+
+        /**
+         * Apply the change to a directory.
+         */
+        public void applyTo( SimpleDirectory directory )
+        {
+            switch( operation )
+            {
+                case INSERT:
+                    directory.insert( key, value, timeStamp );
+                    break;
+                case REFRESH:
+                    directory.refresh( key, timeStamp );
+                    break;
+                case DELETE:
+                    directory.delete( key, timeStamp );
+                    break;
+                case DROP:
+                    directory.delete( key );
+                    break;
+            }
+        }
+
+        /**
+         * Encode the change as one line (without line break).
+         */
+        public String format( )
+        {
+            StringBuilder line = new StringBuilder();
+
+            line.append( operation.name().toLowerCase() );
+            line.append( ' ' ).append( sequence );
+            line.append( ' ' ).append( timeStamp );
+            line.append( ' ' ).append( key.size() );
+
+            for( String element: key )
+            {
+                line.append( ' ' ).append( encode( element ) );
+            }
+
+            if( null != value )
+            {
+                for( String element: value )
+                {
+                    line.append( ' ' ).append( encode( element ) );
+                }
+            }
+
+            return line.toString();
+        }
+
+        /**
+         * Decode a change from one line.
+         *
+         * @throws IllegalArgumentException if the line is no valid change.
+         */
+        public static Change parse( String line )
+        {
+            String[] fields = line.split( " ", -1 );
+
+            try
+            {
+                Operation operation = Operation.valueOf( fields[ 0 ].toUpperCase() );
+                long sequence = Long.parseLong( fields[ 1 ] );
+                long timeStamp = Long.parseLong( fields[ 2 ] );
+                int size = Integer.parseInt( fields[ 3 ] );
+
+                if( size < 0 || 4 + size > fields.length )
+                {
+                    throw new IllegalArgumentException( "Key of change exceeds the line: " + line );
+                }
+
+                List< String > key = new ArrayList< String >( size );
+                for( int i = 4; i < 4 + size; ++i )
+                {
+                    key.add( decode( fields[ i ] ) );
+                }
+
+                Set< String > value = null;
+                if( Operation.INSERT == operation )
+                {
+                    value = new HashSet< String >();
+                    for( int i = 4 + size; i < fields.length; ++i )
+                    {
+                        value.add( decode( fields[ i ] ) );
+                    }
+                }
+
+                return new Change( sequence, operation, key, value, timeStamp );
+            }
+            catch( ArrayIndexOutOfBoundsException e )
+            {
+                throw new IllegalArgumentException( "Incomplete change: " + line );
+            }
+        }
+
+        public static String encode( String field )
+        {
+            try
+            {
+                return URLEncoder.encode( field, ENC );
+            }
+            catch( UnsupportedEncodingException e )
+            {
+                throw new VoldException( e );
+            }
+        }
+
+        public static String decode( String field )
+        {
+            try
+            {
+                return URLDecoder.decode( field, ENC );
+            }
+            catch( UnsupportedEncodingException e )
+            {
+                throw new VoldException( e );
+            }
+        }
+
+        @Override
+        public String toString( )
+        {
+            return format();
+        }
+    }
+}
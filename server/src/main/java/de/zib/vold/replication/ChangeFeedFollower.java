@@ -0,0 +1,366 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.replication;
+
+import de.zib.vold.common.VoldException;
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.Gauge;
+import de.zib.vold.metrics.MetricsRegistry;
+import de.zib.vold.volatilelogic.VolatileDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Background process applying the change feed of another VolD node.
+ *
+ * The follower keeps a stream to the ChangeFeedController of the primary
+ * node open and applies all changes to its own directory, usually a
+ * VolatileDirectoryImpl on a MemoryDirectory. On a reset, e.g. on the first
+ * connect or after falling behind, all keys are dropped and the snapshot
+ * of the primary is applied. When the stream breaks, the follower
+ * reconnects and continues after the last change applied.
+ *
+ * Together with a read-only Frontend, followers serve lookups with the
+ * delay of the stream, while the primary only appends to its feed.
+ *
+ * @note        No Reaper must run on a follower: expired keys are deleted
+ *              by the changes of the primary.
+ *
+ * @see ChangeFeed
+ * @see de.zib.vold.userInterface.ChangeFeedController
+ * @see de.zib.vold.backend.MemoryDirectory
+ */
+public class ChangeFeedFollower extends Thread
+{
+    protected final Logger log = LoggerFactory.getLogger( this.getClass() );
+
+    private final Counter applied = MetricsRegistry.getDefault().counter(
+            "vold_follower_changes_total", "Number of changes applied by the follower." );
+    private final Counter resets = MetricsRegistry.getDefault().counter(
+            "vold_follower_resets_total", "Number of snapshots applied by the follower." );
+    private final Counter reconnects = MetricsRegistry.getDefault().counter(
+            "vold_follower_reconnects_total", "Number of broken streams to the primary." );
+
+    private volatile boolean run = false;
+
+    private String url = null;
+    private String dn = null;
+    private VolatileDirectory directory = null;
+    private long reconnectDelay = 1000;
+    private int readTimeout = 10000;
+
+    // the last change applied
+    private String epoch = null;
+    private long position = -1;
+
+    private volatile long lastContact = 0;
+    private volatile HttpURLConnection connection = null;
+
+    /**
+     * Construct an uninitialized follower.
+     */
+    public ChangeFeedFollower( )
+    {
+        super( "ChangeFeedFollower" );
+        setDaemon( true );
+
+        MetricsRegistry.getDefault().gauge( "vold_follower_staleness_milliseconds",
+                "Time since the follower heard from the primary the last time.", new Gauge()
+                {
+                    public long value( )
+                    {
+                        return 0 == lastContact ? -1 : System.currentTimeMillis() - lastContact;
+                    }
+                } );
+    }
+
+    /**
+     * Internal method which acts as part of the guard of all public methods.
+     */
+    protected void checkState( )
+    {
+        if( null == url || null == directory )
+        {
+            throw new IllegalStateException( "ChangeFeedFollower cannot work while it had not been initialized properly yet. You first need to set an url and a directory!" );
+        }
+    }
+
+    /**
+     * Set the URL of the change feed of the primary, e.g.
+     * http://primary:8080/vold/_changes
+     */
+    public void setUrl( String url )
+    {
+        this.url = url;
+    }
+
+    /**
+     * Set the DN to authenticate with at the primary.
+     *
+     * The DN is sent in the header "DN" and has to be one of an
+     * administrator, unless the primary grants the feed to everyone.
+     *
+     * @param dn The DN or null, to send no header.
+     */
+    public void setDn( String dn )
+    {
+        this.dn = dn;
+    }
+
+    /**
+     * Set the directory to apply the changes to.
+     */
+    public void setDirectory( VolatileDirectory directory )
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Set the time in milliseconds to wait before reconnecting.
+     */
+    public void setReconnectDelay( long reconnectDelay )
+    {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    /**
+     * Set the time in milliseconds after which a silent stream is
+     * considered broken.
+     *
+     * @note        This has to be longer than the heartbeat of the primary.
+     */
+    public void setReadTimeout( int readTimeout )
+    {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Get the sequence of the last change applied.
+     */
+    public synchronized long getPosition( )
+    {
+        return position;
+    }
+
+    /**
+     * Start following in background.
+     */
+    @PostConstruct
+    public synchronized void start_service( )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( ! run )
+        {
+            log.info( "ChangeFeedFollower starting..." );
+
+            run = true;
+            start();
+        }
+    }
+
+    /**
+     * Stop following.
+     */
+    @PreDestroy
+    public void stop_service( )
+    {
+        run = false;
+        interrupt();
+
+        HttpURLConnection c = connection;
+        if( null != c )
+        {
+            c.disconnect();
+        }
+
+        try
+        {
+            join();
+            log.info( "ChangeFeedFollower stopped." );
+        }
+        catch( InterruptedException e )
+        {
+            log.warn( "Could not wait for ChangeFeedFollower to stop: {}", e.getMessage() );
+        }
+    }
+
+    /**
+     * Follow the primary until the process is stopped.
+     */
+    @Override
+    public void run( )
+    {
+        while( run )
+        {
+            try
+            {
+                follow();
+            }
+            catch( IOException e )
+            {
+                if( run )
+                    log.warn( "Stream to {} broke: {}", url, e.getMessage() );
+            }
+            catch( VoldException e )
+            {
+                log.error( "Could not apply change, starting over: {}", e.getMessage() );
+
+                synchronized( this )
+                {
+                    epoch = null;
+                }
+            }
+
+            if( ! run )
+                break;
+
+            reconnects.inc();
+
+            try
+            {
+                sleep( reconnectDelay );
+            }
+            catch( InterruptedException e )
+            {
+                continue;
+            }
+        }
+    }
+
+    /**
+     * Open one stream and apply its changes until it ends.
+     */
+    private void follow( )
+            throws IOException
+    {
+        final String query;
+        synchronized( this )
+        {
+            query = null == epoch ? "" : "?epoch=" + ChangeFeed.Change.encode( epoch ) + "&since=" + position;
+        }
+
+        HttpURLConnection c = ( HttpURLConnection )new URL( url + query ).openConnection();
+        c.setReadTimeout( readTimeout );
+        if( null != dn )
+        {
+            c.setRequestProperty( "DN", dn );
+        }
+        connection = c;
+
+        try
+        {
+            if( HttpURLConnection.HTTP_OK != c.getResponseCode() )
+            {
+                throw new IOException( "Primary answered " + c.getResponseCode() + " " + c.getResponseMessage() );
+            }
+
+            BufferedReader in = new BufferedReader( new InputStreamReader( c.getInputStream(), "utf-8" ) );
+
+            String line;
+            while( run && null != ( line = in.readLine() ) )
+            {
+                apply( line );
+            }
+        }
+        finally
+        {
+            connection = null;
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Apply one line of the stream.
+     *
+     * @see de.zib.vold.userInterface.ChangeFeedController
+     */
+    synchronized void apply( String line )
+    {
+        lastContact = System.currentTimeMillis();
+
+        if( line.startsWith( "ping " ) || line.startsWith( "feed " ) || line.startsWith( "reset " ) )
+        {
+            String[] fields = line.split( " " );
+
+            if( 3 != fields.length || ! fields[ 2 ].matches( "-?[0-9]+" ) )
+            {
+                throw new VoldException( "Invalid line in change feed: " + line );
+            }
+
+            if( "reset".equals( fields[ 0 ] ) )
+            {
+                log.info( "Primary resets the change feed, dropping all keys." );
+                resets.inc();
+
+                clear();
+            }
+            else if( "feed".equals( fields[ 0 ] ) )
+            {
+                log.info( "Following the change feed after sequence {}.", fields[ 2 ] );
+            }
+
+            epoch = ChangeFeed.Change.decode( fields[ 1 ] );
+            position = Long.parseLong( fields[ 2 ] );
+            return;
+        }
+
+        final ChangeFeed.Change change;
+        try
+        {
+            change = ChangeFeed.Change.parse( line );
+        }
+        catch( IllegalArgumentException e )
+        {
+            throw new VoldException( e.getMessage() );
+        }
+
+        change.applyTo( directory );
+        position = change.getSequence();
+        applied.inc();
+    }
+
+    /**
+     * Drop all keys of the directory.
+     */
+    private void clear( )
+    {
+        Map< List< String >, Set< String > > keys = directory.prefixLookup( Collections.singletonList( "" ) );
+
+        if( null == keys )
+            return;
+
+        for( List< String > key: keys.keySet() )
+        {
+            directory.delete( key );
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package de.zib.vold.replication;
 
 import de.zib.vold.volatilelogic.VolatileDirectory;
+import de.zib.vold.metrics.LatencyHistogram;
+import de.zib.vold.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +35,12 @@ import java.util.Set;
 public class LocalReplicator implements Replicator
 {
         protected final Logger log = LoggerFactory.getLogger( this.getClass() );
+        private final LatencyHistogram insertLatency = MetricsRegistry.getDefault().histogram(
+                "vold_replicator_insert_seconds", "Latency of replicated inserts.", "replicator", getClass().getSimpleName() );
+        private final LatencyHistogram refreshLatency = MetricsRegistry.getDefault().histogram(
+                "vold_replicator_refresh_seconds", "Latency of replicated refreshes.", "replicator", getClass().getSimpleName() );
+        private final LatencyHistogram deleteLatency = MetricsRegistry.getDefault().histogram(
+                "vold_replicator_delete_seconds", "Latency of replicated deletes.", "replicator", getClass().getSimpleName() );
         private VolatileDirectory replica;
 
         /**
@@ -86,12 +94,23 @@ public class LocalReplicator implements Replicator
         {
                 // guard
                 {
-                        log.trace( "Insert into replica " + replica.getClass().getName() + ": " + key.toString() + " |--> " + value.toString() );
+                        if( log.isTraceEnabled() )
+                        {
+                                log.trace( "Insert into replica {}: {} |--> {}", new Object[]{ replica.getClass().getName(), key, value } );
+                        }
 
                         checkState();
                 }
 
-                replica.insert( key, value, timeStamp );
+                final long start = System.nanoTime();
+                try
+                {
+                        replica.insert( key, value, timeStamp );
+                }
+                finally
+                {
+                        insertLatency.recordSince( start );
+                }
         }
 
         /**
@@ -105,12 +124,20 @@ public class LocalReplicator implements Replicator
         {
                 // guard
                 {
-                        log.trace( "Refresh on replica " + replica.getClass().getName() + ": " + key.toString() );
+                        log.trace( "Refresh on replica {}: {}", replica.getClass().getName(), key );
 
                         checkState();
                 }
 
-                replica.refresh( key, timeStamp );
+                final long start = System.nanoTime();
+                try
+                {
+                        replica.refresh( key, timeStamp );
+                }
+                finally
+                {
+                        refreshLatency.recordSince( start );
+                }
         }
 
         /**
@@ -123,11 +150,46 @@ public class LocalReplicator implements Replicator
         {
                 // guard
                 {
-                        log.trace( "Delete: " + key.toString() );
+                        log.trace( "Delete: {}", key );
 
                         checkState();
                 }
 
-                replica.delete( key );
+                final long start = System.nanoTime();
+                try
+                {
+                        replica.delete( key );
+                }
+                finally
+                {
+                        deleteLatency.recordSince( start );
+                }
+        }
+
+        /**
+         * Delegate a delete request with its timeStamp.
+         *
+         * @param key   The key to replicate the request for.
+         * @param timeStamp     The timeStamp of operation.
+         */
+        @Override
+        public void delete( List< String > key, long timeStamp )
+        {
+                // guard
+                {
+                        log.trace( "Delete: {}", key );
+
+                        checkState();
+                }
+
+                final long start = System.nanoTime();
+                try
+                {
+                        replica.delete( key, timeStamp );
+                }
+                finally
+                {
+                        deleteLatency.recordSince( start );
+                }
         }
 }
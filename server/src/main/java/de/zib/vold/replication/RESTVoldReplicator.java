@@ -18,12 +18,24 @@ package de.zib.vold.replication;
 
 import de.zib.vold.client.VolDClient;
 import de.zib.vold.common.Key;
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.LatencyHistogram;
+import de.zib.vold.metrics.MetricsRegistry;
+import org.joda.time.DateTimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Replicator delegating all requests to another de.zib.vold REST based service.
@@ -33,6 +45,14 @@ import java.util.Set;
  *              have to be build up. Hence, when using this replicator, the
  *              keys given here need the format specified for Key.buildkey.
  *
+ * Deletions are replicated as tombstones: each deleted key is queued with
+ * the timeStamp of its deletion, thus the other service keeps the key if it
+ * has been written after. Several deletions of the same key are compacted to
+ * the latest one. The queue is sent in one batch request as soon as it holds
+ * batchSize keys or its oldest entry is flushInterval ms old.
+ *
+ * @note        Queued deletions are sent on shutdown, but lost on a crash.
+ *
  * @see Replicator
  * @see Key
  * @see de.zib.vold.userInterface.RESTController
@@ -40,9 +60,27 @@ import java.util.Set;
 public class RESTVoldReplicator implements Replicator
 {
     protected final Logger log = LoggerFactory.getLogger( this.getClass() );
+    private final LatencyHistogram insertLatency = MetricsRegistry.getDefault().histogram(
+            "vold_replicator_insert_seconds", "Latency of replicated inserts.", "replicator", getClass().getSimpleName() );
+    private final LatencyHistogram refreshLatency = MetricsRegistry.getDefault().histogram(
+            "vold_replicator_refresh_seconds", "Latency of replicated refreshes.", "replicator", getClass().getSimpleName() );
+    private final LatencyHistogram deleteLatency = MetricsRegistry.getDefault().histogram(
+            "vold_replicator_delete_seconds", "Latency of replicated deletes.", "replicator", getClass().getSimpleName() );
+    private final Counter compactedTombstones = MetricsRegistry.getDefault().counter(
+            "vold_replicator_tombstones_compacted_total", "Number of queued deletions replaced by a later deletion of the same key.", "replicator", getClass().getSimpleName() );
+    private final Counter failedTombstones = MetricsRegistry.getDefault().counter(
+            "vold_replicator_tombstones_failed_total", "Number of deletions which could not be replicated.", "replicator", getClass().getSimpleName() );
 
     VolDClient volD;
 
+    private int batchSize = 100;
+    private long flushInterval = 1000;
+
+    // queued deletions with their timeStamps, in the order of their arrival
+    private final Map< List< String >, Long > tombstones = new LinkedHashMap< List< String >, Long >();
+    private ScheduledExecutorService flusher = null;
+    private boolean scheduled = false;
+
     /**
      * Construct an unitialized RESTVoldReplicator.
      */
@@ -51,6 +89,14 @@ public class RESTVoldReplicator implements Replicator
         this.volD = new VolDClient();
     }
 
+    /**
+     * Construct a RESTVoldReplicator delegating to a certain client.
+     */
+    RESTVoldReplicator( VolDClient volD )
+    {
+        this.volD = volD;
+    }
+
     /**
      * Set the REST base URL to delegate all write requests to.
      */
@@ -59,6 +105,39 @@ public class RESTVoldReplicator implements Replicator
         volD.setBaseURL( baseURL );
     }
 
+    /**
+     * Set the number of queued deletions sent at once.
+     */
+    public void setBatchSize( int batchSize )
+    {
+        if( batchSize < 1 )
+        {
+            throw new IllegalArgumentException( "The batch size must be positive, but batchSize=" + batchSize + " has been given!" );
+        }
+
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize( )
+    {
+        return batchSize;
+    }
+
+    /**
+     * Set the time a deletion may be queued.
+     *
+     * @param flushInterval The time in milliseconds.
+     */
+    public void setFlushInterval( long flushInterval )
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    public long getFlushInterval( )
+    {
+        return flushInterval;
+    }
+
     /**
      * Internal method which acts as part of the guard of all public methods.
      */
@@ -91,7 +170,7 @@ public class RESTVoldReplicator implements Replicator
                 throw new IllegalArgumentException( "key does not seem to come from Frontend." );
             }
 
-            log.trace( "Insert: " + key.toString() + " |--> " + value.toString() );
+            log.trace( "Insert: {} |--> {}", key, value );
 
             checkState();
         }
@@ -102,7 +181,15 @@ public class RESTVoldReplicator implements Replicator
             k = Key.buildkey( key );
         }
 
-        volD.insert( key.get( 3 ), k, value, timeStamp );
+        final long start = System.nanoTime();
+        try
+        {
+            volD.insert( key.get( 3 ), k, value, timeStamp );
+        }
+        finally
+        {
+            insertLatency.recordSince( start );
+        }
     }
 
     /**
@@ -121,7 +208,7 @@ public class RESTVoldReplicator implements Replicator
                 throw new IllegalArgumentException( "key does not seem to come from Frontend." );
             }
 
-            log.trace( "Refresh: " + key.toString() );
+            log.trace( "Refresh: {}", key );
 
             checkState();
         }
@@ -135,17 +222,194 @@ public class RESTVoldReplicator implements Replicator
         Set< Key > keys = new HashSet< Key >();
         keys.add( k );
 
-        volD.refresh( key.get( 3 ), keys, timeStamp );
+        final long start = System.nanoTime();
+        try
+        {
+            volD.refresh( key.get( 3 ), keys, timeStamp );
+        }
+        finally
+        {
+            refreshLatency.recordSince( start );
+        }
     }
 
     /**
-     * Delegate a delete request.
+     * Queue a delete request dated now.
      *
      * @param key   The key to replicate the request for.
      */
     @Override
     public void delete( List< String > key )
     {
-        // no need to remove that key - that is part of the other VolD service
+        delete( key, DateTimeUtils.currentTimeMillis() );
+    }
+
+    /**
+     * Queue a delete request.
+     *
+     * @param key   The key to replicate the request for.
+     * @param timeStamp     The timeStamp of operation.
+     */
+    @Override
+    public void delete( List< String > key, long timeStamp )
+    {
+        // guard
+        {
+            if( 4 != key.size() )
+            {
+                throw new IllegalArgumentException( "key does not seem to come from Frontend." );
+            }
+
+            log.trace( "Delete: {}", key );
+
+            checkState();
+        }
+
+        Map< List< String >, Long > batch = null;
+
+        synchronized( tombstones )
+        {
+            Long queued = tombstones.get( key );
+
+            if( null != queued )
+            {
+                compactedTombstones.inc();
+
+                if( queued >= timeStamp )
+                    return;
+            }
+
+            tombstones.put( key, timeStamp );
+
+            if( tombstones.size() >= batchSize )
+            {
+                batch = drain();
+            }
+            else if( ! scheduled )
+            {
+                schedule();
+            }
+        }
+
+        if( null != batch )
+        {
+            send( batch );
+        }
+    }
+
+    /**
+     * Send all queued deletions.
+     */
+    @PreDestroy
+    public void flush( )
+    {
+        Map< List< String >, Long > batch;
+
+        synchronized( tombstones )
+        {
+            batch = drain();
+        }
+
+        send( batch );
+    }
+
+    /**
+     * Take all queued deletions.
+     *
+     * @note        The lock of the queue has to be held.
+     */
+    private Map< List< String >, Long > drain( )
+    {
+        Map< List< String >, Long > batch = new LinkedHashMap< List< String >, Long >( tombstones );
+        tombstones.clear();
+
+        return batch;
+    }
+
+    /**
+     * Schedule sending the queue after the flush interval.
+     *
+     * @note        The lock of the queue has to be held.
+     */
+    private void schedule( )
+    {
+        if( null == flusher )
+        {
+            flusher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+            {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "RESTVoldReplicator-flusher" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        }
+
+        scheduled = true;
+
+        flusher.schedule( new Runnable()
+        {
+            public void run( )
+            {
+                synchronized( tombstones )
+                {
+                    scheduled = false;
+                }
+
+                flush();
+            }
+        }, flushInterval, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Send deletions to the other service in one request.
+     */
+    private void send( Map< List< String >, Long > batch )
+    {
+        if( batch.isEmpty() )
+            return;
+
+        // group keys by source
+        Map< String, Map< Key, Long > > deletions = new HashMap< String, Map< Key, Long > >();
+        {
+            for( Map.Entry< List< String >, Long > entry: batch.entrySet() )
+            {
+                String source = entry.getKey().get( 3 );
+                Map< Key, Long > keys = deletions.get( source );
+
+                if( null == keys )
+                {
+                    keys = new HashMap< Key, Long >();
+                    deletions.put( source, keys );
+                }
+
+                keys.put( Key.buildkey( entry.getKey() ), entry.getValue() );
+            }
+        }
+
+        final long start = System.nanoTime();
+        try
+        {
+            Map< String, String > results = volD.delete( deletions );
+
+            for( Map.Entry< String, String > result: results.entrySet() )
+            {
+                if( ! "OK".equals( result.getValue() ) )
+                {
+                    log.warn( "Could not replicate deletion of {}: {}", result.getKey(), result.getValue() );
+                    failedTombstones.inc();
+                }
+            }
+        }
+        catch( RuntimeException e )
+        {
+            log.error( "Could not replicate {} deletions: {}", batch.size(), e.getMessage() );
+            failedTombstones.add( batch.size() );
+        }
+        finally
+        {
+            deleteLatency.recordSince( start );
+        }
     }
 }
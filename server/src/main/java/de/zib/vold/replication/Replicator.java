@@ -57,4 +57,15 @@ public interface Replicator
          * @param key           The key to replicate the delete request for.
          */
         void delete( List< String > key );
+
+        /**
+         * Replicate a delete request with its timeStamp.
+         *
+         * The replica keeps the key, if it has been written after the
+         * deletion.
+         *
+         * @param key           The key to replicate the delete request for.
+         * @param timeStamp     The timeStamp of operation.
+         */
+        void delete( List< String > key, long timeStamp );
 }
@@ -15,6 +15,9 @@ package de.zib.vold.security;
  *  limitations under the License.
  */
 
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.Gauge;
+import de.zib.vold.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.core.GrantedAuthority;
@@ -24,12 +27,19 @@ import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * @author Maik Jorra
@@ -44,6 +54,20 @@ import java.util.concurrent.ConcurrentHashMap;
  * depending on which file contains the requested DN the users Role is set.
  *
  * If a DN doesn't occur in on of the grid-mapfiles the user isn't allowed to access the service.
+ *
+ * The grid-mapfiles are parsed once into hash tables of their DNs, thus a look-up neither
+ * reads the files nor takes a lock. The tables are replaced as a whole, when the
+ * modification time or size of a file has changed. This is checked at most once per
+ * reloadInterval (in ms) during a look-up.
+ *
+ * The resolved UserDetails are cached per DN for cacheTTL ms (at most cacheSize DNs),
+ * thus the few DNs authenticating over and over again do not build new UserDetails for
+ * each request. The cache is cleared whenever a grid-mapfile is reloaded. DNs which are
+ * not permitted are not cached.
+ *
+ * Each reload starts a new generation of the tables. Cache entries are tagged with the
+ * generation they have been resolved from and entries of former generations are ignored,
+ * thus a look-up racing with a reload cannot keep a revoked DN authorised.
  */
 public class GridMapUserDetailsService implements UserDetailsService {
 
@@ -51,31 +75,73 @@ public class GridMapUserDetailsService implements UserDetailsService {
     private String adminGridMapfileName;
     protected final Logger logger = LoggerFactory.getLogger( this.getClass() );
 
-    private final Map<String,String> admins;
-    private final Map<String, String> users;
+    private volatile GridMap admins;
+    private volatile GridMap users;
+
+    private long reloadInterval = 5000;
+    private final AtomicLong nextCheck = new AtomicLong( 0 );
+    private final AtomicLong generation = new AtomicLong( 0 );
+
+    private long cacheTTL = 60000;
+    private int cacheSize = 1024;
+    private final ConcurrentMap<String,CachedUserDetails> cache = new ConcurrentHashMap<String,CachedUserDetails>();
+
+    private final Counter cacheHits = MetricsRegistry.getDefault().counter(
+            "vold_security_userdetails_cache_hits_total", "Number of authentications served from the UserDetails cache." );
+    private final Counter cacheMisses = MetricsRegistry.getDefault().counter(
+            "vold_security_userdetails_cache_misses_total", "Number of authentications resolved from the grid-mapfiles." );
 
 
     public GridMapUserDetailsService() {
-        admins = new ConcurrentHashMap<String,String>( 1 );
-        users = new ConcurrentHashMap<String,String>( 1 );
+        admins = GridMap.EMPTY;
+        users = GridMap.EMPTY;
+
+        MetricsRegistry.getDefault().gauge( "vold_security_userdetails_cache_size",
+                "Number of DNs in the UserDetails cache.", new Gauge() {
+                    public long value() {
+                        return cache.size();
+                    }
+                } );
     }
 
 
     @Override
     public UserDetails loadUserByUsername( final String dn ) throws UsernameNotFoundException {
 
+        checkReload();
+
+        final long now = System.currentTimeMillis();
+        // take the generation before reading the tables, thus entries resolved from
+        // replaced tables are tagged with a former generation
+        final long actual = generation.get();
+
+        CachedUserDetails cached = null == dn ? null : cache.get( dn );
+        if( null != cached && now < cached.expires && actual == cached.generation ) {
+            cacheHits.inc();
+            return cached.userDetails;
+        }
+        cacheMisses.inc();
+
+        UserDetails userDetails = resolve( dn );
+
+        if( cacheTTL > 0 )
+            putCache( dn, new CachedUserDetails( userDetails, now + cacheTTL, actual ) );
+
+        return userDetails;
+    }
+
+
+    /**
+     * Build the UserDetails of a DN from the grid-mapfiles.
+     */
+    private UserDetails resolve( final String dn ) throws UsernameNotFoundException {
+
         List<GrantedAuthority> authorityList =  new ArrayList<GrantedAuthority>( 1 );
         // search admin
-        try {
-            if( searchInGridMapfile( adminGridMapfileName, dn ) ) {
-                //if( admins.containsKey( dn ) )
-                authorityList.add( adminRole() );
-            } else  if( searchInGridMapfile( gridMapfileName, dn ) )
-                //else if ( users.containsKey( dn ) )
-                authorityList.add( userRole() );
-        } catch ( Exception e ) {
-            throw new RuntimeException( e );
-        }
+        if( admins.contains( dn ) )
+            authorityList.add( adminRole() );
+        else if ( users.contains( dn ) )
+            authorityList.add( userRole() );
 
         if ( authorityList.size() == 0 )
             throw new UsernameNotFoundException( "DN not permitted: " + dn );
@@ -83,12 +149,35 @@ public class GridMapUserDetailsService implements UserDetailsService {
         VolDUserDetails userDetails = new VolDUserDetails( );
         userDetails.setAuthorities( authorityList );
         userDetails.setDn( dn );
-        logger.debug("userDetails "+userDetails.getUsername());
+        logger.debug( "userDetails {}", userDetails.getUsername() );
 
         return userDetails;
     }
 
 
+    /**
+     * Add an entry to the cache, if there is space left.
+     *
+     * Expired entries and entries of former generations are removed when the cache is full.
+     */
+    private void putCache( final String dn, final CachedUserDetails cached ) {
+
+        if( cache.size() >= cacheSize && ! cache.containsKey( dn ) ) {
+            final long actual = generation.get();
+            for( Iterator<CachedUserDetails> it = cache.values().iterator(); it.hasNext(); ) {
+                CachedUserDetails c = it.next();
+                if( c.expires <= System.currentTimeMillis() || actual != c.generation )
+                    it.remove();
+            }
+
+            if( cache.size() >= cacheSize )
+                return;
+        }
+
+        cache.put( dn, cached );
+    }
+
+
     private SimpleGrantedAuthority userRole() {
 
         return new SimpleGrantedAuthority( "ROLE_USER" );
@@ -101,26 +190,63 @@ public class GridMapUserDetailsService implements UserDetailsService {
     }
 
 
-	protected synchronized boolean searchInGridMapfile(final String fileName,
-			final String dn) throws IOException {
+    /**
+     * Reload the grid-mapfiles if they changed and the reload interval is over.
+     *
+     * Only one thread performs the check, all others keep on using the actual tables.
+     */
+    private void checkReload() {
+
+        if( reloadInterval < 0 )
+            return;
+
+        final long now = System.currentTimeMillis();
+        final long next = nextCheck.get();
 
-		BufferedReader reader = new BufferedReader(new FileReader(fileName));
-		boolean authenticated =false;
+        if( now < next || ! nextCheck.compareAndSet( next, now + reloadInterval ) )
+            return;
 
-		try {
-			String line;
-			while ((line = reader.readLine()) != null) {
-				if (line.contains(dn)) {
-					logger.debug("gridmap file contains the DN "+line.toString());
-					authenticated =true;
-					break;
-				}
-			}
-		} finally {
-			reader.close();
-		}
-		return authenticated;
-	}
+        GridMap newAdmins = reloadIfModified( admins, adminGridMapfileName );
+        GridMap newUsers = reloadIfModified( users, gridMapfileName );
+
+        if( newAdmins != admins || newUsers != users ) {
+            admins = newAdmins;
+            users = newUsers;
+            invalidate();
+        }
+    }
+
+
+    /**
+     * Start a new generation after the tables have been replaced and drop the cache.
+     */
+    private void invalidate() {
+
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+
+    private GridMap reloadIfModified( final GridMap map, final String fileName ) {
+
+        if( null == fileName )
+            return GridMap.EMPTY;
+
+        final File file = new File( fileName );
+        if( map.isActual( file ) )
+            return map;
+
+        try {
+            GridMap loaded = GridMap.load( file );
+            logger.info( "Loaded {} DNs from grid-mapfile {}.", loaded.size(), fileName );
+            return loaded;
+        } catch ( IOException e ) {
+            // keep the old DNs until the file changes again
+            logger.warn( "Could not read grid-mapfile {}, keeping the {} DNs read before: {}",
+                    new Object[]{ fileName, map.size(), e.getMessage() } );
+            return map.stamped( file );
+        }
+    }
 
 
     public String getGridMapfileName() {
@@ -132,6 +258,8 @@ public class GridMapUserDetailsService implements UserDetailsService {
     public void setGridMapfileName( final String gridMapfileName ) {
 
         this.gridMapfileName = gridMapfileName;
+        users = reloadIfModified( GridMap.EMPTY, gridMapfileName );
+        invalidate();
     }
 
 
@@ -144,6 +272,199 @@ public class GridMapUserDetailsService implements UserDetailsService {
     public void setAdminGridMapfileName( final String adminGridMapfileName ) {
 
         this.adminGridMapfileName = adminGridMapfileName;
+        admins = reloadIfModified( GridMap.EMPTY, adminGridMapfileName );
+        invalidate();
     }
-}
 
+
+    public long getReloadInterval() {
+
+        return reloadInterval;
+    }
+
+
+    /**
+     * Set the minimal time between two checks for modified grid-mapfiles.
+     *
+     * @param reloadInterval The interval in ms, 0 to check on each look-up or a negative
+     *                       value to never reload the files.
+     */
+    public void setReloadInterval( final long reloadInterval ) {
+
+        this.reloadInterval = reloadInterval;
+    }
+
+
+    public long getCacheTTL() {
+
+        return cacheTTL;
+    }
+
+
+    /**
+     * Set the time the UserDetails of a DN are cached.
+     *
+     * @param cacheTTL The time in ms, 0 to disable the cache.
+     */
+    public void setCacheTTL( final long cacheTTL ) {
+
+        this.cacheTTL = cacheTTL;
+        cache.clear();
+    }
+
+
+    public int getCacheSize() {
+
+        return cacheSize;
+    }
+
+
+    /**
+     * Set the maximal number of DNs in the cache.
+     */
+    public void setCacheSize( final int cacheSize ) {
+
+        this.cacheSize = cacheSize;
+        cache.clear();
+    }
+
+
+    /**
+     * The UserDetails of a DN together with the time they expire and the generation of
+     * the tables they have been resolved from.
+     */
+    private static final class CachedUserDetails {
+
+        final UserDetails userDetails;
+        final long expires;
+        final long generation;
+
+
+        CachedUserDetails( final UserDetails userDetails, final long expires, final long generation ) {
+
+            this.userDetails = userDetails;
+            this.expires = expires;
+            this.generation = generation;
+        }
+    }
+
+
+    /**
+     * An immutable table of the DNs of one grid-mapfile.
+     *
+     * Each line holds one DN, which should be quoted if it contains spaces, optionally
+     * followed by a local user field. Lines starting with # are comments. An unquoted
+     * line is split at its last whitespace only if the last field is a comma separated
+     * list of local user names (lower case letters, digits, '_', '-' and '.'). Otherwise,
+     * the whole line is the DN, thus the prefix of a DN containing spaces is never taken
+     * as DN on its own.
+     */
+    static final class GridMap {
+
+        static final GridMap EMPTY = new GridMap( Collections.<String,String>emptyMap(), 0, -1 );
+
+        private static final Pattern LOCAL_USERS = Pattern.compile( "[a-z_][a-z0-9_.-]*(,[a-z_][a-z0-9_.-]*)*" );
+
+        private final Map<String,String> dns;
+        private final long lastModified;
+        private final long length;
+
+
+        private GridMap( final Map<String,String> dns, final long lastModified, final long length ) {
+
+            this.dns = dns;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+
+        static GridMap load( final File file ) throws IOException {
+
+            // take the stamp before reading, thus a concurrent change is detected on the next check
+            final long lastModified = file.lastModified();
+            final long length = file.length();
+
+            Map<String,String> dns = new HashMap<String,String>();
+            BufferedReader reader = new BufferedReader( new FileReader( file ) );
+            try {
+                String line;
+                while ( ( line = reader.readLine() ) != null ) {
+                    parse( line.trim(), dns );
+                }
+            } finally {
+                reader.close();
+            }
+
+            return new GridMap( dns, lastModified, length );
+        }
+
+
+        private static void parse( final String line, final Map<String,String> dns ) {
+
+            if( line.length() == 0 || line.startsWith( "#" ) )
+                return;
+
+            if( line.startsWith( "\"" ) ) {
+                int end = line.indexOf( '"', 1 );
+                if( end > 0 )
+                    dns.put( line.substring( 1, end ), line.substring( end + 1 ).trim() );
+                return;
+            }
+
+            int space = lastIndexOfWhitespace( line );
+            if( space > 0 && isLocalUserField( line.substring( space + 1 ) ) )
+                dns.put( line.substring( 0, space ).trim(), line.substring( space + 1 ) );
+            else
+                dns.put( line, "" );
+        }
+
+
+        private static int lastIndexOfWhitespace( final String line ) {
+
+            for( int i = line.length() - 1; i >= 0; --i ) {
+                if( Character.isWhitespace( line.charAt( i ) ) )
+                    return i;
+            }
+            return -1;
+        }
+
+
+        /**
+         * Check whether a field is a comma separated list of local user names.
+         */
+        private static boolean isLocalUserField( final String field ) {
+
+            return LOCAL_USERS.matcher( field ).matches();
+        }
+
+
+        boolean contains( final String dn ) {
+
+            return null != dn && dns.containsKey( dn );
+        }
+
+
+        int size() {
+
+            return dns.size();
+        }
+
+
+        /**
+         * Get a table with the same DNs, which is actual for the current state of the file.
+         */
+        GridMap stamped( final File file ) {
+
+            return new GridMap( dns, file.lastModified(), file.length() );
+        }
+
+
+        /**
+         * Check whether the table still reflects the file.
+         */
+        boolean isActual( final File file ) {
+
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+}
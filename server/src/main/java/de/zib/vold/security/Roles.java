@@ -0,0 +1,58 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.security;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Checks the roles of the authenticated user of the actual request.
+ *
+ * Used by the plain HttpRequestHandlers of the dispatcher context, where
+ * method security does not apply.
+ *
+ * @see GridMapUserDetailsService
+ */
+public final class Roles {
+
+    public static final String ADMIN = "ROLE_ADMIN";
+
+    private Roles() {
+    }
+
+    /**
+     * Check whether the authenticated user of the actual request holds a role.
+     *
+     * @param role The role to look for.
+     * @return true iff the role is granted to the authenticated user.
+     */
+    public static boolean hasRole( final String role ) {
+
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if( null == auth || ! auth.isAuthenticated() ) {
+            return false;
+        }
+
+        for( GrantedAuthority authority: auth.getAuthorities() ) {
+            if( role.equals( authority.getAuthority() ) ) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.userInterface;
+
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.Gauge;
+import de.zib.vold.metrics.MetricsRegistry;
+import de.zib.vold.replication.ChangeFeed;
+import de.zib.vold.security.Roles;
+import de.zib.vold.volatilelogic.DateMap;
+import de.zib.vold.volatilelogic.DatedValues;
+import de.zib.vold.volatilelogic.VolatileDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.HttpRequestHandler;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Streams the changes of a ChangeFeed to followers.
+ *
+ * The handler is mapped to /_changes in the server context and only answers
+ * GET requests. The response is a long-lived stream of lines, which is
+ * flushed after each batch of changes and ends when the follower closes the
+ * connection or falls behind the feed. The parameters "epoch" and "since"
+ * name the last change the follower knows. The first line is either
+ *   feed <epoch> <sequence>
+ * if the stream continues after that change, or
+ *   reset <epoch> <sequence>
+ * if the follower has to drop all its keys. The reset is followed by an
+ * insert of each key of the directory with its values and date and a delete
+ * of each tombstone with the date of the deletion. All further
+ * lines are the changes after the sequence (see ChangeFeed.Change) or
+ *   ping <epoch> <sequence>
+ * if there was no change within the heartbeat interval.
+ *
+ * The snapshot is taken under the read lock of the frontend, thus it does
+ * not see a write request half done. Streaming the changes requires the
+ * role ROLE_ADMIN by default (see setRequiredRole), thus the followers have
+ * to authenticate with a DN of an administrator (see
+ * ChangeFeedFollower.setDn).
+ *
+ * @note        Each stream holds a container thread.
+ *
+ * @see ChangeFeed
+ * @see de.zib.vold.replication.ChangeFeedFollower
+ */
+public class ChangeFeedController implements HttpRequestHandler
+{
+    protected final Logger log = LoggerFactory.getLogger( this.getClass() );
+
+    private final Counter snapshots = MetricsRegistry.getDefault().counter(
+            "vold_changefeed_snapshots_total", "Number of snapshots sent to followers." );
+    private final AtomicInteger streams = new AtomicInteger( 0 );
+
+    private ChangeFeed feed;
+    private VolatileDirectory directory;
+    private ReadWriteLock lock;
+    private String requiredRole = Roles.ADMIN;
+    private int batchSize = 1000;
+    private long heartbeat = 1000;
+
+    /**
+     * Construct an uninitialized ChangeFeedController.
+     */
+    public ChangeFeedController( )
+    {
+        MetricsRegistry.getDefault().gauge( "vold_changefeed_streams",
+                "Number of open streams to followers.", new Gauge()
+                {
+                    public long value( )
+                    {
+                        return streams.get();
+                    }
+                } );
+    }
+
+    @Override
+    public void handleRequest( HttpServletRequest request, HttpServletResponse response )
+            throws ServletException, IOException
+    {
+        // guard
+        {
+            if( null == feed || null == directory || null == lock )
+            {
+                throw new IllegalStateException( "Tried to operate on ChangeFeedController while it had not been initialized yet. You first need to set a feed, a directory and a lock!" );
+            }
+        }
+
+        if( ! "GET".equals( request.getMethod() ) )
+        {
+            response.sendError( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+            return;
+        }
+
+        if( ! Handlers.permitted( response, requiredRole, "Streaming the change feed" ) )
+        {
+            return;
+        }
+
+        long since;
+        try
+        {
+            since = Handlers.parseLong( request.getParameter( "since" ), -1 );
+        }
+        catch( IllegalArgumentException e )
+        {
+            response.sendError( HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
+            return;
+        }
+
+        response.setContentType( "text/plain" );
+        response.setCharacterEncoding( "utf-8" );
+
+        PrintWriter out = response.getWriter();
+
+        streams.incrementAndGet();
+        try
+        {
+            stream( out, request.getParameter( "epoch" ), since );
+        }
+        catch( InterruptedException e )
+        {
+            log.info( "Interrupted while streaming changes: {}", e.getMessage() );
+        }
+        finally
+        {
+            streams.decrementAndGet();
+        }
+    }
+
+    /**
+     * Write changes until the follower is gone or falls behind.
+     */
+    private void stream( PrintWriter out, String epoch, long since )
+            throws InterruptedException
+    {
+        final String ownEpoch = feed.getEpoch();
+        long position = since;
+
+        if( ownEpoch.equals( epoch ) && feed.isAvailable( since ) )
+        {
+            line( out, "feed", ownEpoch, position );
+        }
+        else
+        {
+            List< ChangeFeed.Change > snapshot = new ArrayList< ChangeFeed.Change >();
+
+            lock.readLock().lock();
+            try
+            {
+                position = feed.getSequence();
+                snapshot( snapshot, position );
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+
+            log.info( "Sending snapshot at sequence {} to follower (epoch {}, since {}).", new Object[]{ position, epoch, since } );
+            snapshots.inc();
+
+            line( out, "reset", ownEpoch, position );
+
+            for( ChangeFeed.Change change: snapshot )
+            {
+                out.print( change.format() );
+                out.print( '\n' );
+            }
+        }
+
+        out.flush();
+
+        while( ! out.checkError() )
+        {
+            List< ChangeFeed.Change > changes = feed.read( position, batchSize, heartbeat );
+
+            if( null == changes )
+            {
+                log.info( "Follower fell behind the change feed at sequence {}.", position );
+                return;
+            }
+
+            if( changes.isEmpty() )
+            {
+                line( out, "ping", ownEpoch, position );
+            }
+
+            for( ChangeFeed.Change change: changes )
+            {
+                out.print( change.format() );
+                out.print( '\n' );
+
+                position = change.getSequence();
+            }
+
+            out.flush();
+        }
+    }
+
+    /**
+     * Collect an insert of each key and a delete of each tombstone of the
+     * directory.
+     *
+     * The caller holds the read lock, thus the snapshot matches the position
+     * and all later changes follow it. The tombstones keep delayed write
+     * requests to deleted keys from bringing them back on the follower.
+     */
+    private void snapshot( List< ChangeFeed.Change > snapshot, long position )
+    {
+        Map< List< String >, Set< String > > keys = directory.prefixLookup( Collections.singletonList( "" ) );
+
+        if( null != keys )
+        {
+            for( List< String > key: keys.keySet() )
+            {
+                DatedValues dated = directory.lookupDated( key );
+
+                if( null == dated || dated.isDeleted() )
+                    continue;
+
+                snapshot.add( new ChangeFeed.Change( position, ChangeFeed.Operation.INSERT, key, dated.values(), dated.date() ) );
+            }
+        }
+
+        DateMap tombstones = directory.tombstoneLookup();
+
+        for( int i = 0; i < tombstones.size(); ++i )
+        {
+            snapshot.add( new ChangeFeed.Change( position, ChangeFeed.Operation.DELETE, tombstones.key( i ), null, tombstones.date( i ) ) );
+        }
+    }
+
+    private static void line( PrintWriter out, String type, String epoch, long position )
+    {
+        out.print( type + " " + ChangeFeed.Change.encode( epoch ) + " " + position + "\n" );
+    }
+
+    /**
+     * Set the feed to stream.
+     */
+    public void setFeed( ChangeFeed feed )
+    {
+        this.feed = feed;
+    }
+
+    /**
+     * Set the directory to take snapshots from, i.e. the one notifying the
+     * feed.
+     */
+    public void setDirectory( VolatileDirectory directory )
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Set the lock of the frontend writing to the directory.
+     *
+     * Snapshots are taken under its read lock.
+     *
+     * @see de.zib.vold.frontend.Frontend#setLock
+     */
+    public void setLock( ReadWriteLock lock )
+    {
+        this.lock = lock;
+    }
+
+    /**
+     * Set the role required to stream the change feed.
+     *
+     * @param requiredRole The role, or an empty string to grant the feed to everyone.
+     */
+    public void setRequiredRole( String requiredRole )
+    {
+        this.requiredRole = requiredRole;
+    }
+
+    /**
+     * Set the maximum number of changes written at once.
+     */
+    public void setBatchSize( int batchSize )
+    {
+        if( batchSize < 1 )
+        {
+            throw new IllegalArgumentException( "The batch size must be positive, but batchSize=" + batchSize + " has been given!" );
+        }
+
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the time in milliseconds after which an idle stream is pinged.
+     */
+    public void setHeartbeat( long heartbeat )
+    {
+        if( heartbeat <= 0 )
+        {
+            throw new IllegalArgumentException( "The heartbeat must be positive, but heartbeat=" + heartbeat + " has been given!" );
+        }
+
+        this.heartbeat = heartbeat;
+    }
+}
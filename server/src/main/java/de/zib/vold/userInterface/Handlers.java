@@ -0,0 +1,91 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.userInterface;
+
+import de.zib.vold.security.Roles;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Helpers shared by the HttpRequestHandlers of the server context.
+ *
+ * @see TimeSliceController
+ * @see HotKeysController
+ * @see ChangeFeedController
+ */
+final class Handlers
+{
+    private Handlers( )
+    {
+    }
+
+    /**
+     * Parse an optional numeric parameter.
+     *
+     * @param parameter The value of the parameter or null, if it is not given.
+     * @param fallback The value to use if the parameter is not given.
+     * @throws NumberFormatException
+     */
+    static long parseLong( String parameter, long fallback )
+    {
+        if( null == parameter )
+        {
+            return fallback;
+        }
+
+        return Long.parseLong( parameter );
+    }
+
+    /**
+     * Parse an optional numeric parameter.
+     *
+     * @param parameter The value of the parameter or null, if it is not given.
+     * @param fallback The value to use if the parameter is not given.
+     * @throws NumberFormatException
+     */
+    static int parseInt( String parameter, int fallback )
+    {
+        if( null == parameter )
+        {
+            return fallback;
+        }
+
+        return Integer.parseInt( parameter );
+    }
+
+    /**
+     * Check whether the user of a request holds the required role.
+     *
+     * A request without the role is answered with 403 (Forbidden).
+     *
+     * @param response The response of the request.
+     * @param requiredRole The role, or an empty string (or null) to grant the request to everyone.
+     * @param action The action requiring the role, e.g. "Changing the resolution".
+     * @return true, if the request may be processed.
+     */
+    static boolean permitted( HttpServletResponse response, String requiredRole, String action )
+            throws IOException
+    {
+        if( null == requiredRole || requiredRole.isEmpty() || Roles.hasRole( requiredRole ) )
+        {
+            return true;
+        }
+
+        response.sendError( HttpServletResponse.SC_FORBIDDEN, action + " requires " + requiredRole + "." );
+        return false;
+    }
+}
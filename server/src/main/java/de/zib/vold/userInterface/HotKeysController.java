@@ -0,0 +1,113 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.userInterface;
+
+import de.zib.vold.frontend.AccessSampler;
+import de.zib.vold.security.Roles;
+import org.springframework.web.HttpRequestHandler;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Shows the hot keys and scopes found by an AccessSampler.
+ *
+ * The handler is mapped to /_hotkeys in the server context. A GET request
+ * returns the estimated counts of the hottest keys and scopes for lookups
+ * and write requests, and the fan-out of prefix lookups. The parameter
+ * "limit" restricts the number of entries per list. A POST request clears
+ * all samples, e.g. to watch a certain period of time.
+ *
+ * Since clearing discards the statistics of all clients, a POST request is
+ * granted to users holding the required role only (ROLE_ADMIN by default).
+ *
+ * @see AccessSampler
+ */
+public class HotKeysController implements HttpRequestHandler
+{
+    private AccessSampler sampler;
+    private String requiredRole = Roles.ADMIN;
+
+    @Override
+    public void handleRequest( HttpServletRequest request, HttpServletResponse response )
+            throws ServletException, IOException
+    {
+        // guard
+        {
+            if( null == sampler )
+            {
+                throw new IllegalStateException( "Tried to operate on HotKeysController while it had not been initialized yet. You first need to set an AccessSampler!" );
+            }
+        }
+
+        final boolean clear = "POST".equals( request.getMethod() );
+
+        if( ! clear && ! "GET".equals( request.getMethod() ) )
+        {
+            response.sendError( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+            return;
+        }
+
+        if( clear && ! Handlers.permitted( response, requiredRole, "Clearing the samples" ) )
+        {
+            return;
+        }
+
+        int limit;
+        try
+        {
+            limit = Handlers.parseInt( request.getParameter( "limit" ), sampler.getSize() );
+        }
+        catch( IllegalArgumentException e )
+        {
+            response.sendError( HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
+            return;
+        }
+
+        // clear only valid requests
+        if( clear )
+        {
+            sampler.clear();
+        }
+
+        response.setContentType( "text/plain" );
+        response.setCharacterEncoding( "utf-8" );
+
+        Writer out = response.getWriter();
+        sampler.write( out, limit );
+    }
+
+    /**
+     * Set the AccessSampler to show.
+     */
+    public void setSampler( AccessSampler sampler )
+    {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Set the role required to clear the samples.
+     *
+     * @param requiredRole The role, or an empty string to grant clearing to everyone.
+     */
+    public void setRequiredRole( String requiredRole )
+    {
+        this.requiredRole = requiredRole;
+    }
+}
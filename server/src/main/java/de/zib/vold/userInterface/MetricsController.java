@@ -0,0 +1,63 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.userInterface;
+
+import de.zib.vold.metrics.MetricsRegistry;
+import org.springframework.web.HttpRequestHandler;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Exports all metrics of VolD in the Prometheus text format.
+ *
+ * The handler is mapped to /_metrics in the server context and only answers
+ * GET requests.
+ *
+ * @see MetricsRegistry
+ */
+public class MetricsController implements HttpRequestHandler
+{
+    private MetricsRegistry registry = MetricsRegistry.getDefault();
+
+    @Override
+    public void handleRequest( HttpServletRequest request, HttpServletResponse response )
+            throws ServletException, IOException
+    {
+        if( ! "GET".equals( request.getMethod() ) )
+        {
+            response.sendError( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+            return;
+        }
+
+        response.setContentType( "text/plain; version=0.0.4" );
+        response.setCharacterEncoding( "utf-8" );
+
+        Writer out = response.getWriter();
+        registry.write( out );
+    }
+
+    /**
+     * Set the registry to export (the default registry is used otherwise).
+     */
+    public void setRegistry( MetricsRegistry registry )
+    {
+        this.registry = registry;
+    }
+}
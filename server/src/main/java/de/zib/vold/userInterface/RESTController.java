@@ -18,8 +18,12 @@ package de.zib.vold.userInterface;
 
 import de.zib.vold.common.Key;
 import de.zib.vold.common.URIKey;
+import de.zib.vold.common.URIKeyParser;
 import de.zib.vold.common.VoldException;
+import de.zib.vold.frontend.AdmissionException;
 import de.zib.vold.frontend.Frontend;
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.MetricsRegistry;
 import org.joda.time.DateTimeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +32,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.xml.MarshallingHttpMessageConverter;
 import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
@@ -36,16 +41,29 @@ import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 
 import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
-import java.io.File;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * REST Controller for Spring framework.
  *
  * This class provides a REST based interface to VolD. It is built to act as a
  * Controller in the Spring framework.
+ *
+ * If an executor is set, requests are processed asynchronously (Servlet
+ * 3.0), which releases the container threads while waiting for the
+ * frontend.
+ *
+ * Requests rejected by the admission control of the frontend are answered
+ * with 429 (Too Many Requests).
  */
 @Controller
 @RequestMapping( "*" )
@@ -59,6 +77,17 @@ public class RESTController
     private String enc = "utf-8";
     private String removePrefix = "";
 
+    private Executor executor = null;
+    private long asyncTimeout = 30000;
+
+    // not known to HttpStatus of this version of Spring
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final Counter asyncRejected = MetricsRegistry.getDefault().counter(
+            "vold_rest_async_rejected_total", "Asynchronous requests rejected since the executor was saturated." );
+    private final Counter asyncTimeouts = MetricsRegistry.getDefault().counter(
+            "vold_rest_async_timeouts_total", "Asynchronous requests which timed out before they had been processed." );
+
 
     /**
      * Handles Put requests.
@@ -69,15 +98,18 @@ public class RESTController
      * @param args The URL arguments of the request.
      //* @param argsbody The PUT body arguments of the request.
      * @param request Request informations
-     * @return A map of keys with its lifetime, whereas the livetime is zero if an error for that key occured.
+     * @param response The response, which is written asynchronously if an executor is set.
+     * @return A map of keys with its lifetime, whereas the livetime is zero if an error for that key occured
+     *         (or null, if the request is handled asynchronously).
      */
     @RequestMapping( method = RequestMethod.PUT )
     public ResponseEntity< Map< String, String > > insert(
-            @ModelAttribute("clientIpAddress") String clientIpAddress,
+            @ModelAttribute("clientIpAddress") final String clientIpAddress,
             @RequestParam MultiValueMap< String, String > args,
             //@RequestBody MultiValueMap< String, String > argsbody,
             @RequestHeader( value = "TIMESTAMP", defaultValue = "unset" ) String timeStampHeader,
-            HttpServletRequest request) throws IOException {
+            HttpServletRequest request,
+            HttpServletResponse response ) throws IOException {
 
         MultiValueMap< String, String > argsbody = getBody();
         final long timeStamp;
@@ -89,23 +121,17 @@ public class RESTController
         // guard
         {
             if( argsbody != null )
-                logger.debug( "PUT: " + args.toString() + " AND " + argsbody.toString() );
+                logger.debug( "PUT: {} AND {}", args, argsbody );
             else
-                logger.debug( "PUT: " + args.toString() );
+                logger.debug( "PUT: {}", args );
 
             checkState();
         }
 
-        Map< String, String > invalidKeys = new HashMap< String, String >();
+        final Map< String, String > invalidKeys = new HashMap< String, String >();
 
-        // get actual scope
-        String scope;
-        {
-            scope = request.getRequestURI();
-            String removepath = removePrefix + request.getContextPath() + request.getServletPath();
-
-            scope = scope.substring( removepath.length(), scope.length() );
-        }
+        // keys are parsed relative to the scope of the request
+        final URIKeyParser parser = scopeContext( request );
 
         // merge args to argsbody
         {
@@ -113,7 +139,7 @@ public class RESTController
             {
                 if( null == args )
                 {
-                    logger.warn("Got a totally empty request from " + clientIpAddress + ".");
+                    logger.warn( "Got a totally empty request from {}.", clientIpAddress );
                     return new ResponseEntity< Map < String, String > >( invalidKeys, HttpStatus.OK );
                 }
 
@@ -125,53 +151,18 @@ public class RESTController
             }
         }
 
-        // process each key
+        final MultiValueMap< String, String > keys = argsbody;
+
+        // process all keys in one batch (asynchronously, if an executor is set)
+        return dispatch( request, response, new Work< Map< String, String > >()
         {
-            for( Map.Entry< String, List< String > > entry: argsbody.entrySet() )
+            public ResponseEntity< Map< String, String > > run( )
             {
-                URIKey urikey;
-                String source;
-                Key k;
-
-                // build key
-                {
-                    urikey = URIKey.fromURIString( entry.getKey(), enc );
-
-                    File path_correction = new File( scope + "/" + urikey.getKey().get_scope() );
-
-                    k = new Key(
-                            path_correction.getPath(),
-                            urikey.getKey().get_type(),
-                            urikey.getKey().get_keyname()
-                    );
-
-                    if( null == urikey.getSource() )
-                    {
-                        source = clientIpAddress;
-                    }
-                    else
-                    {
-                        source = urikey.getSource();
-                    }
-                }
+                write( clientIpAddress, parser, keys, false, false, timeStamp, invalidKeys );
 
-                // handle write request for that key
-                {
-                    try
-                    {
-                        logger.debug("Inserting " + entry.getValue().size() + " values for key " + urikey.toURIString());
-                        frontend.insert( source, k, new HashSet< String >( entry.getValue() ), timeStamp );
-                    }
-                    catch( VoldException e )
-                    {
-                        logger.error("Could not handle write request for key " + entry.getKey() + ". ", e);
-                        invalidKeys.put( entry.getKey(), "ERROR: " + e.getMessage() );
-                    }
-                }
+                return new ResponseEntity< Map< String, String > >( invalidKeys, HttpStatus.OK );
             }
-        }
-
-        return new ResponseEntity< Map < String, String > >( invalidKeys, HttpStatus.OK );
+        } );
     }
 
 
@@ -183,79 +174,46 @@ public class RESTController
      * @param clientIpAddress The ip of the sending client, it's extracted from the request itself.
      * @param args The URL arguments of the request.
      * @param request Request informations
-     * @return A map of keys with its lifetime, whereas the livetime is zero if an error for that key occured.
+     * @param response The response, which is written asynchronously if an executor is set.
+     * @return A map of keys with its lifetime, whereas the livetime is zero if an error for that key occured
+     *         (or null, if the request is handled asynchronously).
      */
     @RequestMapping( method = RequestMethod.DELETE )
     public ResponseEntity< Map< String, String > > delete(
-            @ModelAttribute("clientIpAddress") String clientIpAddress,
-            @RequestParam MultiValueMap< String, String > args,
-            HttpServletRequest request)
+            @ModelAttribute("clientIpAddress") final String clientIpAddress,
+            @RequestParam final MultiValueMap< String, String > args,
+            @RequestHeader( value = "TIMESTAMP", defaultValue = "unset" ) String timeStampHeader,
+            HttpServletRequest request,
+            HttpServletResponse response )
     {
+        final long timeStamp;
+        if( timeStampHeader.equals( "unset" ) )
+            timeStamp = DateTimeUtils.currentTimeMillis();
+        else
+            timeStamp = Long.parseLong( timeStampHeader );
 
         // guard
         {
-            logger.debug("DELETE: " + args.toString());
+            logger.debug( "DELETE: {}", args );
 
             checkState();
         }
 
-        Map< String, String > invalidKeys = new HashMap< String, String >();
+        final Map< String, String > invalidKeys = new HashMap< String, String >();
 
-        // get actual scope
-        String scope;
-        {
-            scope = request.getRequestURI();
-            String removepath = removePrefix + request.getContextPath() + request.getServletPath();
+        // keys are parsed relative to the scope of the request
+        final URIKeyParser parser = scopeContext( request );
 
-            scope = scope.substring( removepath.length(), scope.length() );
-        }
-
-        // process each key
+        // process all keys in one batch (asynchronously, if an executor is set)
+        return dispatch( request, response, new Work< Map< String, String > >()
         {
-            for( Map.Entry< String, List< String > > entry: args.entrySet() )
+            public ResponseEntity< Map< String, String > > run( )
             {
-                URIKey urikey;
-                String source;
-                Key k;
-
-                // build key
-                {
-                    urikey = URIKey.fromURIString( entry.getKey(), enc );
-
-                    File path_correction = new File( scope + "/" + urikey.getKey().get_scope() );
-
-                    k = new Key(
-                            path_correction.getPath(),
-                            urikey.getKey().get_type(),
-                            urikey.getKey().get_keyname()
-                    );
-
-                    if( null == urikey.getSource() )
-                    {
-                        source = clientIpAddress;
-                    }
-                    else
-                    {
-                        source = urikey.getSource();
-                    }
-                }
+                write( clientIpAddress, parser, args, false, true, timeStamp, invalidKeys );
 
-                // handle write request for that key
-                {
-                    try
-                    {
-                        frontend.delete( source, k );
-                    }
-                    catch( VoldException e )
-                    {
-                        logger.error("Could not handle write request for key " + entry.getKey() + ". ", e);
-                        invalidKeys.put( entry.getKey(), "ERROR: " + e.getMessage() );
-                    }
-                }
+                return new ResponseEntity< Map< String, String > >( invalidKeys, HttpStatus.OK );
             }
-        }
-
-        return new ResponseEntity< Map < String, String > >( invalidKeys, HttpStatus.OK );
+        } );
     }
 
 
@@ -267,14 +225,17 @@ public class RESTController
      * @param clientIpAddress The ip of the sending client, it's extracted from the request itself.
      * @param args The URL arguments of the request.
      * @param request Request informations
-     * @return A map of keys with its lifetime, whereas the livetime is zero if an error for that key occured.
+     * @param response The response, which is written asynchronously if an executor is set.
+     * @return A map of keys with its lifetime, whereas the livetime is zero if an error for that key occured
+     *         (or null, if the request is handled asynchronously).
      */
     @RequestMapping( method = RequestMethod.POST )
     public ResponseEntity< Map< String, String > > refresh(
-            @ModelAttribute("clientIpAddress") String clientIpAddress,
-            @RequestParam MultiValueMap< String, String > args,
+            @ModelAttribute("clientIpAddress") final String clientIpAddress,
+            @RequestParam final MultiValueMap< String, String > args,
             @RequestHeader( value = "TIMESTAMP", defaultValue = "unset" ) String timeStampHeader,
-            HttpServletRequest request)
+            HttpServletRequest request,
+            HttpServletResponse response )
     {
         final long timeStamp;
         if( timeStampHeader.equals( "unset" ) )
@@ -284,67 +245,194 @@ public class RESTController
 
         // guard
         {
-            logger.debug("POST: " + args.toString());
+            logger.debug( "POST: {}", args );
 
             checkState();
         }
 
-        Map< String, String > invalidKeys = new HashMap< String, String >();
+        final Map< String, String > invalidKeys = new HashMap< String, String >();
+
+        // keys are parsed relative to the scope of the request
+        final URIKeyParser parser = scopeContext( request );
+
+        // process all keys in one batch (asynchronously, if an executor is set)
+        return dispatch( request, response, new Work< Map< String, String > >()
+        {
+            public ResponseEntity< Map< String, String > > run( )
+            {
+                write( clientIpAddress, parser, args, true, false, timeStamp, invalidKeys );
+
+                return new ResponseEntity< Map< String, String > >( invalidKeys, HttpStatus.OK );
+            }
+        } );
+    }
+
+
+    /**
+     * Handles requests to refresh all keys of a source.
+     *
+     * This method is used by clients to refresh all of their keys at once. It
+     * handles Post requests with the header "REFRESH: source". The source is
+     * the sending client, unless another one is given by the header "SOURCE".
+     *
+     * @param clientIpAddress The ip of the sending client, it's extracted from the request itself.
+     * @param sourceHeader The source to refresh all keys for.
+     * @param request Request informations
+     * @param response The response, which is written asynchronously if an executor is set.
+     * @return A map with the number of refreshed keys (or null, if the request is handled asynchronously).
+     */
+    @RequestMapping( method = RequestMethod.POST, headers = "REFRESH=source" )
+    public ResponseEntity< Map< String, String > > refreshSource(
+            @ModelAttribute("clientIpAddress") final String clientIpAddress,
+            @RequestHeader( value = "SOURCE", defaultValue = "unset" ) String sourceHeader,
+            @RequestHeader( value = "TIMESTAMP", defaultValue = "unset" ) String timeStampHeader,
+            HttpServletRequest request,
+            HttpServletResponse response )
+    {
+        final long timeStamp;
+        if( timeStampHeader.equals( "unset" ) )
+            timeStamp = DateTimeUtils.currentTimeMillis();
+        else
+            timeStamp = Long.parseLong( timeStampHeader );
+
+        final String source;
+        if( sourceHeader.equals( "unset" ) )
+            source = clientIpAddress;
+        else
+            source = sourceHeader;
 
-        // get actual scope
-        String scope;
+        // guard
         {
-            scope = request.getRequestURI();
-            String removepath = removePrefix + request.getContextPath() + request.getServletPath();
+            logger.debug( "REFRESH SOURCE: {}", source );
 
-            scope = scope.substring( removepath.length(), scope.length() );
+            checkState();
         }
 
-        // process each key
+        // refresh all keys of the source (asynchronously, if an executor is set)
+        return dispatch( request, response, new Work< Map< String, String > >()
         {
-            for( Map.Entry< String, List< String > > entry: args.entrySet() )
+            public ResponseEntity< Map< String, String > > run( )
             {
-                URIKey urikey;
-                String source;
-                Key k;
+                Map< String, String > result = new HashMap< String, String >();
 
-                // build key
+                try
                 {
-                    urikey = URIKey.fromURIString( entry.getKey(), enc );
+                    result.put( "refreshed", String.valueOf( frontend.refreshSource( source, timeStamp ) ) );
+                }
+                catch( AdmissionException e ) {
+                    throw e;
+                }
+                catch( VoldException e ) {
+                    logger.error( "Could not refresh keys of source {}. ", source, e );
+                    result.put( "refreshed", "ERROR: " + e.getMessage() );
+                }
 
-                    File path_correction = new File( scope + "/" + urikey.getKey().get_scope() );
+                return new ResponseEntity< Map< String, String > >( result, HttpStatus.OK );
+            }
+        } );
+    }
 
-                    k = new Key(
-                            path_correction.getPath(),
-                            urikey.getKey().get_type(),
-                            urikey.getKey().get_keyname()
-                    );
 
-                    if( null == urikey.getSource() )
-                    {
-                        source = clientIpAddress;
-                    }
-                    else
+    /**
+     * Handles batch requests.
+     *
+     * This method is used by clients to insert, refresh and delete keys in
+     * one request. It handles Post requests with the header "BATCH: true".
+     * The operation for each key is given by its URIKey: keys marked as
+     * refresh ("<") or delete (">") are refreshed or deleted, all others
+     * are inserted with their values. All operations are executed in order
+     * while holding the lock of the frontend once.
+     *
+     * @param clientIpAddress The ip of the sending client, it's extracted from the request itself.
+     * @param args The URL arguments of the request.
+     * @param request Request informations
+     * @param response The response, which is written asynchronously if an executor is set.
+     * @return A map of all keys with "OK" or the error which occured for that key
+     *         (or null, if the request is handled asynchronously).
+     */
+    @RequestMapping( method = RequestMethod.POST, headers = "BATCH=true" )
+    public ResponseEntity< Map< String, String > > batch(
+            @ModelAttribute("clientIpAddress") final String clientIpAddress,
+            @RequestParam MultiValueMap< String, String > args,
+            @RequestHeader( value = "TIMESTAMP", defaultValue = "unset" ) String timeStampHeader,
+            HttpServletRequest request,
+            HttpServletResponse response ) throws IOException {
+
+        MultiValueMap< String, String > argsbody = getBody();
+        final long timeStamp;
+        if( timeStampHeader.equals( "unset" ) )
+            timeStamp = DateTimeUtils.currentTimeMillis();
+        else
+            timeStamp = Long.parseLong( timeStampHeader );
+
+        // guard
+        {
+            if( argsbody != null )
+                logger.debug( "BATCH: {} AND {}", args, argsbody );
+            else
+                logger.debug( "BATCH: {}", args );
+
+            checkState();
+        }
+
+        // merge args to argsbody
+        {
+            if( null == argsbody )
+            {
+                argsbody = args;
+            }
+            else if( null != args )
+            {
+                argsbody.putAll( args );
+            }
+        }
+
+        final Map< String, String > results = new HashMap< String, String >();
+        final MultiValueMap< String, String > keys = argsbody;
+
+        // keys are parsed relative to the scope of the request
+        final URIKeyParser parser = scopeContext( request );
+
+        // process all keys in one batch (asynchronously, if an executor is set)
+        return dispatch( request, response, new Work< Map< String, String > >()
+        {
+            public ResponseEntity< Map< String, String > > run( )
+            {
+                if( null == keys )
+                {
+                    return new ResponseEntity< Map< String, String > >( results, HttpStatus.OK );
+                }
+
+                // build operations
+                Map< URIKey, Set< String > > operations = new LinkedHashMap< URIKey, Set< String > >();
+                Map< URIKey, String > names = new HashMap< URIKey, String >();
+                {
+                    for( Map.Entry< String, List< String > > entry: keys.entrySet() )
                     {
-                        source = urikey.getSource();
+                        URIKey urikey = parser.parse( entry.getKey() );
+
+                        operations.put( urikey, new HashSet< String >( entry.getValue() ) );
+                        names.put( urikey, entry.getKey() );
+                        results.put( entry.getKey(), "OK" );
                     }
                 }
 
-                // handle write request for that key
+                // execute operations
                 {
-                    try
+                    Map< URIKey, VoldException > errors = frontend.batch( clientIpAddress, operations, timeStamp );
+
+                    for( Map.Entry< URIKey, VoldException > error: errors.entrySet() )
                     {
-                        frontend.refresh( source, k, timeStamp );
-                    }
-                    catch( VoldException e ) {
-                        logger.error("Could not handle write request for key " + entry.getKey() + ". ", e);
-                        invalidKeys.put( entry.getKey(), "ERROR: " + e.getMessage() );
+                        String name = names.get( error.getKey() );
+
+                        logger.error( "Could not handle batch request for key {}. ", name, error.getValue() );
+                        results.put( name, "ERROR: " + error.getValue().getMessage() );
                     }
                 }
-            }
-        }
 
-        return new ResponseEntity< Map < String, String > >( invalidKeys, HttpStatus.OK );
+                return new ResponseEntity< Map< String, String > >( results, HttpStatus.OK );
+            }
+        } );
     }
 
 
@@ -355,86 +443,271 @@ public class RESTController
      *
      * @param keys The URL arguments of the request.
      * @param request Request informations
-     * @return A map of found keys with its associated values.
+     * @param response The response, which is written asynchronously if an executor is set.
+     * @return A map of found keys with its associated values (or null, if the request is handled asynchronously).
      */
     @RequestMapping( method = RequestMethod.GET )
     public ResponseEntity< Map< Key, Set< String > > > lookup(
-            @RequestParam Map< String, String > keys,
-            HttpServletRequest request )
+            @RequestParam final Map< String, String > keys,
+            HttpServletRequest request,
+            HttpServletResponse response )
     {
         // guard
         {
-            logger.debug("GET: " + keys.toString());
+            logger.debug( "GET: {}", keys );
 
             checkState();
         }
 
-        Map< Key, Set< String > > merged_result = new HashMap< Key, Set< String > >();
+        final Map< Key, Set< String > > merged_result = new HashMap< Key, Set< String > >();
+
+        // keys are parsed relative to the scope of the request
+        final URIKeyParser parser = scopeContext( request );
 
-        // get actual scope
-        String scope;
+        // process each key (asynchronously, if an executor is set)
+        return dispatch( request, response, new Work< Map< Key, Set< String > > >()
         {
-            scope = request.getRequestURI();
-            String removepath = removePrefix + request.getContextPath() + request.getServletPath();
+            public ResponseEntity< Map< Key, Set< String > > > run( )
+            {
+                for( Map.Entry< String, String > entry: keys.entrySet() )
+                {
+                    URIKey urikey;
+                    Key k;
 
-            scope = scope.substring( removepath.length(), scope.length() );
-        }
+                    // build key
+                    {
+                        urikey = parser.parse( entry.getKey() );
+                        k = urikey.getKey();
+                    }
+
+                    // lookup and remember result
+                    {
+                        Map< Key, Set< String > > _result;
+
+                        try
+                        {
+                            _result = frontend.lookup( k );
+                        }
+                        catch( AdmissionException e ) {
+                            throw e;
+                        }
+                        catch( VoldException e ) {
+                            logger.error( "Error on lookup for key {} ({}): ", new Object[]{ k, entry.getKey(), e } );
+                            continue;
+        /*
+                                                Set< String > s = new HashSet< String >();
+                                                s.add( e.getMessage() );
+
+                                                merged_result.clear();
+                                                merged_result.put( k, s );
+
+                                                return new ResponseEntity< Map< Key, Set< String > > >(
+                                                                merged_result,
+                                                                HttpStatus.INTERNAL_SERVER_ERROR );
+        */
+                        }
+
+                        // found something
+                        if( null != _result )
+                        {
+                            merged_result.putAll( _result );
+                        }
+                    }
+                }
+
+                return new ResponseEntity< Map< Key, Set< String > > >( merged_result, HttpStatus.OK );
+            }
+        } );
+    }
+
+    
+    /**
+     * The processing of all keys of a request.
+     */
+    private interface Work< T >
+    {
+        ResponseEntity< T > run( );
+    }
 
-        // process each key
-        for( Map.Entry< String, String > entry: keys.entrySet() )
+
+    /**
+     * Process the keys of a request.
+     *
+     * If no executor is set or the container does not support asynchronous
+     * requests, the work is done right away on the container thread.
+     *
+     * Otherwise, the request is put into asynchronous mode (Servlet 3.0) and
+     * the work is handed to the executor, which writes the response when it
+     * is done. Thus, the container thread is released while the work waits
+     * for the lock of the frontend, for the backend or for replication. If
+     * the executor rejects the work or the request times out, the client
+     * gets a 503 (Service Unavailable).
+     *
+     * @param request The request.
+     * @param response The response.
+     * @param work The processing of all keys of the request.
+     * @return The result of work if done right away, null otherwise.
+     */
+    private < T > ResponseEntity< T > dispatch( HttpServletRequest request, HttpServletResponse response, final Work< T > work )
+    {
+        if( null == executor || ! request.isAsyncSupported() )
         {
-            URIKey urikey;
-            Key k;
+            return work.run();
+        }
 
-            // build key
-            {
-                urikey = URIKey.fromURIString( entry.getKey(), enc );
+        // the original request and response, unwrapped from filters
+        final AsyncContext async = request.startAsync();
+        final AtomicBoolean done = new AtomicBoolean( false );
 
-                File path_correction = new File( scope + "/" + urikey.getKey().get_scope() );
+        async.setTimeout( asyncTimeout );
+        async.addListener( new AsyncListener()
+        {
+            public void onTimeout( AsyncEvent event )
+                throws IOException
+            {
+                if( done.compareAndSet( false, true ) )
+                {
+                    asyncTimeouts.inc();
+                    logger.warn( "Request timed out after {} ms.", asyncTimeout );
 
-                k = new Key(
-                        path_correction.getPath(),
-                        urikey.getKey().get_type(),
-                        urikey.getKey().get_keyname()
-                );
+                    reject( async );
+                }
             }
 
-            // lookup and remember result
-            {
-                Map< Key, Set< String > > _result;
+            public void onComplete( AsyncEvent event ) { }
+            public void onError( AsyncEvent event ) { }
+            public void onStartAsync( AsyncEvent event ) { }
+        } );
 
-                try
+        try
+        {
+            executor.execute( new Runnable()
+            {
+                public void run( )
                 {
-                    _result = frontend.lookup( k );
-                }
-                catch( VoldException e ) {
-                    logger.error("Error on lookup for key " + k + " (" + entry.getKey() + "): ", e);
-                    continue;
-/*
-                                        Set< String > s = new HashSet< String >();
-                                        s.add( e.getMessage() );
+                    ResponseEntity< T > result = null;
+                    AdmissionException rejected = null;
+                    try
+                    {
+                        result = work.run();
+                    }
+                    catch( AdmissionException e )
+                    {
+                        rejected = e;
+                    }
+                    catch( RuntimeException e )
+                    {
+                        logger.error( "Could not handle request.", e );
+                        result = new ResponseEntity< T >( HttpStatus.INTERNAL_SERVER_ERROR );
+                    }
 
-                                        merged_result.clear();
-                                        merged_result.put( k, s );
+                    // response has already been sent on timeout
+                    if( ! done.compareAndSet( false, true ) )
+                    {
+                        return;
+                    }
 
-                                        return new ResponseEntity< Map< Key, Set< String > > >(
-                                                        merged_result,
-                                                        HttpStatus.INTERNAL_SERVER_ERROR );
-*/
+                    try
+                    {
+                        if( null != rejected )
+                        {
+                            tooManyRequests( rejected, ( HttpServletResponse )async.getResponse() );
+                        }
+                        else
+                        {
+                            write( result, ( HttpServletResponse )async.getResponse() );
+                        }
+                    }
+                    catch( IOException e )
+                    {
+                        logger.warn( "Could not write response: {}", e.getMessage() );
+                    }
+                    finally
+                    {
+                        async.complete();
+                    }
                 }
+            } );
+        }
+        catch( RejectedExecutionException e )
+        {
+            if( done.compareAndSet( false, true ) )
+            {
+                asyncRejected.inc();
+                logger.warn( "Executor is saturated, rejecting request." );
 
-                // found something
-                if( null != _result )
+                try
                 {
-                    merged_result.putAll( _result );
+                    reject( async );
+                }
+                catch( IOException ioe )
+                {
+                    logger.warn( "Could not write response: {}", ioe.getMessage() );
                 }
             }
         }
 
-        return new ResponseEntity< Map<Key, Set< String > > >( merged_result, HttpStatus.OK );
+        return null;
     }
 
-    
+
+    /**
+     * Answer a request rejected by the admission control with 429 (Too Many
+     * Requests).
+     *
+     * @note        Keys of the request processed before the rejection are
+     *              not rolled back.
+     */
+    @ExceptionHandler( AdmissionException.class )
+    public void tooManyRequests( AdmissionException e, HttpServletResponse response )
+            throws IOException
+    {
+        logger.info( "Rejected request: {}", e.getMessage() );
+
+        response.setHeader( "Retry-After", "1" );
+        response.sendError( TOO_MANY_REQUESTS, e.getMessage() );
+    }
+
+
+    /**
+     * Answer an asynchronous request with 503 (Service Unavailable).
+     */
+    private void reject( AsyncContext async )
+            throws IOException
+    {
+        try
+        {
+            ( ( HttpServletResponse )async.getResponse() ).sendError( HttpStatus.SERVICE_UNAVAILABLE.value() );
+        }
+        finally
+        {
+            async.complete();
+        }
+    }
+
+
+    /**
+     * Write a result, as done by Spring for the synchronous handlers.
+     */
+    private void write( ResponseEntity< ? > entity, HttpServletResponse response )
+            throws IOException
+    {
+        ServletServerHttpResponse output = new ServletServerHttpResponse( response );
+
+        output.setStatusCode( entity.getStatusCode() );
+        output.getHeaders().putAll( entity.getHeaders() );
+
+        if( null != entity.getBody() )
+        {
+            converter.write( entity.getBody(), null, output );
+        }
+        else
+        {
+            output.close();
+        }
+    }
+
+
     MultiValueMap< String, String > getBody() throws IOException {
         ServletRequestAttributes requestAttributes =
                 ( ServletRequestAttributes ) RequestContextHolder.currentRequestAttributes();
@@ -449,6 +722,73 @@ public class RESTController
     }
     
 
+    /**
+     * Insert, refresh or delete all keys of a request in one batch.
+     *
+     * Thus, the admission control charges the whole request once with one
+     * operation per key, like a batch request, and the frontend is locked
+     * once. The request is charged to the sending client, while each key
+     * belongs to the source given by its URIKey or else to the client.
+     *
+     * @param clientIpAddress The ip of the sending client.
+     * @param parser The parser of the keys of the request.
+     * @param keys The keys of the request with their values.
+     * @param refresh Whether to refresh the keys.
+     * @param delete Whether to delete the keys. All keys are inserted with
+     *               their values if neither refresh nor delete is set.
+     * @param timeStamp The timeStamp of the request.
+     * @param invalidKeys The map to put the error for each failed key into.
+     * @throws AdmissionException if the request is rejected as a whole.
+     */
+    private void write( String clientIpAddress, URIKeyParser parser, MultiValueMap< String, String > keys,
+            boolean refresh, boolean delete, long timeStamp, Map< String, String > invalidKeys )
+    {
+        Map< URIKey, Set< String > > operations = new LinkedHashMap< URIKey, Set< String > >();
+        Map< URIKey, String > names = new HashMap< URIKey, String >();
+
+        // build operations
+        {
+            for( Map.Entry< String, List< String > > entry: keys.entrySet() )
+            {
+                URIKey urikey = parser.parse( entry.getKey() ).mark( refresh, delete );
+
+                // the values of refreshs and deletions are ignored
+                operations.put( urikey, refresh || delete ? null : new HashSet< String >( entry.getValue() ) );
+                names.put( urikey, entry.getKey() );
+            }
+        }
+
+        Map< URIKey, VoldException > errors = frontend.batch( clientIpAddress, operations, timeStamp );
+
+        for( Map.Entry< URIKey, VoldException > error: errors.entrySet() )
+        {
+            String name = names.get( error.getKey() );
+
+            logger.error( "Could not handle write request for key {}. ", name, error.getValue() );
+            invalidKeys.put( name, "ERROR: " + error.getValue().getMessage() );
+        }
+    }
+
+
+    /**
+     * Build the scope context of a request.
+     *
+     * The scope of a request is the path of its URI without the prefix of
+     * this controller. It is normalized once and all keys of the request
+     * are resolved against it.
+     *
+     * @param request The request.
+     * @return A parser for all keys of the request.
+     */
+    private URIKeyParser scopeContext( HttpServletRequest request )
+    {
+        String uri = request.getRequestURI();
+        int removelength = removePrefix.length() + request.getContextPath().length() + request.getServletPath().length();
+
+        return new URIKeyParser( enc, uri.subSequence( removelength, uri.length() ) );
+    }
+
+
     @ModelAttribute("clientIpAddress")
     public String populateClientIpAddress( HttpServletRequest request )
     {
@@ -469,6 +809,31 @@ public class RESTController
     }
 
 
+    /**
+     * Set the executor which processes requests asynchronously.
+     *
+     * @note    Without an executor (the default), all requests are handled
+     *          synchronously on the container thread.
+     *
+     * @param executor The executor (e.g. a bounded thread pool).
+     */
+    public void setExecutor( Executor executor )
+    {
+        this.executor = executor;
+    }
+
+
+    /**
+     * Set the timeout of asynchronous requests.
+     *
+     * @param asyncTimeout The timeout in milliseconds.
+     */
+    public void setAsyncTimeout( long asyncTimeout )
+    {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+
     public void setRemovePrefix( final String removePrefix ) {
         this.removePrefix = removePrefix;
     }
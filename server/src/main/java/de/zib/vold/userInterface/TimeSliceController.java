@@ -0,0 +1,112 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.userInterface;
+
+import de.zib.vold.security.Roles;
+import de.zib.vold.volatilelogic.TimeSlice;
+import org.springframework.web.HttpRequestHandler;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Shows and changes the resolution of the timeslices at runtime.
+ *
+ * The handler is mapped to /_timeslice in the server context. A GET request
+ * returns the size and number of slices and the actual slice. A POST request
+ * with the parameters "timeSliceSize" and/or "numberOfSlices" changes the
+ * resolution without restarting the server.
+ *
+ * Since a POST request changes the precision of the expiry for all keys, it is
+ * granted to users holding the required role only (ROLE_ADMIN by default).
+ * An empty required role grants it to everyone, which is meant for setups
+ * without security, e.g. the load generator.
+ *
+ * @see TimeSlice
+ */
+public class TimeSliceController implements HttpRequestHandler
+{
+    private TimeSlice timeslice;
+    private String requiredRole = Roles.ADMIN;
+
+    @Override
+    public void handleRequest( HttpServletRequest request, HttpServletResponse response )
+            throws ServletException, IOException
+    {
+        // guard
+        {
+            if( null == timeslice )
+            {
+                throw new IllegalStateException( "Tried to operate on TimeSliceController while it had not been initialized yet. You first need to set a TimeSlice!" );
+            }
+        }
+
+        if( "POST".equals( request.getMethod() ) )
+        {
+            if( ! Handlers.permitted( response, requiredRole, "Changing the resolution" ) )
+            {
+                return;
+            }
+
+            try
+            {
+                long timeSliceSize = Handlers.parseLong( request.getParameter( "timeSliceSize" ), timeslice.getTimeSliceSize() );
+                long numberOfSlices = Handlers.parseLong( request.getParameter( "numberOfSlices" ), timeslice.getNumberOfSlices() );
+
+                timeslice.setResolution( timeSliceSize, numberOfSlices );
+            }
+            catch( IllegalArgumentException e )
+            {
+                response.sendError( HttpServletResponse.SC_BAD_REQUEST, e.getMessage() );
+                return;
+            }
+        }
+        else if( ! "GET".equals( request.getMethod() ) )
+        {
+            response.sendError( HttpServletResponse.SC_METHOD_NOT_ALLOWED );
+            return;
+        }
+
+        response.setContentType( "text/plain" );
+        response.setCharacterEncoding( "utf-8" );
+
+        Writer out = response.getWriter();
+        out.write( "timeSliceSize " + timeslice.getTimeSliceSize() + "\n" );
+        out.write( "numberOfSlices " + timeslice.getNumberOfSlices() + "\n" );
+        out.write( "actualSlice " + timeslice.getActualSlice() + "\n" );
+    }
+
+    /**
+     * Set the TimeSlice to show and change.
+     */
+    public void setTimeslice( TimeSlice timeslice )
+    {
+        this.timeslice = timeslice;
+    }
+
+    /**
+     * Set the role required to change the resolution.
+     *
+     * @param requiredRole The role, or an empty string to grant changes to everyone.
+     */
+    public void setRequiredRole( String requiredRole )
+    {
+        this.requiredRole = requiredRole;
+    }
+}
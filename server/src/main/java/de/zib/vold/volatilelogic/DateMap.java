@@ -0,0 +1,252 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.volatilelogic;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A map from keys to dates, storing the dates as primitive longs.
+ *
+ * The entries are kept in two parallel arrays in the order of their
+ * insertion, thus iterating over all entries neither boxes the dates nor
+ * allocates any objects. Keys are found by an open addressing index which
+ * holds the positions of the entries.
+ *
+ * @note        This class is not thread safe.
+ *
+ * @see SlicedDirectory
+ */
+public class DateMap
+{
+    private List< String >[] keys;
+    private long[] dates;
+    private int size = 0;
+
+    // position+1 of the entry for each slot, 0 for empty slots
+    private int[] index;
+
+    /**
+     * Construct an empty map.
+     */
+    public DateMap( )
+    {
+        this( 16 );
+    }
+
+    /**
+     * Construct an empty map.
+     *
+     * @param capacity      The expected number of entries.
+     */
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    public DateMap( int capacity )
+    {
+        if( capacity < 1 )
+        {
+            capacity = 1;
+        }
+
+        this.keys = new List[ capacity ];
+        this.dates = new long[ capacity ];
+        this.index = new int[ tableSize( capacity ) ];
+    }
+
+    /**
+     * Get the number of entries.
+     */
+    public int size( )
+    {
+        return size;
+    }
+
+    /**
+     * Check whether the map is empty.
+     */
+    public boolean isEmpty( )
+    {
+        return 0 == size;
+    }
+
+    /**
+     * Get the key of the i-th entry.
+     *
+     * @param i             The position of the entry (0 <= i < size()).
+     */
+    public List< String > key( int i )
+    {
+        checkPosition( i );
+
+        return keys[ i ];
+    }
+
+    /**
+     * Get the date of the i-th entry.
+     *
+     * @param i             The position of the entry (0 <= i < size()).
+     * @return              The date in milliseconds.
+     */
+    public long date( int i )
+    {
+        checkPosition( i );
+
+        return dates[ i ];
+    }
+
+    /**
+     * Check whether the map contains a key.
+     */
+    public boolean containsKey( List< String > key )
+    {
+        return 0 != index[ find( key ) ];
+    }
+
+    /**
+     * Get the date of a key.
+     *
+     * @param key           The key to search for.
+     * @param missing       The value to return if the key is not contained.
+     * @return              The date in milliseconds or missing.
+     */
+    public long get( List< String > key, long missing )
+    {
+        int pos = index[ find( key ) ];
+
+        return 0 == pos ? missing : dates[ pos-1 ];
+    }
+
+    /**
+     * Associate a date with a key.
+     *
+     * @param key           The key.
+     * @param date          The date in milliseconds.
+     */
+    public void put( List< String > key, long date )
+    {
+        if( null == key )
+        {
+            throw new IllegalArgumentException( "DateMap does not allow null keys!" );
+        }
+
+        int slot = find( key );
+
+        if( 0 != index[ slot ] )
+        {
+            dates[ index[ slot ]-1 ] = date;
+            return;
+        }
+
+        if( size == keys.length )
+        {
+            keys = Arrays.copyOf( keys, 2 * size );
+            dates = Arrays.copyOf( dates, 2 * size );
+        }
+
+        keys[ size ] = key;
+        dates[ size ] = date;
+        index[ slot ] = ++size;
+
+        // keep the load factor of the index below one half
+        if( 2 * size > index.length )
+        {
+            rehash( 2 * index.length );
+        }
+    }
+
+    /**
+     * Find the slot of a key or the empty slot it would be stored in.
+     */
+    private int find( List< String > key )
+    {
+        final int mask = index.length - 1;
+        int slot = mix( key.hashCode() ) & mask;
+
+        while( 0 != index[ slot ] && ! key.equals( keys[ index[ slot ]-1 ] ) )
+        {
+            slot = ( slot + 1 ) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Rebuild the index with a new size.
+     */
+    private void rehash( int tableSize )
+    {
+        index = new int[ tableSize ];
+
+        final int mask = tableSize - 1;
+        for( int i = 0; i < size; ++i )
+        {
+            int slot = mix( keys[ i ].hashCode() ) & mask;
+
+            while( 0 != index[ slot ] )
+            {
+                slot = ( slot + 1 ) & mask;
+            }
+
+            index[ slot ] = i + 1;
+        }
+    }
+
+    private void checkPosition( int i )
+    {
+        if( i < 0 || i >= size )
+        {
+            throw new IndexOutOfBoundsException( "Position " + i + " is not in [0," + size + ")!" );
+        }
+    }
+
+    /**
+     * Get the smallest power of two holding capacity entries at a load factor of one half.
+     */
+    private static int tableSize( int capacity )
+    {
+        int n = 2;
+        while( n < 2 * capacity )
+        {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * Spread the bits of a hash code over the whole integer.
+     */
+    private static int mix( int h )
+    {
+        h *= 0x9e3779b9;
+        return h ^ ( h >>> 16 );
+    }
+
+    @Override
+    public String toString( )
+    {
+        StringBuilder sb = new StringBuilder( "{" );
+
+        for( int i = 0; i < size; ++i )
+        {
+            if( i > 0 )
+            {
+                sb.append( ", " );
+            }
+            sb.append( keys[ i ] ).append( '=' ).append( dates[ i ] );
+        }
+
+        return sb.append( '}' ).toString();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.volatilelogic;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The values of a key together with the date of its last write.
+ *
+ * The date is the timeStamp given with the last insert or refresh of the
+ * key (or the date of the lease the key is attached to), thus the values of
+ * a key stored by several replicas can be ordered by it.
+ *
+ * A deleted key is represented by its tombstone: no values and the date of
+ * the deletion.
+ *
+ * @see SimpleDirectory
+ */
+public final class DatedValues
+{
+    private final Set< String > values;
+    private final long date;
+    private final boolean deleted;
+
+    /**
+     * Construct the values of a key with their date.
+     *
+     * @param values        The values of the key.
+     * @param date          The date of the last write in milliseconds.
+     */
+    public DatedValues( Set< String > values, long date )
+    {
+        if( null == values )
+        {
+            throw new IllegalArgumentException( "DatedValues does not allow null values!" );
+        }
+
+        this.values = values;
+        this.date = date;
+        this.deleted = false;
+    }
+
+    private DatedValues( long date )
+    {
+        this.values = Collections.emptySet();
+        this.date = date;
+        this.deleted = true;
+    }
+
+    /**
+     * Construct the tombstone of a deleted key.
+     *
+     * @param date          The date of the deletion in milliseconds.
+     */
+    public static DatedValues deleted( long date )
+    {
+        return new DatedValues( date );
+    }
+
+    /**
+     * Check whether this is the tombstone of a deleted key.
+     */
+    public boolean isDeleted( )
+    {
+        return deleted;
+    }
+
+    /**
+     * Get the values of the key.
+     */
+    public Set< String > values( )
+    {
+        return values;
+    }
+
+    /**
+     * Get the date of the last write (or of the deletion) in milliseconds.
+     */
+    public long date( )
+    {
+        return date;
+    }
+
+    /**
+     * Check whether these values are newer than others.
+     *
+     * Values of the same date are ordered by their sorted values, thus all
+     * replicas agree on the newest values even for concurrent writes. A
+     * deletion wins against a write of the same date.
+     *
+     * @param other         The other values or null.
+     * @return true, if other is null or older than these values.
+     */
+    public boolean isNewerThan( DatedValues other )
+    {
+        if( null == other || date > other.date )
+            return true;
+
+        if( date < other.date )
+            return false;
+
+        if( deleted != other.deleted )
+            return deleted;
+
+        return new TreeSet< String >( values ).toString().compareTo( new TreeSet< String >( other.values ).toString() ) > 0;
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if( ! ( o instanceof DatedValues ) )
+            return false;
+
+        DatedValues other = ( DatedValues )o;
+
+        return date == other.date && deleted == other.deleted && values.equals( other.values );
+    }
+
+    @Override
+    public int hashCode( )
+    {
+        return 31 * values.hashCode() + ( int )( date ^ ( date >>> 32 ) );
+    }
+
+    @Override
+    public String toString( )
+    {
+        return ( deleted ? "deleted" : values.toString() ) + "@" + date;
+    }
+}
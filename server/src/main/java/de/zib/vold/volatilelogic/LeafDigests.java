@@ -0,0 +1,265 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.volatilelogic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The digests of the keys of a part of the key space.
+ *
+ * Each key with its values falls into one of 2^depth leaves by the hash of
+ * the key. A leaf holds the sum of the hashes of its keys with their values,
+ * thus it does not depend on the order of the keys and the digests of
+ * disjoint parts of the key space (e.g. shards) can be added up. Two
+ * directories holding the same keys with the same values have the same
+ * digests, and the keys of differing leaves can be queried leaf by leaf.
+ *
+ * The hash functions are shared with the routing of keys to shards: a 64 bit
+ * FNV-1a hash over the characters of the elements, finished by the mixing
+ * step of MurmurHash3.
+ *
+ * @note        This class is not thread safe.
+ *
+ * @see SimpleDirectory
+ * @see ShardedVolatileDirectory
+ */
+public final class LeafDigests
+{
+    /**
+     * The offset basis of the FNV-1a hash.
+     */
+    public static final long SEED = 0xcbf29ce484222325L;
+
+    /**
+     * The maximal depth, i.e. there are at most 2^20 leaves.
+     */
+    public static final int MAX_DEPTH = 20;
+
+    private final int depth;
+    private final long[] leaves;
+    private int size = 0;
+
+    /**
+     * Construct empty digests.
+     *
+     * @param depth The depth, i.e. the keys are hashed into 2^depth leaves.
+     */
+    public LeafDigests( int depth )
+    {
+        if( depth < 0 || depth > MAX_DEPTH )
+        {
+            throw new IllegalArgumentException( "The depth of the leaf digests must be between 0 and " + MAX_DEPTH + ", but depth=" + depth + " has been given!" );
+        }
+
+        this.depth = depth;
+        this.leaves = new long[ 1 << depth ];
+    }
+
+    /**
+     * Construct the digests of a set of keys.
+     *
+     * @param depth The depth, i.e. the keys are hashed into 2^depth leaves.
+     * @param entries The keys with their values.
+     */
+    public LeafDigests( int depth, Map< List< String >, Set< String > > entries )
+    {
+        this( depth );
+
+        for( Map.Entry< List< String >, Set< String > > entry: entries.entrySet() )
+        {
+            add( entry.getKey(), entry.getValue() );
+        }
+    }
+
+    public int getDepth( )
+    {
+        return depth;
+    }
+
+    /**
+     * Get the number of leaves.
+     */
+    public int getWidth( )
+    {
+        return leaves.length;
+    }
+
+    /**
+     * Get the number of keys added.
+     */
+    public int size( )
+    {
+        return size;
+    }
+
+    /**
+     * Add a key with its values to its leaf.
+     */
+    public void add( List< String > key, Collection< String > values )
+    {
+        final long keyhash = hash( key, key.size() );
+
+        // the values are summed up to be independent of their order
+        long valuehash = 0;
+        for( String value: values )
+        {
+            valuehash += mix( hash( SEED, value ) );
+        }
+
+        leaves[ leaf( keyhash, depth ) ] += mix( keyhash ^ valuehash );
+        ++size;
+    }
+
+    /**
+     * Add the digests of a disjoint part of the key space.
+     */
+    public void add( LeafDigests other )
+    {
+        // guard
+        {
+            if( depth != other.depth )
+            {
+                throw new IllegalArgumentException( "Cannot add leaf digests of depth " + other.depth + " to leaf digests of depth " + depth + "." );
+            }
+        }
+
+        for( int i = 0; i < leaves.length; ++i )
+        {
+            leaves[ i ] += other.leaves[ i ];
+        }
+        size += other.size;
+    }
+
+    /**
+     * Get the leaves differing from other digests of the same depth.
+     */
+    public List< Integer > diff( LeafDigests other )
+    {
+        // guard
+        {
+            if( depth != other.depth )
+            {
+                throw new IllegalArgumentException( "Cannot compare leaf digests of depth " + depth + " with leaf digests of depth " + other.depth + "." );
+            }
+        }
+
+        List< Integer > result = new ArrayList< Integer >();
+
+        for( int i = 0; i < leaves.length; ++i )
+        {
+            if( leaves[ i ] != other.leaves[ i ] )
+                result.add( i );
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the leaf of a key.
+     */
+    public int leaf( List< String > key )
+    {
+        return leaf( hash( key, key.size() ), depth );
+    }
+
+    /**
+     * Get the leaf of a key.
+     *
+     * @param key The key.
+     * @param depth The depth of the leaves.
+     */
+    public static int leaf( List< String > key, int depth )
+    {
+        return leaf( hash( key, key.size() ), depth );
+    }
+
+    private static int leaf( long keyhash, int depth )
+    {
+        return ( int )( keyhash >>> ( 64 - depth ) ) & ( ( 1 << depth ) - 1 );
+    }
+
+    /**
+     * Select the keys falling into certain leaves.
+     *
+     * @param depth The depth of the leaves.
+     * @param entries The keys with their values.
+     * @param leaves The leaves to select the keys of.
+     * @return The selected keys with their values.
+     */
+    public static Map< List< String >, Set< String > > select( int depth, Map< List< String >, Set< String > > entries, Set< Integer > leaves )
+    {
+        final Map< List< String >, Set< String > > result = new HashMap< List< String >, Set< String > >();
+
+        for( Map.Entry< List< String >, Set< String > > entry: entries.entrySet() )
+        {
+            if( leaves.contains( leaf( entry.getKey(), depth ) ) )
+                result.put( entry.getKey(), entry.getValue() );
+        }
+
+        return result;
+    }
+
+    /**
+     * Hash the first elements of a key.
+     *
+     * @param key The key.
+     * @param elements The number of elements to hash.
+     */
+    public static long hash( List< String > key, int elements )
+    {
+        long h = SEED;
+
+        for( int i = 0; i < elements; ++i )
+        {
+            h = hash( h, key.get( i ) );
+        }
+
+        return mix( h );
+    }
+
+    /**
+     * Continue a hash with the characters of a string.
+     */
+    public static long hash( long h, String s )
+    {
+        for( int i = 0; i < s.length(); ++i )
+        {
+            h = ( h ^ s.charAt( i ) ) * 0x100000001b3L;
+        }
+
+        // separate the elements
+        return ( h ^ 0xffff ) * 0x100000001b3L;
+    }
+
+    /**
+     * Spread the bits of a hash.
+     */
+    public static long mix( long h )
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+}
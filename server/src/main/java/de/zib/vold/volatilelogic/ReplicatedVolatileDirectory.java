@@ -17,26 +17,88 @@
 package de.zib.vold.volatilelogic;
 
 import de.zib.vold.common.VoldException;
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.MetricsRegistry;
 import de.zib.vold.replication.Replicator;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Proxy for VolatileDirectory replicating all write requests.
  *
+ * By default, all write requests are handled by the backend and the
+ * replicator, whereas read requests are served by the backend only.
+ *
+ * If further replicas are set, the backend and these replicas form a set of N
+ * replicas with quorums for writes (W) and reads (R). A request is sent to
+ * all N replicas concurrently and returns as soon as W (or R) of them
+ * succeeded. Conflicts are resolved by last-writer-wins on the timeStamp of
+ * the write requests, which each replica already enforces on its own. A read
+ * returns the newest values of the first R replicas responding, hence
+ * lookups are served by the fastest replicas. Once all replicas responded,
+ * stale replicas are repaired in background by writing the newest values to
+ * them. With R + W > N, each read sees the latest acknowledged write.
+ *
+ * Requests on sources and timeslices are handled by all replicas as well,
+ * except for the lookups of the Reaper (sliceLookup and leaseLookup), which
+ * are served by the backend.
+ *
+ * @note        In quorum mode, the replicator is optional. If it is set, all
+ *              write requests are replicated to it after the quorum has been
+ *              reached, but it does not take part in the quorum.
+ *
+ * @note        Deletions without a timeStamp leave no trace. Hence, a
+ *              replica missing a key which has been deleted that way while
+ *              another replica was not reachable gets the key back by read
+ *              repair. Deletions with a timeStamp are repaired like writes,
+ *              if the replicas keep tombstones.
+ *
+ * @note        Repairs run in background, hence they take the write lock of
+ *              the frontend (see setLock) to not interfere with its
+ *              requests.
+ *
  * @author              Jörg Bachmann (bachmann@zib.de)
  */
 public class ReplicatedVolatileDirectory implements VolatileDirectory
 {
     protected final Logger logger = LoggerFactory.getLogger( this.getClass() );
 
+    // time to wait for the remaining replicas before repairing the others
+    private static final long REPAIR_TIMEOUT = 10000;
+
+    private final Counter readRepairs = MetricsRegistry.getDefault().counter(
+            "vold_replication_read_repairs_total", "Number of stale replicas repaired on reads." );
+    private final Counter quorumFailures = MetricsRegistry.getDefault().counter(
+            "vold_replication_quorum_failures_total", "Number of requests failing to reach their quorum." );
+
     private VolatileDirectory backend;
     private Replicator replicator;
+    private List< VolatileDirectory > replicas = null;
+    private int writeQuorum = 0;
+    private int readQuorum = 1;
+    private volatile Executor executor = null;
+    private volatile ReadWriteLock lock = new ReentrantReadWriteLock();
 
     /**
      * Construct an initialized ReplicatedVolatileDirectory.
@@ -75,15 +137,99 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
         this.replicator = replicator;
     }
 
+    /**
+     * Set further replicas forming a quorum together with the backend.
+     *
+     * @param replicas The replicas besides the backend, or null to replicate
+     *                 to the replicator only.
+     */
+    public void setReplicas( List< VolatileDirectory > replicas )
+    {
+        this.replicas = null == replicas || replicas.isEmpty() ? null : new ArrayList< VolatileDirectory >( replicas );
+    }
+
+    public List< VolatileDirectory > getReplicas( )
+    {
+        return null == replicas ? Collections.< VolatileDirectory >emptyList() : Collections.unmodifiableList( replicas );
+    }
+
+    /**
+     * Set the number of replicas which have to acknowledge a write request.
+     *
+     * @param writeQuorum The write quorum, 0 for all replicas.
+     */
+    public void setWriteQuorum( int writeQuorum )
+    {
+        this.writeQuorum = writeQuorum;
+    }
+
+    public int getWriteQuorum( )
+    {
+        return writeQuorum;
+    }
+
+    /**
+     * Set the number of replicas which have to answer a read request.
+     *
+     * @param readQuorum The read quorum, 0 for all replicas.
+     */
+    public void setReadQuorum( int readQuorum )
+    {
+        this.readQuorum = readQuorum;
+    }
+
+    public int getReadQuorum( )
+    {
+        return readQuorum;
+    }
+
+    /**
+     * Set the executor to send requests to the replicas in quorum mode.
+     *
+     * The executor must not be bounded, since the repair of each read
+     * request waits on it for the remaining replicas. If no executor is set,
+     * a cached thread pool will be used.
+     */
+    public void setExecutor( Executor executor )
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Set the lock of the frontend using this directory.
+     *
+     * Stale replicas are repaired under its write lock. If no lock is set,
+     * repairs are only serialized among each other.
+     *
+     * @note        Since repairs wait for the write lock, the executor must not
+     *              run them in the thread of a request holding the lock.
+     *
+     * @see de.zib.vold.frontend.Frontend#setLock
+     */
+    public void setLock( ReadWriteLock lock )
+    {
+        this.lock = lock;
+    }
+
     /**
      * Internal method which acts as part of the guard of all public methods.
      */
     public void checkState( )
     {
-        if( null == backend || null == replicator )
+        if( null == backend || ( null == replicator && null == replicas ) )
         {
             throw new IllegalStateException( "Tried to operate on frontend while it had not been initialized yet. You first need to set a volatile Directory!" );
         }
+
+        if( null != replicas )
+        {
+            final int n = replicas.size() + 1;
+
+            if( writeQuorum < 0 || writeQuorum > n || readQuorum < 0 || readQuorum > n )
+            {
+                throw new IllegalStateException( "The quorums (W=" + writeQuorum + ", R=" + readQuorum + ") must be between 0 and the number of replicas (" + n + ")." );
+            }
+        }
     }
 
     /**
@@ -144,14 +290,33 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
      * @param value The values associated to the key.
      */
     @Override
-    public void insert( List< String > key, Set< String > value, long timeStamp )
+    public void insert( final List< String > key, final Set< String > value, final long timeStamp )
     {
         // guard
         {
             checkState();
         }
 
-        logger.debug("Replicating insert: " + key.toString() + " |--> " + value.toString());
+        if( null != replicas )
+        {
+            logger.debug( "Quorum insert: {} |--> {}", key, value );
+
+            write( new Request< Void >()
+                    {
+                        public Void on( VolatileDirectory replica )
+                        {
+                            replica.insert( key, value, timeStamp );
+                            return null;
+                        }
+                    } );
+
+            if( null != replicator )
+                replicator.insert( key, value, timeStamp );
+
+            return;
+        }
+
+        logger.debug( "Replicating insert: {} |--> {}", key, value );
 
         InsertThread insertion = new InsertThread( backend, key, value, timeStamp );
 
@@ -182,14 +347,33 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
      * @param timeStamp     The timeStamp of operation.
      */
     @Override
-    public void refresh( List< String > key, final long timeStamp )
+    public void refresh( final List< String > key, final long timeStamp )
     {
         // guard
         {
             checkState();
         }
 
-        logger.debug("Replicating refresh: " + key.toString());
+        if( null != replicas )
+        {
+            logger.debug( "Quorum refresh: {}", key );
+
+            write( new Request< Void >()
+                    {
+                        public Void on( VolatileDirectory replica )
+                        {
+                            replica.refresh( key, timeStamp );
+                            return null;
+                        }
+                    } );
+
+            if( null != replicator )
+                replicator.refresh( key, timeStamp );
+
+            return;
+        }
+
+        logger.debug( "Replicating refresh: {}", key );
 
         RefreshThread freshen = new RefreshThread( backend, key, timeStamp );
 
@@ -210,6 +394,202 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
             throw freshen.exception;
     }
 
+    /**
+     * Refresh all keys of a source.
+     *
+     * The keys of the source are only known to the backend. Thus, the
+     * request is handled by the backend first and each refreshed key is
+     * replicated afterwards.
+     *
+     * @param source The source whose keys should be refreshed.
+     * @param timeStamp     The timeStamp of operation.
+     * @return The keys which have been refreshed.
+     */
+    @Override
+    public Set< List< String > > refreshSource( final String source, final long timeStamp )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        logger.debug( "Replicating refresh of source: {}", source );
+
+        Set< List< String > > keys;
+        if( null != replicas )
+        {
+            keys = union( write( new Request< Set< List< String > > >()
+                    {
+                        public Set< List< String > > on( VolatileDirectory replica )
+                        {
+                            return replica.refreshSource( source, timeStamp );
+                        }
+                    } ) );
+
+            if( null == replicator )
+                return keys;
+        }
+        else
+        {
+            keys = backend.refreshSource( source, timeStamp );
+        }
+
+        for( List< String > key: keys )
+        {
+            replicator.refresh( key, timeStamp );
+        }
+
+        return keys;
+    }
+
+    /**
+     * A delegator for VolatileDirectory.leaseLookup().
+     */
+    @Override
+    public Map< String, DateTime > leaseLookup( long timeslice )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return backend.leaseLookup( timeslice );
+    }
+
+    /**
+     * Expire the lease of a source.
+     *
+     * The keys attached to the lease are only known to the backend. Thus,
+     * the request is handled by the backend first and the deletion of each
+     * key is replicated afterwards.
+     *
+     * @param source The source whose lease expired.
+     * @return The deleted keys.
+     */
+    @Override
+    public Set< List< String > > expireLease( final String source, final long deadline )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        logger.debug( "Replicating expiry of lease: {}", source );
+
+        Set< List< String > > keys;
+        if( null != replicas )
+        {
+            keys = union( write( new Request< Set< List< String > > >()
+                    {
+                        public Set< List< String > > on( VolatileDirectory replica )
+                        {
+                            return replica.expireLease( source, deadline );
+                        }
+                    } ) );
+
+            if( null == replicator )
+                return keys;
+        }
+        else
+        {
+            keys = backend.expireLease( source, deadline );
+        }
+
+        for( List< String > key: keys )
+        {
+            replicator.delete( key );
+        }
+
+        return keys;
+    }
+
+    /**
+     * Expire all keys of a time slice older than a deadline.
+     *
+     * The expired keys are only known to the backend. Thus, the request is
+     * handled by the backend first and the deletion of each key is
+     * replicated afterwards. The deletions are dated at the deadline, thus
+     * keys written to the replica later are kept.
+     *
+     * @param timeslice The time slice to expire the keys of.
+     * @param deadline All keys with a date before the deadline will be deleted.
+     * @return The deleted keys.
+     */
+    @Override
+    public Set< List< String > > expire( final long timeslice, final long deadline )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        logger.debug( "Replicating expiry of timeslice: {}", timeslice );
+
+        Set< List< String > > keys;
+        if( null != replicas )
+        {
+            keys = union( write( new Request< Set< List< String > > >()
+                    {
+                        public Set< List< String > > on( VolatileDirectory replica )
+                        {
+                            return replica.expire( timeslice, deadline );
+                        }
+                    } ) );
+
+            if( null == replicator )
+                return keys;
+        }
+        else
+        {
+            keys = backend.expire( timeslice, deadline );
+        }
+
+        for( List< String > key: keys )
+        {
+            replicator.delete( key, deadline );
+        }
+
+        return keys;
+    }
+
+    /**
+     * Drop old tombstones.
+     *
+     * In quorum mode, the tombstones of all replicas are dropped. Otherwise,
+     * the replicator drops its own tombstones.
+     *
+     * @param deadline All tombstones with a date before the deadline will be dropped.
+     * @return The largest number of tombstones dropped by a replica.
+     */
+    @Override
+    public int expireTombstones( final long deadline )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( null == replicas )
+        {
+            return backend.expireTombstones( deadline );
+        }
+
+        int count = 0;
+
+        for( Integer dropped: write( new Request< Integer >()
+                {
+                    public Integer on( VolatileDirectory replica )
+                    {
+                        return replica.expireTombstones( deadline );
+                    }
+                } ).values() )
+        {
+            count = Math.max( count, dropped );
+        }
+
+        return count;
+    }
+
     /**
      * Delete a key.
      *
@@ -220,21 +600,66 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
      */
     @Override
     public void delete( List< String > key )
+    {
+        _delete( key, null );
+    }
+
+    /**
+     * Delete a key, unless it has been written after a given time.
+     *
+     * The request handled be done concurrently at the replicator and the
+     * backend.
+     *
+     * @param key The key to delete.
+     * @param timeStamp The timeStamp of operation.
+     */
+    @Override
+    public void delete( List< String > key, long timeStamp )
+    {
+        _delete( key, timeStamp );
+    }
+
+    /**
+     * Delete a key on all replicas.
+     *
+     * @param key The key to delete.
+     * @param timeStamp The timeStamp of operation or null for an unconditional deletion.
+     */
+    private void _delete( final List< String > key, final Long timeStamp )
     {
         // guard
         {
             checkState();
         }
 
-        logger.debug("Replicating delete: " + key.toString());
+        if( null != replicas )
+        {
+            logger.debug( "Quorum delete: {}", key );
 
-        DeleteThread deletion = new DeleteThread( backend, key );
+            write( new Request< Void >()
+                    {
+                        public Void on( VolatileDirectory replica )
+                        {
+                            delete( replica, key, timeStamp );
+                            return null;
+                        }
+                    } );
+
+            if( null != replicator )
+                replicate_delete( key, timeStamp );
+
+            return;
+        }
+
+        logger.debug( "Replicating delete: {}", key );
+
+        DeleteThread deletion = new DeleteThread( backend, key, timeStamp );
 
         try
         {
             deletion.start();
 
-            replicator.delete( key );
+            replicate_delete( key, timeStamp );
 
             deletion.join();
         }
@@ -247,6 +672,223 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
             throw deletion.exception;
     }
 
+    /**
+     * Delete a key on one replica.
+     */
+    private static void delete( VolatileDirectory replica, List< String > key, Long timeStamp )
+    {
+        if( null == timeStamp )
+            replica.delete( key );
+        else
+            replica.delete( key, timeStamp );
+    }
+
+    /**
+     * Replicate a deletion to the replicator.
+     */
+    private void replicate_delete( List< String > key, Long timeStamp )
+    {
+        if( null == timeStamp )
+            replicator.delete( key );
+        else
+            replicator.delete( key, timeStamp );
+    }
+
+    /**
+     * Run a write request on all replicas until the write quorum succeeded.
+     *
+     * @return The results of the replicas which succeeded first.
+     */
+    private < T > Map< VolatileDirectory, T > write( Request< T > request )
+    {
+        return quorum( request, 0 == writeQuorum ? replicas.size()+1 : writeQuorum, null );
+    }
+
+    private int readQuorumSize( )
+    {
+        return 0 == readQuorum ? replicas.size()+1 : readQuorum;
+    }
+
+    /**
+     * Send a request to all replicas and wait until a quorum of them succeeded.
+     *
+     * The remaining replicas are waited for in background. Once all replicas
+     * responded (or did not respond within REPAIR_TIMEOUT), gather is called
+     * with the results of all replicas which succeeded.
+     *
+     * @param request The request to run on each replica.
+     * @param quorum The number of replicas which have to succeed.
+     * @param gather The callback for all results or null.
+     * @return The results of the replicas which succeeded first.
+     * @throws VoldException if too many replicas failed to reach the quorum.
+     */
+    private < T > Map< VolatileDirectory, T > quorum( final Request< T > request, final int quorum, final Gather< T > gather )
+    {
+        final List< VolatileDirectory > all = new ArrayList< VolatileDirectory >( replicas.size()+1 );
+        {
+            all.add( backend );
+            all.addAll( replicas );
+        }
+
+        final CompletionService< Reply< T > > completion = new ExecutorCompletionService< Reply< T > >( executor() );
+
+        for( final VolatileDirectory replica: all )
+        {
+            completion.submit( new Callable< Reply< T > >()
+                    {
+                        public Reply< T > call( )
+                        {
+                            return new Reply< T >( replica, request.on( replica ) );
+                        }
+                    } );
+        }
+
+        final Map< VolatileDirectory, T > results = new LinkedHashMap< VolatileDirectory, T >();
+        Throwable failure = null;
+        int failures = 0;
+
+        while( results.size() < quorum )
+        {
+            if( failures > all.size() - quorum )
+            {
+                quorumFailures.inc();
+                throw new VoldException( failures + " of " + all.size() + " replicas failed, hence a quorum of " + quorum + " cannot be reached.", failure );
+            }
+
+            try
+            {
+                Reply< T > reply = completion.take().get();
+                results.put( reply.replica, reply.result );
+            }
+            catch( InterruptedException e )
+            {
+                throw new VoldException( e );
+            }
+            catch( ExecutionException e )
+            {
+                ++failures;
+                failure = e.getCause();
+                logger.warn( "Request on replica failed: {}", failure.getMessage() );
+            }
+        }
+
+        final int pending = all.size() - results.size() - failures;
+
+        if( 0 < pending || null != gather )
+        {
+            final Map< VolatileDirectory, T > gathered = new LinkedHashMap< VolatileDirectory, T >( results );
+
+            executor().execute( new Runnable()
+                    {
+                        public void run( )
+                        {
+                            for( int i = 0; i < pending; ++i )
+                            {
+                                try
+                                {
+                                    Future< Reply< T > > future = completion.poll( REPAIR_TIMEOUT, TimeUnit.MILLISECONDS );
+
+                                    if( null == future )
+                                    {
+                                        logger.warn( "{} replicas did not respond within {} ms.", pending - i, REPAIR_TIMEOUT );
+                                        break;
+                                    }
+
+                                    Reply< T > reply = future.get();
+                                    gathered.put( reply.replica, reply.result );
+                                }
+                                catch( InterruptedException e )
+                                {
+                                    return;
+                                }
+                                catch( ExecutionException e )
+                                {
+                                    logger.warn( "Request on replica failed: {}", e.getCause().getMessage() );
+                                }
+                            }
+
+                            if( null != gather )
+                                gather.all( gathered );
+                        }
+                    } );
+        }
+
+        return results;
+    }
+
+    /**
+     * Get the executor for requests on replicas, creating a default one if needed.
+     */
+    private Executor executor( )
+    {
+        if( null != executor )
+            return executor;
+
+        synchronized( this )
+        {
+            if( null == executor )
+            {
+                executor = Executors.newCachedThreadPool( new ThreadFactory()
+                        {
+                            public Thread newThread( Runnable r )
+                            {
+                                Thread t = new Thread( r, "ReplicatedVolatileDirectory-worker" );
+                                t.setDaemon( true );
+                                return t;
+                            }
+                        } );
+            }
+
+            return executor;
+        }
+    }
+
+    /**
+     * Merge the sets of keys returned by several replicas.
+     */
+    private static Set< List< String > > union( Map< VolatileDirectory, Set< List< String > > > results )
+    {
+        Set< List< String > > keys = new HashSet< List< String > >();
+
+        for( Set< List< String > > part: results.values() )
+        {
+            keys.addAll( part );
+        }
+
+        return keys;
+    }
+
+    /**
+     * A request run on each replica.
+     */
+    private interface Request< T >
+    {
+        T on( VolatileDirectory replica );
+    }
+
+    /**
+     * A callback for the results of all replicas.
+     */
+    private interface Gather< T >
+    {
+        void all( Map< VolatileDirectory, T > results );
+    }
+
+    /**
+     * The result of a request on a replica.
+     */
+    private static class Reply< T >
+    {
+        final VolatileDirectory replica;
+        final T result;
+
+        Reply( VolatileDirectory replica, T result )
+        {
+            this.replica = replica;
+            this.result = result;
+        }
+    }
+
     /**
      * Helper class to insert an entry concurrently.
      */
@@ -322,12 +964,14 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
     {
         private final VolatileDirectory directory;
         private final List< String > key;
+        private final Long timeStamp;
         public VoldException exception = null;
 
-        public DeleteThread( VolatileDirectory directory, List< String > key )
+        public DeleteThread( VolatileDirectory directory, List< String > key, Long timeStamp )
         {
             this.directory = directory;
             this.key = key;
+            this.timeStamp = timeStamp;
         }
 
         @Override
@@ -335,7 +979,7 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
         {
             try
             {
-                directory.delete( key );
+                delete( directory, key, timeStamp );
             }
             catch( VoldException e )
             {
@@ -345,7 +989,7 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
     }
 
     /**
-     * Delegate a lookup request to the backend.
+     * Delegate a lookup request to the backend or read it from a quorum.
      *
      * @param key The key to query.
      * @return The values for that key or null if the key has not been found.
@@ -358,24 +1002,288 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
             checkState();
         }
 
+        if( null != replicas )
+        {
+            DatedValues newest = readDated( key );
+
+            return null == newest || newest.isDeleted() ? null : newest.values();
+        }
+
         return backend.lookup( key );
     }
 
     /**
-     * Delegate a prefixlookup to the backend.
+     * Delegate a dated lookup request to the backend or read it from a quorum.
+     *
+     * @param key The key to query.
+     * @return The values for that key with their date or null if the key has not been found.
+     */
+    @Override
+    public DatedValues lookupDated( List< String > key )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( null != replicas )
+        {
+            return readDated( key );
+        }
+
+        return backend.lookupDated( key );
+    }
+
+    /**
+     * Delegate a prefixlookup to the backend or read it from a quorum.
+     *
+     * In quorum mode, the keys found by all replicas of the read quorum with
+     * the same values are returned as they are. For all other keys, the
+     * newest values are read from the replicas.
      *
      * @param key The prefix of the keys to be found.
      * @return The map containing all keys beginning with the prefix and all its associated values.
      */
     @Override
-    public Map< List< String >, Set< String > > prefixLookup( List< String > key )
+    public Map< List< String >, Set< String > > prefixLookup( final List< String > key )
     {
         // guard
         {
             checkState();
         }
 
-        return backend.prefixLookup( key );
+        if( null == replicas )
+        {
+            return backend.prefixLookup( key );
+        }
+
+        Map< VolatileDirectory, Map< List< String >, Set< String > > > responses = quorum(
+                new Request< Map< List< String >, Set< String > > >()
+                {
+                    public Map< List< String >, Set< String > > on( VolatileDirectory replica )
+                    {
+                        return replica.prefixLookup( key );
+                    }
+                },
+                readQuorumSize(),
+                new Gather< Map< List< String >, Set< String > > >()
+                {
+                    public void all( Map< VolatileDirectory, Map< List< String >, Set< String > > > responses )
+                    {
+                        for( List< String > k: divergent( responses, null ) )
+                        {
+                            repair( k );
+                        }
+                    }
+                } );
+
+        Map< List< String >, Set< String > > result = new HashMap< List< String >, Set< String > >();
+
+        for( List< String > k: divergent( responses, result ) )
+        {
+            DatedValues newest = readDated( k );
+
+            if( null != newest && ! newest.isDeleted() )
+                result.put( k, newest.values() );
+        }
+
+        return result;
+    }
+
+    /**
+     * Hash the keys of a prefix into leaf digests.
+     *
+     * The digests are computed from the newest values read from the read
+     * quorum, thus they equal the digests of a directory holding the
+     * merged keys.
+     */
+    @Override
+    public LeafDigests digest( List< String > key, int depth )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( null == replicas )
+        {
+            return backend.digest( key, depth );
+        }
+
+        return new LeafDigests( depth, prefixLookup( key ) );
+    }
+
+    /**
+     * Query the keys of a prefix which fall into certain leaves.
+     *
+     * @see digest
+     */
+    @Override
+    public Map< List< String >, Set< String > > leafLookup( List< String > key, int depth, Set< Integer > leaves )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( null == replicas )
+        {
+            return backend.leafLookup( key, depth, leaves );
+        }
+
+        return LeafDigests.select( depth, prefixLookup( key ), leaves );
+    }
+
+    /**
+     * Read the newest values of a key from the read quorum.
+     *
+     * Once all replicas responded, the stale ones are repaired.
+     */
+    private DatedValues readDated( final List< String > key )
+    {
+        Map< VolatileDirectory, DatedValues > responses = quorum(
+                new Request< DatedValues >()
+                {
+                    public DatedValues on( VolatileDirectory replica )
+                    {
+                        return replica.lookupDated( key );
+                    }
+                },
+                readQuorumSize(),
+                new Gather< DatedValues >()
+                {
+                    public void all( Map< VolatileDirectory, DatedValues > responses )
+                    {
+                        repair( key, responses );
+                    }
+                } );
+
+        return newest( responses.values() );
+    }
+
+    /**
+     * Read a key from all replicas and repair the stale ones.
+     */
+    private void repair( final List< String > key )
+    {
+        try
+        {
+            repair( key, quorum( new Request< DatedValues >()
+                    {
+                        public DatedValues on( VolatileDirectory replica )
+                        {
+                            return replica.lookupDated( key );
+                        }
+                    }, replicas.size()+1, null ) );
+        }
+        catch( VoldException e )
+        {
+            logger.warn( "Could not repair key {}: {}", key, e.getMessage() );
+        }
+    }
+
+    /**
+     * Write the newest values of a key to all replicas holding other values.
+     *
+     * If the newest values are a tombstone, the key is deleted instead.
+     *
+     * @param key The key to repair.
+     * @param responses The values of the key by replica.
+     */
+    private void repair( List< String > key, Map< VolatileDirectory, DatedValues > responses )
+    {
+        DatedValues newest = newest( responses.values() );
+
+        if( null == newest )
+            return;
+
+        final ReadWriteLock lock = this.lock;
+        lock.writeLock().lock();
+        try
+        {
+            for( Map.Entry< VolatileDirectory, DatedValues > entry: responses.entrySet() )
+            {
+                if( newest.equals( entry.getValue() ) )
+                    continue;
+
+                logger.debug( "Repairing key {} with {} (was {}).", new Object[]{ key, newest, entry.getValue() } );
+
+                try
+                {
+                    if( newest.isDeleted() )
+                        entry.getKey().delete( key, newest.date() );
+                    else
+                        entry.getKey().insert( key, newest.values(), newest.date() );
+
+                    readRepairs.inc();
+                }
+                catch( VoldException e )
+                {
+                    logger.warn( "Could not repair key {}: {}", key, e.getMessage() );
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the newest of the values returned by several replicas.
+     *
+     * @return The newest values or null, if no replica holds the key.
+     */
+    private static DatedValues newest( Iterable< DatedValues > responses )
+    {
+        DatedValues newest = null;
+
+        for( DatedValues values: responses )
+        {
+            if( null != values && values.isNewerThan( newest ) )
+                newest = values;
+        }
+
+        return newest;
+    }
+
+    /**
+     * Find the keys of prefix lookups of several replicas with different values.
+     *
+     * @param responses The results of the prefix lookups by replica.
+     * @param agreed    If not null, all other keys are put here with their values.
+     * @return The keys not having the same values on all replicas.
+     */
+    private static Set< List< String > > divergent( Map< VolatileDirectory, Map< List< String >, Set< String > > > responses, Map< List< String >, Set< String > > agreed )
+    {
+        Set< List< String > > divergent = new HashSet< List< String > >();
+        Set< List< String > > seen = new HashSet< List< String > >();
+
+        for( Map< List< String >, Set< String > > response: responses.values() )
+        {
+            for( Map.Entry< List< String >, Set< String > > entry: response.entrySet() )
+            {
+                if( ! seen.add( entry.getKey() ) )
+                    continue;
+
+                boolean same = true;
+                for( Map< List< String >, Set< String > > other: responses.values() )
+                {
+                    if( ! entry.getValue().equals( other.get( entry.getKey() ) ) )
+                    {
+                        same = false;
+                        break;
+                    }
+                }
+
+                if( ! same )
+                    divergent.add( entry.getKey() );
+                else if( null != agreed )
+                    agreed.put( entry.getKey(), entry.getValue() );
+            }
+        }
+
+        return divergent;
     }
 
     /**
@@ -385,7 +1293,7 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
      * @return The keys in that slice and its timestamps.
      */
     @Override
-    public Map< List< String >, DateTime > sliceLookup( long slice )
+    public DateMap sliceLookup( long slice )
     {
         // guard
         {
@@ -394,4 +1302,20 @@ public class ReplicatedVolatileDirectory implements VolatileDirectory
 
         return backend.sliceLookup( slice );
     }
+
+    /**
+     * Delegate a tombstonelookup to the backend.
+     *
+     * @return The deleted keys and the dates of their deletions.
+     */
+    @Override
+    public DateMap tombstoneLookup( )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return backend.tombstoneLookup();
+    }
 }
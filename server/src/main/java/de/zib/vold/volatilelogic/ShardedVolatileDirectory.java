@@ -0,0 +1,872 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.volatilelogic;
+
+import de.zib.vold.common.VoldException;
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.LatencyHistogram;
+import de.zib.vold.metrics.MetricsRegistry;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * VolatileDirectory partitioning the keys across several shards.
+ *
+ * Each key is owned by exactly one shard, which is determined by consistent
+ * hashing: each shard is placed on a ring of 64 bit hashes at a number of
+ * points (virtual nodes) derived from its name, and a key is owned by the
+ * first shard following the hash of its routing elements on the ring. Thus,
+ * adding or removing a shard only moves the keys next to its points, and the
+ * keys are balanced evenly across the shards.
+ *
+ * The routing elements are the first routingDepth elements of a key, i.e.
+ * scope, type and keyname (3, the default) or just the scope (1). The source
+ * never takes part in routing, hence the entries of all sources of a key are
+ * stored by the same shard.
+ *
+ * Inserts, refreshes, deletes and lookups are forwarded to the owner of the
+ * key. A prefix lookup is forwarded to a single shard if the prefix contains
+ * all routing elements followed by at least one further element (e.g. the
+ * lookup of a key for all sources done by the Frontend). Otherwise, it is
+ * scattered to all shards and the results are merged. Requests on sources
+ * and timeslices are scattered as well.
+ *
+ * If an executor is set, scattered requests are run concurrently on it,
+ * otherwise one shard after another is asked by the calling thread.
+ *
+ * @note        All shards have to share the same TimeSlice configuration,
+ *              since the slice information is taken from the first shard.
+ *
+ * @note        Changing the set of shards or the routing depth does not move
+ *              any stored keys. Keys stored by a shard not owning them any
+ *              more are still found by scattered lookups and expired by the
+ *              Reaper, but not by routed requests.
+ *
+ * @see VolatileDirectory
+ * @see ReplicatedVolatileDirectory
+ */
+public class ShardedVolatileDirectory implements VolatileDirectory
+{
+    protected final Logger logger = LoggerFactory.getLogger( this.getClass() );
+
+    private final LatencyHistogram scatterLatency = MetricsRegistry.getDefault().histogram(
+            "vold_shard_scatter_seconds", "Latency of requests scattered to all shards." );
+
+    private volatile Ring ring = null;
+    private Map< String, VolatileDirectory > shards = null;
+    private int virtualNodes = 128;
+    private int routingDepth = 3;
+    private Executor executor = null;
+
+    /**
+     * Construct an uninitialized ShardedVolatileDirectory.
+     */
+    public ShardedVolatileDirectory( )
+    {
+    }
+
+    /**
+     * Construct an initialized ShardedVolatileDirectory.
+     *
+     * @param shards The shards by their names.
+     */
+    public ShardedVolatileDirectory( Map< String, VolatileDirectory > shards )
+    {
+        setShards( shards );
+    }
+
+    /**
+     * Set the shards to partition the keys across.
+     *
+     * The position of a shard on the ring only depends on its name, thus the
+     * names have to be kept when shards are added or removed.
+     *
+     * @param shards The shards by their names.
+     */
+    public void setShards( Map< String, VolatileDirectory > shards )
+    {
+        // guard
+        {
+            if( null == shards || shards.isEmpty() )
+            {
+                throw new IllegalArgumentException( "ShardedVolatileDirectory needs at least one shard." );
+            }
+        }
+
+        this.shards = new LinkedHashMap< String, VolatileDirectory >( shards );
+        this.ring = new Ring( this.shards, virtualNodes );
+    }
+
+    public Map< String, VolatileDirectory > getShards( )
+    {
+        return Collections.unmodifiableMap( shards );
+    }
+
+    /**
+     * Set the number of points of each shard on the ring.
+     *
+     * More virtual nodes balance the keys more evenly, but enlarge the ring.
+     */
+    public void setVirtualNodes( int virtualNodes )
+    {
+        // guard
+        {
+            if( virtualNodes < 1 )
+            {
+                throw new IllegalArgumentException( "The number of virtual nodes must be positive." );
+            }
+        }
+
+        this.virtualNodes = virtualNodes;
+
+        if( null != shards )
+        {
+            this.ring = new Ring( shards, virtualNodes );
+        }
+    }
+
+    public int getVirtualNodes( )
+    {
+        return virtualNodes;
+    }
+
+    /**
+     * Set the number of leading key elements a key is routed by.
+     *
+     * @param routingDepth 1 to route by scope, 3 to route by scope, type and
+     *                     keyname.
+     */
+    public void setRoutingDepth( int routingDepth )
+    {
+        // guard
+        {
+            if( routingDepth < 1 || routingDepth > 3 )
+            {
+                throw new IllegalArgumentException( "The routing depth must be between 1 and 3." );
+            }
+        }
+
+        this.routingDepth = routingDepth;
+    }
+
+    public int getRoutingDepth( )
+    {
+        return routingDepth;
+    }
+
+    /**
+     * Set the executor to run scattered requests on.
+     *
+     * @param executor The executor or null to ask the shards sequentially.
+     */
+    public void setExecutor( Executor executor )
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Internal method which acts as part of the guard of all public methods.
+     */
+    public void checkState( )
+    {
+        if( null == ring )
+        {
+            throw new IllegalStateException( "Tried to operate on ShardedVolatileDirectory while it had not been initialized yet. You first need to set the shards!" );
+        }
+    }
+
+    /**
+     * Get the name of the shard owning a key.
+     *
+     * @param key The key (or a prefix containing all routing elements).
+     * @return The name of the owning shard.
+     */
+    public String getShardName( List< String > key )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return ring.owner( hash( key ) ).name;
+    }
+
+    /**
+     * A delegator for TimeSlice.getActualSlice() of the first shard.
+     *
+     * @see TimeSlice
+     */
+    @Override
+    public long getActualSlice( )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return ring.first.directory.getActualSlice();
+    }
+
+    /**
+     * A delegator for TimeSlice.getNumberOfSlices() of the first shard.
+     *
+     * @see TimeSlice
+     */
+    @Override
+    public long getNumberOfSlices( )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return ring.first.directory.getNumberOfSlices();
+    }
+
+    /**
+     * A delegator for TimeSlice.getTimeSliceSize() of the first shard.
+     *
+     * @see TimeSlice
+     */
+    @Override
+    public long getTimeSliceSize( )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return ring.first.directory.getTimeSliceSize();
+    }
+
+    /**
+     * Forward an insert to the owner of the key.
+     */
+    @Override
+    public void insert( List< String > key, Set< String > value, long timeStamp )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        route( key ).insert( key, value, timeStamp );
+    }
+
+    /**
+     * Forward a refresh to the owner of the key.
+     */
+    @Override
+    public void refresh( List< String > key, long timeStamp )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        route( key ).refresh( key, timeStamp );
+    }
+
+    /**
+     * Forward a delete to the owner of the key.
+     */
+    @Override
+    public void delete( List< String > key )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        route( key ).delete( key );
+    }
+
+    /**
+     * Forward a timestamped delete to the owner of the key.
+     */
+    @Override
+    public void delete( List< String > key, long timeStamp )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        route( key ).delete( key, timeStamp );
+    }
+
+    /**
+     * Forward a lookup to the owner of the key.
+     */
+    @Override
+    public Set< String > lookup( List< String > key )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return route( key ).lookup( key );
+    }
+
+    /**
+     * Forward a dated lookup to the owner of the key.
+     */
+    @Override
+    public DatedValues lookupDated( List< String > key )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return route( key ).lookupDated( key );
+    }
+
+    /**
+     * Query all keys beginning with a certain prefix.
+     *
+     * The lookup is forwarded to the owner of the prefix if the prefix
+     * determines it, and scattered to all shards otherwise.
+     *
+     * @param prefix The prefix of the keys to be found.
+     * @return The map containing all keys beginning with the prefix and all its associated values.
+     */
+    @Override
+    public Map< List< String >, Set< String > > prefixLookup( final List< String > prefix )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        // the last element of a prefix may be a prefix of an element itself
+        if( prefix.size() > routingDepth )
+        {
+            return route( prefix ).prefixLookup( prefix );
+        }
+
+        Map< List< String >, Set< String > > result = new HashMap< List< String >, Set< String > >();
+
+        for( Map< List< String >, Set< String > > part: scatter( new Request< Map< List< String >, Set< String > > >()
+                {
+                    public Map< List< String >, Set< String > > on( VolatileDirectory shard )
+                    {
+                        return shard.prefixLookup( prefix );
+                    }
+                } ) )
+        {
+            result.putAll( part );
+        }
+
+        return result;
+    }
+
+    /**
+     * Add up the leaf digests of all shards.
+     *
+     * Since the shards hold disjoint parts of the key space, the sum of
+     * their digests equals the digests of all their keys.
+     */
+    @Override
+    public LeafDigests digest( final List< String > prefix, final int depth )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( prefix.size() > routingDepth )
+        {
+            return route( prefix ).digest( prefix, depth );
+        }
+
+        LeafDigests result = new LeafDigests( depth );
+
+        for( LeafDigests part: scatter( new Request< LeafDigests >()
+                {
+                    public LeafDigests on( VolatileDirectory shard )
+                    {
+                        return shard.digest( prefix, depth );
+                    }
+                } ) )
+        {
+            result.add( part );
+        }
+
+        return result;
+    }
+
+    /**
+     * Query the keys of certain leaves on all shards.
+     */
+    @Override
+    public Map< List< String >, Set< String > > leafLookup( final List< String > prefix, final int depth, final Set< Integer > leaves )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( prefix.size() > routingDepth )
+        {
+            return route( prefix ).leafLookup( prefix, depth, leaves );
+        }
+
+        Map< List< String >, Set< String > > result = new HashMap< List< String >, Set< String > >();
+
+        for( Map< List< String >, Set< String > > part: scatter( new Request< Map< List< String >, Set< String > > >()
+                {
+                    public Map< List< String >, Set< String > > on( VolatileDirectory shard )
+                    {
+                        return shard.leafLookup( prefix, depth, leaves );
+                    }
+                } ) )
+        {
+            result.putAll( part );
+        }
+
+        return result;
+    }
+
+    /**
+     * Refresh all keys of a source on all shards.
+     */
+    @Override
+    public Set< List< String > > refreshSource( final String source, final long timeStamp )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return union( scatter( new Request< Set< List< String > > >()
+                {
+                    public Set< List< String > > on( VolatileDirectory shard )
+                    {
+                        return shard.refreshSource( source, timeStamp );
+                    }
+                } ) );
+    }
+
+    /**
+     * Query the keys of a timeslice on all shards.
+     */
+    @Override
+    public DateMap sliceLookup( final long timeslice )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        List< DateMap > parts = scatter( new Request< DateMap >()
+                {
+                    public DateMap on( VolatileDirectory shard )
+                    {
+                        return shard.sliceLookup( timeslice );
+                    }
+                } );
+
+        return merge( parts );
+    }
+
+    /**
+     * Query the tombstones on all shards.
+     */
+    @Override
+    public DateMap tombstoneLookup( )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return merge( scatter( new Request< DateMap >()
+                {
+                    public DateMap on( VolatileDirectory shard )
+                    {
+                        return shard.tombstoneLookup();
+                    }
+                } ) );
+    }
+
+    /**
+     * Merge the disjoint DateMaps of several shards.
+     */
+    private static DateMap merge( List< DateMap > parts )
+    {
+        if( 1 == parts.size() )
+        {
+            return parts.get( 0 );
+        }
+
+        int size = 0;
+        for( DateMap part: parts )
+        {
+            size += part.size();
+        }
+
+        DateMap result = new DateMap( size );
+        for( DateMap part: parts )
+        {
+            for( int i = 0; i < part.size(); ++i )
+            {
+                result.put( part.key( i ), part.date( i ) );
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Expire the keys of a timeslice on all shards.
+     */
+    @Override
+    public Set< List< String > > expire( final long timeslice, final long deadline )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return union( scatter( new Request< Set< List< String > > >()
+                {
+                    public Set< List< String > > on( VolatileDirectory shard )
+                    {
+                        return shard.expire( timeslice, deadline );
+                    }
+                } ) );
+    }
+
+    /**
+     * Drop the old tombstones on all shards.
+     */
+    @Override
+    public int expireTombstones( final long deadline )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        int count = 0;
+
+        for( Integer part: scatter( new Request< Integer >()
+                {
+                    public Integer on( VolatileDirectory shard )
+                    {
+                        return shard.expireTombstones( deadline );
+                    }
+                } ) )
+        {
+            count += part;
+        }
+
+        return count;
+    }
+
+    /**
+     * Query the leases of a timeslice on all shards.
+     *
+     * If a source holds a lease on several shards, the latest date is
+     * returned.
+     */
+    @Override
+    public Map< String, DateTime > leaseLookup( final long timeslice )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        Map< String, DateTime > result = new HashMap< String, DateTime >();
+
+        for( Map< String, DateTime > part: scatter( new Request< Map< String, DateTime > >()
+                {
+                    public Map< String, DateTime > on( VolatileDirectory shard )
+                    {
+                        return shard.leaseLookup( timeslice );
+                    }
+                } ) )
+        {
+            for( Map.Entry< String, DateTime > entry: part.entrySet() )
+            {
+                DateTime date = result.get( entry.getKey() );
+
+                if( null == date || date.isBefore( entry.getValue() ) )
+                {
+                    result.put( entry.getKey(), entry.getValue() );
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Expire the lease of a source on all shards.
+     */
+    @Override
+    public Set< List< String > > expireLease( final String source, final long deadline )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        return union( scatter( new Request< Set< List< String > > >()
+                {
+                    public Set< List< String > > on( VolatileDirectory shard )
+                    {
+                        return shard.expireLease( source, deadline );
+                    }
+                } ) );
+    }
+
+    /**
+     * Get the owner of a key and count the request.
+     */
+    private VolatileDirectory route( List< String > key )
+    {
+        Shard shard = ring.owner( hash( key ) );
+
+        shard.requests.inc();
+
+        return shard.directory;
+    }
+
+    /**
+     * Run a request on all shards and gather their results.
+     *
+     * @return The results in the order of the shards.
+     */
+    private < T > List< T > scatter( final Request< T > request )
+    {
+        final Ring ring = this.ring;
+        final Executor executor = this.executor;
+
+        final long start = System.nanoTime();
+        try
+        {
+            List< T > results = new ArrayList< T >( ring.shards.size() );
+
+            if( null == executor || 1 == ring.shards.size() )
+            {
+                for( Shard shard: ring.shards )
+                {
+                    shard.requests.inc();
+                    results.add( request.on( shard.directory ) );
+                }
+
+                return results;
+            }
+
+            List< FutureTask< T > > tasks = new ArrayList< FutureTask< T > >( ring.shards.size() );
+
+            for( final Shard shard: ring.shards )
+            {
+                shard.requests.inc();
+
+                FutureTask< T > task = new FutureTask< T >( new Callable< T >()
+                        {
+                            public T call( )
+                            {
+                                return request.on( shard.directory );
+                            }
+                        } );
+
+                executor.execute( task );
+                tasks.add( task );
+            }
+
+            for( FutureTask< T > task: tasks )
+            {
+                try
+                {
+                    results.add( task.get() );
+                }
+                catch( InterruptedException e )
+                {
+                    throw new VoldException( e );
+                }
+                catch( ExecutionException e )
+                {
+                    if( e.getCause() instanceof RuntimeException )
+                        throw ( RuntimeException )e.getCause();
+
+                    throw new VoldException( e.getCause() );
+                }
+            }
+
+            return results;
+        }
+        finally
+        {
+            scatterLatency.recordSince( start );
+        }
+    }
+
+    /**
+     * Merge the sets of keys returned by the shards.
+     */
+    private static Set< List< String > > union( List< Set< List< String > > > parts )
+    {
+        if( 1 == parts.size() )
+        {
+            return parts.get( 0 );
+        }
+
+        Set< List< String > > result = new HashSet< List< String > >();
+
+        for( Set< List< String > > part: parts )
+        {
+            result.addAll( part );
+        }
+
+        return result;
+    }
+
+    /**
+     * Hash the routing elements of a key.
+     *
+     * This is a 64 bit FNV-1a hash over the characters of the elements,
+     * finished by the mixing step of MurmurHash3 to spread similar keys
+     * across the ring.
+     *
+     * @see LeafDigests
+     */
+    private long hash( List< String > key )
+    {
+        // guard
+        {
+            if( key.size() < routingDepth )
+            {
+                throw new IllegalArgumentException( "Key " + key + " does not contain all " + routingDepth + " routing elements." );
+            }
+        }
+
+        return LeafDigests.hash( key, routingDepth );
+    }
+
+    /**
+     * A request run on each shard.
+     */
+    private interface Request< T >
+    {
+        T on( VolatileDirectory shard );
+    }
+
+    /**
+     * A shard with its name and its request counter.
+     */
+    private static class Shard
+    {
+        final String name;
+        final VolatileDirectory directory;
+        final Counter requests;
+
+        Shard( String name, VolatileDirectory directory )
+        {
+            this.name = name;
+            this.directory = directory;
+            this.requests = MetricsRegistry.getDefault().counter(
+                    "vold_shard_requests_total", "Number of requests forwarded to a shard.", "shard", name );
+        }
+    }
+
+    /**
+     * The immutable ring of the virtual nodes of all shards.
+     */
+    private static class Ring
+    {
+        final List< Shard > shards;
+        final Shard first;
+        final long[] points;
+        final Shard[] owners;
+
+        Ring( Map< String, VolatileDirectory > directories, int virtualNodes )
+        {
+            TreeMap< Long, Shard > ring = new TreeMap< Long, Shard >();
+
+            shards = new ArrayList< Shard >( directories.size() );
+            for( Map.Entry< String, VolatileDirectory > entry: directories.entrySet() )
+            {
+                Shard shard = new Shard( entry.getKey(), entry.getValue() );
+                shards.add( shard );
+
+                for( int i = 0; i < virtualNodes; ++i )
+                {
+                    long point = LeafDigests.mix( LeafDigests.hash( LeafDigests.hash( LeafDigests.SEED, shard.name ), Integer.toString( i ) ) );
+
+                    // on collisions, the first shard keeps its point
+                    if( ! ring.containsKey( point ) )
+                    {
+                        ring.put( point, shard );
+                    }
+                }
+            }
+            first = shards.get( 0 );
+
+            points = new long[ ring.size() ];
+            owners = new Shard[ ring.size() ];
+
+            int i = 0;
+            for( Map.Entry< Long, Shard > entry: ring.entrySet() )
+            {
+                points[ i ] = entry.getKey();
+                owners[ i ] = entry.getValue();
+                ++i;
+            }
+        }
+
+        /**
+         * Get the first shard at or after a hash on the ring.
+         */
+        Shard owner( long hash )
+        {
+            int low = 0;
+            int high = points.length;
+
+            while( low < high )
+            {
+                int mid = ( low + high ) >>> 1;
+
+                if( points[ mid ] < hash )
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+
+            return owners[ low == points.length ? 0 : low ];
+        }
+    }
+}
@@ -56,6 +56,15 @@ public interface SimpleDirectory
          */
         void refresh( List< String > key, long timeStamp );
 
+        /**
+         * Refresh all keys of a source.
+         *
+         * @param source    The source whose keys should be refreshed.
+         * @param timeStamp The timeStamp to order insertions
+         * @return          The keys which have been refreshed.
+         */
+        Set< List< String > > refreshSource( String source, long timeStamp );
+
         /**
          * Delete a key.
          *
@@ -63,6 +72,14 @@ public interface SimpleDirectory
          */
         void delete( List< String > key );
 
+        /**
+         * Delete a key, unless it has been written after a given time.
+         *
+         * @param key       The key to delete.
+         * @param timeStamp The timeStamp to order the deletion with insertions.
+         */
+        void delete( List< String > key, long timeStamp );
+
         /**
          * Query a key.
          *
@@ -71,6 +88,16 @@ public interface SimpleDirectory
          */
         Set< String > lookup( List< String > key );
 
+        /**
+         * Query a key together with the date of its last write.
+         *
+         * @param key   The key to query.
+         * @return      null if that key does not exist, its tombstone if it
+         *              has been deleted (and the tombstone is still kept) or
+         *              its set of values and its date otherwise.
+         */
+        DatedValues lookupDated( List< String > key );
+
         /**
          * Query all keys beginning with a certain prefix.
          *
@@ -78,4 +105,30 @@ public interface SimpleDirectory
          * @return              A map with all found keys and its associated values.
          */
         Map< List< String >, Set< String > > prefixLookup( List< String > prefix );
+
+        /**
+         * Hash all keys beginning with a certain prefix into leaf digests.
+         *
+         * Only the digests are returned, thus two directories can be
+         * compared without exchanging their keys.
+         *
+         * @param prefix        The prefix all hashed keys should have.
+         * @param depth         The depth, i.e. the keys are hashed into 2^depth leaves.
+         * @return              The digests of all leaves.
+         *
+         * @see LeafDigests
+         */
+        LeafDigests digest( List< String > prefix, int depth );
+
+        /**
+         * Query all keys beginning with a certain prefix which fall into certain leaves.
+         *
+         * @param prefix        The prefix all queried keys should have.
+         * @param depth         The depth of the leaves.
+         * @param leaves        The leaves to query the keys of.
+         * @return              A map with all found keys and its associated values.
+         *
+         * @see digest
+         */
+        Map< List< String >, Set< String > > leafLookup( List< String > prefix, int depth, Set< Integer > leaves );
 }
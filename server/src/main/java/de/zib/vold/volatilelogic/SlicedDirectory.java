@@ -18,6 +18,7 @@ package de.zib.vold.volatilelogic;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.joda.time.DateTime;
 
 /**
@@ -81,8 +82,60 @@ public interface SlicedDirectory {
 	 * @param timeslice	The timeslice to get the keys from.
 	 * 
 	 * @return		Returns a map with Key-Insertiontime pairs
-	 * with all keys of that timeslice.
+	 * with all keys of that timeslice (insertiontimes in milliseconds).
 	 */
-	Map< List< String >, DateTime> sliceLookup( long timeslice );
+	DateMap sliceLookup( long timeslice );
+
+        /**
+         * Expire all keys of a given timeslice older than a deadline.
+         *
+         * In contrast to a sliceLookup followed by a delete per key, the
+         * expired keys are deleted in bulk.
+         *
+         * @param timeslice     The timeslice to expire the keys of.
+         * @param deadline      All keys with an insertiontime before this
+         *                      time (in ms) will be deleted.
+         * @return              The deleted keys.
+         */
+        Set< List< String > > expire( long timeslice, long deadline );
+
+        /**
+         * Drop all tombstones of deleted keys older than a deadline.
+         *
+         * @param deadline      All tombstones with a date before this time
+         *                      (in ms) will be dropped.
+         * @return              The number of dropped tombstones.
+         */
+        int expireTombstones( long deadline );
+
+        /**
+         * Query for all tombstones of deleted keys.
+         *
+         * @return              Returns a map with the deleted keys and the
+         *                      dates of their deletions (in ms).
+         */
+        DateMap tombstoneLookup( );
+
+        /**
+         * Query for all source-date pairs of the leases of a given timeslice.
+         *
+         * @param timeslice     The timeslice to get the leases from.
+         *
+         * @return              Returns a map with the sources and the dates
+         *                      of their leases of that timeslice.
+         */
+        Map< String, DateTime > leaseLookup( long timeslice );
+
+        /**
+         * Expire the lease of a source.
+         *
+         * All keys attached to the lease will be deleted together with the
+         * lease, if the lease has not been renewed since the deadline.
+         *
+         * @param source        The source whose lease expired.
+         * @param deadline      Leases renewed before this date are expired.
+         * @return              The deleted keys.
+         */
+        Set< List< String > > expireLease( String source, long deadline );
 
 }
@@ -17,7 +17,6 @@
 package de.zib.vold.volatilelogic;
 
 import org.joda.time.DateTimeUtils;
-import org.joda.time.Instant;
 
 /**
  * A factor ring implementation.
@@ -31,6 +30,22 @@ import org.joda.time.Instant;
  * small set of keys at one time instead of loading the database into the
  * memory completely.
  *
+ * Until the first slice has been handed out, the slices are aligned to the
+ * wall clock like with former versions, i.e. the actual slice is
+ * ( now / timeSliceSize ) % numberOfSlices, no matter whether the resolution
+ * has been given to the constructor or by the setters.
+ *
+ * The size and the number of slices may be changed at runtime. The slices
+ * continue with the new resolution at the slice which is actual at the time
+ * of the change, thus no slice is skipped or repeated. Hence, after such a
+ * change the slices are not aligned to the wall clock anymore. If the number
+ * of slices decreases, the Reaper keeps on sweeping the slices which are not
+ * used anymore until they are empty.
+ *
+ * The slices are computed from a monotonic clock, which starts at the wall
+ * clock time when the TimeSlice is constructed. Hence, adjusting the wall
+ * clock does not change the assignment of slices.
+ *
  * @see				SlicedDirectory
  * @see                         Reaper
  *
@@ -38,8 +53,15 @@ import org.joda.time.Instant;
  */
 public class TimeSlice
 {
-    private long timeSliceSize;
-    private long numberOfSlices;
+    private final long epochMillis;
+    private final long epochNanos;
+
+    private volatile Resolution resolution;
+
+    /**
+     * Whether a slice has been handed out already.
+     */
+    private volatile boolean started = false;
 
     /**
      * Construct a certain factor ring.
@@ -50,8 +72,18 @@ public class TimeSlice
     public TimeSlice( long timeSliceSize, long numberOfSlices )
             throws IllegalArgumentException
     {
-        setTimeSliceSize( timeSliceSize );
-        setNumberOfSlices( numberOfSlices );
+        this();
+
+        if( timeSliceSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Positive values excepted for size of timeslices." );
+        }
+        if( numberOfSlices <= 0 )
+        {
+            throw new IllegalArgumentException( "Positive values excepted for number of slices." );
+        }
+
+        this.resolution = aligned( timeSliceSize, numberOfSlices, epochMillis );
     }
 
     /**
@@ -61,14 +93,17 @@ public class TimeSlice
      */
     public TimeSlice( )
     {
-        this.timeSliceSize = 1;
-        this.numberOfSlices = 1;
+        this.epochMillis = DateTimeUtils.currentTimeMillis();
+        this.epochNanos = System.nanoTime();
+        this.resolution = new Resolution( 1, 1, epochMillis, epochMillis );
     }
 
     /**
      * Set the size of one slice in milliseconds.
      *
      * @param timeSliceSize The time slice size in milliseconds.
+     *
+     * @note        This method may be called at runtime.
      */
     public void setTimeSliceSize( long timeSliceSize )
     {
@@ -77,7 +112,7 @@ public class TimeSlice
             throw new IllegalArgumentException( "Positive values excepted for size of timeslices." );
         }
 
-        this.timeSliceSize = timeSliceSize;
+        setResolution( timeSliceSize, getNumberOfSlices() );
     }
 
     /**
@@ -86,6 +121,8 @@ public class TimeSlice
      * Each slice number will be returned modulo this number.
      *
      * @param numberOfSlices The identifier for the factor ring.
+     *
+     * @note        This method may be called at runtime.
      */
     public void setNumberOfSlices( long numberOfSlices )
     {
@@ -93,25 +130,48 @@ public class TimeSlice
         {
             throw new IllegalArgumentException( "Positive values excepted for number of slices." );
         }
-        this.numberOfSlices = numberOfSlices;
+
+        setResolution( getTimeSliceSize(), numberOfSlices );
     }
 
     /**
-     * Get the size of one slice in milliseconds.
+     * Change the size and the number of slices at once.
      *
-     * @return The time slice size in milliseconds.
+     * Before the first slice has been handed out, the new resolution is
+     * aligned to the wall clock. Afterwards, it starts with the number of the
+     * slice which is actual now, reduced modulo the new number of slices.
+     *
+     * @param timeSliceSize The time slice size in milliseconds.
+     * @param numberOfSlices The identifier for the factor ring.
      */
-    public long getTimeSliceSize( )
+    public synchronized void setResolution( long timeSliceSize, long numberOfSlices )
     {
-        // guard
+        if( timeSliceSize <= 0 || numberOfSlices <= 0 )
+        {
+            throw new IllegalArgumentException( "Positive values excepted for size and number of timeslices." );
+        }
+
+        final long now = currentTimeMillis();
+        final Resolution r = resolution;
+
+        if( ! started )
         {
-            if( timeSliceSize <= 0 || numberOfSlices <= 0 )
-            {
-                throw new IllegalStateException( "Tried to operate on TimeSlice while it hat not been initialized properly yet. Setting the size of a timeslice and the number of timeslices is necessary." );
-            }
+            this.resolution = aligned( timeSliceSize, numberOfSlices, now );
+            return;
         }
 
-        return this.timeSliceSize;
+        // continue with the actual slice
+        this.resolution = new Resolution( timeSliceSize, numberOfSlices, r.slice( now ) % r.numberOfSlices, now );
+    }
+
+    /**
+     * Get the size of one slice in milliseconds.
+     *
+     * @return The time slice size in milliseconds.
+     */
+    public long getTimeSliceSize( )
+    {
+        return resolution.timeSliceSize;
     }
 
     /**
@@ -123,15 +183,7 @@ public class TimeSlice
      */
     public long getNumberOfSlices( )
     {
-        // guard
-        {
-            if( timeSliceSize <= 0 || numberOfSlices <= 0 )
-            {
-                throw new IllegalStateException( "Tried to operate on TimeSlice while it hat not been initialized properly yet. Setting the size of a timeslice and the number of timeslices is necessary." );
-            }
-        }
-
-        return numberOfSlices;
+        return resolution.numberOfSlices;
     }
 
     /**
@@ -145,16 +197,66 @@ public class TimeSlice
      */
     public long getActualSlice( )
     {
-        // guard
+        if( ! started )
         {
-            if( timeSliceSize <= 0 || numberOfSlices <= 0 )
-            {
-                throw new IllegalStateException( "Tried to operate on TimeSlice while it hat not been initialized properly yet. Setting the size of a timeslice and the number of timeslices is necessary." );
-            }
+            started = true;
         }
 
-        long now = DateTimeUtils.currentTimeMillis();
+        final Resolution r = resolution;
+
+        return r.slice( currentTimeMillis() ) % r.numberOfSlices;
+    }
+
+    /**
+     * Build a resolution aligned to the wall clock.
+     */
+    private static Resolution aligned( long timeSliceSize, long numberOfSlices, long now )
+    {
+        final long base = now / timeSliceSize;
+
+        return new Resolution( timeSliceSize, numberOfSlices, base, base * timeSliceSize );
+    }
 
-        return ( now / getTimeSliceSize() ) % getNumberOfSlices();
+    /**
+     * Get the time of the monotonic clock in milliseconds.
+     */
+    private long currentTimeMillis( )
+    {
+        return epochMillis + ( System.nanoTime() - epochNanos ) / 1000000L;
+    }
+
+    /**
+     * The resolution of the slices since its last change.
+     */
+    private static final class Resolution
+    {
+        final long timeSliceSize;
+        final long numberOfSlices;
+
+        /**
+         * The number of the slice (not reduced to the factor ring) at origin.
+         */
+        final long base;
+
+        /**
+         * The time of the monotonic clock when this resolution got valid.
+         */
+        final long origin;
+
+        Resolution( long timeSliceSize, long numberOfSlices, long base, long origin )
+        {
+            this.timeSliceSize = timeSliceSize;
+            this.numberOfSlices = numberOfSlices;
+            this.base = base;
+            this.origin = origin;
+        }
+
+        /**
+         * Get the number of the slice (not reduced to the factor ring) at a certain time.
+         */
+        long slice( long now )
+        {
+            return base + Math.max( 0, now - origin ) / timeSliceSize;
+        }
     }
 }
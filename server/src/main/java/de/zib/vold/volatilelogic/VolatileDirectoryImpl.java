@@ -16,8 +16,13 @@
 
 package de.zib.vold.volatilelogic;
 
+import de.zib.vold.backend.InstrumentedDirectory;
 import de.zib.vold.backend.NotSupportedException;
 import de.zib.vold.backend.PartitionedDirectory;
+import de.zib.vold.metrics.Counter;
+import de.zib.vold.metrics.LatencyHistogram;
+import de.zib.vold.metrics.MetricsRegistry;
+import de.zib.vold.replication.Replicator;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,14 +38,55 @@ import java.util.*;
  * Furthermore these timestamps will be deleted too, when the according keys are
  * deleted.
  *
- * Using the backend, three partitions will be used.
+ * Using the backend, up to eight partitions will be used.
  * - a "key - value" partition storing all key value pairs
  * - a "key - timeslice" partition
- * - a "slice/key - date" partition
+ * - a "slice/date/key - date" partition
+ * - a "source/key - date" partition
+ * - a "source - timeslice" partition
+ * - a "slice/source - date" partition
+ * - a "key - date" partition of tombstones
+ * - a "date/key - date" partition of tombstones
  *
- * The last partition is used by the Reaper to request all keys in a certain
- * timeslice an check their age. The second partition is used to determine the
- * "slice/key - date" entry when a key is deleted.
+ * The third partition is used by the Reaper to request all keys in a certain
+ * timeslice an check their age. Since the dates in its keys have a fixed
+ * width, the keys of a timeslice are ordered by their age and all expired
+ * keys of a timeslice can be queried and deleted by one range. The second
+ * and fourth partition are used to determine the "slice/date/key - date"
+ * entry when a key is written or deleted. The fourth partition is an index
+ * of all keys per source, used to refresh all keys of a source at once.
+ *
+ * If leases are enabled, the keys of a source do not hold their own
+ * timestamps. Instead, they are attached to the lease of their source, which
+ * is stored in the last two partitions like the timestamp of a key. These
+ * keys are marked with "lease" instead of a date in the fourth
+ * partition. Each write request renews the lease and the Reaper expires
+ * whole leases with all their keys. Thus, refreshing all keys of a source
+ * costs a constant number of writes.
+ *
+ * Deletes with a timeStamp are ordered like all other write requests: a key
+ * written after the deletion is not deleted. If tombstones are enabled, the
+ * date of each such deletion is kept in the last two partitions, thus a
+ * delayed write request older than the deletion does not bring the key
+ * back. The Reaper drops tombstones older than the TTL, since write
+ * requests that old would be expired anyway.
+ *
+ * If a change feed is set, it is notified of each write request after it has
+ * been applied, including the keys expired by the Reaper. Write requests
+ * dropped without any change (buried, older than the key or coalesced) are
+ * not passed on. Thus, followers can apply the same write requests to their
+ * own directories.
+ *
+ * An insert of a key holding the same values already only renews the
+ * timestamp of the key, like a refresh. A refresh does not rewrite the
+ * timeslice of a key refreshed within the actual timeslice. Optionally, a
+ * refresh within coalesceWindow after the last write request of a key in
+ * the same timeslice is dropped completely.
+ *
+ * The version of this layout is stored in the third partition. A database
+ * holding keys but no (or another) layout version has been created by a
+ * former version of VolD and is refused, since its entries cannot be read
+ * with this layout.
  *
  * @see                 VolatileDirectory
  * @see                 PartitionedDirectory
@@ -51,9 +97,66 @@ public class VolatileDirectoryImpl implements VolatileDirectory
 {
     private PartitionedDirectory directory;
     private TimeSlice timeslice;
+    private boolean leases = false;
+    private boolean fixedWidthTimes = false;
+    private boolean tombstones = false;
+    private Replicator changeFeed = null;
+    private long coalesceWindow = 0;
+    private volatile boolean layoutChecked = false;
+
+    /**
+     * The version of the layout of all partitions.
+     */
+    public static final String LAYOUT_VERSION = "2";
+
+    /**
+     * The key of the layout version in the "slice/date/key - date"
+     * partition. Since slices are numbers, it never matches a slice.
+     */
+    private static final String LAYOUT_KEY = "_layout";
+
+    /**
+     * The value of the "source/key" entry of keys attached to a lease.
+     */
+    private static final String LEASED = "lease";
+
+    /**
+     * The zeros used to pad dates in the "slice/date/key" entries to a fixed width.
+     */
+    private static final String DATE_PADDING = "0000000000000000000";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     protected final Logger log = LoggerFactory.getLogger( this.getClass() );
 
+    private final LatencyHistogram insertLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_insert_seconds", "Latency of inserts into the volatile directory." );
+    private final LatencyHistogram refreshLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_refresh_seconds", "Latency of refreshs in the volatile directory." );
+    private final LatencyHistogram deleteLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_delete_seconds", "Latency of deletes from the volatile directory." );
+    private final LatencyHistogram lookupLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_lookup_seconds", "Latency of lookups in the volatile directory." );
+    private final LatencyHistogram prefixLookupLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_prefixlookup_seconds", "Latency of prefix lookups in the volatile directory." );
+    private final LatencyHistogram sliceLookupLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_slicelookup_seconds", "Latency of slice lookups in the volatile directory." );
+    private final LatencyHistogram refreshSourceLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_refreshsource_seconds", "Latency of refreshing all keys of a source in the volatile directory." );
+    private final LatencyHistogram leaseLookupLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_leaselookup_seconds", "Latency of lease lookups in the volatile directory." );
+    private final LatencyHistogram expireLeaseLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_expirelease_seconds", "Latency of expiring a lease with all its keys in the volatile directory." );
+    private final LatencyHistogram expireLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_expire_seconds", "Latency of expiring all old keys of a time slice in the volatile directory." );
+    private final LatencyHistogram expireTombstonesLatency = MetricsRegistry.getDefault().histogram(
+            "vold_directory_expiretombstones_seconds", "Latency of dropping old tombstones in the volatile directory." );
+
+    private final Counter unchangedInserts = MetricsRegistry.getDefault().counter(
+            "vold_directory_unchanged_inserts_total", "Number of inserts of unchanged values performed as refresh." );
+    private final Counter coalescedRefreshes = MetricsRegistry.getDefault().counter(
+            "vold_directory_coalesced_refreshes_total", "Number of refreshs dropped within the coalesce window." );
+
 
     /**
      * Construct a VolatileDirectoryImpl.
@@ -63,7 +166,7 @@ public class VolatileDirectoryImpl implements VolatileDirectory
      */
     public VolatileDirectoryImpl( PartitionedDirectory backend, TimeSlice timeslice )
     {
-        this.directory = backend;
+        this.directory = null == backend ? null : new InstrumentedDirectory( backend );
         this.timeslice = timeslice;
     }
 
@@ -87,6 +190,66 @@ public class VolatileDirectoryImpl implements VolatileDirectory
         {
             throw new IllegalStateException( "Tried to operate on database while it had not been initialized yet. You first need to set a TimeSlice and Directory backend!" );
         }
+
+        if( ! layoutChecked )
+        {
+            checkLayout();
+        }
+    }
+
+
+    /**
+     * Check the layout version of the backend.
+     *
+     * An empty backend gets the actual layout version, a backend holding the
+     * actual layout version is accepted and all other backends are refused.
+     *
+     * @throws IllegalStateException if the backend has been created with another layout.
+     */
+    private synchronized void checkLayout( )
+    {
+        if( layoutChecked )
+        {
+            return;
+        }
+
+        final List< String > versionkey = new LinkedList< String >();
+        versionkey.add( LAYOUT_KEY );
+
+        final List< String > version;
+        try
+        {
+            version = directory.lookup( 2, versionkey );
+        }
+        // a write only backend cannot be checked
+        catch( NotSupportedException e )
+        {
+            log.debug( "Backend is write-only. Skipping check of the layout version..." );
+            layoutChecked = true;
+            return;
+        }
+
+        if( null == version )
+        {
+            final List< String > all = new LinkedList< String >();
+            all.add( "" );
+
+            final Map< List< String >, List< String > > keys = directory.prefixlookup( 1, all );
+            if( null != keys && ! keys.isEmpty() )
+            {
+                throw new IllegalStateException( "The backend holds keys without a layout version, thus it has been created by a former version of VolD. It has to be recreated!" );
+            }
+
+            final List< String > value = new LinkedList< String >();
+            value.add( LAYOUT_VERSION );
+            directory.insert( 2, versionkey, value );
+        }
+        else if( ! version.equals( Collections.singletonList( LAYOUT_VERSION ) ) )
+        {
+            throw new IllegalStateException( "The backend has been created with layout version " + version + ", but version " + LAYOUT_VERSION + " is required. It has to be recreated!" );
+        }
+
+        layoutChecked = true;
     }
 
 
@@ -94,6 +257,9 @@ public class VolatileDirectoryImpl implements VolatileDirectory
      * Set the timeslice configuration.
      *
      * @param timeslice     The TimeSlice used by all write requests to determine the actual timeslice.
+     *
+     * @note To change the size or number of slices at runtime, change the
+     *       resolution of the TimeSlice instead of replacing it.
      */
     public void setTimeslice( TimeSlice timeslice )
     {
@@ -108,10 +274,149 @@ public class VolatileDirectoryImpl implements VolatileDirectory
 
     /**
      * Set the backend used to store all informations.
+     *
+     * The latency of all backend requests will be recorded.
+     *
+     * @see InstrumentedDirectory
      */
     public void setBackend( PartitionedDirectory backend )
     {
-        this.directory = backend;
+        this.directory = null == backend ? null : new InstrumentedDirectory( backend );
+        this.layoutChecked = false;
+    }
+
+
+    /**
+     * Enable or disable leases.
+     *
+     * @param leases        Whether new keys should be attached to the lease of their source.
+     *
+     * @note Keys written before leases have been enabled keep their own
+     *       timestamps until they are inserted again. Vice versa, keys stay
+     *       attached to the lease of their source after disabling leases
+     *       until they are inserted again.
+     */
+    public void setLeases( boolean leases )
+    {
+        this.leases = leases;
+    }
+
+
+    /**
+     * Check whether leases are enabled.
+     */
+    public boolean getLeases( )
+    {
+        return leases;
+    }
+
+
+    /**
+     * Enable or disable fixed width times.
+     *
+     * With fixed width times, all timeslices and dates are stored as
+     * eight bytes in big-endian order (written as hexadecimal digits, since
+     * the backends store strings). Hence, they are ordered in the backend
+     * and decoded without parsing decimal numbers. Otherwise, they are
+     * stored as decimal numbers, which are easier to read when debugging.
+     *
+     * @param fixedWidthTimes Whether timeslices and dates should be stored with a fixed width.
+     *
+     * @note Both storage modes are not compatible. Changing the mode of an
+     *       existing database requires to recreate it.
+     */
+    public void setFixedWidthTimes( boolean fixedWidthTimes )
+    {
+        this.fixedWidthTimes = fixedWidthTimes;
+    }
+
+
+    /**
+     * Check whether timeslices and dates are stored with a fixed width.
+     */
+    public boolean getFixedWidthTimes( )
+    {
+        return fixedWidthTimes;
+    }
+
+
+    /**
+     * Enable or disable tombstones.
+     *
+     * @param tombstones    Whether the dates of deletions with a timeStamp
+     *                      should be kept to reject older write requests.
+     */
+    public void setTombstones( boolean tombstones )
+    {
+        this.tombstones = tombstones;
+    }
+
+
+    /**
+     * Check whether tombstones are enabled.
+     */
+    public boolean getTombstones( )
+    {
+        return tombstones;
+    }
+
+
+    /**
+     * Set the change feed to notify of all write requests.
+     *
+     * @note        Expired keys are passed as deletions dated at the
+     *              deadline of the expiry, expired leases as deletions
+     *              without a date.
+     *
+     * @param changeFeed    The change feed, e.g. a ChangeFeed, or null.
+     */
+    public void setChangeFeed( Replicator changeFeed )
+    {
+        this.changeFeed = changeFeed;
+    }
+
+
+    /**
+     * Get the change feed notified of all write requests.
+     */
+    public Replicator getChangeFeed( )
+    {
+        return changeFeed;
+    }
+
+
+    /**
+     * Set the window to coalesce refreshs in.
+     *
+     * A refresh of a key written less than coalesceWindow ms before (by the
+     * timeStamps of the write requests) in the actual timeslice is
+     * dropped. Thus, keys refreshed more often than the window cost no
+     * writes until the next timeslice starts.
+     *
+     * @note        The date of a key refreshed within the window is not
+     *              updated. Hence, the key may expire up to coalesceWindow
+     *              ms before the TTL is reached. The TTL of the Reaper
+     *              should be increased by the window.
+     *
+     * @param coalesceWindow The window in ms or 0, to write each refresh.
+     */
+    public void setCoalesceWindow( long coalesceWindow )
+    {
+        if( coalesceWindow < 0 )
+        {
+            throw new IllegalArgumentException( "The coalesce window must not be negative, but coalesceWindow=" + coalesceWindow + " has been given!" );
+        }
+
+        this.coalesceWindow = coalesceWindow;
+    }
+
+
+    /**
+     * Get the window to coalesce refreshs in.
+     */
+    public long getCoalesceWindow( )
+    {
+        return coalesceWindow;
     }
 
 
@@ -166,24 +471,51 @@ public class VolatileDirectoryImpl implements VolatileDirectory
     }
 
 
+    /**
+     * Insert a key with its set of values.
+     *
+     * Records the latency of the request and delegates to _insert.
+     *
+     * @see _insert
+     */
+    @Override
+    public void insert( List< String > key, Set< String > value, long timeStamp )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            if( _insert( key, value, timeStamp ) && null != changeFeed )
+                changeFeed.insert( key, value, timeStamp );
+        }
+        finally
+        {
+            insertLatency.recordSince( start );
+        }
+    }
+
+
     /**
      * Insert a key with its set of values.
      *
      * The method for inserting the key works as follows:
-     * 1. insert the new "slice/key -- date" entry
+     * 1. insert the new "slice/date/key -- date" entry
      * 2. insert "key -- timeslice" entry
      * 3. insert "key -- value" entry
-     * 4. delete old "slice/key -- date" entry (when existant)
+     * 4. insert "source/key -- date" entry
+     * 5. delete old "slice/date/key -- date" entry (when existant)
+     * If the key holds the same values already, the "key -- value" entry is
+     * not rewritten and the key is refreshed only.
      *
      * @param key The key to insert.
      * @param value The values associated to the key.
+     * @return false, if the insertion has been dropped without any change
+     *         (buried by a tombstone, older than the key or coalesced).
      */
-    @Override
-    public void insert( List< String > key, Set< String > value, long timeStamp )
+    private boolean _insert( List< String > key, Set< String > value, long timeStamp )
     {
         // guard
         {
-            log.trace( "Insert: '" + key.toString() + "' |--> '" + value.toString() + "'" );
+            log.trace( "Insert: '{}' |--> '{}'", key, value );
 
             checkState();
 
@@ -197,6 +529,16 @@ public class VolatileDirectoryImpl implements VolatileDirectory
             }
         }
 
+        if( buried( key, timeStamp ) )
+        {
+            return false;
+        }
+
+        if( leases )
+        {
+            return _insertLeased( key, value, timeStamp );
+        }
+
         final List< String > oldtimeslice;
         try
         {
@@ -208,34 +550,34 @@ public class VolatileDirectoryImpl implements VolatileDirectory
             log.debug( "Backend is write-only. Performing pure insert..." );
 
             directory.insert( 0, key, new LinkedList< String >( value ) );
-            return;
+            return true;
         }
 
-        // check for newer timeStamp
-		{
-			if (null != oldtimeslice) {
-				final List<String> timeslicekey = get_timeslice_key(to_timeslice(oldtimeslice), key);
-				final List<String> timeslice = directory.lookup(2, timeslicekey);
+        final List< String > olddate = null == oldtimeslice ? null : own_date( directory.lookup( 3, get_source_key( key ) ) );
 
-				if (null != timeslice) {
-					final long oldTimeStamp = to_timeslice(timeslice);
+        // check for newer timeStamp
+        {
+            if( null != olddate && timeStamp < to_timeslice( olddate ) )
+            {
+                log.debug( "Not overwriting Key {}, since the inserted one is newer.", key );
+                return false;
+            }
+        }
 
-					if (timeStamp < oldTimeStamp) {
-						log.debug("Not overwriting Key " + key.toString() + ", since the inserted one is newer.");
-						return;
-					}
-				}
+        // refresh key only, if its values did not change
+        if( null != olddate && unchanged( key, value ) )
+        {
+            log.trace( "Values of key {} did not change. Performing refresh...", key );
 
-			}
-		}
+            unchangedInserts.inc();
+            return touch( key, oldtimeslice, olddate, timeStamp );
+        }
 
         final long newtimeslice = timeslice.getActualSlice();
 
-        // insert new "slice/key |--> date" entry
+        // insert new "slice/date/key |--> date" entry
         {
-            final List< String > timeslicekey = get_timeslice_key( newtimeslice, key );
-
-            directory.insert( 2, timeslicekey, to_date( timeStamp ) );
+            directory.insert( 2, get_expiry_key( newtimeslice, timeStamp, key ), to_date( timeStamp ) );
         }
 
         // insert "key |--> timeslice" entry
@@ -248,15 +590,39 @@ public class VolatileDirectoryImpl implements VolatileDirectory
             directory.insert( 0, key, new LinkedList< String >( value ) );
         }
 
-        // delete old "slice/key |--> date" entry
+        // insert "source/key |--> date" entry
         {
-            if( null != oldtimeslice )
-            {
-                final long oldts = to_timeslice( oldtimeslice );
+            directory.insert( 3, get_source_key( key ), to_date( timeStamp ) );
+        }
 
-                if( oldts != newtimeslice )
-                    directory.delete( 2, get_timeslice_key( to_timeslice( oldtimeslice ), key ) );
-            }
+        // delete old "slice/date/key |--> date" entry
+        {
+            delete_expiry_key( oldtimeslice, olddate, newtimeslice, timeStamp, key );
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Refresh a key.
+     *
+     * Records the latency of the request and delegates to _refresh.
+     *
+     * @see _refresh
+     */
+    @Override
+    public void refresh( List< String > key, long timeStamp )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            if( _refresh( key, timeStamp ) && null != changeFeed )
+                changeFeed.refresh( key, timeStamp );
+        }
+        finally
+        {
+            refreshLatency.recordSince( start );
         }
     }
 
@@ -268,21 +634,25 @@ public class VolatileDirectoryImpl implements VolatileDirectory
      * also resets the timeslice.
      *
      * The method for refreshing the key works similar to VolatileDirectorImpl.insert(..):
-     * 1. insert the new "slice/key -- date" entry
+     * 1. insert the new "slice/date/key -- date" entry
      * 2. insert "key -- timeslice" entry
-     * 3. delete old "slice/key -- date" entry (when existant)
+     * 3. insert "source/key -- date" entry
+     * 4. delete old "slice/date/key -- date" entry (when existant)
      * The only difference is, that there is no need to insert the key/date entry, since it
      * had already been inserted.
      *
+     * @see touch
      * @param key The key to refresh.
      * @param timeStamp The timeStamp to order insertions.
+     * @return false, if the refresh has been dropped without any change
+     *         (no such key, buried by a tombstone, older than the key or
+     *         coalesced).
      */
-    @Override
-    public void refresh( List< String > key, long timeStamp )
+    private boolean _refresh( List< String > key, long timeStamp )
     {
         // guard
         {
-            log.trace( "Refresh: " + key.toString() );
+            log.trace( "Refresh: {}", key );
 
             checkState();
 
@@ -292,6 +662,21 @@ public class VolatileDirectoryImpl implements VolatileDirectory
             }
         }
 
+        if( buried( key, timeStamp ) )
+        {
+            return false;
+        }
+
+        if( leases )
+        {
+            final Boolean refreshed = _refreshLeased( key, timeStamp );
+
+            if( null != refreshed )
+            {
+                return refreshed;
+            }
+        }
+
         List< String > oldtimeslice;
         try
         {
@@ -303,115 +688,1002 @@ public class VolatileDirectoryImpl implements VolatileDirectory
             log.debug( "Backend is write-only. Performing pure insert..." );
 
             directory.insert( 0, key, new LinkedList< String >( ) );
-            return;
-        }
-
-        // check for newer timeStamp
-        {
-            if( null != oldtimeslice ) {
-                final List< String > timeslicekey = get_timeslice_key( to_timeslice( oldtimeslice ), key );
-                final List< String > timeslice = directory.lookup( 2, timeslicekey );
-                final long oldTimeStamp = to_timeslice( timeslice );
-
-                if( timeStamp < oldTimeStamp ) {
-                    log.debug( "Not overwriting Key " + key.toString() + ", since the inserted one is newer." );
-                    return;
-                }
-            }
-            else
-                // no key found to refresh
-                return;
+            return true;
         }
 
-        long newtimeslice = timeslice.getActualSlice();
-
-        // insert new "slice/key |--> date" entry
+        // no key found to refresh
+        if( null == oldtimeslice )
         {
-            List< String > timeslicekey = get_timeslice_key( newtimeslice, key );
-
-            directory.insert( 2, timeslicekey, to_date( timeStamp ) );
+            return false;
         }
 
-        // insert "key |--> timeslice" entry
-        {
-            directory.insert( 1, key, to_value( newtimeslice ) );
-        }
+        final List< String > olddate = own_date( directory.lookup( 3, get_source_key( key ) ) );
 
-        // delete old "slice/key |--> date" entry
+        // check for newer timeStamp
         {
-            if( null != oldtimeslice )
+            if( null != olddate && timeStamp < to_timeslice( olddate ) )
             {
-                long oldts = to_timeslice( oldtimeslice );
-
-                if( oldts != newtimeslice )
-                    directory.delete( 2, get_timeslice_key( to_timeslice( oldtimeslice ), key ) );
+                log.debug( "Not overwriting Key {}, since the inserted one is newer.", key );
+                return false;
             }
         }
+
+        return touch( key, oldtimeslice, olddate, timeStamp );
     }
 
 
     /**
-     * Delete a key.
+     * Renew the timestamp of an existing key holding its own timestamp.
      *
-     * Deleting the key means deleting the "key -- value" entry, the
-     * "key -- timeslice" entry and the "slice/key -- date" entry.
+     * Writes the "slice/date/key -- date", "key -- timeslice" and
+     * "source/key -- date" entries like a refresh, but skips all entries
+     * which would not change:
+     * - nothing is written if the key holds the timeStamp already or has
+     *   been written within the coalesce window in the actual timeslice
+     * - the "key -- timeslice" entry is not rewritten if the key is in the
+     *   actual timeslice already
      *
-     * @param key The key to delete.
+     * @param key The key to refresh.
+     * @param oldtimeslice The actual "key -- timeslice" entry of the key.
+     * @param olddate The actual date of the key or null, if unknown.
+     * @param timeStamp The timeStamp of the write request.
+     * @return false, if nothing has been written.
      */
-    @Override
-    public void delete( List< String > key )
+    private boolean touch( List< String > key, List< String > oldtimeslice, List< String > olddate, long timeStamp )
     {
-        // guard
-        {
-            log.trace( "Delete: " + key.toString() );
+        final long newtimeslice = timeslice.getActualSlice();
+        final boolean sameslice = to_timeslice( oldtimeslice ) == newtimeslice;
 
-            checkState();
+        // coalesce refreshs within the actual timeslice
+        if( sameslice && null != olddate )
+        {
+            final long oldstamp = to_timeslice( olddate );
 
-            if( null == key )
+            if( timeStamp == oldstamp )
             {
-                throw new IllegalArgumentException( "SimpleDirectory.delete excepts key to be not null!" );
+                return false;
+            }
+            if( timeStamp - oldstamp < coalesceWindow )
+            {
+                coalescedRefreshes.inc();
+                return false;
             }
         }
 
-        List< String > oldtimeslice = directory.lookup( 1, key );
+        // insert new "slice/date/key |--> date" entry
+        {
+            directory.insert( 2, get_expiry_key( newtimeslice, timeStamp, key ), to_date( timeStamp ) );
+        }
 
-        // delete "key |--> value" entry
+        // insert "key |--> timeslice" entry
+        if( ! sameslice )
         {
-            directory.delete( 0, key );
+            directory.insert( 1, key, to_value( newtimeslice ) );
         }
 
-        // delete "key |--> timeslice" entry
+        // insert "source/key |--> date" entry
         {
-            directory.delete( 1, key );
+            directory.insert( 3, get_source_key( key ), to_date( timeStamp ) );
         }
 
-        // delete old "slice/key |--> date" entry
+        // delete old "slice/date/key |--> date" entry
         {
-            if( null != oldtimeslice )
-            {
-                directory.delete( 2, get_timeslice_key( to_timeslice( oldtimeslice ), key ) );
-            }
+            delete_expiry_key( oldtimeslice, olddate, newtimeslice, timeStamp, key );
         }
+
+        return true;
     }
 
 
     /**
-     * Query the values for a key.
+     * Check whether a key holds exactly the given values.
      *
-     * @return null if the key could not be found and the set of values otherwise.
+     * @param key The key to check.
+     * @param value The values to compare with.
+     * @return true, if the key exists and holds the same set of values.
      */
-    @Override
-    public Set< String > lookup( List< String > key )
+    private boolean unchanged( List< String > key, Set< String > value )
     {
-        // guard
-        {
-            log.trace( "Lookup: " + key );
+        final List< String > oldvalue = directory.lookup( 0, key );
 
-            checkState();
+        if( null == oldvalue || oldvalue.size() != value.size() )
+        {
+            return false;
         }
 
-        List< String > _result = directory.lookup( 0, key );
-        if ( null == _result )
+        return new HashSet< String >( oldvalue ).equals( value );
+    }
+
+
+    /**
+     * Delete a key.
+     *
+     * Records the latency of the request and delegates to _delete.
+     *
+     * @see _delete
+     */
+    @Override
+    public void delete( List< String > key )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            if( _delete( key, Long.MAX_VALUE, false ) && null != changeFeed )
+                changeFeed.delete( key );
+        }
+        finally
+        {
+            deleteLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Delete a key, unless it has been written after a given time.
+     *
+     * Records the latency of the request and delegates to _delete.
+     *
+     * @see _delete
+     */
+    @Override
+    public void delete( List< String > key, long timeStamp )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            if( _delete( key, timeStamp, tombstones ) && null != changeFeed )
+                changeFeed.delete( key, timeStamp );
+        }
+        finally
+        {
+            deleteLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Delete a key.
+     *
+     * Deleting the key means deleting the "key -- value" entry, the
+     * "key -- timeslice" entry, the "slice/date/key -- date" entry and the
+     * "source/key -- date" entry. Afterwards, the tombstone is written, if
+     * requested.
+     *
+     * @param key The key to delete.
+     * @param timeStamp The timeStamp of the deletion. A key written after
+     *                  this time will not be deleted.
+     * @param bury Whether to write a tombstone.
+     * @return false, if neither the key nor a tombstone has been changed.
+     */
+    private boolean _delete( List< String > key, long timeStamp, boolean bury )
+    {
+        // guard
+        {
+            log.trace( "Delete: {}", key );
+
+            checkState();
+
+            if( null == key )
+            {
+                throw new IllegalArgumentException( "SimpleDirectory.delete excepts key to be not null!" );
+            }
+        }
+
+        List< String > oldtimeslice = directory.lookup( 1, key );
+        List< String > index = directory.lookup( 3, get_source_key( key ) );
+        List< String > olddate = null == oldtimeslice ? null : own_date( index );
+
+        // check for newer timeStamp
+        {
+            if( null != olddate && timeStamp < to_timeslice( olddate ) )
+            {
+                log.debug( "Not deleting Key {}, since it has been written after.", key );
+                return false;
+            }
+        }
+
+        // keys attached to a lease have no "key |--> timeslice" entry
+        boolean changed = null != oldtimeslice || null != index;
+
+        // delete "key |--> value" entry
+        {
+            directory.delete( 0, key );
+        }
+
+        // delete "key |--> timeslice" entry
+        {
+            directory.delete( 1, key );
+        }
+
+        // delete "source/key |--> date" entry
+        {
+            directory.delete( 3, get_source_key( key ) );
+        }
+
+        // delete old "slice/date/key |--> date" entry
+        {
+            if( null != oldtimeslice && null != olddate )
+            {
+                directory.delete( 2, get_expiry_key( to_timeslice( oldtimeslice ), to_timeslice( olddate ), key ) );
+            }
+        }
+
+        // insert "key |--> date" and "date/key |--> date" tombstone entries
+        {
+            if( bury )
+            {
+                final List< String > olddeath = directory.lookup( 6, key );
+
+                if( null == olddeath || to_timeslice( olddeath ) < timeStamp )
+                {
+                    directory.insert( 7, get_tombstone_key( timeStamp, key ), to_date( timeStamp ) );
+                    directory.insert( 6, key, to_date( timeStamp ) );
+
+                    if( null != olddeath )
+                        directory.delete( 7, get_tombstone_key( to_timeslice( olddeath ), key ) );
+
+                    changed = true;
+                }
+            }
+        }
+
+        return changed;
+    }
+
+
+    /**
+     * Check whether a key has been deleted after a write request.
+     *
+     * If the key has been deleted before, its tombstone is removed.
+     *
+     * @param key The key to be written.
+     * @param timeStamp The timeStamp of the write request.
+     * @return true, if the write request has to be dropped.
+     */
+    private boolean buried( List< String > key, long timeStamp )
+    {
+        if( ! tombstones )
+        {
+            return false;
+        }
+
+        final List< String > death;
+        try
+        {
+            death = directory.lookup( 6, key );
+        }
+        catch( NotSupportedException e )
+        {
+            return false;
+        }
+
+        if( null == death )
+        {
+            return false;
+        }
+
+        final long date = to_timeslice( death );
+
+        if( timeStamp <= date )
+        {
+            log.debug( "Not writing Key {}, since it has been deleted after.", key );
+            return true;
+        }
+
+        directory.delete( 6, key );
+        directory.delete( 7, get_tombstone_key( date, key ) );
+
+        return false;
+    }
+
+
+    /**
+     * Drop all tombstones older than a deadline.
+     *
+     * Records the latency of the request and delegates to _expireTombstones.
+     *
+     * @see _expireTombstones
+     */
+    @Override
+    public int expireTombstones( long deadline )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            return _expireTombstones( deadline );
+        }
+        finally
+        {
+            expireTombstonesLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Drop all tombstones older than a deadline.
+     *
+     * Since the "date/key -- date" entries are ordered by their date, all
+     * old tombstones are queried by one range lookup and deleted in bulk.
+     *
+     * @param deadline All tombstones with a date before the deadline (in ms) will be dropped.
+     * @return The number of dropped tombstones.
+     */
+    private int _expireTombstones( long deadline )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( ! tombstones || deadline <= 0 )
+        {
+            return 0;
+        }
+
+        final List< String > from = get_tombstone_key( 0, new LinkedList< String >() );
+        final List< String > to = get_tombstone_key( deadline, new LinkedList< String >() );
+
+        Map< List< String >, List< String > > map = directory.rangelookup( 7, from, to );
+
+        if( null == map || map.isEmpty() )
+        {
+            return 0;
+        }
+
+        List< List< String > > keys = new LinkedList< List< String > >();
+
+        for( List< String > tombstonekey: map.keySet() )
+        {
+            keys.add( tombstonekey.subList( 1, tombstonekey.size() ) );
+        }
+
+        directory.bulkdelete( 6, keys );
+        directory.rangedelete( 7, from, to );
+
+        return keys.size();
+    }
+
+
+    /**
+     * Query all tombstones of deleted keys.
+     *
+     * @return A map of all "key -- date" entries of the tombstones, with the dates in milliseconds.
+     */
+    @Override
+    public DateMap tombstoneLookup( )
+    {
+        // guard
+        {
+            checkState();
+        }
+
+        if( ! tombstones )
+        {
+            return new DateMap();
+        }
+
+        // use an empty key to get all "key |--> date" entries
+        Map< List< String >, List< String > > map = directory.prefixlookup( 6, Collections.singletonList( "" ) );
+
+        if( null == map )
+        {
+            return new DateMap();
+        }
+
+        final DateMap result = new DateMap( map.size() );
+
+        for( Map.Entry< List< String >, List< String > > entry: map.entrySet() )
+        {
+            result.put( entry.getKey(), to_timeslice( entry.getValue() ) );
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Refresh all keys of a source.
+     *
+     * Records the latency of the request and delegates to _refreshSource.
+     *
+     * @see _refreshSource
+     */
+    @Override
+    public Set< List< String > > refreshSource( String source, long timeStamp )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            Set< List< String > > keys = _refreshSource( source, timeStamp );
+
+            if( null != changeFeed )
+            {
+                for( List< String > key: keys )
+                    changeFeed.refresh( key, timeStamp );
+            }
+
+            return keys;
+        }
+        finally
+        {
+            refreshSourceLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Refresh all keys of a source.
+     *
+     * All keys of the source are queried with a single prefix lookup on the
+     * "source/key -- date" partition. Keys attached to the lease of the
+     * source are refreshed by renewing the lease once. For all other keys,
+     * that entry holds the date of the key, thus only its timeslice has to be
+     * looked up and each key is refreshed with the writes of
+     * VolatileDirectoryImpl.refresh(..):
+     * 1. insert the new "slice/date/key -- date" entry
+     * 2. insert "key -- timeslice" entry
+     * 3. insert "source/key -- date" entry
+     * 4. delete old "slice/date/key -- date" entry
+     *
+     * @note Databases created by versions without the source index are
+     *       refused (see checkLayout), thus all keys of the source are part
+     *       of it.
+     *
+     * @param source The source whose keys should be refreshed.
+     * @param timeStamp The timeStamp to order insertions.
+     * @return The keys which have been refreshed.
+     */
+    private Set< List< String > > _refreshSource( String source, long timeStamp )
+    {
+        // guard
+        {
+            log.trace( "RefreshSource: {}", source );
+
+            checkState();
+
+            if( null == source )
+            {
+                throw new IllegalArgumentException( "VolatileDirectory.refreshSource excepts source to be not null!" );
+            }
+        }
+
+        Set< List< String > > result = new HashSet< List< String > >();
+
+        // get all "source/key |--> date" entries
+        Map< List< String >, List< String > > map;
+        {
+            List< String > prefix = new LinkedList< String >();
+            prefix.add( source );
+
+            map = directory.prefixlookup( 3, prefix );
+
+            if( null == map )
+            {
+                return result;
+            }
+        }
+
+        final long newtimeslice = timeslice.getActualSlice();
+        boolean attached = false;
+
+        for( Map.Entry< List< String >, List< String > > entry: map.entrySet() )
+        {
+            // some backends match "1.2.3.45" when searching for source "1.2.3.4"..
+            if( entry.getKey().size() < 1 || ! source.equals( entry.getKey().get( 0 ) ) )
+            {
+                continue;
+            }
+
+            final List< String > key = from_source_key( entry.getKey() );
+
+            // keys attached to the lease are refreshed by renewing the lease
+            if( is_leased( entry.getValue() ) )
+            {
+                attached = true;
+                result.add( key );
+                continue;
+            }
+
+            final List< String > olddate = own_date( entry.getValue() );
+            final List< String > oldtimeslice = directory.lookup( 1, key );
+
+            if( null == olddate || null == oldtimeslice )
+            {
+                log.error( "Internal Error: The Key {} of source {} maps to the nonvalid date {}. Simply skipping entry...", new Object[]{ key, source, entry.getValue() } );
+                continue;
+            }
+
+            // check for newer timeStamp
+            {
+                if( timeStamp < to_timeslice( olddate ) )
+                {
+                    log.debug( "Not overwriting Key {}, since the inserted one is newer.", key );
+                    continue;
+                }
+            }
+
+            // insert new "slice/date/key |--> date" entry
+            {
+                directory.insert( 2, get_expiry_key( newtimeslice, timeStamp, key ), to_date( timeStamp ) );
+            }
+
+            // insert "key |--> timeslice" entry
+            {
+                directory.insert( 1, key, to_value( newtimeslice ) );
+            }
+
+            // insert "source/key |--> date" entry
+            {
+                directory.insert( 3, entry.getKey(), to_date( timeStamp ) );
+            }
+
+            // delete old "slice/date/key |--> date" entry
+            {
+                delete_expiry_key( oldtimeslice, olddate, newtimeslice, timeStamp, key );
+            }
+
+            result.add( key );
+        }
+
+        if( attached )
+        {
+            renew_lease( source, timeStamp );
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Insert a key attached to the lease of its source.
+     *
+     * The method for inserting the key works as follows:
+     * 1. renew the lease of the source
+     * 2. insert "key -- value" entry
+     * 3. insert "source/key -- lease" entry
+     * 4. delete "key -- timeslice" and "slice/date/key -- date" entries
+     *    (when the key held its own timestamp before)
+     * If the key is attached to the lease already and holds the same values,
+     * the lease is renewed only.
+     *
+     * @note Since the key has no timestamp of its own, a newer insertion of
+     *       that key will be overwritten by an older one.
+     *
+     * @param key The key to insert.
+     * @param value The values associated to the key.
+     * @param timeStamp The timeStamp to order insertions.
+     * @return true, since the lease has been renewed at least.
+     */
+    private boolean _insertLeased( List< String > key, Set< String > value, long timeStamp )
+    {
+        // renew lease
+        try
+        {
+            renew_lease( key.get( key.size()-1 ), timeStamp );
+        }
+        // insert "key |--> value" entry only, if backend is write only
+        catch( NotSupportedException e )
+        {
+            log.debug( "Backend is write-only. Performing pure insert..." );
+
+            directory.insert( 0, key, new LinkedList< String >( value ) );
+            return true;
+        }
+
+        final List< String > oldtimeslice = directory.lookup( 1, key );
+        final List< String > index = directory.lookup( 3, get_source_key( key ) );
+        final List< String > olddate = null == oldtimeslice ? null : own_date( index );
+
+        // key is attached to the lease and its values did not change
+        if( null == oldtimeslice && null != index && is_leased( index ) && unchanged( key, value ) )
+        {
+            unchangedInserts.inc();
+            return true;
+        }
+
+        // insert "key |--> value" entry
+        {
+            directory.insert( 0, key, new LinkedList< String >( value ) );
+        }
+
+        // insert "source/key |--> lease" entry
+        {
+            directory.insert( 3, get_source_key( key ), to_leased() );
+        }
+
+        // delete old "key |--> timeslice" and "slice/date/key |--> date" entries
+        {
+            if( null != oldtimeslice )
+            {
+                if( null != olddate )
+                {
+                    directory.delete( 2, get_expiry_key( to_timeslice( oldtimeslice ), to_timeslice( olddate ), key ) );
+                }
+                directory.delete( 1, key );
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Refresh a key attached to the lease of its source.
+     *
+     * Refreshing the key means renewing the lease of its source, when the
+     * key exists.
+     *
+     * @param key The key to refresh.
+     * @param timeStamp The timeStamp to order insertions.
+     * @return null, if the key holds its own timestamp and still needs to be
+     *         refreshed, otherwise whether the key has been refreshed.
+     */
+    private Boolean _refreshLeased( List< String > key, long timeStamp )
+    {
+        List< String > index;
+        try
+        {
+            index = directory.lookup( 3, get_source_key( key ) );
+        }
+        // insert "key |--> value" entry only, if backend is write only
+        catch( NotSupportedException e )
+        {
+            log.debug( "Backend is write-only. Performing pure insert..." );
+
+            directory.insert( 0, key, new LinkedList< String >( ) );
+            return Boolean.TRUE;
+        }
+
+        // no key found to refresh
+        if( null == index )
+        {
+            return Boolean.FALSE;
+        }
+
+        // key is not attached to the lease
+        if( ! is_leased( index ) )
+        {
+            return null;
+        }
+
+        renew_lease( key.get( key.size()-1 ), timeStamp );
+        return Boolean.TRUE;
+    }
+
+
+    /**
+     * Get the date of a lease.
+     *
+     * @param lease The lease.
+     * @return The date of the lease or -1, if there is no such lease.
+     */
+    private long lease_date( List< String > lease )
+    {
+        final List< String > oldtimeslice = directory.lookup( 4, lease );
+
+        if( null == oldtimeslice )
+        {
+            return -1;
+        }
+
+        final List< String > date = directory.lookup( 5, get_timeslice_key( to_timeslice( oldtimeslice ), lease ) );
+
+        return null == date ? -1 : to_timeslice( date );
+    }
+
+
+    /**
+     * Renew the lease of a source.
+     *
+     * The method for renewing the lease works as follows:
+     * 1. insert the new "slice/source -- date" entry
+     * 2. insert "source -- timeslice" entry
+     * 3. delete old "slice/source -- date" entry (when in another slice)
+     * The date of the lease never decreases. Within the actual timeslice,
+     * nothing is written if the date would not change or change by less than
+     * the coalesce window.
+     *
+     * @param source The source whose lease should be renewed.
+     * @param timeStamp The timeStamp of the write request.
+     */
+    private void renew_lease( String source, long timeStamp )
+    {
+        final List< String > lease = to_lease( source );
+        final List< String > oldtimeslice = directory.lookup( 4, lease );
+        final long newtimeslice = timeslice.getActualSlice();
+        final boolean sameslice = null != oldtimeslice && to_timeslice( oldtimeslice ) == newtimeslice;
+
+        long date = timeStamp;
+
+        // keep a newer timeStamp
+        {
+            if( null != oldtimeslice )
+            {
+                final List< String > olddate = directory.lookup( 5, get_timeslice_key( to_timeslice( oldtimeslice ), lease ) );
+
+                if( null != olddate )
+                {
+                    final long oldstamp = to_timeslice( olddate );
+
+                    // coalesce renewals within the actual timeslice
+                    if( sameslice && date - oldstamp < Math.max( 1, coalesceWindow ) )
+                    {
+                        if( date > oldstamp )
+                            coalescedRefreshes.inc();
+                        return;
+                    }
+
+                    date = Math.max( date, oldstamp );
+                }
+            }
+        }
+
+        // insert new "slice/source |--> date" entry
+        {
+            directory.insert( 5, get_timeslice_key( newtimeslice, lease ), to_date( date ) );
+        }
+
+        // insert "source |--> timeslice" entry
+        if( ! sameslice )
+        {
+            directory.insert( 4, lease, to_value( newtimeslice ) );
+        }
+
+        // delete old "slice/source |--> date" entry
+        {
+            if( null != oldtimeslice )
+            {
+                final long oldts = to_timeslice( oldtimeslice );
+
+                if( oldts != newtimeslice )
+                    directory.delete( 5, get_timeslice_key( oldts, lease ) );
+            }
+        }
+    }
+
+
+    /**
+     * Query all leases in a certain time slice.
+     *
+     * Records the latency of the request and delegates to _leaseLookup.
+     *
+     * @see _leaseLookup
+     */
+    @Override
+    public Map< String, DateTime > leaseLookup( long slice )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            return _leaseLookup( slice );
+        }
+        finally
+        {
+            leaseLookupLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Query all leases in a certain time slice.
+     *
+     * @param slice The time slice to query all source--date pairs for.
+     * @return A map of all "source -- date" entries of that slice.
+     */
+    private Map< String, DateTime > _leaseLookup( long slice )
+    {
+        // guard
+        {
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "LeaseLookup: {}", slice );
+            }
+
+            checkState();
+
+            if( slice < 0 )
+            {
+                throw new IllegalArgumentException( "Negative slices are not allowed!" );
+            }
+        }
+
+        Map< String, DateTime > result = new HashMap< String, DateTime >();
+
+        // get all "timeslice/source |--> date" entries
+        Map< List< String >, List< String > > map = directory.prefixlookup(
+                5,
+                get_timeslice_key( slice, new LinkedList< String >() ) );
+
+        if( null == map )
+        {
+            return result;
+        }
+
+        // convert to a "source |--> date" mapping
+        {
+            for( Map.Entry< List< String >, List< String > > entry: map.entrySet() )
+            {
+                if( 2 != entry.getKey().size() || ! encode_time( slice ).equals( entry.getKey().get( 0 ) ) )
+                {
+                    continue;
+                }
+
+                try
+                {
+                    result.put( entry.getKey().get( 1 ), to_date( entry.getValue() ) );
+                }
+                catch( Exception e )
+                {
+                    log.error( "Internal Error: In slice {}, the lease of {} maps to the nonvalid date entry {}. Simply skipping entry...", new Object[]{ slice, entry.getKey().get( 1 ), entry.getValue() } );
+                    continue;
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Expire the lease of a source.
+     *
+     * Records the latency of the request and delegates to _expireLease.
+     *
+     * @see _expireLease
+     */
+    @Override
+    public Set< List< String > > expireLease( String source, long deadline )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            Set< List< String > > keys = _expireLease( source, deadline );
+
+            if( null != changeFeed )
+            {
+                for( List< String > key: keys )
+                    changeFeed.delete( key );
+            }
+
+            return keys;
+        }
+        finally
+        {
+            expireLeaseLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Expire the lease of a source.
+     *
+     * All keys attached to the lease are queried with a single prefix lookup
+     * on the "source/key -- date" partition. Their "key -- value" and
+     * "source/key -- lease" entries are deleted without further lookups. Keys
+     * holding their own timestamps are left to the Reaper. Afterwards, the
+     * "source -- timeslice" and "slice/source -- date" entries are deleted.
+     *
+     * Since the lease may have been renewed after the Reaper found it
+     * expired, its date is checked against the deadline before any key is
+     * deleted, and again before the lease itself is deleted. Thus, keys
+     * inserted while expiring the lease keep a lease.
+     *
+     * @param source The source whose lease expired.
+     * @param deadline Leases renewed before this date are expired.
+     * @return The keys which have been deleted.
+     */
+    private Set< List< String > > _expireLease( String source, long deadline )
+    {
+        // guard
+        {
+            log.trace( "ExpireLease: {}", source );
+
+            checkState();
+
+            if( null == source )
+            {
+                throw new IllegalArgumentException( "VolatileDirectory.expireLease excepts source to be not null!" );
+            }
+        }
+
+        Set< List< String > > result = new HashSet< List< String > >();
+
+        final List< String > lease = to_lease( source );
+
+        // check for a renewed lease
+        if( lease_date( lease ) >= deadline )
+        {
+            log.debug( "Not expiring lease of source {}, since it has been renewed.", source );
+            return result;
+        }
+
+        // delete all keys attached to the lease
+        {
+            List< String > prefix = new LinkedList< String >();
+            prefix.add( source );
+
+            Map< List< String >, List< String > > map = directory.prefixlookup( 3, prefix );
+
+            if( null != map )
+            {
+                for( Map.Entry< List< String >, List< String > > entry: map.entrySet() )
+                {
+                    // skip keys of other sources and keys with own timestamps
+                    if( entry.getKey().size() < 1 || ! source.equals( entry.getKey().get( 0 ) ) || ! is_leased( entry.getValue() ) )
+                    {
+                        continue;
+                    }
+
+                    final List< String > key = from_source_key( entry.getKey() );
+
+                    directory.delete( 0, key );
+                    directory.delete( 3, entry.getKey() );
+
+                    result.add( key );
+                }
+            }
+        }
+
+        // delete "source |--> timeslice" and "slice/source |--> date" entries
+        {
+            final List< String > oldtimeslice = directory.lookup( 4, lease );
+
+            if( null != oldtimeslice && lease_date( lease ) >= deadline )
+            {
+                log.debug( "Keeping lease of source {}, since it has been renewed meanwhile.", source );
+                return result;
+            }
+
+            directory.delete( 4, lease );
+
+            if( null != oldtimeslice )
+            {
+                directory.delete( 5, get_timeslice_key( to_timeslice( oldtimeslice ), lease ) );
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Query the values for a key.
+     *
+     * Records the latency of the request and delegates to _lookup.
+     *
+     * @see _lookup
+     */
+    @Override
+    public Set< String > lookup( List< String > key )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            return _lookup( key );
+        }
+        finally
+        {
+            lookupLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Query the values for a key.
+     *
+     * @return null if the key could not be found and the set of values otherwise.
+     */
+    private Set< String > _lookup( List< String > key )
+    {
+        // guard
+        {
+            log.trace( "Lookup: {}", key );
+
+            checkState();
+        }
+
+        List< String > _result = directory.lookup( 0, key );
+        if ( null == _result )
             return null;
         else
             return new HashSet< String >( _result );
@@ -419,35 +1691,231 @@ public class VolatileDirectoryImpl implements VolatileDirectory
 
 
     /**
-     * Query all keys beginning with a certain prefix.
+     * Query the values for a key together with their date.
+     *
+     * Records the latency of the request and delegates to _lookupDated.
+     *
+     * @see _lookupDated
+     */
+    @Override
+    public DatedValues lookupDated( List< String > key )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            return _lookupDated( key );
+        }
+        finally
+        {
+            lookupLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Query the values for a key together with their date.
+     *
+     * The date is taken from the source index or, if the key is attached to
+     * a lease, from the lease of its source. If neither is available, the
+     * date is 0.
+     *
+     * @return null if the key could not be found, its tombstone if it has
+     *         been deleted and the set of values with its date otherwise.
+     */
+    private DatedValues _lookupDated( List< String > key )
+    {
+        // guard
+        {
+            log.trace( "Dated lookup: {}", key );
+
+            checkState();
+        }
+
+        List< String > _result = directory.lookup( 0, key );
+        if( null == _result )
+        {
+            final List< String > death = tombstones ? directory.lookup( 6, key ) : null;
+
+            return null == death ? null : DatedValues.deleted( to_timeslice( death ) );
+        }
+
+        long date = 0;
+
+        List< String > index = directory.lookup( 3, get_source_key( key ) );
+        if( null != index )
+        {
+            if( is_leased( index ) )
+            {
+                final List< String > lease = to_lease( key.get( key.size()-1 ) );
+                final List< String > slice = directory.lookup( 4, lease );
+
+                if( null != slice )
+                {
+                    final List< String > leasedate = directory.lookup( 5, get_timeslice_key( to_timeslice( slice ), lease ) );
+
+                    if( null != leasedate )
+                        date = to_timeslice( leasedate );
+                }
+            }
+            else
+            {
+                date = to_timeslice( index );
+            }
+        }
+
+        return new DatedValues( new HashSet< String >( _result ), date );
+    }
+
+
+    /**
+     * Query all keys beginning with a certain prefix.
+     *
+     * Records the latency of the request and delegates to _prefixLookup.
+     *
+     * @see _prefixLookup
+     */
+    @Override
+    public Map< List< String >, Set< String > > prefixLookup( List< String > key )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            return _prefixLookup( key );
+        }
+        finally
+        {
+            prefixLookupLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Query all keys beginning with a certain prefix.
+     *
+     * @param key The prefix of the keys to be returned.
+     * @return The map of all found keys and its associated values.
+     */
+    private Map< List< String >, Set< String > > _prefixLookup( List< String > key )
+    {
+        // guard
+        {
+            log.trace( "PrefixLookup: {}", key );
+
+            checkState();
+        }
+
+        Map< List< String >, List< String > > _result = directory.prefixlookup( 0, key );
+        if ( null == _result )
+            return null;
+
+        // convert from Map< List, List > to Map< List, Set >
+        {
+            Map< List< String >, Set< String > > result = new HashMap< List< String >, Set< String > >();
+
+            for( Map.Entry< List< String >, List< String > > entry: _result.entrySet() )
+            {
+                result.put( entry.getKey(), new HashSet< String >( entry.getValue() ) );
+            }
+
+            return result;
+        }
+    }
+
+
+    /**
+     * Hash all keys beginning with a certain prefix into leaf digests.
+     *
+     * The entries of the backend are hashed one by one, without converting
+     * them into a map of sets first.
+     *
+     * @param key The prefix of the keys to be hashed.
+     * @param depth The depth of the leaves.
+     * @return The digests of all leaves.
+     */
+    @Override
+    public LeafDigests digest( List< String > key, int depth )
+    {
+        // guard
+        {
+            log.trace( "Digest: {}", key );
+
+            checkState();
+        }
+
+        final LeafDigests digests = new LeafDigests( depth );
+
+        Map< List< String >, List< String > > _result = directory.prefixlookup( 0, key );
+        if ( null == _result )
+            return digests;
+
+        for( Map.Entry< List< String >, List< String > > entry: _result.entrySet() )
+        {
+            digests.add( entry.getKey(), new HashSet< String >( entry.getValue() ) );
+        }
+
+        return digests;
+    }
+
+
+    /**
+     * Query all keys beginning with a certain prefix which fall into certain leaves.
+     *
+     * Only the entries of the requested leaves are converted and returned.
      *
      * @param key The prefix of the keys to be returned.
+     * @param depth The depth of the leaves.
+     * @param leaves The leaves to query the keys of.
      * @return The map of all found keys and its associated values.
      */
     @Override
-    public Map< List< String >, Set< String > > prefixLookup( List< String > key )
+    public Map< List< String >, Set< String > > leafLookup( List< String > key, int depth, Set< Integer > leaves )
     {
         // guard
         {
-            log.trace( "PrefixLookup: " + key.toString() );
+            log.trace( "LeafLookup: {} {}", key, leaves );
 
             checkState();
+
+            if( depth < 0 || depth > LeafDigests.MAX_DEPTH )
+            {
+                throw new IllegalArgumentException( "The depth of the leaves must be between 0 and " + LeafDigests.MAX_DEPTH + ", but depth=" + depth + " has been given!" );
+            }
         }
 
+        Map< List< String >, Set< String > > result = new HashMap< List< String >, Set< String > >();
+
         Map< List< String >, List< String > > _result = directory.prefixlookup( 0, key );
         if ( null == _result )
-            return null;
+            return result;
 
-        // convert from Map< List, List > to Map< List, Set >
+        for( Map.Entry< List< String >, List< String > > entry: _result.entrySet() )
         {
-            Map< List< String >, Set< String > > result = new HashMap< List< String >, Set< String > >();
-
-            for( Map.Entry< List< String >, List< String > > entry: _result.entrySet() )
-            {
+            if( leaves.contains( LeafDigests.leaf( entry.getKey(), depth ) ) )
                 result.put( entry.getKey(), new HashSet< String >( entry.getValue() ) );
-            }
+        }
 
-            return result;
+        return result;
+    }
+
+
+    /**
+     * Query all keys in a certain time slice.
+     *
+     * Records the latency of the request and delegates to _sliceLookup.
+     *
+     * @see _sliceLookup
+     */
+    @Override
+    public DateMap sliceLookup( long slice )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            return _sliceLookup( slice );
+        }
+        finally
+        {
+            sliceLookupLatency.recordSince( start );
         }
     }
 
@@ -456,14 +1924,16 @@ public class VolatileDirectoryImpl implements VolatileDirectory
      * Query all keys in a certain time slice.
      *
      * @param slice The time slice to query all key--date pairs for.
-     * @return A map of all "key -- date" entries of that slice.
+     * @return A map of all "key -- date" entries of that slice, with the dates in milliseconds.
      */
-    @Override
-    public Map< List< String >, DateTime > sliceLookup( long slice )
+    private DateMap _sliceLookup( long slice )
     {
         // guard
         {
-            log.trace( "SliceLookup: " + slice );
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "SliceLookup: {}", slice );
+            }
 
             checkState();
 
@@ -474,9 +1944,8 @@ public class VolatileDirectoryImpl implements VolatileDirectory
         }
 
         Map< List< String >, List< String > > map;
-        Map< List< String >, DateTime > result = new HashMap< List< String >, DateTime >();
 
-        // get all "timeslice/key |--> date" entries
+        // get all "timeslice/date/key |--> date" entries
         {
             // use an empty key to not get "17" when searching for timeslice "1"..
             map = directory.prefixlookup(
@@ -485,32 +1954,42 @@ public class VolatileDirectoryImpl implements VolatileDirectory
 
             if( null == map )
             {
-                return null;
+                return new DateMap();
             }
         }
 
+        final DateMap result = new DateMap( map.size() );
+        final String encodedslice = encode_time( slice );
+
         // remove all timeslice prefixes from keys, thus having a "key |--> date" mapping
         // then, convert the date
         {
             for( Map.Entry< List< String >, List< String > > entry: map.entrySet() )
             {
-                if( entry.getKey().size() < 1 )
+                if( entry.getKey().size() < 2 )
+                {
+                    log.error( "Internal Error: found a 'slice/date/key |--> date' mapping without date or key. This should not be possible! Simply skipping entry..." );
+                    continue;
+                }
+
+                // some backends match slice "17" when searching for slice "1"..
+                if( ! encodedslice.equals( entry.getKey().get( 0 ) ) )
                 {
-                    log.error( "Internal Error: found a 'slice/key |--> date' mapping with empty slice/key. This should not be possible! Simply skipping entry..." );
                     continue;
                 }
 
-                // remove timeslice
+                // remove timeslice and date
+                entry.getKey().remove( 0 );
                 entry.getKey().remove( 0 );
 
                 // convert date
                 try
                 {
-                    result.put( entry.getKey(), to_date( entry.getValue() ) );
+                    result.put( entry.getKey(), to_timeslice( entry.getValue() ) );
                 }
                 catch( Exception e )
                 {
-                    log.error( "Internal Error: In slice " + slice + ", the Key " + entry.getKey().toString() + " maps to the nonvalid date entry " + entry.getValue().toString() + ". Simply skipping entry..." );
+                    log.error( "Internal Error: In slice {}, the Key {} maps to the nonvalid date entry {}. Simply skipping entry...", new Object[]{ slice, entry.getKey(), entry.getValue() } );
                     continue;
                 }
             }
@@ -520,6 +1999,121 @@ public class VolatileDirectoryImpl implements VolatileDirectory
     }
 
 
+    /**
+     * Expire all keys of a time slice older than a deadline.
+     *
+     * Records the latency of the request and delegates to _expire.
+     *
+     * @see _expire
+     */
+    @Override
+    public Set< List< String > > expire( long slice, long deadline )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            Set< List< String > > keys = _expire( slice, deadline );
+
+            if( null != changeFeed )
+            {
+                for( List< String > key: keys )
+                    changeFeed.delete( key, deadline );
+            }
+
+            return keys;
+        }
+        finally
+        {
+            expireLatency.recordSince( start );
+        }
+    }
+
+
+    /**
+     * Expire all keys of a time slice older than a deadline.
+     *
+     * Since the "slice/date/key -- date" entries of a time slice are ordered
+     * by their date, all expired keys are queried with a single range lookup.
+     * Their "key -- value", "key -- timeslice" and "source/key -- date"
+     * entries are deleted in bulk without further lookups and all their
+     * "slice/date/key -- date" entries are deleted by one range delete.
+     *
+     * @note Databases created by versions with an unordered slice index are
+     *       refused (see checkLayout), thus all keys of the slice are part
+     *       of the range.
+     *
+     * @param slice The time slice to expire the keys of.
+     * @param deadline All keys with a date before the deadline (in ms) will be deleted.
+     * @return The keys which have been deleted.
+     */
+    private Set< List< String > > _expire( long slice, long deadline )
+    {
+        // guard
+        {
+            if( log.isTraceEnabled() )
+            {
+                log.trace( "Expire: {} before {}", slice, deadline );
+            }
+
+            checkState();
+
+            if( slice < 0 )
+            {
+                throw new IllegalArgumentException( "Negative slices are not allowed!" );
+            }
+        }
+
+        Set< List< String > > result = new HashSet< List< String > >();
+
+        if( deadline <= 0 )
+        {
+            return result;
+        }
+
+        final List< String > from = get_expiry_key( slice, 0, new LinkedList< String >() );
+        final List< String > to = get_expiry_key( slice, deadline, new LinkedList< String >() );
+
+        // get all expired "slice/date/key |--> date" entries
+        Map< List< String >, List< String > > map = directory.rangelookup( 2, from, to );
+
+        if( null == map )
+        {
+            return result;
+        }
+
+        List< List< String > > sourcekeys = new LinkedList< List< String > >();
+
+        // restore the expired keys
+        for( List< String > expirykey: map.keySet() )
+        {
+            if( expirykey.size() < 3 )
+            {
+                log.error( "Internal Error: found a 'slice/date/key |--> date' mapping without key. This should not be possible! Simply skipping entry..." );
+                continue;
+            }
+
+            final List< String > key = new LinkedList< String >( expirykey.subList( 2, expirykey.size() ) );
+
+            result.add( key );
+            sourcekeys.add( get_source_key( key ) );
+        }
+
+        // delete all other entries of the expired keys at once
+        {
+            directory.bulkdelete( 0, result );
+            directory.bulkdelete( 1, result );
+            directory.bulkdelete( 3, sourcekeys );
+        }
+
+        // delete all expired "slice/date/key |--> date" entries at once
+        {
+            directory.rangedelete( 2, from, to );
+        }
+
+        return result;
+    }
+
+
     /**
      * Convert a date value to a DateTime object.
      *
@@ -537,7 +2131,7 @@ public class VolatileDirectoryImpl implements VolatileDirectory
             throw new IllegalArgumentException( "Parameter date must be a list of size one!" );
         }
 
-        return new DateTime( Long.parseLong( date.get( 0 ) ) );
+        return new DateTime( decode_time( date.get( 0 ) ) );
     }
 
 
@@ -561,9 +2155,7 @@ public class VolatileDirectoryImpl implements VolatileDirectory
      */
     private List< String > to_date( long timeStamp )
     {
-        List< String > result = new LinkedList< String >();
-        result.add( String.valueOf( timeStamp ) );
-        return result;
+        return Collections.singletonList( encode_time( timeStamp ) );
     }
 
 
@@ -582,7 +2174,74 @@ public class VolatileDirectoryImpl implements VolatileDirectory
             throw new IllegalArgumentException( "The parameter must be a list with one String! (" + slice.toString() + ")" );
         }
 
-        return Long.parseLong( slice.get( 0 ) );
+        return decode_time( slice.get( 0 ) );
+    }
+
+
+    /**
+     * Encode a timeslice or date.
+     *
+     * With fixed width times, the value is encoded as its eight bytes in
+     * big-endian order, each written as two hexadecimal digits. Otherwise,
+     * it is written as decimal number.
+     *
+     * @param time The timeslice or date (in ms) to encode.
+     * @return The encoded value.
+     */
+    private String encode_time( long time )
+    {
+        if( ! fixedWidthTimes )
+        {
+            return String.valueOf( time );
+        }
+
+        char[] digits = new char[ 16 ];
+        for( int i = 15; i >= 0; --i )
+        {
+            digits[ i ] = HEX_DIGITS[ (int)( time & 0xf ) ];
+            time >>>= 4;
+        }
+
+        return new String( digits );
+    }
+
+
+    /**
+     * Decode a timeslice or date.
+     *
+     * @param time The encoded value.
+     * @return The timeslice or date (in ms).
+     *
+     * @throws NumberFormatException
+     *
+     * @see this.encode_time
+     */
+    private long decode_time( String time )
+    {
+        if( ! fixedWidthTimes )
+        {
+            return Long.parseLong( time );
+        }
+
+        if( 16 != time.length() )
+        {
+            throw new NumberFormatException( "The fixed width time " + time + " does not have 16 digits!" );
+        }
+
+        long result = 0;
+        for( int i = 0; i < 16; ++i )
+        {
+            final int digit = Character.digit( time.charAt( i ), 16 );
+
+            if( digit < 0 )
+            {
+                throw new NumberFormatException( "The fixed width time " + time + " is no hexadecimal number!" );
+            }
+
+            result = ( result << 4 ) | digit;
+        }
+
+        return result;
     }
 
 
@@ -605,12 +2264,91 @@ public class VolatileDirectoryImpl implements VolatileDirectory
         }
 
         List< String > timeslicekey = new LinkedList< String >( key );
-        timeslicekey.add( 0, String.valueOf( slice ) );
+        timeslicekey.add( 0, encode_time( slice ) );
 
         return timeslicekey;
     }
 
 
+    /**
+     * Melt a timeslice, a date and a key to a complete key.
+     *
+     * The date is encoded with a fixed width (zero-padded, if fixed width
+     * times are disabled), thus the keys of a timeslice are ordered by their
+     * date in the backend.
+     *
+     * @param slice The timeslice to prepend.
+     * @param date The date (in ms) to insert after the timeslice.
+     * @param key The key which will be completed.
+     * @return The complete key.
+     */
+    private List< String > get_expiry_key( long slice, long date, List< String > key )
+    {
+        List< String > expirykey = get_timeslice_key( slice, key );
+        expirykey.add( 1, encode_date( date ) );
+
+        return expirykey;
+    }
+
+
+    /**
+     * Prepend the date of a deletion to a key.
+     *
+     * @param date The date (in ms) of the deletion.
+     * @param key The deleted key.
+     * @return The key of the "date/key -- date" tombstone entry.
+     */
+    private List< String > get_tombstone_key( long date, List< String > key )
+    {
+        List< String > tombstonekey = new LinkedList< String >( key );
+        tombstonekey.add( 0, encode_date( date ) );
+
+        return tombstonekey;
+    }
+
+
+    /**
+     * Encode a date with a fixed width.
+     *
+     * Dates are zero-padded, if fixed width times are disabled, thus keys
+     * beginning with a date are ordered by it in the backend.
+     *
+     * @param date The date (in ms).
+     * @return The encoded date.
+     */
+    private String encode_date( long date )
+    {
+        // negative dates are treated as the oldest possible ones
+        final String digits = encode_time( Math.max( 0, date ) );
+
+        return fixedWidthTimes ? digits : DATE_PADDING.substring( digits.length() ) + digits;
+    }
+
+
+    /**
+     * Delete the old "slice/date/key -- date" entry of a key after it has been rewritten.
+     *
+     * @param oldslice The old timeslice of the key or null, if there was none.
+     * @param olddate The old date of the key or null, if there was none.
+     * @param newslice The new timeslice of the key.
+     * @param newdate The new date of the key.
+     * @param key The key.
+     */
+    private void delete_expiry_key( List< String > oldslice, List< String > olddate, long newslice, long newdate, List< String > key )
+    {
+        if( null == oldslice || null == olddate )
+        {
+            return;
+        }
+
+        final long oldts = to_timeslice( oldslice );
+        final long oldds = to_timeslice( olddate );
+
+        if( oldts != newslice || oldds != newdate )
+            directory.delete( 2, get_expiry_key( oldts, oldds, key ) );
+    }
+
+
     /**
      * Convert a timeslice to a key.
      *
@@ -624,12 +2362,111 @@ public class VolatileDirectoryImpl implements VolatileDirectory
             throw new IllegalArgumentException( "Negative slices are not allowed!" );
         }
 
+        return Collections.singletonList( encode_time( slice ) );
+    }
+
+
+    /**
+     * Build the key of the source index for a key.
+     *
+     * The source (the last element of the key) will be moved to the front,
+     * thus all keys of a source can be queried by a prefix lookup.
+     *
+     * @param key The key to build the index key for.
+     * @return The key with its source as first element.
+     *
+     * @see this.from_source_key
+     */
+    private List< String > get_source_key( List< String > key )
+    {
+        if( key.size() < 1 )
+        {
+            throw new IllegalArgumentException( "Keys without source are not allowed!" );
+        }
+
+        List< String > sourcekey = new LinkedList< String >( key );
+        sourcekey.add( 0, sourcekey.remove( sourcekey.size()-1 ) );
+
+        return sourcekey;
+    }
+
+
+    /**
+     * Build the key of the lease of a source.
+     *
+     * @param source The source of the lease.
+     * @return The key containing the source as first and only element.
+     */
+    private List< String > to_lease( String source )
+    {
+        List< String > result = new LinkedList< String >();
+
+        result.add( source );
+
+        return result;
+    }
+
+
+    /**
+     * Build the value of the source index for keys attached to a lease.
+     *
+     * @return The value marking the key as attached to the lease of its source.
+     */
+    private List< String > to_leased( )
+    {
         List< String > result = new LinkedList< String >();
 
-        result.add( String.valueOf( slice ) );
+        result.add( LEASED );
 
         return result;
     }
 
+
+    /**
+     * Check whether a value of the source index marks a key attached to a lease.
+     *
+     * @param value The value of the source index.
+     * @return true, if the key is attached to the lease of its source.
+     */
+    private boolean is_leased( List< String > value )
+    {
+        return 1 == value.size() && LEASED.equals( value.get( 0 ) );
+    }
+
+
+    /**
+     * Get the date of a value of the source index.
+     *
+     * @param value The value of the source index or null.
+     * @return The value holding the date of the key or null, if the key is
+     *         attached to a lease or unknown.
+     */
+    private List< String > own_date( List< String > value )
+    {
+        if( null == value || is_leased( value ) )
+        {
+            return null;
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Restore a key from the key of the source index.
+     *
+     * @param sourcekey The key of the source index.
+     * @return The key with its source as last element.
+     *
+     * @see this.get_source_key
+     */
+    private List< String > from_source_key( List< String > sourcekey )
+    {
+        List< String > key = new LinkedList< String >( sourcekey );
+        key.add( key.remove( 0 ) );
+
+        return key;
+    }
+
 }
 
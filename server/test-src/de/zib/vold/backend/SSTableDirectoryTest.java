@@ -0,0 +1,366 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.backend;
+
+import de.zib.vold.common.VoldException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Behaviour of the SSTableDirectory: lookups across memtables, logs and
+ * tables, log replay after a crash and merges.
+ */
+public class SSTableDirectoryTest {
+
+    private File dir;
+    private SSTableDirectory db;
+
+
+    @BeforeMethod( groups = { "SSTableDirectoryTest" } )
+    public void createDir() throws IOException {
+        dir = File.createTempFile( "sstabledirectory", "" );
+        dir.delete();
+        dir.mkdirs();
+    }
+
+
+    @AfterMethod( groups = { "SSTableDirectoryTest" } )
+    public void deleteDir() {
+        if( null != db && db.isopen() ) {
+            db.close();
+        }
+        delete( dir );
+    }
+
+
+    @Test( groups = { "SSTableDirectoryTest" } )
+    public void testInsertLookup() {
+        db = open( 1024 * 1024, 4 );
+
+        db.insert( 0, key( "/a/", "t", "k1" ), key( "v1", "v2" ) );
+        db.insert( 0, key( "/a/", "t", "k2" ), key( "v3" ) );
+        db.insert( 1, key( "/a/", "t", "k1" ), key( "other" ) );
+
+        Assert.assertEquals( db.lookup( 0, key( "/a/", "t", "k1" ) ), key( "v1", "v2" ) );
+        Assert.assertEquals( db.lookup( 1, key( "/a/", "t", "k1" ) ), key( "other" ) );
+        Assert.assertNull( db.lookup( 0, key( "/a/", "t", "k3" ) ) );
+        Assert.assertNull( db.lookup( 2, key( "/a/", "t", "k1" ) ) );
+
+        db.insert( 0, key( "/a/", "t", "k1" ), key( "v4" ) );
+        Assert.assertEquals( db.lookup( 0, key( "/a/", "t", "k1" ) ), key( "v4" ) );
+    }
+
+
+    @Test( groups = { "SSTableDirectoryTest" } )
+    public void testPrefixAndRangeLookup() {
+        // flush after few keys, thus the keys are spread over memtable and tables
+        db = open( 512, 100 );
+
+        final Map< List< String >, List< String > > expected = new HashMap< List< String >, List< String > >();
+        for( int i = 0; i < 200; ++i ) {
+            final List< String > k = key( i % 2 == 0 ? "/a/" : "/b/", "t", String.format( "k%03d", i ) );
+            db.insert( 0, k, key( "v" + i ) );
+            if( i % 2 == 0 ) {
+                expected.put( k, key( "v" + i ) );
+            }
+        }
+        db.delete( 0, key( "/a/", "t", "k000" ) );
+        expected.remove( key( "/a/", "t", "k000" ) );
+
+        Assert.assertEquals( db.prefixlookup( 0, key( "/a/" ) ), expected );
+        Assert.assertEquals( db.prefixlookup( 0, key( "/a/", "t" ) ), expected );
+        Assert.assertTrue( db.prefixlookup( 0, key( "/c/" ) ).isEmpty() );
+
+        final Map< List< String >, List< String > > range = db.rangelookup( 0, key( "/b/", "t", "k101" ), key( "/b/", "t", "k111" ) );
+        Assert.assertEquals( range.size(), 5 );
+        Assert.assertTrue( range.containsKey( key( "/b/", "t", "k109" ) ) );
+        Assert.assertFalse( range.containsKey( key( "/b/", "t", "k111" ) ) );
+    }
+
+
+    @Test( groups = { "SSTableDirectoryTest" } )
+    public void testTombstonesShadowOlderValues() {
+        db = open( 512, 100 );
+
+        // written to tables
+        for( int i = 0; i < 100; ++i ) {
+            db.insert( 0, key( "/a/", "t", String.format( "k%03d", i ) ), key( "old" ) );
+        }
+        // deleted in the newer tables and the memtable
+        for( int i = 0; i < 100; i += 3 ) {
+            db.delete( 0, key( "/a/", "t", String.format( "k%03d", i ) ) );
+        }
+        db.bulkdelete( 0, Arrays.asList( key( "/a/", "t", "k001" ), key( "/a/", "t", "k002" ) ) );
+        db.rangedelete( 0, key( "/a/", "t", "k010" ), key( "/a/", "t", "k020" ) );
+
+        check_deleted( db );
+
+        // the same holds for the tables and the replayed log after reopening
+        db.close();
+        db = open( 512, 100 );
+        check_deleted( db );
+    }
+
+
+    @Test( groups = { "SSTableDirectoryTest" } )
+    public void testLogReplayAfterCrash() {
+        final SSTableDirectory crashed = open( 1024 * 1024, 4 );
+
+        crashed.insert( 0, key( "/a/", "t", "k1" ), key( "v1" ) );
+        crashed.insert( 0, key( "/a/", "t", "k2" ), key( "v2" ) );
+        crashed.delete( 0, key( "/a/", "t", "k1" ) );
+        crashed.insert( 3, key( "src", "/a/", "t", "k2" ), key( "42" ) );
+
+        // not closed: only the logs are on disk
+        Assert.assertTrue( tables( 0 ).isEmpty() );
+
+        db = open( 1024 * 1024, 4 );
+        Assert.assertNull( db.lookup( 0, key( "/a/", "t", "k1" ) ) );
+        Assert.assertEquals( db.lookup( 0, key( "/a/", "t", "k2" ) ), key( "v2" ) );
+        Assert.assertEquals( db.lookup( 3, key( "src", "/a/", "t", "k2" ) ), key( "42" ) );
+    }
+
+
+    @Test( groups = { "SSTableDirectoryTest" } )
+    public void testMerge() {
+        db = open( 256, 2 );
+
+        for( int round = 0; round < 5; ++round ) {
+            for( int i = 0; i < 50; ++i ) {
+                db.insert( 0, key( "/a/", "t", String.format( "k%03d", i ) ), key( "v" + round ) );
+            }
+        }
+        for( int i = 0; i < 50; i += 2 ) {
+            db.delete( 0, key( "/a/", "t", String.format( "k%03d", i ) ) );
+        }
+
+        // waits for all flushes and merges, merges left over are done after reopening
+        db.close();
+        db = open( 256, 2 );
+
+        for( int i = 0; i < 50; ++i ) {
+            final List< String > value = db.lookup( 0, key( "/a/", "t", String.format( "k%03d", i ) ) );
+            if( i % 2 == 0 ) {
+                Assert.assertNull( value );
+            }
+            else {
+                Assert.assertEquals( value, key( "v4" ) );
+            }
+        }
+        Assert.assertEquals( db.prefixlookup( 0, key( "/a/" ) ).size(), 25 );
+
+        db.close();
+        Assert.assertEquals( tables( 0 ).size(), 1, "Tables have not been merged: " + tables( 0 ) );
+    }
+
+
+    @Test( groups = { "SSTableDirectoryTest" } )
+    public void testInterruptedMergeIsCompleted() throws IOException {
+        final File partition = new File( dir, "0" );
+        partition.mkdirs();
+
+        // the older tables, the key k1 is deleted in table 2
+        SSTable.write( new File( partition, "1.sst" ), 1, 1, entries( "a/k1", "old" ), 64 );
+        SSTable.write( new File( partition, "2.sst" ), 2, 2, entries( "a/k1", null ), 64 );
+
+        // the merge of table 1 and 2 replaced table 2, but table 1 could not be deleted
+        SSTable.write( new File( partition, "2.sst" ), 2, 1, entries( "a/k2", "v2" ), 64 );
+
+        db = open( 1024 * 1024, 4 );
+        Assert.assertNull( db.lookup( 0, key( "a", "k1" ) ) );
+        Assert.assertEquals( db.lookup( 0, key( "a", "k2" ) ), key( "v2" ) );
+        Assert.assertFalse( new File( partition, "1.sst" ).exists() );
+    }
+
+
+    @Test( groups = { "SSTableDirectoryTest" } )
+    public void testFailedFlushIsRetried() throws InterruptedException {
+        db = open( 256, 100 );
+        db.setFlushRetryDelay( 10 );
+
+        final File blocker = block_flush();
+        final Map< List< String >, List< String > > expected = fill_until_refused();
+        check_values( expected );
+
+        // the retry succeeds and the partition accepts write requests again
+        blocker.delete();
+        final List< String > k = key( "/a/", "t", "k000" );
+        for( int i = 0; ; ++i ) {
+            try {
+                db.insert( 0, k, key( "latest" ) );
+                break;
+            }
+            catch( VoldException e ) {
+                Assert.assertTrue( i < 500, "The failed flush has not been retried." );
+                Thread.sleep( 10 );
+            }
+        }
+        expected.put( k, key( "latest" ) );
+
+        Assert.assertTrue( tables( 0 ).contains( "1.sst" ), tables( 0 ).toString() );
+        check_values( expected );
+
+        db.close();
+        db = open( 256, 100 );
+        check_values( expected );
+    }
+
+
+    @Test( groups = { "SSTableDirectoryTest" } )
+    public void testUnflushedLogsAreRecoveredInOrder() {
+        db = open( 256, 100 );
+
+        block_flush();
+        final Map< List< String >, List< String > > expected = fill_until_refused();
+
+        // the logs of all memtables are written to tables of their own sequence numbers
+        db.close();
+        db = open( 256, 100 );
+
+        Assert.assertTrue( tables( 0 ).contains( "1.sst" ), tables( 0 ).toString() );
+        check_values( expected );
+    }
+
+
+    /**
+     * Let the flush of the first memtable of partition 0 fail.
+     *
+     * @return The directory blocking the table file.
+     */
+    private File block_flush() {
+        // creates the partition with memtable 1
+        db.insert( 0, key( "/a/", "t", "k000" ), key( "v" ) );
+
+        final File blocker = new File( new File( dir, "0" ), "1.sst.tmp" );
+        Assert.assertTrue( blocker.mkdir() );
+        return blocker;
+    }
+
+
+    /**
+     * Overwrite a few keys until the partition refuses write requests.
+     *
+     * @return The latest value of each key.
+     */
+    private Map< List< String >, List< String > > fill_until_refused() {
+        final Map< List< String >, List< String > > expected = new HashMap< List< String >, List< String > >();
+
+        for( int i = 0; i < 100000; ++i ) {
+            final List< String > k = key( "/a/", "t", String.format( "k%03d", i % 6 ) );
+            try {
+                db.insert( 0, k, key( "v" + i ) );
+            }
+            catch( VoldException e ) {
+                Assert.assertTrue( i > 6, "Refused write requests before the first flush." );
+                return expected;
+            }
+            expected.put( k, key( "v" + i ) );
+        }
+
+        Assert.fail( "Write requests have not been refused while the flush failed." );
+        return expected;
+    }
+
+
+    private void check_values( Map< List< String >, List< String > > expected ) {
+        for( Map.Entry< List< String >, List< String > > entry: expected.entrySet() ) {
+            Assert.assertEquals( db.lookup( 0, entry.getKey() ), entry.getValue(), entry.getKey().toString() );
+        }
+        Assert.assertEquals( db.prefixlookup( 0, key( "/a/" ) ), expected );
+    }
+
+
+    private void check_deleted( SSTableDirectory db ) {
+        final Map< List< String >, List< String > > map = db.prefixlookup( 0, key( "/a/" ) );
+
+        for( int i = 0; i < 100; ++i ) {
+            final List< String > k = key( "/a/", "t", String.format( "k%03d", i ) );
+            final boolean deleted = 0 == i % 3 || 1 == i || 2 == i || ( i >= 10 && i < 20 );
+
+            if( deleted ) {
+                Assert.assertNull( db.lookup( 0, k ), k.toString() );
+                Assert.assertFalse( map.containsKey( k ), k.toString() );
+            }
+            else {
+                Assert.assertEquals( db.lookup( 0, k ), key( "old" ), k.toString() );
+                Assert.assertEquals( map.get( k ), key( "old" ), k.toString() );
+            }
+        }
+    }
+
+
+    private SSTableDirectory open( long memtableSize, int mergeThreshold ) {
+        final SSTableDirectory db = new SSTableDirectory( dir.getPath(), "utf-8" );
+        db.setMemtableSize( memtableSize );
+        db.setMergeThreshold( mergeThreshold );
+        db.setBlockSize( 128 );
+        db.open();
+        return db;
+    }
+
+
+    private List< String > tables( int partition ) {
+        final String[] names = new File( dir, String.valueOf( partition ) ).list();
+        final List< String > tables = new ArrayList< String >();
+        for( String name: null == names ? new String[ 0 ] : names ) {
+            if( name.endsWith( ".sst" ) ) {
+                tables.add( name );
+            }
+        }
+        return tables;
+    }
+
+
+    /**
+     * Build a single entry of a table with a key joined by null bytes like
+     * in the SSTableDirectory.
+     *
+     * @param value The value or null, for a tombstone.
+     */
+    private static Iterator< Map.Entry< byte[], byte[] > > entries( String key, String value ) {
+        final TreeMap< byte[], byte[] > map = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+        map.put( key.replace( '/', '\0' ).getBytes(), null == value ? SSTable.TOMBSTONE : value.getBytes() );
+        return map.entrySet().iterator();
+    }
+
+
+    private static List< String > key( String... parts ) {
+        return Arrays.asList( parts );
+    }
+
+
+    private static void delete( File f ) {
+        final File[] files = f.listFiles();
+        if( null != files ) {
+            for( File child: files ) {
+                delete( child );
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.backend;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Behaviour of a single SSTable: round trip, lookups, scans and tombstones.
+ */
+public class SSTableTest {
+
+    private File dir;
+
+
+    @BeforeMethod( groups = { "SSTableTest" } )
+    public void createDir() throws IOException {
+        dir = File.createTempFile( "sstable", "" );
+        dir.delete();
+        dir.mkdirs();
+    }
+
+
+    @AfterMethod( groups = { "SSTableTest" } )
+    public void deleteDir() {
+        for( File f: dir.listFiles() ) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+
+    @Test( groups = { "SSTableTest" } )
+    public void testRoundTrip() throws IOException {
+        final TreeMap< byte[], byte[] > entries = entries( 1000 );
+
+        final SSTable written = SSTable.write( new File( dir, "1.sst" ), 1, 1, entries.entrySet().iterator(), 64 );
+        final SSTable table = SSTable.open( new File( dir, "1.sst" ), 1 );
+
+        Assert.assertEquals( written.size(), 1000 );
+        Assert.assertEquals( table.size(), 1000 );
+
+        for( Map.Entry< byte[], byte[] > entry: entries.entrySet() ) {
+            Assert.assertEquals( table.lookup( entry.getKey() ), entry.getValue() );
+        }
+        Assert.assertNull( table.lookup( bytes( "a" ) ) );
+        Assert.assertNull( table.lookup( bytes( "k0500x" ) ) );
+        Assert.assertNull( table.lookup( bytes( "z" ) ) );
+
+        final Iterator< Map.Entry< byte[], byte[] > > it = table.iterator();
+        for( Map.Entry< byte[], byte[] > entry: entries.entrySet() ) {
+            final Map.Entry< byte[], byte[] > read = it.next();
+            Assert.assertEquals( read.getKey(), entry.getKey() );
+            Assert.assertEquals( read.getValue(), entry.getValue() );
+        }
+        Assert.assertFalse( it.hasNext() );
+    }
+
+
+    @Test( groups = { "SSTableTest" } )
+    public void testScans() throws IOException {
+        final SSTable table = SSTable.write( new File( dir, "1.sst" ), 1, 1, entries( 1000 ).entrySet().iterator(), 64 );
+
+        final Map< byte[], byte[] > prefix = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+        table.scan( bytes( "k05" ), prefix );
+        Assert.assertEquals( prefix.size(), 100 );
+        Assert.assertEquals( ( ( TreeMap< byte[], byte[] > )prefix ).firstKey(), bytes( "k0500" ) );
+        Assert.assertEquals( ( ( TreeMap< byte[], byte[] > )prefix ).lastKey(), bytes( "k0599" ) );
+
+        final Map< byte[], byte[] > range = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+        table.scan( bytes( "k0990" ), bytes( "k0995" ), range );
+        Assert.assertEquals( range.size(), 5 );
+        Assert.assertEquals( ( ( TreeMap< byte[], byte[] > )range ).lastKey(), bytes( "k0994" ) );
+
+        final Map< byte[], byte[] > none = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+        table.scan( bytes( "x" ), none );
+        table.scan( bytes( "a" ), bytes( "b" ), none );
+        Assert.assertTrue( none.isEmpty() );
+    }
+
+
+    @Test( groups = { "SSTableTest" } )
+    public void testScanKeepsNewerEntries() throws IOException {
+        final TreeMap< byte[], byte[] > entries = entries( 10 );
+        final SSTable table = SSTable.write( new File( dir, "1.sst" ), 1, 1, entries.entrySet().iterator(), 64 );
+
+        final Map< byte[], byte[] > map = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+        map.put( bytes( "k0003" ), SSTable.TOMBSTONE );
+        table.scan( bytes( "k" ), map );
+
+        Assert.assertEquals( map.size(), 10 );
+        Assert.assertSame( map.get( bytes( "k0003" ) ), SSTable.TOMBSTONE );
+    }
+
+
+    @Test( groups = { "SSTableTest" } )
+    public void testTombstones() throws IOException {
+        final TreeMap< byte[], byte[] > entries = entries( 10 );
+        entries.put( bytes( "k0005" ), SSTable.TOMBSTONE );
+
+        final SSTable table = SSTable.write( new File( dir, "1.sst" ), 1, 1, entries.entrySet().iterator(), 64 );
+
+        Assert.assertSame( table.lookup( bytes( "k0005" ) ), SSTable.TOMBSTONE );
+        Assert.assertEquals( table.lookup( bytes( "k0006" ) ), bytes( "v0006" ) );
+
+        final Map< byte[], byte[] > map = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+        table.scan( bytes( "k" ), map );
+        Assert.assertSame( map.get( bytes( "k0005" ) ), SSTable.TOMBSTONE );
+    }
+
+
+    @Test( groups = { "SSTableTest" } )
+    public void testEntriesAcrossChunks() throws IOException {
+        final TreeMap< byte[], byte[] > entries = entries( 1000 );
+        SSTable.write( new File( dir, "1.sst" ), 1, 1, entries.entrySet().iterator(), 64 );
+
+        // chunks smaller than most entries, thus numbers and keys cross their ends
+        final SSTable table = SSTable.open( new File( dir, "1.sst" ), 1, 13 );
+
+        for( Map.Entry< byte[], byte[] > entry: entries.entrySet() ) {
+            Assert.assertEquals( table.lookup( entry.getKey() ), entry.getValue() );
+        }
+
+        final Map< byte[], byte[] > map = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+        table.scan( bytes( "k07" ), map );
+        Assert.assertEquals( map.size(), 100 );
+    }
+
+
+    @Test( groups = { "SSTableTest" } )
+    public void testEmptyTable() throws IOException {
+        final SSTable table = SSTable.write( new File( dir, "1.sst" ), 1, 1, new TreeMap< byte[], byte[] >().entrySet().iterator(), 64 );
+
+        Assert.assertEquals( table.size(), 0 );
+        Assert.assertNull( table.lookup( bytes( "k" ) ) );
+        Assert.assertFalse( table.iterator().hasNext() );
+    }
+
+
+    @Test( groups = { "SSTableTest" } )
+    public void testSupersedes() throws IOException {
+        final SSTable merged = SSTable.write( new File( dir, "5.sst" ), 5, 2, entries( 1 ).entrySet().iterator(), 64 );
+        final SSTable older = SSTable.write( new File( dir, "2.sst" ), 2, 2, entries( 1 ).entrySet().iterator(), 64 );
+        final SSTable oldest = SSTable.write( new File( dir, "1.sst" ), 1, 1, entries( 1 ).entrySet().iterator(), 64 );
+        final SSTable newer = SSTable.write( new File( dir, "6.sst" ), 6, 6, entries( 1 ).entrySet().iterator(), 64 );
+
+        Assert.assertEquals( merged.getBase(), 2 );
+        Assert.assertTrue( merged.supersedes( older ) );
+        Assert.assertFalse( merged.supersedes( merged ) );
+        Assert.assertFalse( merged.supersedes( oldest ) );
+        Assert.assertFalse( merged.supersedes( newer ) );
+    }
+
+
+    @Test( groups = { "SSTableTest" }, expectedExceptions = { IOException.class } )
+    public void testRejectsInvalidFile() throws IOException {
+        final File file = new File( dir, "1.sst" );
+        final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        raf.write( new byte[ 64 ] );
+        raf.close();
+
+        SSTable.open( file, 1 );
+    }
+
+
+    /**
+     * Build count entries k0000 |--> v0000, k0001 |--> v0001, ...
+     */
+    private static TreeMap< byte[], byte[] > entries( int count ) {
+        final TreeMap< byte[], byte[] > entries = new TreeMap< byte[], byte[] >( SSTable.COMPARATOR );
+        for( int i = 0; i < count; ++i ) {
+            entries.put( bytes( String.format( "k%04d", i ) ), bytes( String.format( "v%04d", i ) ) );
+        }
+        return entries;
+    }
+
+
+    private static byte[] bytes( String s ) {
+        try {
+            return s.getBytes( "utf-8" );
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.replication;
+
+import de.zib.vold.client.VolDClient;
+import de.zib.vold.common.Key;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.web.client.RestTemplate;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Behaviour of the queue of deletions of the RESTVoldReplicator: compaction
+ * of deletions of the same key and batching.
+ */
+public class RESTVoldReplicatorTest {
+
+    private RecordingClient client;
+    private RESTVoldReplicator replicator;
+
+
+    @BeforeMethod( groups = { "RESTVoldReplicatorTest" } )
+    public void setUp() {
+        client = new RecordingClient();
+
+        replicator = new RESTVoldReplicator( client );
+        replicator.setBatchSize( 3 );
+        // never flushed by time during a test
+        replicator.setFlushInterval( 60 * 60 * 1000 );
+    }
+
+
+    @Test( groups = { "RESTVoldReplicatorTest" } )
+    public void testCompactionKeepsLatestDeletion() {
+        replicator.delete( key( "k1", "src" ), 2000 );
+        replicator.delete( key( "k1", "src" ), 3000 );
+        // an older deletion does not replace the queued one
+        replicator.delete( key( "k1", "src" ), 1000 );
+
+        Assert.assertTrue( client.requests.isEmpty() );
+
+        replicator.flush();
+
+        Assert.assertEquals( client.requests.size(), 1 );
+        Map< Key, Long > deletions = client.requests.get( 0 ).get( "src" );
+        Assert.assertEquals( deletions.size(), 1 );
+        Assert.assertEquals( deletions.get( new Key( "/a/", "t", "k1" ) ), Long.valueOf( 3000 ) );
+    }
+
+
+    @Test( groups = { "RESTVoldReplicatorTest" } )
+    public void testBatchSentWhenFull() {
+        replicator.delete( key( "k1", "src" ), 1000 );
+        replicator.delete( key( "k2", "src" ), 1000 );
+        // compacted, thus the queue holds two keys only
+        replicator.delete( key( "k2", "src" ), 2000 );
+        Assert.assertTrue( client.requests.isEmpty() );
+
+        replicator.delete( key( "k3", "other" ), 3000 );
+
+        // one request for all three keys, grouped by source
+        Assert.assertEquals( client.requests.size(), 1 );
+        Map< String, Map< Key, Long > > request = client.requests.get( 0 );
+        Assert.assertEquals( request.get( "src" ).size(), 2 );
+        Assert.assertEquals( request.get( "src" ).get( new Key( "/a/", "t", "k2" ) ), Long.valueOf( 2000 ) );
+        Assert.assertEquals( request.get( "other" ).get( new Key( "/a/", "t", "k3" ) ), Long.valueOf( 3000 ) );
+
+        // the queue is empty afterwards
+        replicator.flush();
+        Assert.assertEquals( client.requests.size(), 1 );
+    }
+
+
+    @Test( groups = { "RESTVoldReplicatorTest" } )
+    public void testFlushInterval() throws InterruptedException {
+        replicator.setFlushInterval( 50 );
+
+        replicator.delete( key( "k1", "src" ), 1000 );
+
+        for( int i = 0; i < 100 && client.requests.isEmpty(); ++i ) {
+            Thread.sleep( 20 );
+        }
+
+        Assert.assertEquals( client.requests.size(), 1 );
+        Assert.assertEquals( client.requests.get( 0 ).get( "src" ).size(), 1 );
+    }
+
+
+    private static List< String > key( String keyname, String source ) {
+        return Arrays.asList( "/a/", "t", keyname, source );
+    }
+
+
+    /**
+     * A client recording all batch deletions instead of sending them.
+     */
+    private static class RecordingClient extends VolDClient {
+
+        final List< Map< String, Map< Key, Long > > > requests =
+                Collections.synchronizedList( new ArrayList< Map< String, Map< Key, Long > > >() );
+
+
+        RecordingClient() {
+            super( template(), "http://localhost/vold" );
+        }
+
+
+        private static StaticListableBeanFactory template() {
+            final StaticListableBeanFactory context = new StaticListableBeanFactory();
+            context.addBean( "voldRestTemplate", new RestTemplate() );
+            return context;
+        }
+
+
+        @Override
+        public Map< String, String > delete( Map< String, Map< Key, Long > > deletions ) {
+            requests.add( deletions );
+
+            Map< String, String > results = new HashMap< String, String >();
+            for( Map< Key, Long > keys: deletions.values() ) {
+                for( Key key: keys.keySet() ) {
+                    results.put( key.toString(), "OK" );
+                }
+            }
+            return results;
+        }
+    }
+}
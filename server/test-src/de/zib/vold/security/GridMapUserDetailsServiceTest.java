@@ -0,0 +1,119 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.security;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Parsing of the grid-mapfiles and the roles granted to DNs.
+ */
+public class GridMapUserDetailsServiceTest {
+
+    private File admins;
+    private File users;
+    private GridMapUserDetailsService service;
+
+
+    @BeforeMethod( groups = { "GridMapUserDetailsServiceTest" } )
+    public void writeGridMapfiles() throws IOException {
+        admins = File.createTempFile( "admin-grid-mapfile", "" );
+        users = File.createTempFile( "grid-mapfile", "" );
+
+        write( admins,
+                "# administrators",
+                "/O=Grid/CN=Jane Doe",
+                "\"/O=Grid/CN=Max Mustermann\" max" );
+        write( users,
+                "/O=Grid/CN=John Smith jsmith",
+                "/O=Grid/CN=Erika jdoe,erika",
+                "/O=Grid/CN=Anonymous" );
+
+        service = new GridMapUserDetailsService();
+        service.setAdminGridMapfileName( admins.getPath() );
+        service.setGridMapfileName( users.getPath() );
+    }
+
+
+    @AfterMethod( groups = { "GridMapUserDetailsServiceTest" } )
+    public void deleteGridMapfiles() {
+        admins.delete();
+        users.delete();
+    }
+
+
+    @Test( groups = { "GridMapUserDetailsServiceTest" } )
+    public void testUnquotedDNWithSpaces() {
+        Assert.assertEquals( role( "/O=Grid/CN=Jane Doe" ), "ROLE_ADMIN" );
+
+        // the prefix of an admin DN is a different DN
+        Assert.assertNull( role( "/O=Grid/CN=Jane" ) );
+    }
+
+
+    @Test( groups = { "GridMapUserDetailsServiceTest" } )
+    public void testLocalUserField() {
+        Assert.assertEquals( role( "/O=Grid/CN=Max Mustermann" ), "ROLE_ADMIN" );
+        Assert.assertEquals( role( "/O=Grid/CN=John Smith" ), "ROLE_USER" );
+        Assert.assertEquals( role( "/O=Grid/CN=Erika" ), "ROLE_USER" );
+        Assert.assertEquals( role( "/O=Grid/CN=Anonymous" ), "ROLE_USER" );
+
+        Assert.assertNull( role( "/O=Grid/CN=John" ) );
+        Assert.assertNull( role( "/O=Grid/CN=John Smith jsmith" ) );
+        Assert.assertNull( role( "\"/O=Grid/CN=Max Mustermann\" max" ) );
+    }
+
+
+    /**
+     * Get the role granted to a DN.
+     *
+     * @return The role or null, if the DN is not permitted.
+     */
+    private String role( String dn ) {
+        try {
+            for( GrantedAuthority authority: service.loadUserByUsername( dn ).getAuthorities() ) {
+                return authority.getAuthority();
+            }
+            Assert.fail( "No role granted to " + dn + "." );
+            return null;
+        }
+        catch( UsernameNotFoundException e ) {
+            return null;
+        }
+    }
+
+
+    private static void write( File file, String... lines ) throws IOException {
+        final Writer out = new FileWriter( file );
+        try {
+            for( String line: lines ) {
+                out.write( line + "\n" );
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+}
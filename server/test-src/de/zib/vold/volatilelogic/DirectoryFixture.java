@@ -0,0 +1,81 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.volatilelogic;
+
+import de.zib.vold.backend.MemoryDirectory;
+import org.testng.annotations.AfterMethod;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fixture of the tests of the volatile logic: VolatileDirectoryImpls with
+ * tombstones on MemoryDirectories, which are closed after each test.
+ */
+public abstract class DirectoryFixture {
+
+    private final List< MemoryDirectory > backends = new ArrayList< MemoryDirectory >();
+
+
+    @AfterMethod( alwaysRun = true )
+    public void closeBackends() {
+        for( MemoryDirectory backend: backends ) {
+            backend.close();
+        }
+        backends.clear();
+    }
+
+
+    /**
+     * Open a new MemoryDirectory, which is closed after the test.
+     */
+    protected MemoryDirectory backend() {
+        MemoryDirectory backend = new MemoryDirectory();
+        backend.open();
+        backends.add( backend );
+
+        return backend;
+    }
+
+
+    /**
+     * Create a VolatileDirectoryImpl with tombstones on a new MemoryDirectory.
+     */
+    protected VolatileDirectoryImpl directory() {
+        VolatileDirectoryImpl directory = new VolatileDirectoryImpl( backend(), timeSlice() );
+        directory.setTombstones( true );
+
+        return directory;
+    }
+
+
+    protected static TimeSlice timeSlice() {
+        return new TimeSlice( 60 * 1000, 10 );
+    }
+
+
+    protected static List< String > key( String keyname ) {
+        return Arrays.asList( "/a/", "t", keyname, "src" );
+    }
+
+
+    protected static Set< String > values( String... values ) {
+        return new HashSet< String >( Arrays.asList( values ) );
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.volatilelogic;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Behaviour of the quorum mode: reads return the newest values and repair
+ * stale replicas.
+ *
+ * All requests run in the calling thread, thus the repair of a read is
+ * done when the read returns.
+ */
+public class ReplicatedVolatileDirectoryTest extends DirectoryFixture {
+
+    private final List< VolatileDirectoryImpl > replicas = new ArrayList< VolatileDirectoryImpl >();
+    private ReplicatedVolatileDirectory directory;
+
+
+    @BeforeMethod( groups = { "ReplicatedVolatileDirectoryTest" } )
+    public void open() {
+        replicas.clear();
+        for( int i = 0; i < 3; ++i ) {
+            replicas.add( directory() );
+        }
+
+        directory = new ReplicatedVolatileDirectory();
+        directory.setDirectory( replicas.get( 0 ) );
+        directory.setReplicas( new ArrayList< VolatileDirectory >( replicas.subList( 1, 3 ) ) );
+        directory.setWriteQuorum( 2 );
+        directory.setReadQuorum( 2 );
+        directory.setExecutor( new Executor() {
+            public void execute( Runnable command ) {
+                command.run();
+            }
+        } );
+    }
+
+
+    @Test( groups = { "ReplicatedVolatileDirectoryTest" } )
+    public void testWriteReachesAllReplicas() {
+        directory.insert( key( "k1" ), values( "v1" ), 1000 );
+
+        for( VolatileDirectoryImpl replica: replicas ) {
+            Assert.assertEquals( replica.lookup( key( "k1" ) ), values( "v1" ) );
+        }
+    }
+
+
+    @Test( groups = { "ReplicatedVolatileDirectoryTest" } )
+    public void testLookupRepairsStaleReplicas() {
+        // replica 2 missed the newer write, replica 1 missed the key at all
+        replicas.get( 0 ).insert( key( "k1" ), values( "v2" ), 2000 );
+        replicas.get( 2 ).insert( key( "k1" ), values( "v1" ), 1000 );
+
+        Assert.assertEquals( directory.lookup( key( "k1" ) ), values( "v2" ) );
+
+        for( VolatileDirectoryImpl replica: replicas ) {
+            Assert.assertEquals( replica.lookup( key( "k1" ) ), values( "v2" ) );
+            Assert.assertEquals( replica.lookupDated( key( "k1" ) ).date(), 2000 );
+        }
+    }
+
+
+    @Test( groups = { "ReplicatedVolatileDirectoryTest" } )
+    public void testLookupRepairsDeletion() {
+        directory.insert( key( "k1" ), values( "v1" ), 1000 );
+
+        // only one replica got the deletion
+        replicas.get( 1 ).delete( key( "k1" ), 2000 );
+
+        Assert.assertNull( directory.lookup( key( "k1" ) ) );
+
+        for( VolatileDirectoryImpl replica: replicas ) {
+            Assert.assertNull( replica.lookup( key( "k1" ) ) );
+            Assert.assertTrue( replica.lookupDated( key( "k1" ) ).isDeleted() );
+        }
+    }
+
+
+    @Test( groups = { "ReplicatedVolatileDirectoryTest" } )
+    public void testPrefixLookupRepairsDivergentKeys() {
+        directory.insert( key( "k1" ), values( "v1" ), 1000 );
+        // not acknowledged by a write quorum, thus the read quorum may miss it
+        replicas.get( 2 ).insert( key( "k2" ), values( "v2" ), 1000 );
+
+        Map< List< String >, Set< String > > result = directory.prefixLookup( Collections.singletonList( "/a/" ) );
+        Assert.assertEquals( result.get( key( "k1" ) ), values( "v1" ) );
+
+        // repaired once all replicas responded
+
+        for( VolatileDirectoryImpl replica: replicas ) {
+            Assert.assertEquals( replica.lookup( key( "k2" ) ), values( "v2" ) );
+        }
+    }
+
+
+    @Test( groups = { "ReplicatedVolatileDirectoryTest" } )
+    public void testRepairTakesTheWriteLock() {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final List< Boolean > locked = new ArrayList< Boolean >();
+
+        VolatileDirectoryImpl stale = new VolatileDirectoryImpl( backend(), timeSlice() ) {
+            @Override
+            public void insert( List< String > key, Set< String > value, long timeStamp ) {
+                locked.add( lock.isWriteLockedByCurrentThread() );
+                super.insert( key, value, timeStamp );
+            }
+        };
+        directory.setReplicas( Arrays.< VolatileDirectory >asList( replicas.get( 1 ), stale ) );
+        directory.setLock( lock );
+
+        replicas.get( 0 ).insert( key( "k1" ), values( "v1" ), 1000 );
+        replicas.get( 1 ).insert( key( "k1" ), values( "v1" ), 1000 );
+
+        Assert.assertEquals( directory.lookup( key( "k1" ) ), values( "v1" ) );
+        Assert.assertEquals( locked, Collections.singletonList( true ) );
+    }
+}
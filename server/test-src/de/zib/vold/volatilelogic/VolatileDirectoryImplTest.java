@@ -0,0 +1,187 @@
+/*
+ * Copyright 2008-2011 Zuse Institute Berlin (ZIB)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.zib.vold.volatilelogic;
+
+import de.zib.vold.replication.Replicator;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Behaviour of deletions with a timeStamp and their tombstones.
+ */
+public class VolatileDirectoryImplTest extends DirectoryFixture {
+
+    private VolatileDirectoryImpl directory;
+
+
+    @BeforeMethod( groups = { "VolatileDirectoryImplTest" } )
+    public void open() {
+        directory = directory();
+    }
+
+
+    @Test( groups = { "VolatileDirectoryImplTest" } )
+    public void testOlderInsertStaysDeleted() {
+        directory.insert( key( "k1" ), values( "v1" ), 1000 );
+        directory.delete( key( "k1" ), 2000 );
+
+        // a delayed insert written before the deletion
+        directory.insert( key( "k1" ), values( "v0" ), 1500 );
+        directory.refresh( key( "k1" ), 1500 );
+
+        Assert.assertNull( directory.lookup( key( "k1" ) ) );
+
+        final DatedValues tombstone = directory.lookupDated( key( "k1" ) );
+        Assert.assertNotNull( tombstone );
+        Assert.assertTrue( tombstone.isDeleted() );
+        Assert.assertEquals( tombstone.date(), 2000 );
+    }
+
+
+    @Test( groups = { "VolatileDirectoryImplTest" } )
+    public void testDeleteOfUnknownKeyBuriesOlderInsert() {
+        directory.delete( key( "k1" ), 2000 );
+        directory.insert( key( "k1" ), values( "v1" ), 1000 );
+
+        Assert.assertNull( directory.lookup( key( "k1" ) ) );
+    }
+
+
+    @Test( groups = { "VolatileDirectoryImplTest" } )
+    public void testNewerInsertRevivesKey() {
+        directory.insert( key( "k1" ), values( "v1" ), 1000 );
+        directory.delete( key( "k1" ), 2000 );
+        directory.insert( key( "k1" ), values( "v3" ), 3000 );
+
+        Assert.assertEquals( directory.lookup( key( "k1" ) ), values( "v3" ) );
+
+        final DatedValues dated = directory.lookupDated( key( "k1" ) );
+        Assert.assertFalse( dated.isDeleted() );
+        Assert.assertEquals( dated.date(), 3000 );
+
+        // the revived key is not deleted by the former tombstone
+        Assert.assertEquals( directory.expireTombstones( 10000 ), 0 );
+        Assert.assertEquals( directory.lookup( key( "k1" ) ), values( "v3" ) );
+    }
+
+
+    @Test( groups = { "VolatileDirectoryImplTest" } )
+    public void testOlderDeleteKeepsKey() {
+        directory.insert( key( "k1" ), values( "v1" ), 3000 );
+        directory.delete( key( "k1" ), 2000 );
+
+        Assert.assertEquals( directory.lookup( key( "k1" ) ), values( "v1" ) );
+    }
+
+
+    @Test( groups = { "VolatileDirectoryImplTest" } )
+    public void testTombstonesExpire() {
+        directory.delete( key( "k1" ), 1000 );
+        directory.delete( key( "k2" ), 5000 );
+
+        Assert.assertEquals( directory.expireTombstones( 2000 ), 1 );
+
+        // the expired tombstone does not bury old writes anymore
+        Assert.assertNull( directory.lookupDated( key( "k1" ) ) );
+        directory.insert( key( "k1" ), values( "v1" ), 500 );
+        Assert.assertEquals( directory.lookup( key( "k1" ) ), values( "v1" ) );
+
+        // the other one still does
+        Assert.assertTrue( directory.lookupDated( key( "k2" ) ).isDeleted() );
+        directory.insert( key( "k2" ), values( "v2" ), 4000 );
+        Assert.assertNull( directory.lookup( key( "k2" ) ) );
+
+        Assert.assertEquals( directory.expireTombstones( 10000 ), 1 );
+        Assert.assertNull( directory.lookupDated( key( "k2" ) ) );
+    }
+
+
+    @Test( groups = { "VolatileDirectoryImplTest" } )
+    public void testDeleteWithoutTombstones() {
+        directory.setTombstones( false );
+
+        directory.insert( key( "k1" ), values( "v1" ), 1000 );
+        directory.delete( key( "k1" ), 2000 );
+        Assert.assertNull( directory.lookup( key( "k1" ) ) );
+
+        // deletions leave no trace
+        directory.insert( key( "k1" ), values( "v0" ), 1500 );
+        Assert.assertEquals( directory.lookup( key( "k1" ) ), values( "v0" ) );
+    }
+
+
+    @Test( groups = { "VolatileDirectoryImplTest" } )
+    public void testTombstoneLookup() {
+        directory.insert( key( "k1" ), values( "v1" ), 1000 );
+        directory.delete( key( "k1" ), 2000 );
+        directory.delete( key( "k2" ), 3000 );
+
+        final DateMap tombstones = directory.tombstoneLookup();
+
+        Assert.assertEquals( tombstones.size(), 2 );
+        Assert.assertEquals( tombstones.get( key( "k1" ), -1 ), 2000 );
+        Assert.assertEquals( tombstones.get( key( "k2" ), -1 ), 3000 );
+    }
+
+
+    @Test( groups = { "VolatileDirectoryImplTest" } )
+    public void testDroppedWritesAreNotFed() {
+        final RecordingFeed feed = new RecordingFeed();
+        directory.setChangeFeed( feed );
+
+        directory.insert( key( "k1" ), values( "v1" ), 3000 );
+        directory.delete( key( "k1" ), 2000 );
+        directory.insert( key( "k1" ), values( "v0" ), 1000 );
+        directory.refresh( key( "k1" ), 1000 );
+        directory.refresh( key( "k2" ), 1000 );
+
+        directory.delete( key( "k1" ), 4000 );
+        directory.insert( key( "k1" ), values( "v2" ), 3500 );
+
+        Assert.assertEquals( feed.changes, Arrays.asList( "insert k1 3000", "delete k1 4000" ) );
+    }
+
+
+    /**
+     * Records the write requests passed on to the change feed.
+     */
+    private static class RecordingFeed implements Replicator {
+
+        final List< String > changes = new LinkedList< String >();
+
+        public void insert( List< String > key, Set< String > value, long timeStamp ) {
+            changes.add( "insert " + key.get( 2 ) + " " + timeStamp );
+        }
+
+        public void refresh( List< String > key, long timeStamp ) {
+            changes.add( "refresh " + key.get( 2 ) + " " + timeStamp );
+        }
+
+        public void delete( List< String > key ) {
+            changes.add( "delete " + key.get( 2 ) );
+        }
+
+        public void delete( List< String > key, long timeStamp ) {
+            changes.add( "delete " + key.get( 2 ) + " " + timeStamp );
+        }
+    }
+}